@@ -886,7 +886,12 @@ public class Base {
 //    List<ToolContribution> toolContribs =
 //      ToolContribution.loadAll(Base.getSketchbookToolsFolder());
 //    contributions.addAll(toolContribs);
-    contributions.addAll(ToolContribution.loadAll(getSketchbookToolsFolder()));
+    // already loaded by rebuildToolList(), no need to instantiate them again
+    if (contribTools != null) {
+      contributions.addAll(new ArrayList<>(contribTools));
+    } else {
+      contributions.addAll(ToolContribution.loadAll(getSketchbookToolsFolder()));
+    }
 
     contributions.addAll(getExampleContribs());
     return contributions;
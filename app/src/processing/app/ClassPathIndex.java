@@ -0,0 +1,408 @@
+/* -*- mode: java; c-basic-offset: 2; indent-tabs-mode: nil -*- */
+
+/*
+Part of the Processing project - http://processing.org
+Copyright (c) 2017 The Processing Foundation
+
+This program is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License version 2
+as published by the Free Software Foundation.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software Foundation, Inc.
+51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+*/
+
+package processing.app;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+
+/**
+ * Index of the classes and packages found in each class path entry, used
+ * to list the packages in each library, and by code completion and import
+ * suggestions instead of scanning the jars with a ClassPath and
+ * RegExpResourceFilter for every lookup.
+ * <p/>
+ * Jar entries are remembered by path, size and modification time, and
+ * saved to the settings folder so that they survive restarts. Only jars
+ * that are new or have changed get opened again. Class folders (like a
+ * code folder full of .class files) are cheap enough to list, and likely
+ * to change, so they are only kept in memory.
+ * <p/>
+ * Classes are looked up by their simple name, and packages by name, so
+ * neither needs a pass over every class in the class path. Members are not
+ * indexed; once a class is found, its members come from the sketch class
+ * loader through reflection, as before.
+ */
+public class ClassPathIndex {
+  static final String FILENAME = "classpath.idx";
+  static final int VERSION = 1;
+
+  static private ClassPathIndex instance;
+
+  private final File file;
+  private final Map<String, Entry> entries = new HashMap<>();
+  private boolean modified;
+
+
+  /** Contents of a single jar or class folder. */
+  static class Entry {
+    String path;
+    long size;
+    long modified;
+    /** resource names, i.e. "processing/core/PApplet.class" */
+    String[] classes;
+    /** package names, "/" separated, including parent packages */
+    Set<String> packages;
+    /**
+     * resource names by lowercase simple name, which for a nested class
+     * is the part after the last $ (so "inner" for "Outer$Inner.class")
+     */
+    SortedMap<String, List<String>> byName;
+  }
+
+
+  ClassPathIndex(File file) {
+    this.file = file;
+  }
+
+
+  /**
+   * Get the shared index, reading it from the settings folder
+   * the first time this is called.
+   */
+  static synchronized public ClassPathIndex get() {
+    if (instance == null) {
+      instance = new ClassPathIndex(Base.getSettingsFile(FILENAME));
+      instance.load();
+    }
+    return instance;
+  }
+
+
+  /**
+   * Use a different file for the index, rather than the one in the
+   * settings folder. Anything already loaded is forgotten.
+   */
+  static synchronized public void setFile(File file) {
+    instance = new ClassPathIndex(file);
+    instance.load();
+  }
+
+
+  /**
+   * Make sure that every entry in the class path is in the index, scanning
+   * only those that are new or have changed on disk. Call from a background
+   * thread, since this may need to open jar files.
+   */
+  public synchronized void update(String[] classPath) {
+    for (String path : classPath) {
+      lookup(path);
+    }
+    if (modified) {
+      save();
+    }
+  }
+
+
+  /**
+   * Find the classes and nested classes with this simple name, ignoring
+   * case, so "inner" finds "Outer$Inner.class".
+   * @return resource names, same as ClassPath.findResources()
+   */
+  public synchronized String[] findClasses(String[] classPath, String name) {
+    String key = name.toLowerCase(Locale.ROOT);
+    List<String> outgoing = new ArrayList<>();
+    Set<String> seen = new HashSet<>();
+    for (String path : classPath) {
+      Entry entry = lookup(path);
+      if (entry == null) continue;
+      List<String> found = entry.byName.get(key);
+      if (found != null) {
+        for (String resource : found) {
+          // first one wins, just like with a class loader
+          if (seen.add(resource)) {
+            outgoing.add(resource);
+          }
+        }
+      }
+    }
+    if (modified) {
+      save();
+    }
+    return outgoing.toArray(new String[0]);
+  }
+
+
+  /**
+   * Find the top-level classes whose name starts with the prefix, ignoring
+   * case, for completing a class name that's being typed.
+   * @return resource names, same as ClassPath.findResources()
+   */
+  public synchronized String[] findClassesStartingWith(String[] classPath,
+                                                       String prefix) {
+    String key = prefix.toLowerCase(Locale.ROOT);
+    List<String> outgoing = new ArrayList<>();
+    Set<String> seen = new HashSet<>();
+    for (String path : classPath) {
+      Entry entry = lookup(path);
+      if (entry == null) continue;
+      for (List<String> found :
+           entry.byName.subMap(key, key + Character.MAX_VALUE).values()) {
+        for (String resource : found) {
+          if (resource.indexOf('$', resource.lastIndexOf('/') + 1) == -1 &&
+              seen.add(resource)) {
+            outgoing.add(resource);
+          }
+        }
+      }
+    }
+    if (modified) {
+      save();
+    }
+    return outgoing.toArray(new String[0]);
+  }
+
+
+  /**
+   * Get the packages (as a.b.c, not a/b/c) that have classes inside a .jar
+   * or .zip file, reading through it only if it's new or has changed. Call
+   * save() once done with a batch of these, since this doesn't write the
+   * index each time.
+   */
+  public synchronized String[] getPackages(File file) {
+    Entry entry = lookup(file.getPath());
+    if (entry == null) {
+      return new String[0];
+    }
+    // in the order they're found, entries from a package are usually together
+    Set<String> packages = new LinkedHashSet<>();
+    for (String name : entry.classes) {
+      int slash = name.lastIndexOf('/');
+      if (slash != -1) {
+        packages.add(name.substring(0, slash).replace('/', '.'));
+      }
+    }
+    return packages.toArray(new String[0]);
+  }
+
+
+  /**
+   * @param name package name with "/" as the separator
+   */
+  public synchronized boolean isPackage(String[] classPath, String name) {
+    for (String path : classPath) {
+      Entry entry = lookup(path);
+      if (entry != null && entry.packages.contains(name)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+
+  /**
+   * Get the index entry for a class path item, scanning it if it's
+   * not indexed yet or has changed since.
+   * @return null if the path doesn't exist or can't be read
+   */
+  private Entry lookup(String path) {
+    // entries are stored and saved under the absolute path with any "."
+    // and ".." taken out, however the class path happened to spell it
+    File item = new File(path).toPath().toAbsolutePath().normalize().toFile();
+    if (item.isDirectory()) {
+      // not saved, always listed fresh
+      return scanFolder(item);
+    }
+    if (!item.exists()) {
+      return null;
+    }
+    Entry entry = entries.get(item.getPath());
+    if (entry == null ||
+        entry.size != item.length() ||
+        entry.modified != item.lastModified()) {
+      entry = scanJar(item);
+      if (entry != null) {
+        entries.put(entry.path, entry);
+        modified = true;
+      }
+    }
+    return entry;
+  }
+
+
+  static private Entry scanJar(File jar) {
+    List<String> classes = new ArrayList<>();
+    try {
+      ZipFile zip = new ZipFile(jar);
+      try {
+        Enumeration<? extends ZipEntry> en = zip.entries();
+        while (en.hasMoreElements()) {
+          ZipEntry ze = en.nextElement();
+          String name = ze.getName();
+          if (!ze.isDirectory() && name.endsWith(".class")) {
+            classes.add(name);
+          }
+        }
+      } finally {
+        zip.close();
+      }
+    } catch (IOException e) {
+      System.err.println("Ignoring " + jar.getPath() + " (" + e.getMessage() + ")");
+      return null;
+    }
+    Entry entry = new Entry();
+    entry.path = jar.getAbsolutePath();
+    entry.size = jar.length();
+    entry.modified = jar.lastModified();
+    entry.classes = classes.toArray(new String[0]);
+    fill(entry);
+    return entry;
+  }
+
+
+  static private Entry scanFolder(File folder) {
+    String[] paths = Util.listFiles(folder, true, ".class");
+    for (int i = 0; i < paths.length; i++) {
+      paths[i] = paths[i].replace(File.separatorChar, '/');
+    }
+    Entry entry = new Entry();
+    entry.path = folder.getAbsolutePath();
+    entry.classes = paths;
+    fill(entry);
+    return entry;
+  }
+
+
+  /** Build the lookup tables from the list of classes. */
+  static private void fill(Entry entry) {
+    entry.packages = new HashSet<>();
+    entry.byName = new TreeMap<>();
+    for (String name : entry.classes) {
+      int slash = name.lastIndexOf('/');
+      int start = Math.max(slash, name.lastIndexOf('$')) + 1;
+      String key =
+        name.substring(start, name.length() - 6).toLowerCase(Locale.ROOT);
+      List<String> found = entry.byName.get(key);
+      if (found == null) {
+        found = new ArrayList<>(1);
+        entry.byName.put(key, found);
+      }
+      found.add(name);
+
+      // add the package and all its parents, stop at one already seen
+      while (slash != -1 && entry.packages.add(name.substring(0, slash))) {
+        slash = name.lastIndexOf('/', slash - 1);
+      }
+    }
+  }
+
+
+  // . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . .
+
+
+  void load() {
+    if (file == null || !file.exists()) return;
+
+    try {
+      DataInputStream input = new DataInputStream(new BufferedInputStream(
+        new GZIPInputStream(new FileInputStream(file))));
+      try {
+        if (input.readInt() != VERSION) {
+          return;  // written by another version, just start over
+        }
+        int count = input.readInt();
+        for (int i = 0; i < count; i++) {
+          Entry entry = new Entry();
+          entry.path = input.readUTF();
+          entry.size = input.readLong();
+          entry.modified = input.readLong();
+          entry.classes = new String[input.readInt()];
+          for (int j = 0; j < entry.classes.length; j++) {
+            entry.classes[j] = input.readUTF();
+          }
+          fill(entry);
+          entries.put(entry.path, entry);
+        }
+      } finally {
+        input.close();
+      }
+    } catch (IOException e) {
+      Messages.loge("could not read " + file + ", rebuilding", e);
+      entries.clear();
+    }
+  }
+
+
+  /**
+   * Write the index to the settings folder if anything was added to it.
+   * Files that no longer exist are left out.
+   */
+  public synchronized void save() {
+    if (!modified) return;
+    modified = false;
+    if (file == null) return;
+
+    try {
+      // write to a temp file first so that a crash won't leave half an index
+      File temp = new File(file.getParentFile(), file.getName() + ".tmp");
+      DataOutputStream output = new DataOutputStream(new BufferedOutputStream(
+        new GZIPOutputStream(new FileOutputStream(temp))));
+      try {
+        output.writeInt(VERSION);
+        List<Entry> saved = new ArrayList<>();
+        for (Entry entry : entries.values()) {
+          if (new File(entry.path).exists()) {
+            saved.add(entry);
+          }
+        }
+        output.writeInt(saved.size());
+        for (Entry entry : saved) {
+          output.writeUTF(entry.path);
+          output.writeLong(entry.size);
+          output.writeLong(entry.modified);
+          output.writeInt(entry.classes.length);
+          for (String name : entry.classes) {
+            output.writeUTF(name);
+          }
+        }
+      } finally {
+        output.close();
+      }
+      if (!temp.renameTo(file)) {
+        file.delete();
+        temp.renameTo(file);
+      }
+    } catch (IOException e) {
+      Messages.loge("could not write " + file, e);
+    }
+  }
+}
@@ -381,6 +381,9 @@ public abstract class Mode {
       lib.addPackageList(newTable);
     }
 
+    // keep what was learned about any new or changed jars for next time
+    ClassPathIndex.get().save();
+
     // Make this Map thread-safe
     importToLibraryTable = Collections.unmodifiableMap(newTable);
 
@@ -42,6 +42,7 @@ import java.io.*;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
 
 import javax.swing.*;
 import javax.swing.border.EmptyBorder;
@@ -88,6 +89,9 @@ public class Sketch {
   private int codeCount;
   private SketchCode[] code;
 
+  /** Writes the tabs to disk, in the background when asked. */
+  private SketchSaver saver = new SketchSaver();
+
   /** Moved out of Editor and into here for cleaner access. */
   private boolean untitled;
 
@@ -449,6 +453,9 @@ public class Sketch {
     // make sure the user didn't hide the sketch folder
     ensureExistence();
 
+    // tabs still being written would land back under the old name
+    finishSaving();
+
     // Add the extension here, this simplifies some of the logic below.
     if (newName.indexOf('.') == -1) {
       newName += "." + (renamingCode ? mode.getDefaultExtension() : mode.getModuleExtension());
@@ -632,6 +639,9 @@ public class Sketch {
     // make sure the user didn't hide the sketch folder
     ensureExistence();
 
+    // don't let a background save put the file back after it's deleted
+    finishSaving();
+
     // if read-only, give an error
     if (isReadOnly()) {
       // if the files are read-only, need to first do a "save as".
@@ -792,6 +802,40 @@ public class Sketch {
    * called instead. (This is handled inside Editor.handleSave()).
    */
   public boolean save() throws IOException {
+    if (!prepareSave()) return false;
+
+    try {
+      saver.save(code);
+    } finally {
+      calcModified();
+    }
+    return true;
+  }
+
+
+  /**
+   * Same as save(), except that the files are written on another thread,
+   * and this returns as soon as the text of each tab has been captured.
+   * @param done called on the EDT once the files are on disk, with the
+   *             first error that came up, or null if there wasn't one
+   * @return false if the user canceled (from a "save as" for a read-only
+   *         sketch), in which case done won't be called
+   */
+  public boolean saveInBackground(final Consumer<IOException> done) throws IOException {
+    if (!prepareSave()) return false;
+
+    saver.saveInBackground(code, error -> {
+      calcModified();
+      if (done != null) {
+        done.accept(error);
+      }
+    });
+    calcModified();
+    return true;
+  }
+
+
+  private boolean prepareSave() throws IOException {
     // make sure the user didn't hide the sketch folder
     ensureExistence();
 
@@ -808,14 +852,24 @@ public class Sketch {
       // if the user cancels, give up on the save()
       if (!saveAs()) return false;
     }
+    return true;
+  }
 
-    for (SketchCode sc : code) {
-      if (sc.isModified()) {
-        sc.save();
-      }
-    }
+
+  /**
+   * Wait for any tabs still being written in the background, so that
+   * they're on disk (or marked as modified again, if that failed) before
+   * closing the sketch.
+   */
+  public void finishSaving() {
+    saver.finish();
     calcModified();
-    return true;
+  }
+
+
+  /** True while a newer version of this tab is still being written. */
+  public boolean isSavingInBackground(SketchCode sc) {
+    return saver.isSaving(sc);
   }
 
 
@@ -835,6 +889,9 @@ public class Sketch {
     String newName = null;
     String oldName = folder.getName();
 
+    // the files are copied from here, so they need to be up to date
+    finishSaving();
+
     // TODO rewrite this to use shared version from PApplet (But because that
     // specifies a callback function, this needs to wait until the refactoring)
     final String PROMPT = Language.text("save");
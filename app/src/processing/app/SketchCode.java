@@ -328,6 +328,17 @@ public class SketchCode {
   }
 
 
+  /**
+   * Record that text made it to disk, at the given modification time.
+   * Used by SketchSaver, which does the writing on another thread and
+   * leaves the modified flag to the EDT.
+   */
+  void setSaved(String text, long time) {
+    savedProgram = text;
+    lastModified = time;
+  }
+
+
   /**
    * Save this file to another location, used by Sketch.saveAs()
    */
@@ -0,0 +1,206 @@
+/* -*- mode: java; c-basic-offset: 2; indent-tabs-mode: nil -*- */
+
+/*
+  Part of the Processing project - http://processing.org
+
+  Copyright (c) 2017 The Processing Foundation
+
+  This program is free software; you can redistribute it and/or
+  modify it under the terms of the GNU General Public License
+  version 2, as published by the Free Software Foundation.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package processing.app;
+
+import java.awt.EventQueue;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+
+/**
+ * Writes the modified tabs of a sketch to disk, so that a slow or busy
+ * drive (or a network share) doesn't freeze the editor on every save.
+ * <p/>
+ * The text of each tab is captured on the EDT, and the files are written
+ * in parallel on other threads. Saves happen in order: one doesn't start
+ * writing until the one before it has finished, so an older version can't
+ * land on top of a newer one. A tab whose text is what's already on disk
+ * (and whose file hasn't been touched since) isn't written at all.
+ * <p/>
+ * Everything other than the writing itself (the modified flags, and what
+ * each tab remembers about its file) is only changed from the EDT.
+ */
+public class SketchSaver {
+  static private final ExecutorService threads =
+    Executors.newCachedThreadPool(r -> {
+      Thread t = new Thread(r);
+      t.setDaemon(true);
+      t.setName("Sketch Save " + t.getId());
+      return t;
+    });
+
+  /** The latest write started for each tab, until it's been finished */
+  private final Map<SketchCode, Write> pending = new HashMap<>();
+
+  /** Completes once everything started so far has been written */
+  private CompletableFuture<Void> writing = CompletableFuture.completedFuture(null);
+
+
+  /**
+   * Start writing the modified tabs, and return right away. The tabs are
+   * marked as saved now, so that typing while they're written marks them
+   * as modified again. If a write fails, that tab is marked modified too.
+   * @param done run on the EDT once the files are written, with the first
+   *             error that came up, or null if everything went fine
+   */
+  public void saveInBackground(SketchCode[] tabs,
+                               final Consumer<IOException> done) {
+    final List<Write> writes = start(tabs);
+    writing.thenRun(() -> EventQueue.invokeLater(() -> {
+      IOException error = finish(writes);
+      if (done != null) {
+        done.accept(error);
+      }
+    }));
+  }
+
+
+  /**
+   * Write the modified tabs, and wait for them along with anything still
+   * being saved in the background.
+   * @throws IOException the first error from any of the writes
+   */
+  public void save(SketchCode[] tabs) throws IOException {
+    start(tabs);
+    IOException error = finish();
+    if (error != null) {
+      throw error;
+    }
+  }
+
+
+  /**
+   * Wait for anything still being written, so that it's on disk before
+   * the window closes or the sketch is run.
+   * @return the first error from any of the writes, or null
+   */
+  public IOException finish() {
+    writing.join();
+    return finish(new ArrayList<>(pending.values()));
+  }
+
+
+  /** True if a version of this tab is on its way to disk. */
+  public boolean isSaving(SketchCode tab) {
+    return pending.containsKey(tab);
+  }
+
+
+  private List<Write> start(SketchCode[] tabs) {
+    final List<Write> writes = new ArrayList<>();
+    for (SketchCode tab : tabs) {
+      if (tab.isModified()) {
+        Write write = new Write(tab);
+        writes.add(write);
+        pending.put(tab, write);
+        tab.setModified(false);
+      }
+    }
+    if (!writes.isEmpty()) {
+      writing = writing.thenCompose(ignored -> {
+        CompletableFuture<?>[] futures = new CompletableFuture<?>[writes.size()];
+        for (int i = 0; i < futures.length; i++) {
+          futures[i] = CompletableFuture.runAsync(writes.get(i), threads);
+        }
+        return CompletableFuture.allOf(futures);
+      });
+    }
+    return writes;
+  }
+
+
+  private IOException finish(List<Write> writes) {
+    IOException error = null;
+    for (Write write : writes) {
+      // if a newer version has been sent off since, leave it to that one
+      if (pending.get(write.tab) == write) {
+        pending.remove(write.tab);
+        if (write.error == null) {
+          write.tab.setSaved(write.text, write.time);
+        } else {
+          write.tab.setModified(true);
+        }
+      }
+      if (error == null) {
+        error = write.error;
+      }
+    }
+    return error;
+  }
+
+
+  /**
+   * Put the text into the file. Unless the drive itself is slow, this is
+   * the only part that takes any time, so tests can override it.
+   */
+  protected void write(String text, File file) throws IOException {
+    Util.saveFile(text, file);
+  }
+
+
+  private class Write implements Runnable {
+    final SketchCode tab;
+    final File file;
+    final String text;
+    final String savedText;
+    final long savedTime;
+
+    volatile long time;
+    volatile IOException error;
+
+
+    Write(SketchCode tab) {
+      this.tab = tab;
+      file = tab.getFile();
+      text = tab.getProgram();
+      savedText = tab.getSavedProgram();
+      savedTime = tab.getLastModified();
+    }
+
+
+    public void run() {
+      try {
+        if (savedTime != 0 && text.equals(savedText) &&
+            file.lastModified() == savedTime) {
+          // already on disk, e.g. a change that was typed and then undone
+          time = savedTime;
+        } else {
+          write(text, file);
+          time = file.lastModified();
+        }
+      } catch (IOException e) {
+        error = e;
+      } catch (RuntimeException e) {
+        // keep going, so that later saves aren't stuck behind this one
+        error = new IOException("Could not save " + file, e);
+      }
+    }
+  }
+}
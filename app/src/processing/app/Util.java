@@ -23,8 +23,9 @@
 package processing.app;
 
 import java.io.*;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
-import java.util.Enumeration;
+import java.nio.file.StandardCopyOption;
 import java.util.zip.*;
 
 import processing.core.PApplet;
@@ -184,21 +185,25 @@ public class Util {
     boolean error = writer.checkError();  // calls flush()
     writer.close();  // attempt to close regardless
     if (error) {
+      temp.delete();
       throw new IOException("Error while trying to save " + file);
     }
 
-    // remove the old file before renaming the temp file
-    if (file.exists()) {
-      boolean result = file.delete();
-      if (!result) {
-        throw new IOException("Could not remove old version of " +
-                              file.getAbsolutePath());
+    // Replace the old file in one step, so that a crash (or a reader like
+    // the file watcher) never sees it half-written or missing.
+    try {
+      try {
+        Files.move(temp.toPath(), file.toPath(),
+                   StandardCopyOption.REPLACE_EXISTING,
+                   StandardCopyOption.ATOMIC_MOVE);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(temp.toPath(), file.toPath(),
+                   StandardCopyOption.REPLACE_EXISTING);
       }
-    }
-    boolean result = temp.renameTo(file);
-    if (!result) {
+    } catch (IOException e) {
+      temp.delete();
       throw new IOException("Could not replace " + file.getAbsolutePath() +
-                            " with " + temp.getAbsolutePath());
+                            " with " + temp.getAbsolutePath(), e);
     }
   }
 
@@ -549,31 +554,8 @@ public class Util {
 
 
   static private void packageListFromZip(String filename, StringList list) {
-    try {
-      ZipFile file = new ZipFile(filename);
-      Enumeration<?> entries = file.entries();
-      while (entries.hasMoreElements()) {
-        ZipEntry entry = (ZipEntry) entries.nextElement();
-
-        if (!entry.isDirectory()) {
-          String name = entry.getName();
-
-          if (name.endsWith(".class")) {
-            int slash = name.lastIndexOf('/');
-            if (slash == -1) continue;
-
-            String pname = name.substring(0, slash);
-//            if (map.get(pname) == null) {
-//              map.put(pname, new Object());
-//            }
-            list.appendUnique(pname);
-          }
-        }
-      }
-      file.close();
-    } catch (IOException e) {
-      System.err.println("Ignoring " + filename + " (" + e.getMessage() + ")");
-      //e.printStackTrace();
+    for (String pkg : ClassPathIndex.get().getPackages(new File(filename))) {
+      list.appendUnique(pkg);
     }
   }
 
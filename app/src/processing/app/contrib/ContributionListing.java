@@ -25,9 +25,14 @@ import java.awt.EventQueue;
 import java.io.*;
 import java.lang.reflect.InvocationTargetException;
 import java.net.*;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.text.Normalizer;
 import java.util.*;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.regex.Pattern;
 
 import processing.app.Base;
@@ -43,9 +48,14 @@ public class ContributionListing {
   /** Stable URL that will redirect to wherever the file is hosted */
   static final String LISTING_URL = "http://download.processing.org/contribs";
   static final String LOCAL_FILENAME = "contribs.txt";
+  /** ETag and Last-Modified of the listing file, saved alongside it */
+  static final String VALIDATORS_FILENAME = "contribs.validators";
 
   /** Location of the listing file on disk, will be read and written. */
   File listingFile;
+  File validatorsFile;
+  /** Sent with the next download, so it's skipped if nothing has changed. */
+  StringDict validators;
 
   List<ChangeListener> listeners;
   List<AvailableContribution> advertisedContributions;
@@ -56,22 +66,50 @@ public class ContributionListing {
   List<Contribution> allContributions;
   boolean listDownloaded;
   boolean listDownloadFailed;
-  ReentrantLock downloadingListingLock;
+
+  /** Runs the listing downloads in the background, one at a time. */
+  ExecutorService downloader =
+    Executors.newSingleThreadExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "Contribution List Downloader");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
 
 
   private ContributionListing() {
+    //listingFile = Base.getSettingsFile("contributions.txt");
+    this(Base.getSettingsFile(LOCAL_FILENAME));
+  }
+
+
+  /**
+   * Create a listing backed by a specific file, rather than the one in the
+   * settings folder. Used for testing along with a file: URL passed to
+   * updateListing(), to stand in for the download server.
+   */
+  ContributionListing(File listingFile) {
     listeners = new ArrayList<ChangeListener>();
     advertisedContributions = new ArrayList<AvailableContribution>();
     librariesByCategory = new HashMap<String, List<Contribution>>();
     librariesByImportHeader = new HashMap<String, Contribution>();
     allContributions = new ArrayList<Contribution>();
-    downloadingListingLock = new ReentrantLock();
 
-    //listingFile = Base.getSettingsFile("contributions.txt");
-    listingFile = Base.getSettingsFile(LOCAL_FILENAME);
+    this.listingFile = listingFile;
     listingFile.setWritable(true, false);
+    validatorsFile = new File(listingFile.getParentFile(), VALIDATORS_FILENAME);
+    validators = new StringDict();
     if (listingFile.exists()) {
       setAdvertisedList(listingFile);
+      // only worth sending if the listing they describe is around
+      if (validatorsFile.exists()) {
+        try {
+          validators = new StringDict(PApplet.createReader(validatorsFile));
+        } catch (Exception e) {
+          e.printStackTrace();
+        }
+      }
     }
   }
 
@@ -94,7 +132,11 @@ public class ContributionListing {
     advertisedContributions.clear();
     advertisedContributions.addAll(parseContribList(listingFile));
     for (Contribution contribution : advertisedContributions) {
-      addContribution(contribution);
+      addContributionUnsorted(contribution);
+    }
+    // sort once at the end, rather than after every single item
+    for (List<Contribution> list : librariesByCategory.values()) {
+      Collections.sort(list, COMPARATOR);
     }
     Collections.sort(allContributions, COMPARATOR);
   }
@@ -151,6 +193,15 @@ public class ContributionListing {
 
 
   private void addContribution(Contribution contribution) {
+    addContributionUnsorted(contribution);
+    for (String category : contribution.getCategories()) {
+      Collections.sort(librariesByCategory.get(category), COMPARATOR);
+    }
+    Collections.sort(allContributions, COMPARATOR);
+  }
+
+
+  private void addContributionUnsorted(Contribution contribution) {
     if (contribution.getImports() != null) {
       for (String importName : contribution.getImports()) {
         getLibrariesByImportHeader().put(importName, contribution);
@@ -160,7 +211,6 @@ public class ContributionListing {
       if (librariesByCategory.containsKey(category)) {
         List<Contribution> list = librariesByCategory.get(category);
         list.add(contribution);
-        Collections.sort(list, COMPARATOR);
 
       } else {
         ArrayList<Contribution> list = new ArrayList<Contribution>();
@@ -169,7 +219,6 @@ public class ContributionListing {
       }
       allContributions.add(contribution);
       notifyAdd(contribution);
-      Collections.sort(allContributions, COMPARATOR);
     }
   }
 
@@ -396,17 +445,16 @@ public class ContributionListing {
 
 
   /**
-   * Starts a new thread to download the advertised list of contributions.
-   * Only one instance will run at a time.
+   * Download the advertised list of contributions in the background.
+   * Only one download will run at a time, and if the list hasn't changed
+   * since the last time, the copy that was already loaded is kept.
    */
   public void downloadAvailableList(final Base base,
                                     final ContribProgressMonitor progress) {
 
     // TODO: replace with SwingWorker [jv]
-    new Thread(new Runnable() {
+    downloader.execute(new Runnable() {
       public void run() {
-        downloadingListingLock.lock();
-
         try {
           URL url = new URL(LISTING_URL);
           // testing port
@@ -421,49 +469,120 @@ public class ContributionListing {
 //          url = new URL(LISTING_URL + "?" + contribInfo);
 //          System.out.println(contribInfo.length() + " " + contribInfo);
 
-          File tempContribFile = Base.getSettingsFile("contribs.tmp");
-          tempContribFile.setWritable(true, false);
-          ContributionManager.download(url, base.getInstalledContribsInfo(),
-                                       tempContribFile, progress);
-          if (!progress.isCanceled() && !progress.isError()) {
-            if (listingFile.exists()) {
-              listingFile.delete();  // may silently fail, but below may still work
-            }
-            if (tempContribFile.renameTo(listingFile)) {
-              listDownloaded = true;
-              listDownloadFailed = false;
-              try {
-                // TODO: run this in SwingWorker done() [jv]
-                EventQueue.invokeAndWait(new Runnable() {
-                  @Override
-                  public void run() {
-                    setAdvertisedList(listingFile);
-                    base.setUpdatesAvailable(countUpdates(base));
-                  }
-                });
-              } catch (InterruptedException e) {
-                e.printStackTrace();
-              } catch (InvocationTargetException e) {
-                Throwable cause = e.getCause();
-                if (cause instanceof RuntimeException) {
-                  throw (RuntimeException) cause;
-                } else {
-                  cause.printStackTrace();
+          if (updateListing(url, base.getInstalledContribsInfo(), progress)) {
+            try {
+              // TODO: run this in SwingWorker done() [jv]
+              EventQueue.invokeAndWait(new Runnable() {
+                @Override
+                public void run() {
+                  base.setUpdatesAvailable(countUpdates(base));
                 }
+              });
+            } catch (InterruptedException e) {
+              e.printStackTrace();
+            } catch (InvocationTargetException e) {
+              Throwable cause = e.getCause();
+              if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+              } else {
+                cause.printStackTrace();
               }
-            } else {
-              listDownloadFailed = true;
             }
           }
 
         } catch (MalformedURLException e) {
           progress.error(e);
           progress.finished();
-        } finally {
-          downloadingListingLock.unlock();
         }
       }
-    }, "Contribution List Downloader").start();
+    });
+  }
+
+
+  /**
+   * Blocks while downloading the listing from 'url', if it has changed
+   * since the last download, and then loads it on the EDT.
+   * @return true if an up to date listing is available (whether it had
+   * to be downloaded or not), false if the download failed or was canceled.
+   */
+  boolean updateListing(URL url, byte[] post, ContribProgressMonitor progress) {
+    File tempContribFile = new File(listingFile.getParentFile(), "contribs.tmp");
+    tempContribFile.setWritable(true, false);
+    StringDict newValidators = validators.copy();
+    // Only a GET can come back as 'not modified', so use one while there's
+    // a copy to keep. The contribs info is sent along with a full download.
+    boolean conditional = listingFile.exists() && validators.size() != 0;
+    int status = ContributionManager.download(url, conditional ? null : post,
+                                              tempContribFile, progress,
+                                              newValidators);
+    if (progress.isCanceled() || progress.isError()) {
+      tempContribFile.delete();
+      return false;
+    }
+
+    if (status == HttpURLConnection.HTTP_NOT_MODIFIED) {
+      // Parsed when this object was created, nothing else to do
+      listDownloaded = true;
+      listDownloadFailed = false;
+      return true;
+    }
+
+    // Keep the old listing until the new one is in hand, then swap it in
+    // one step, so that it's never missing or half-written.
+    if (status == HttpURLConnection.HTTP_OK &&
+        replaceFile(tempContribFile, listingFile)) {
+      listDownloaded = true;
+      listDownloadFailed = false;
+      saveValidators(newValidators);
+      try {
+        // TODO: run this in SwingWorker done() [jv]
+        EventQueue.invokeAndWait(new Runnable() {
+          @Override
+          public void run() {
+            setAdvertisedList(listingFile);
+          }
+        });
+      } catch (InterruptedException e) {
+        e.printStackTrace();
+      } catch (InvocationTargetException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof RuntimeException) {
+          throw (RuntimeException) cause;
+        } else {
+          cause.printStackTrace();
+        }
+      }
+      return true;
+    }
+    tempContribFile.delete();
+    listDownloadFailed = true;
+    return false;
+  }
+
+
+  static private boolean replaceFile(File source, File target) {
+    try {
+      try {
+        Files.move(source.toPath(), target.toPath(),
+                   StandardCopyOption.REPLACE_EXISTING,
+                   StandardCopyOption.ATOMIC_MOVE);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(source.toPath(), target.toPath(),
+                   StandardCopyOption.REPLACE_EXISTING);
+      }
+      return true;
+    } catch (IOException e) {
+      e.printStackTrace();
+      return false;
+    }
+  }
+
+
+  private void saveValidators(StringDict newValidators) {
+    validators = newValidators;
+    PrintWriter writer = PApplet.createWriter(validatorsFile);
+    validators.write(writer);
+    writer.close();
   }
 
 
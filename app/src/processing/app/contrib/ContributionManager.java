@@ -58,64 +58,125 @@ public class ContributionManager {
    */
   static boolean download(URL source, byte[] post,
                           File dest, ContribProgressMonitor progress) {
-    boolean success = false;
+    return download(source, post, dest, progress, null) == HttpURLConnection.HTTP_OK;
+  }
+
+
+  /**
+   * Conditional version of download(). For a GET, the ETag and Last-Modified
+   * values from an earlier download are sent along from 'validators', and
+   * if the server says nothing has changed, 'dest' is left alone. (Servers
+   * don't answer a POST with 304, so for a POST they're not sent.) Once the
+   * file is written, 'validators' is updated with the values for it.
+   * For file: URLs (handy for testing), only the modification time is used.
+   *
+   * @param validators null for an unconditional download
+   * @return HTTP_OK if the file was downloaded, HTTP_NOT_MODIFIED
+   *         if it hasn't changed, or -1 if something went wrong.
+   */
+  static int download(URL source, byte[] post, File dest,
+                      ContribProgressMonitor progress, StringDict validators) {
+    int status = -1;
     try {
-      HttpURLConnection conn = (HttpURLConnection) source.openConnection();
-      HttpURLConnection.setFollowRedirects(true);
+      URLConnection conn = source.openConnection();
       conn.setConnectTimeout(15 * 1000);
       conn.setReadTimeout(60 * 1000);
 
-      if (post == null) {
-        conn.setRequestMethod("GET");
-        conn.connect();
+      boolean conditional = (validators != null && post == null);
+      String etag = conditional ? validators.get("etag") : null;
+      String modified = conditional ? validators.get("modified") : null;
+
+      if (conn instanceof HttpURLConnection) {
+        HttpURLConnection http = (HttpURLConnection) conn;
+        HttpURLConnection.setFollowRedirects(true);
+        if (etag != null) {
+          http.setRequestProperty("If-None-Match", etag);
+        }
+        if (modified != null) {
+          http.setIfModifiedSince(Long.parseLong(modified));
+        }
+
+        if (post == null) {
+          http.setRequestMethod("GET");
+          http.connect();
+
+        } else {
+          post = Util.gzipEncode(post);
+          http.setRequestMethod("POST");
+          http.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+          http.setRequestProperty("Content-Encoding", "gzip");
+          http.setRequestProperty("Content-Length", String.valueOf(post.length));
+          http.setUseCaches(false);
+          http.setDoInput(true);
+          http.setDoOutput(true);
+          http.getOutputStream().write(post);
+        }
+        status = http.getResponseCode();
 
       } else {
-        post = Util.gzipEncode(post);
-        conn.setRequestMethod("POST");
-        conn.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
-        conn.setRequestProperty("Content-Encoding", "gzip");
-        conn.setRequestProperty("Content-Length", String.valueOf(post.length));
-        conn.setUseCaches(false);
-        conn.setDoInput(true);
-        conn.setDoOutput(true);
-        conn.getOutputStream().write(post);
+        // file: and jar: URLs have no headers, but do have a timestamp
+        conn.connect();
+        status = HttpURLConnection.HTTP_OK;
+        if (modified != null &&
+            conn.getLastModified() == Long.parseLong(modified)) {
+          status = HttpURLConnection.HTTP_NOT_MODIFIED;
+        }
       }
 
-      if (progress != null) {
-        // TODO this is often -1, may need to set progress to indeterminate
-        int fileSize = conn.getContentLength();
-        progress.max = fileSize;
-//      System.out.println("file size is " + fileSize);
-        progress.startTask(Language.text("contrib.progress.downloading"), fileSize);
-      }
+      if (status == HttpURLConnection.HTTP_NOT_MODIFIED) {
+        conn.getInputStream().close();
 
-      InputStream in = conn.getInputStream();
-      FileOutputStream out = new FileOutputStream(dest);
+      } else {
+        if (progress != null) {
+          // TODO this is often -1, may need to set progress to indeterminate
+          int fileSize = conn.getContentLength();
+          progress.max = fileSize;
+//        System.out.println("file size is " + fileSize);
+          progress.startTask(Language.text("contrib.progress.downloading"), fileSize);
+        }
 
-      byte[] b = new byte[8192];
-      int amount;
-      if (progress != null) {
-        int total = 0;
-        while (!progress.isCanceled() && (amount = in.read(b)) != -1) {
-          out.write(b, 0, amount);
-          total += amount;
-          progress.setProgress(total);
+        InputStream in = conn.getInputStream();
+        FileOutputStream out = new FileOutputStream(dest);
+
+        byte[] b = new byte[8192];
+        int amount;
+        if (progress != null) {
+          int total = 0;
+          while (!progress.isCanceled() && (amount = in.read(b)) != -1) {
+            out.write(b, 0, amount);
+            total += amount;
+            progress.setProgress(total);
+          }
+        } else {
+          while ((amount = in.read(b)) != -1) {
+            out.write(b, 0, amount);
+          }
         }
-      } else {
-        while ((amount = in.read(b)) != -1) {
-          out.write(b, 0, amount);
+        out.flush();
+        out.close();
+        in.close();
+        status = HttpURLConnection.HTTP_OK;
+
+        if (validators != null) {
+          validators.remove("etag");
+          validators.remove("modified");
+          if (conn.getHeaderField("ETag") != null) {
+            validators.set("etag", conn.getHeaderField("ETag"));
+          }
+          if (conn.getLastModified() != 0) {
+            validators.set("modified", String.valueOf(conn.getLastModified()));
+          }
         }
       }
-      out.flush();
-      out.close();
-      success = true;
 
     } catch (SocketTimeoutException ste) {
+      status = -1;
       if (progress != null) {
         progress.error(ste);
         progress.cancel();
       }
     } catch (IOException ioe) {
+      status = -1;
       if (progress != null) {
         progress.error(ioe);
         progress.cancel();
@@ -126,7 +187,7 @@ public class ContributionManager {
     if (progress != null) {
       progress.finished();
     }
-    return success;
+    return status;
   }
 
 
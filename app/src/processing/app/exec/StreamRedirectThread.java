@@ -48,7 +48,7 @@ public class StreamRedirectThread extends Thread {
   private final Reader in;
   private final Writer out;
 
-  private static final int BUFFER_SIZE = 2048;
+  private static final int BUFFER_SIZE = 16384;
 
 
   /**
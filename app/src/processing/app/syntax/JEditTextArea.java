@@ -2010,7 +2010,17 @@ public class JEditTextArea extends JComponent
     int line = getLineOfOffset(evt.getOffset());
     if(count == 0)
     {
-      painter.invalidateLine(line);
+      // only repaint as far down as the edit changed the coloring,
+      // e.g. to the end of a comment that was just opened
+      TokenMarkerState tokenMarker = getTokenMarker();
+      int last = (tokenMarker == null) ?
+        line : tokenMarker.getLastChangedLine();
+      last = Math.min(last, firstLine + visibleLines);
+      if (last > line) {
+        painter.invalidateLineRange(line, last);
+      } else {
+        painter.invalidateLine(line);
+      }
     }
     // do magic stuff
     else if(line < firstLine)
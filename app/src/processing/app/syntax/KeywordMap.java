@@ -10,6 +10,10 @@
 
 package processing.app.syntax;
 
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
 import javax.swing.text.Segment;
 
 /**
@@ -17,47 +21,37 @@ import javax.swing.text.Segment;
  * to values. However, the `keys' are Swing segments. This allows lookups of
  * text substrings without the overhead of creating a new string object.
  * <p>
- * This class is used by <code>CTokenMarker</code> to map keywords to ids.
+ * Lookups happen for every identifier on every line that's painted, so
+ * once the keywords have been added they're packed into a trie held in a
+ * handful of arrays. A lookup walks down it a character at a time, and
+ * gives up as soon as there's no keyword starting with what it's seen,
+ * which for most identifiers is after the first one or two characters.
+ * Nothing is allocated, and no keyword is compared more than once.
+ * <p>
+ * This class is used by <code>PdeTokenMarker</code> to map keywords to ids.
  *
  * @author Slava Pestov, Mike Dillon
  * @version $Id$
  */
 public class KeywordMap {
-//  private Keyword[] map;
-//  protected int mapLength;
-
   private boolean ignoreCase;
-  private Keyword[] literalMap;
-  private Keyword[] parenMap;
+  private Map<String, Byte> literalWords = new HashMap<>();
+  private Map<String, Byte> parenWords = new HashMap<>();
+
+  // built on the first lookup after a change
+  private volatile Trie literalTrie;
+  private volatile Trie parenTrie;
 
-  // A value of 52 will give good performance for most maps.
-  static private int MAP_LENGTH = 52;
 
   /**
    * Creates a new <code>KeywordMap</code>.
    * @param ignoreCase True if keys are case insensitive
    */
   public KeywordMap(boolean ignoreCase) {
-//    this(ignoreCase, 52);
     this.ignoreCase = ignoreCase;
-    literalMap = new Keyword[MAP_LENGTH];
-    parenMap = new Keyword[MAP_LENGTH];
   }
 
 
-//  /**
-//   * Creates a new <code>KeywordMap</code>.
-//   * @param ignoreCase True if the keys are case insensitive
-//   * @param mapLength The number of `buckets' to create.
-//   * A value of 52 will give good performance for most maps.
-//   */
-//  public KeywordMap(boolean ignoreCase, int mapLength) {
-//    this.mapLength = mapLength;
-//    this.ignoreCase = ignoreCase;
-//    map = new Keyword[mapLength];
-//  }
-
-
   /**
    * Looks up a key.
    * @param text The text segment
@@ -65,24 +59,14 @@ public class KeywordMap {
    * @param length The length of the substring
    */
   public byte lookup(Segment text, int offset, int length, boolean paren) {
-    if (length == 0) {
+    if (length == 0 || offset + length > text.offset + text.count) {
       return Token.NULL;
     }
-    int key = getSegmentMapKey(text, offset, length);
-    Keyword k = paren ? parenMap[key] : literalMap[key];
-    while (k != null) {
-//      if (length != k.keyword.length) {
-//        k = k.next;
-//        continue;
-//      }
-      if (length == k.keyword.length) {
-        if (regionMatches(ignoreCase, text, offset, k.keyword)) {
-          return k.id;
-        }
-      }
-      k = k.next;
+    Trie trie = paren ? parenTrie : literalTrie;
+    if (trie == null) {
+      trie = build(paren);
     }
-    return Token.NULL;
+    return trie.lookup(text.array, offset, length, ignoreCase);
   }
 
 
@@ -117,14 +101,19 @@ public class KeywordMap {
 
 
   /**
-   * Adds a key-value mapping.
+   * Adds a key-value mapping. If the key was already added, the
+   * newer value replaces the old one.
    * @param keyword The key
    * @param id The value
    */
   public void add(String keyword, byte id, boolean paren) {
-    int key = getStringMapKey(keyword);
-    Keyword[] map = paren ? parenMap : literalMap;
-    map[key] = new Keyword(keyword.toCharArray(), id, map[key]);
+    if (paren) {
+      parenWords.put(keyword, id);
+      parenTrie = null;
+    } else {
+      literalWords.put(keyword, id);
+      literalTrie = null;
+    }
   }
 
 
@@ -144,33 +133,153 @@ public class KeywordMap {
    */
   public void setIgnoreCase(boolean ignoreCase) {
     this.ignoreCase = ignoreCase;
+    literalTrie = null;
+    parenTrie = null;
   }
 
 
-  protected int getStringMapKey(String s) {
-    return (Character.toUpperCase(s.charAt(0)) +
-      Character.toUpperCase(s.charAt(s.length()-1)))
-      % MAP_LENGTH;
+  private synchronized Trie build(boolean paren) {
+    Map<String, Byte> words = paren ? parenWords : literalWords;
+    Trie trie = new Trie(words, ignoreCase);
+    if (paren) {
+      parenTrie = trie;
+    } else {
+      literalTrie = trie;
+    }
+    return trie;
   }
 
 
-  protected int getSegmentMapKey(Segment s, int off, int len) {
-    return (Character.toUpperCase(s.array[off]) +
-      Character.toUpperCase(s.array[off + len - 1]))
-      % MAP_LENGTH;
-  }
+  /**
+   * The keywords, packed into arrays. The children of each node sit next
+   * to each other, sorted by the character that leads to them, so they
+   * can be binary searched. Children of the root are also indexed directly
+   * by character, since nearly every lookup that fails does so there.
+   */
+  static private class Trie {
+    static final int ROOT_TABLE = 128;
+
+    char[] label = new char[64];
+    int[] firstChild = new int[64];
+    int[] childCount = new int[64];
+    byte[] id = new byte[64];
+    int nodeCount;
+    int[] rootChild = new int[ROOT_TABLE];
+
+
+    Trie(Map<String, Byte> words, boolean ignoreCase) {
+      // case is folded the same way as regionMatches() does it
+      Map<String, Byte> folded = words;
+      if (ignoreCase) {
+        folded = new HashMap<>();
+        for (Map.Entry<String, Byte> entry : words.entrySet()) {
+          folded.put(entry.getKey().toUpperCase(), entry.getValue());
+        }
+      }
+      String[] keys = folded.keySet().toArray(new String[0]);
+      Arrays.sort(keys);
+      byte[] values = new byte[keys.length];
+      for (int i = 0; i < keys.length; i++) {
+        values[i] = folded.get(keys[i]);
+      }
 
+      // Breadth first, so that all of a node's children are added
+      // together. Each node covers the keys in [lo, hi) that start
+      // with the same depth characters.
+      addNode((char) 0);
+      int[] lo = new int[64];
+      int[] hi = new int[64];
+      int[] depth = new int[64];
+      lo[0] = 0;
+      hi[0] = keys.length;
+      depth[0] = 0;
+      for (int node = 0; node < nodeCount; node++) {
+        int start = lo[node];
+        int stop = hi[node];
+        int d = depth[node];
+        if (start < stop && keys[start].length() == d) {
+          id[node] = values[start++];
+        }
+        firstChild[node] = nodeCount;
+        while (start < stop) {
+          char c = keys[start].charAt(d);
+          int end = start + 1;
+          while (end < stop && keys[end].charAt(d) == c) {
+            end++;
+          }
+          int child = addNode(c);
+          if (child >= lo.length) {
+            lo = Arrays.copyOf(lo, label.length);
+            hi = Arrays.copyOf(hi, label.length);
+            depth = Arrays.copyOf(depth, label.length);
+          }
+          lo[child] = start;
+          hi[child] = end;
+          depth[child] = d + 1;
+          start = end;
+        }
+        childCount[node] = nodeCount - firstChild[node];
+      }
+
+      for (int i = 0; i < childCount[0]; i++) {
+        int child = firstChild[0] + i;
+        if (label[child] < ROOT_TABLE) {
+          rootChild[label[child]] = child;
+        }
+      }
+    }
+
+
+    private int addNode(char c) {
+      if (nodeCount == label.length) {
+        int size = nodeCount * 2;
+        label = Arrays.copyOf(label, size);
+        firstChild = Arrays.copyOf(firstChild, size);
+        childCount = Arrays.copyOf(childCount, size);
+        id = Arrays.copyOf(id, size);
+      }
+      label[nodeCount] = c;
+      id[nodeCount] = Token.NULL;
+      return nodeCount++;
+    }
+
+
+    byte lookup(char[] array, int offset, int length, boolean ignoreCase) {
+      int node = 0;
+      for (int i = offset; i < offset + length; i++) {
+        char c = array[i];
+        if (ignoreCase) {
+          c = Character.toUpperCase(c);
+        }
+        if (node == 0 && c < ROOT_TABLE) {
+          // zero is the root itself, which is never anyone's child
+          node = rootChild[c];
+        } else {
+          node = findChild(node, c);
+        }
+        if (node <= 0) {
+          return Token.NULL;
+        }
+      }
+      return id[node];
+    }
 
-  // private members
-  private static class Keyword {
-    public final char[] keyword;
-    public final byte id;
-    public final Keyword next;
 
-    public Keyword(char[] keyword, byte id, Keyword next) {
-      this.keyword = keyword;
-      this.id = id;
-      this.next = next;
+    private int findChild(int node, char c) {
+      int low = firstChild[node];
+      int high = low + childCount[node] - 1;
+      while (low <= high) {
+        int mid = (low + high) >>> 1;
+        char m = label[mid];
+        if (m < c) {
+          low = mid + 1;
+        } else if (m > c) {
+          high = mid - 1;
+        } else {
+          return mid;
+        }
+      }
+      return -1;
     }
   }
 }
@@ -45,6 +45,7 @@ public class SyntaxDocument extends PlainDocument
                         return;
                 }
                 tokenMarker = tm.createStateInstance();
+                tokenMarker.document = this;
                 tokenMarker.insertLines(0,getDefaultRootElement()
                         .getElementCount());
                 tokenizeLines();
@@ -125,7 +126,9 @@ public class SyntaxDocument extends PlainDocument
         /**
          * We overwrite this method to update the token marker
          * state immediately so that any event listeners get a
-         * consistent token marker.
+         * consistent token marker. Only the lines whose state was
+         * changed by the edit are tokenized again, see
+         * <code>TokenMarkerState.linesChanged()</code>.
          */
         protected void fireInsertUpdate(DocumentEvent evt)
         {
@@ -139,6 +142,11 @@ public class SyntaxDocument extends PlainDocument
                                         ch.getChildrenAdded().length -
                                         ch.getChildrenRemoved().length);
                         }
+                        Element map = getDefaultRootElement();
+                        tokenMarker.linesChanged(
+                                map.getElementIndex(evt.getOffset()),
+                                map.getElementIndex(evt.getOffset() +
+                                        evt.getLength()));
                 }
 
                 super.fireInsertUpdate(evt);
@@ -161,6 +169,9 @@ public class SyntaxDocument extends PlainDocument
                                         ch.getChildrenRemoved().length -
                                         ch.getChildrenAdded().length);
                         }
+                        int line = getDefaultRootElement()
+                                .getElementIndex(evt.getOffset());
+                        tokenMarker.linesChanged(line, line);
                 }
 
                 super.fireRemoveUpdate(evt);
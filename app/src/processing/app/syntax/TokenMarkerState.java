@@ -1,5 +1,7 @@
 package processing.app.syntax;
 
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Element;
 import javax.swing.text.Segment;
 
 /**
@@ -80,6 +82,36 @@ public class TokenMarkerState {
    */
   protected boolean nextLineRequested;
 
+  /**
+   * Most lines that will be tokenized right away after an edit. Past
+   * that, the rest are caught up on when they're needed.
+   */
+  static final int UPDATE_LIMIT = 1000;
+
+  /**
+   * The document being tokenized, used to catch up on lines whose
+   * state isn't known yet. Null when the state is used on its own.
+   */
+  SyntaxDocument document;
+
+  /**
+   * The number of lines, from the top, whose <code>lineInfo</code>
+   * entries are up to date. Anything below still needs tokenizing.
+   */
+  protected int validLines;
+
+  /**
+   * The last line whose tokens were changed by the most recent edit.
+   */
+  protected int lastChangedLine = -1;
+
+  private Segment catchUpSegment;
+
+  static private final TokenMarker.TokenListener DISCARD =
+    new TokenMarker.TokenListener() {
+      public void addToken(int length, byte id) { }
+    };
+
   /**
    * A wrapper for the lower-level <code>markTokensImpl</code> method
    * that is called to split a line up into tokens.
@@ -93,6 +125,10 @@ public class TokenMarkerState {
                                              + lineIndex);
     }
 
+    if (lineIndex > validLines) {
+      catchUp(lineIndex);
+    }
+
     marker.setTokenListener(this::addToken);
 
     lastToken = null;
@@ -105,6 +141,10 @@ public class TokenMarkerState {
     marker.setTokenListener(null);
 
     lineInfo[lineIndex] = token;
+    if (oldToken != token || lineIndex == validLines) {
+      // anything below was tokenized starting from the old state
+      validLines = lineIndex + 1;
+    }
 
     /*
      * This is a foul hack. It stops nextLineRequested
@@ -155,6 +195,108 @@ public class TokenMarkerState {
     return firstToken;
   }
 
+  /**
+   * Brings the line states up to date after the text of lines
+   * <code>first</code> through <code>last</code> has been changed.
+   * Those lines are tokenized again, and so are the ones that follow
+   * them, until one ends in the same state it did before the edit.
+   * Everything below that is still good, so a change only costs as many
+   * lines as it really affects, rather than the rest of the document.
+   *
+   * @param first The first line that was changed
+   * @param last  The last line that was changed
+   * @return The last line whose tokens may be different now
+   */
+  public int linesChanged(int first, int last) {
+    if (document == null || !marker.supportsMultilineTokens()) {
+      lastChangedLine = last;
+
+    } else if (first > validLines) {
+      // lines above haven't been tokenized yet, that'll happen
+      // when they're needed, and will pick this change up too
+      lastChangedLine = last;
+
+    } else {
+      int oldValid = validLines;
+      validLines = first;
+      lastChangedLine = length - 1;
+      int limit = Math.min(length, first + UPDATE_LIMIT);
+      Segment segment = getCatchUpSegment();
+      for (int line = first; line < limit; line++) {
+        byte oldToken = lineInfo[line];
+        byte token = tokenize(line, segment);
+        if (line >= last) {
+          if (line >= oldValid) {
+            // nothing below is known yet, it's done when it's needed
+            break;
+          }
+          if (token == oldToken) {
+            // the next line starts the same way as before
+            validLines = oldValid;
+            lastChangedLine = line;
+            break;
+          }
+        }
+      }
+    }
+    return lastChangedLine;
+  }
+
+  /**
+   * Returns the last line whose tokens may have been changed by the
+   * most recent edit to the document, or -1 if there hasn't been one.
+   */
+  public int getLastChangedLine() {
+    return lastChangedLine;
+  }
+
+  /**
+   * Tokenizes the lines between the last one that's up to date
+   * and <code>lineIndex</code>, so that it starts in the right state.
+   */
+  private void catchUp(int lineIndex) {
+    if (document == null) {
+      return;
+    }
+    Segment segment = getCatchUpSegment();
+    while (validLines < lineIndex) {
+      tokenize(validLines, segment);
+    }
+  }
+
+  /**
+   * Updates the state at the end of a line without keeping its tokens.
+   */
+  private byte tokenize(int lineIndex, Segment segment) {
+    Element lineElement =
+      document.getDefaultRootElement().getElement(lineIndex);
+    int start = lineElement.getStartOffset();
+    try {
+      document.getText(start, lineElement.getEndOffset() - start - 1, segment);
+    } catch (BadLocationException e) {
+      e.printStackTrace();
+      segment.count = 0;
+    }
+
+    // the tokens aren't needed, and the painter may be holding on to
+    // the list from the last line that was marked, so leave it alone
+    marker.setTokenListener(DISCARD);
+    byte prev = (lineIndex == 0) ? Token.NULL : lineInfo[lineIndex - 1];
+    byte token = marker.markTokensImpl(prev, segment, lineIndex);
+    marker.setTokenListener(null);
+
+    lineInfo[lineIndex] = token;
+    validLines = lineIndex + 1;
+    return token;
+  }
+
+  private Segment getCatchUpSegment() {
+    if (catchUpSegment == null) {
+      catchUpSegment = new Segment();
+    }
+    return catchUpSegment;
+  }
+
   /**
    * Informs the token marker that lines have been inserted into
    * the document. This inserts a gap in the <code>lineInfo</code>
@@ -175,6 +317,10 @@ public class TokenMarkerState {
     for (int i = index + lines - 1; i >= index; i--) {
       lineInfo[i] = Token.NULL;
     }
+
+    if (validLines > index) {
+      validLines += lines;
+    }
   }
 
   /**
@@ -192,6 +338,12 @@ public class TokenMarkerState {
     length -= lines;
     System.arraycopy(lineInfo, len, lineInfo,
                      index, lineInfo.length - len);
+
+    if (validLines >= len) {
+      validLines -= lines;
+    } else if (validLines > index) {
+      validLines = index;
+    }
   }
 
   /**
@@ -0,0 +1,211 @@
+/* -*- mode: java; c-basic-offset: 2; indent-tabs-mode: nil -*- */
+
+/*
+  Part of the Processing project - http://processing.org
+
+  Copyright (c) 2012-17 The Processing Foundation
+  Copyright (c) 2004-12 Ben Fry and Casey Reas
+  Copyright (c) 2001-04 Massachusetts Institute of Technology
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package processing.app.ui;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.swing.text.*;
+
+
+/**
+ * Buffer updates to the console and output them in batches. For info, see:
+ * http://java.sun.com/products/jfc/tsc/articles/text/element_buffer and
+ * http://javatechniques.com/public/java/docs/gui/jtextpane-speed-part2.html
+ * <p/>
+ * appendString() is called from multiple threads (whoever is printing), and
+ * insertAll() from the Swing event thread. Text waiting to be inserted is
+ * kept in a ring of at most maxLineCount lines: when a sketch prints faster
+ * than the console can keep up, the oldest lines are dropped rather than
+ * piling up in memory or making the printing thread wait. Those lines would
+ * have scrolled out of the console anyway. Only the event thread ever
+ * touches the document itself.
+ */
+public class BufferedStyledDocument extends DefaultStyledDocument {
+  int maxLineLength, maxLineCount, maxCharCount;
+
+  /** Text waiting to be added to the document, oldest first. */
+  final ArrayDeque<Piece> pending = new ArrayDeque<>();
+  /** Number of finished lines in pending */
+  int pendingLines;
+  int pendingChars;
+  /** Length of the unfinished line at the end of pending */
+  int pendingLineLength;
+  /** Set when lines were dropped, so everything in the document is stale */
+  boolean overflow;
+
+  /** Whether the last thing inserted finished its line (event thread only) */
+  boolean needLineBreak = false;
+  final Object insertLock = new Object();
+
+
+  /** A run of text in a single style, not spanning more than one line. */
+  static class Piece {
+    final String text;
+    final AttributeSet attr;
+    final boolean endsLine;
+
+    Piece(String text, AttributeSet attr, boolean endsLine) {
+      this.text = text;
+      this.attr = attr;
+      this.endsLine = endsLine;
+    }
+  }
+
+
+  public BufferedStyledDocument(int maxLineLength, int maxLineCount,
+                                int maxCharCount) {
+    this.maxLineLength = maxLineLength;
+    this.maxLineCount = maxLineCount;
+    this.maxCharCount = maxCharCount;
+  }
+
+
+  // monitor this so that it's only updated when needed (otherwise console
+  // updates every 250 ms when an app isn't even running.. see bug 180)
+  public boolean hasAppendage() {
+    synchronized (pending) {
+      return !pending.isEmpty();
+    }
+  }
+
+
+  /** buffer a string for insertion at the end of the DefaultStyledDocument */
+  public void appendString(String str, AttributeSet a) {
+    synchronized (pending) {
+      int start = 0;
+      int length = str.length();
+      while (start < length) {
+        // lines longer than maxLineLength are broken up, the same as
+        // if they had a newline, to keep the text component responsive
+        int room = maxLineLength - pendingLineLength;
+        int newline = str.indexOf('\n', start);
+        int stop;
+        boolean endsLine;
+        if (newline != -1 && newline - start < room) {
+          stop = newline + 1;
+          endsLine = true;
+        } else if (length - start >= room) {
+          stop = start + room;
+          endsLine = true;
+        } else {
+          stop = length;
+          endsLine = false;
+        }
+        // newlines within an element have (almost) no effect, so each line
+        // is its own Piece, and is given proper paragraph breaks in insertAll
+        pending.add(new Piece(str.substring(start, stop), a, endsLine));
+        pendingChars += stop - start;
+        if (endsLine) {
+          pendingLines++;
+          pendingLineLength = 0;
+        } else {
+          pendingLineLength += stop - start;
+        }
+        start = stop;
+      }
+
+      // drop whole lines from the front until there's room again
+      while (pendingLines > maxLineCount ||
+             (pendingChars > maxCharCount && pendingLines > 0)) {
+        Piece piece = pending.removeFirst();
+        pendingChars -= piece.text.length();
+        if (piece.endsLine) {
+          pendingLines--;
+        }
+        overflow = true;
+      }
+    }
+  }
+
+
+  /** insert the buffered strings */
+  public void insertAll() {
+    Piece[] pieces;
+    boolean replace;
+    synchronized (pending) {
+      pieces = pending.toArray(new Piece[0]);
+      pending.clear();
+      pendingLines = 0;
+      pendingChars = 0;
+      replace = overflow;
+      overflow = false;
+    }
+
+    try {
+      synchronized (insertLock) {
+        if (replace) {
+          // the new lines alone fill the console, get rid of the old ones
+          remove(0, getLength());
+          needLineBreak = false;
+        }
+        List<ElementSpec> elements = new ArrayList<>(pieces.length * 3);
+        for (Piece piece : pieces) {
+          if (needLineBreak) {
+            elements.add(new ElementSpec(piece.attr, ElementSpec.EndTagType));
+            elements.add(new ElementSpec(piece.attr, ElementSpec.StartTagType));
+          }
+          char[] text = piece.text.toCharArray();
+          elements.add(new ElementSpec(piece.attr, ElementSpec.ContentType,
+                                       text, 0, text.length));
+          needLineBreak = piece.endsLine;
+        }
+        checkLength();
+        insert(getLength(), elements.toArray(new ElementSpec[0]));
+        checkLength();
+      }
+
+    } catch (BadLocationException e) {
+      // ignore the error otherwise this will cause an infinite loop
+      // maybe not a good idea in the long run?
+    }
+  }
+
+
+  private void checkLength() throws BadLocationException {
+    // set a limit on the number of characters in the console
+    int docLength = getLength();
+    if (docLength > maxCharCount) {
+      remove(0, docLength - maxCharCount);
+    }
+    // check how many lines have been used so far
+    // if too many, shave off a few lines from the beginning
+    Element element = super.getDefaultRootElement();
+    int lineCount = element.getElementCount();
+    int overage = lineCount - maxLineCount;
+    if (overage > 0) {
+      // if 1200 lines, and 1000 lines is max,
+      // find the position of the end of the 200th line
+      //systemOut.println("overage is " + overage);
+      Element lineElement = element.getElement(overage);
+      if (lineElement != null) {
+        int endOffset = lineElement.getEndOffset();
+        // remove to the end of the 200th line
+        super.remove(0, endOffset);
+      }
+    }
+  }
+}
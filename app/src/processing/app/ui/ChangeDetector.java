@@ -114,6 +114,8 @@ public class ChangeDetector implements WindowFocusListener {
     List<SketchCode> modifiedCodesFinal = new ArrayList<>();
     for (SketchCode code : modifiedCodes) {
       if (ignoredModifications.contains(code)) continue;
+      // our own save, still being written in the background
+      if (sketch.isSavingInBackground(code)) continue;
       long fileLastModified = code.getFile().lastModified();
       long codeLastModified = code.getLastModified();
       long diff = fileLastModified - codeLastModified;
@@ -2414,6 +2414,8 @@ public abstract class Editor extends JFrame implements RunnerListener {
    * @return false if canceling the close/quit operation
    */
   public boolean checkModified() {
+    // let any background save finish, in case it fails
+    sketch.finishSaving();
     if (!sketch.isModified()) return true;
 
     // As of Processing 1.0.10, this always happens immediately.
@@ -2616,27 +2618,44 @@ public abstract class Editor extends JFrame implements RunnerListener {
 
   /**
    * Actually handle the save command. If 'immediately' is set to false,
-   * this will happen in another thread so that the message area
-   * will update and the save button will stay highlighted while the
-   * save is happening. If 'immediately' is true, then it will happen
+   * the files will be written on another thread, so that the message area
+   * will update and the editor stays responsive while the save is
+   * happening. If 'immediately' is true, then it will happen
    * immediately. This is used during a quit, because invokeLater()
    * won't run properly while a quit is happening. This fixes
    * <A HREF="http://dev.processing.org/bugs/show_bug.cgi?id=276">Bug 276</A>.
    */
   public boolean handleSave(boolean immediately) {
+    return handleSave(immediately, null);
+  }
+
+
+  /**
+   * Same as handleSave(immediately), with something to do once the files
+   * are actually on disk, for Modes that work with the saved files.
+   * @param saved run on the EDT after a successful save, or null
+   */
+  protected boolean handleSave(boolean immediately, final Runnable saved) {
 //    handleStop();  // 0136
 
     if (sketch.isUntitled()) {
-      return handleSaveAs();
       // need to get the name, user might also cancel here
+      if (!handleSaveAs()) {
+        return false;
+      }
+      if (saved != null) {
+        saved.run();
+      }
 
     } else if (immediately) {
-      handleSaveImpl();
+      if (handleSaveImpl() && saved != null) {
+        saved.run();
+      }
 
     } else {
       EventQueue.invokeLater(new Runnable() {
           public void run() {
-            handleSaveImpl();
+            handleSaveInBackground(saved);
           }
         });
     }
@@ -2644,11 +2663,16 @@ public abstract class Editor extends JFrame implements RunnerListener {
   }
 
 
-  protected void handleSaveImpl() {
+  /**
+   * Save and wait for the files to be written.
+   * @return true if the sketch was saved
+   */
+  protected boolean handleSaveImpl() {
     statusNotice(Language.text("editor.status.saving"));
     try {
       if (sketch.save()) {
         statusNotice(Language.text("editor.status.saving.done"));
+        return true;
       } else {
         statusEmpty();
       }
@@ -2662,6 +2686,33 @@ public abstract class Editor extends JFrame implements RunnerListener {
       //checkModifiedMode = 0;
       // this is used when another operation calls a save
     }
+    return false;
+  }
+
+
+  /**
+   * Start saving, and report how it went once the files are written.
+   * @param saved run on the EDT after a successful save, or null
+   */
+  protected void handleSaveInBackground(final Runnable saved) {
+    statusNotice(Language.text("editor.status.saving"));
+    try {
+      boolean started = sketch.saveInBackground(error -> {
+        if (error != null) {
+          statusError(error);
+        } else {
+          statusNotice(Language.text("editor.status.saving.done"));
+          if (saved != null) {
+            saved.run();
+          }
+        }
+      });
+      if (!started) {
+        statusEmpty();
+      }
+    } catch (Exception e) {
+      statusError(e);
+    }
   }
 
 
@@ -32,7 +32,6 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.io.OutputStream;
 import java.io.PrintStream;
-import java.util.concurrent.LinkedBlockingQueue;
 
 import javax.swing.*;
 import javax.swing.border.MatteBorder;
@@ -47,6 +46,9 @@ import processing.app.Preferences;
  * Message console that sits below the editing area.
  */
 public class EditorConsole extends JScrollPane {
+  /** Milliseconds between updates of the console text (~30 fps) */
+  static final int FLUSH_INTERVAL = 33;
+
   Editor editor;
 
   Timer flushTimer;
@@ -105,9 +107,9 @@ public class EditorConsole extends JScrollPane {
    */
   protected void startTimer() {
     if (flushTimer == null) {
-      // periodically post buffered messages to the console
-      // should the interval come from the preferences file?
-      flushTimer = new Timer(250, new ActionListener() {
+      // periodically post buffered messages to the console, at most once
+      // per frame; anything printed in between is added all at once
+      flushTimer = new Timer(FLUSH_INTERVAL, new ActionListener() {
         public void actionPerformed(ActionEvent evt) {
           flush();
         }
@@ -280,156 +282,3 @@ public class EditorConsole extends JScrollPane {
   }
 }
 
-
-// . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . .
-
-
-/**
- * Buffer updates to the console and output them in batches. For info, see:
- * http://java.sun.com/products/jfc/tsc/articles/text/element_buffer and
- * http://javatechniques.com/public/java/docs/gui/jtextpane-speed-part2.html
- * appendString() is called from multiple threads, and insertAll from the
- * swing event thread, so they need to be synchronized
- */
-class BufferedStyledDocument extends DefaultStyledDocument {
-  //List<ElementSpec> elements = new ArrayList<>();
-  LinkedBlockingQueue<ElementSpec> elements;
-//  AtomicInteger queuedLineCount = new AtomicInteger();
-  int maxLineLength, maxLineCount, maxCharCount;
-  int currentLineLength = 0;
-  boolean needLineBreak = false;
-//  boolean hasAppendage = false;
-  final Object insertLock = new Object();
-
-  public BufferedStyledDocument(int maxLineLength, int maxLineCount,
-                                int maxCharCount) {
-    this.maxLineLength = maxLineLength;
-    this.maxLineCount = maxLineCount;
-    this.maxCharCount = maxCharCount;
-    elements = new LinkedBlockingQueue<>();
-  }
-
-  // monitor this so that it's only updated when needed (otherwise console
-  // updates every 250 ms when an app isn't even running.. see bug 180)
-  public boolean hasAppendage() {
-    return elements.size() > 0;
-  }
-
-  /** buffer a string for insertion at the end of the DefaultStyledDocument */
-  public void appendString(String str, AttributeSet a) {
-//    hasAppendage = true;
-
-    // process each line of the string
-    while (str.length() > 0) {
-      // newlines within an element have (almost) no effect, so we need to
-      // replace them with proper paragraph breaks (start and end tags)
-      if (needLineBreak || currentLineLength > maxLineLength) {
-        elements.add(new ElementSpec(a, ElementSpec.EndTagType));
-        elements.add(new ElementSpec(a, ElementSpec.StartTagType));
-//        queuedLineCount.incrementAndGet();
-        currentLineLength = 0;
-      }
-
-      if (str.indexOf('\n') == -1) {
-        elements.add(new ElementSpec(a, ElementSpec.ContentType,
-          str.toCharArray(), 0, str.length()));
-        currentLineLength += str.length();
-        needLineBreak = false;
-        str = str.substring(str.length()); // eat the string
-      } else {
-        elements.add(new ElementSpec(a, ElementSpec.ContentType,
-          str.toCharArray(), 0, str.indexOf('\n') + 1));
-        needLineBreak = true;
-        str = str.substring(str.indexOf('\n') + 1); // eat the line
-      }
-      /*
-      while (queuedLineCount.get() > maxLineCount) {
-        Console.systemOut("too many: " + queuedLineCount);
-        ElementSpec elem = elements.remove();
-        if (elem.getType() == ElementSpec.EndTagType) {
-          queuedLineCount.decrementAndGet();
-        }
-      }
-      */
-    }
-    if (elements.size() > 1000) {
-      insertAll();
-    }
-  }
-
-  /** insert the buffered strings */
-  public void insertAll() {
-    /*
-    // each line is ~3 elements
-    int tooMany = elements.size() - maxLineCount*3;
-    if (tooMany > 0) {
-      try {
-        remove(0, getLength()); // clear the document first
-      } catch (BadLocationException ble) {
-        ble.printStackTrace();
-      }
-      Console.systemOut("skipping " + elements.size());
-      for (int i = 0; i < tooMany; i++) {
-        elements.remove();
-      }
-    }
-    */
-    ElementSpec[] elementArray = elements.toArray(new ElementSpec[0]);
-
-    try {
-      /*
-      // check how many lines have been used so far
-      // if too many, shave off a few lines from the beginning
-      Element element = super.getDefaultRootElement();
-      int lineCount = element.getElementCount();
-      int overage = lineCount - maxLineCount;
-      if (overage > 0) {
-        // if 1200 lines, and 1000 lines is max,
-        // find the position of the end of the 200th line
-        //systemOut.println("overage is " + overage);
-        Element lineElement = element.getElement(overage);
-        if (lineElement == null) return;  // do nuthin
-
-        int endOffset = lineElement.getEndOffset();
-        // remove to the end of the 200th line
-        super.remove(0, endOffset);
-      }
-      */
-      synchronized (insertLock) {
-        checkLength();
-        insert(getLength(), elementArray);
-        checkLength();
-      }
-
-    } catch (BadLocationException e) {
-      // ignore the error otherwise this will cause an infinite loop
-      // maybe not a good idea in the long run?
-    }
-    elements.clear();
-//    hasAppendage = false;
-  }
-
-  private void checkLength() throws BadLocationException {
-    // set a limit on the number of characters in the console
-    int docLength = getLength();
-    if (docLength > maxCharCount) {
-      remove(0, docLength - maxCharCount);
-    }
-    // check how many lines have been used so far
-    // if too many, shave off a few lines from the beginning
-    Element element = super.getDefaultRootElement();
-    int lineCount = element.getElementCount();
-    int overage = lineCount - maxLineCount;
-    if (overage > 0) {
-      // if 1200 lines, and 1000 lines is max,
-      // find the position of the end of the 200th line
-      //systemOut.println("overage is " + overage);
-      Element lineElement = element.getElement(overage);
-      if (lineElement != null) {
-        int endOffset = lineElement.getEndOffset();
-        // remove to the end of the 200th line
-        super.remove(0, endOffset);
-      }
-    }
-  }
-}
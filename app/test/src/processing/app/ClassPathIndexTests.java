@@ -0,0 +1,140 @@
+package processing.app;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ClassPathIndexTests {
+  File folder;
+  File jar;
+  File indexFile;
+  String[] classPath;
+
+  @Before
+  public void setUp() throws IOException {
+    folder = Util.createTempFolder("index", "", null);
+    jar = new File(folder, "library.jar");
+    indexFile = new File(folder, ClassPathIndex.FILENAME);
+    classPath = new String[] { jar.getAbsolutePath() };
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    Util.removeDir(folder);
+  }
+
+  /**
+   * Write a jar with these classes. Entries are stored rather than
+   * compressed, so that names of the same length give the same size.
+   */
+  void writeJar(String... classes) throws IOException {
+    ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(jar));
+    byte[] dummy = new byte[16];
+    CRC32 crc = new CRC32();
+    crc.update(dummy);
+    for (String name : classes) {
+      ZipEntry entry = new ZipEntry(name);
+      entry.setMethod(ZipEntry.STORED);
+      entry.setSize(dummy.length);
+      entry.setCrc(crc.getValue());
+      zip.putNextEntry(entry);
+      zip.write(dummy);
+      zip.closeEntry();
+    }
+    zip.close();
+  }
+
+  @Test
+  public void findsBySimpleName() throws IOException {
+    writeJar("org/example/Shape.class",
+             "org/example/Shape$Corner.class",
+             "org/example/other/Shapes.class",
+             "org/example/other/Corner.class");
+    ClassPathIndex index = new ClassPathIndex(null);
+
+    assertArrayEquals(new String[] { "org/example/Shape.class" },
+                      index.findClasses(classPath, "shape"));
+    assertEquals(2, index.findClasses(classPath, "Corner").length);
+    // nested classes are left out of completion
+    assertEquals(2, index.findClassesStartingWith(classPath, "sha").length);
+    assertEquals(1, index.findClassesStartingWith(classPath, "Cor").length);
+
+    assertTrue(index.isPackage(classPath, "org/example/other"));
+    assertTrue(index.isPackage(classPath, "org"));
+    assertFalse(index.isPackage(classPath, "org/example/Shape"));
+  }
+
+  @Test
+  public void changedModifiedTimeIsScannedAgain() throws IOException {
+    writeJar("org/example/Aaaa.class");
+    long modified = jar.lastModified();
+    ClassPathIndex index = new ClassPathIndex(null);
+    assertEquals(1, index.findClasses(classPath, "Aaaa").length);
+
+    long size = jar.length();
+    writeJar("org/example/Bbbb.class");
+    assertEquals(size, jar.length());
+    jar.setLastModified(modified + 2000);
+    assertEquals(0, index.findClasses(classPath, "Aaaa").length);
+    assertEquals(1, index.findClasses(classPath, "Bbbb").length);
+  }
+
+  @Test
+  public void changedSizeIsScannedAgain() throws IOException {
+    writeJar("org/example/Aaaa.class");
+    long modified = jar.lastModified();
+    ClassPathIndex index = new ClassPathIndex(null);
+    assertEquals(1, index.findClasses(classPath, "Aaaa").length);
+
+    writeJar("org/example/Aaaa.class", "org/example/Bbbb.class");
+    jar.setLastModified(modified);
+    assertEquals(1, index.findClasses(classPath, "Bbbb").length);
+  }
+
+  @Test
+  public void savedIndexIsReadBack() throws IOException {
+    writeJar("org/example/Aaaa.class");
+    long modified = jar.lastModified();
+    ClassPathIndex index = new ClassPathIndex(indexFile);
+    index.update(classPath);
+    assertTrue(indexFile.exists());
+
+    // same size and time, so the index on disk is trusted over the jar
+    writeJar("org/example/Bbbb.class");
+    jar.setLastModified(modified);
+    ClassPathIndex reloaded = new ClassPathIndex(indexFile);
+    reloaded.load();
+    assertEquals(1, reloaded.findClasses(classPath, "Aaaa").length);
+    assertEquals(0, reloaded.findClasses(classPath, "Bbbb").length);
+  }
+
+  @Test
+  public void relativePathIsSavedAbsolute() throws IOException {
+    writeJar("org/example/Aaaa.class");
+    long modified = jar.lastModified();
+    String relative =
+      new File("").getAbsoluteFile().toPath().relativize(jar.toPath()).toString();
+    ClassPathIndex index = new ClassPathIndex(indexFile);
+    index.update(new String[] { relative });
+
+    writeJar("org/example/Bbbb.class");
+    jar.setLastModified(modified);
+    ClassPathIndex reloaded = new ClassPathIndex(indexFile);
+    reloaded.load();
+    // found under the absolute path, without scanning the jar again
+    assertEquals(1, reloaded.findClasses(classPath, "Aaaa").length);
+    assertEquals(1, reloaded.findClasses(new String[] { relative }, "Aaaa").length);
+  }
+}
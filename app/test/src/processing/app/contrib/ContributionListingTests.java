@@ -0,0 +1,97 @@
+package processing.app.contrib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import processing.app.Platform;
+import processing.app.Util;
+
+/**
+ * Downloads of the contribution listing, with a local file standing in for
+ * the server. (In this package because updateListing() isn't public.)
+ */
+public class ContributionListingTests {
+  static final String LISTING =
+    "library\n" +
+    "name=Example\n" +
+    "category=Data\n" +
+    "version=1\n" +
+    "prettyVersion=1.0";
+
+  File folder;
+  File server;
+  File listingFile;
+  URL url;
+
+  @BeforeClass
+  public static void init() {
+    Platform.init();  // for the progress messages
+  }
+
+  @Before
+  public void setUp() throws IOException {
+    folder = Util.createTempFolder("contribs", "", null);
+    server = new File(folder, "server.txt");
+    Util.saveFile(LISTING, server);
+    // as if published a while ago
+    server.setLastModified(server.lastModified() - 10000);
+    url = server.toURI().toURL();
+    listingFile = new File(folder, ContributionListing.LOCAL_FILENAME);
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    Util.removeDir(folder);
+  }
+
+  static ContribProgressMonitor progress() {
+    return new ContribProgressMonitor() { };
+  }
+
+  boolean update(ContributionListing listing) {
+    return listing.updateListing(url, "id=test".getBytes(), progress());
+  }
+
+  @Test
+  public void unchangedListingIsKept() throws IOException {
+    assertTrue(update(new ContributionListing(listingFile)));
+    assertEquals(LISTING, Util.loadFile(listingFile));
+
+    // starting up again, nothing has changed on the server
+    long written = listingFile.lastModified() - 5000;
+    listingFile.setLastModified(written);
+    ContributionListing listing = new ContributionListing(listingFile);
+    assertTrue(update(listing));
+    assertEquals(written, listingFile.lastModified());
+    assertTrue(listing.hasDownloadedLatestList());
+
+    // and once it has, the new one replaces it
+    String changed = LISTING.replace("version=1", "version=2");
+    Util.saveFile(changed, server);
+    assertTrue(update(listing));
+    assertEquals(changed, Util.loadFile(listingFile));
+    assertFalse(new File(folder, "contribs.tmp").exists());
+  }
+
+  @Test
+  public void failedDownloadKeepsOldListing() throws IOException {
+    ContributionListing listing = new ContributionListing(listingFile);
+    assertTrue(update(listing));
+
+    // the server went away
+    server.delete();
+    assertFalse(update(listing));
+    assertEquals(LISTING, Util.loadFile(listingFile));
+    assertFalse(new File(folder, "contribs.tmp").exists());
+  }
+}
@@ -0,0 +1,105 @@
+package test.processing.app;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.*;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import processing.app.ClassPathIndex;
+import processing.app.Library;
+import processing.app.Util;
+
+public class LibraryTests {
+  static final int LIBRARY_COUNT = 300;
+  static final int PACKAGE_COUNT = 20;
+  static final int CLASS_COUNT = 20;
+
+  File sketchbook;
+  File indexFile;
+
+  static void writeJar(File jar, String prefix, int packages) throws IOException {
+    jar.getParentFile().mkdirs();
+    ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(jar));
+    byte[] dummy = new byte[64];
+    for (int p = 0; p < packages; p++) {
+      for (int c = 0; c < CLASS_COUNT; c++) {
+        zip.putNextEntry(new ZipEntry(prefix + "/pkg" + p + "/Class" + c + ".class"));
+        zip.write(dummy);
+        zip.closeEntry();
+      }
+    }
+    zip.close();
+  }
+
+  @Before
+  public void makeSketchbook() throws IOException {
+    sketchbook = File.createTempFile("libraries", "");
+    sketchbook.delete();
+    for (int i = 0; i < LIBRARY_COUNT; i++) {
+      String name = "library" + i;
+      writeJar(new File(sketchbook, name + "/library/" + name + ".jar"),
+               "org/example/" + name, PACKAGE_COUNT);
+    }
+    indexFile = new File(sketchbook, "classpath.idx");
+  }
+
+  @After
+  public void removeSketchbook() throws IOException {
+    Util.removeDir(sketchbook);
+  }
+
+  static long list(File folder, String[][] packages) {
+    long started = System.nanoTime();
+    List<Library> libraries = Library.list(folder);
+    long elapsed = (System.nanoTime() - started) / 1000000;
+    assertEquals(LIBRARY_COUNT, libraries.size());
+    for (Library library : libraries) {
+      int index = Integer.parseInt(library.getName().substring("library".length()));
+      packages[index] = ClassPathIndex.get().getPackages(new File(library.getJarPath()));
+    }
+    return elapsed;
+  }
+
+  @Test
+  public void indexMatchesJars() throws IOException {
+    ClassPathIndex.setFile(indexFile);
+    String[][] cold = new String[LIBRARY_COUNT][];
+    long coldTime = list(sketchbook, cold);
+    ClassPathIndex.get().save();
+    assertTrue(indexFile.exists());
+
+    // as if the PDE were starting again
+    ClassPathIndex.setFile(indexFile);
+    String[][] warm = new String[LIBRARY_COUNT][];
+    long warmTime = list(sketchbook, warm);
+    System.out.println(LIBRARY_COUNT + " libraries in " + coldTime +
+                       " ms without the index, " + warmTime + " ms with it");
+
+    for (int i = 0; i < LIBRARY_COUNT; i++) {
+      assertEquals(PACKAGE_COUNT, cold[i].length);
+      assertEquals("org.example.library" + i + ".pkg0", cold[i][0]);
+      assertArrayEquals(cold[i], warm[i]);
+    }
+  }
+
+  @Test
+  public void changedJarIsReadAgain() throws IOException {
+    ClassPathIndex.setFile(indexFile);
+    File jar = new File(sketchbook, "library7/library/library7.jar");
+    assertEquals(PACKAGE_COUNT, ClassPathIndex.get().getPackages(jar).length);
+    ClassPathIndex.get().save();
+
+    writeJar(jar, "org/example/library7", PACKAGE_COUNT + 1);
+    jar.setLastModified(jar.lastModified() + 2000);
+    ClassPathIndex.setFile(indexFile);
+    assertEquals(PACKAGE_COUNT + 1, ClassPathIndex.get().getPackages(jar).length);
+  }
+}
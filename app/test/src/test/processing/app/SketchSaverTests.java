@@ -0,0 +1,225 @@
+package test.processing.app;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.EventQueue;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import processing.app.SketchCode;
+import processing.app.SketchSaver;
+import processing.app.Util;
+
+public class SketchSaverTests {
+  static final int TAB_COUNT = 8;
+  /** How long the pretend network drive takes for each file */
+  static final int DELAY = 200;
+
+  File folder;
+  SketchCode[] tabs;
+  SlowSaver saver;
+
+  /** A saver whose drive is slow, and can be told to fail. */
+  static class SlowSaver extends SketchSaver {
+    AtomicInteger writes = new AtomicInteger();
+    volatile File broken;
+
+    @Override
+    protected void write(String text, File file) throws IOException {
+      try {
+        Thread.sleep(DELAY);
+      } catch (InterruptedException e) { }
+      if (file.equals(broken)) {
+        throw new IOException("Drive went away while saving " + file);
+      }
+      super.write(text, file);
+      writes.incrementAndGet();
+    }
+  }
+
+  @Before
+  public void makeSketch() throws IOException {
+    folder = File.createTempFile("sketch", "");
+    folder.delete();
+    folder.mkdirs();
+    tabs = new SketchCode[TAB_COUNT];
+    for (int i = 0; i < TAB_COUNT; i++) {
+      File file = new File(folder, "tab" + i + ".pde");
+      Util.saveFile("void tab" + i + "() { }", file);
+      // as if loaded a while ago, so new writes get a newer time
+      file.setLastModified(file.lastModified() - 10000);
+      tabs[i] = new SketchCode(file, "pde");
+    }
+    saver = new SlowSaver();
+  }
+
+  @After
+  public void removeSketch() throws IOException {
+    Util.removeDir(folder);
+  }
+
+  void edit(int index, String text) {
+    tabs[index].setProgram(text);
+    tabs[index].setModified(true);
+  }
+
+  String read(int index) {
+    try {
+      return Util.loadFile(tabs[index].getFile());
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /** Run on the EDT, the way the Editor would. */
+  static void onEventThread(final Runnable runnable) throws Exception {
+    EventQueue.invokeAndWait(runnable);
+  }
+
+  @Test
+  public void editorIsNotBlocked() throws Exception {
+    final BlockingQueue<Object> done = new ArrayBlockingQueue<>(1);
+    final long[] elapsed = new long[1];
+    onEventThread(() -> {
+      for (int i = 0; i < TAB_COUNT; i += 2) {
+        edit(i, "void changed" + i + "() { }");
+      }
+      // marked as modified, but typed and then undone
+      tabs[1].setModified(true);
+
+      long started = System.nanoTime();
+      saver.saveInBackground(tabs, error -> {
+        assertTrue(EventQueue.isDispatchThread());
+        done.add((error == null) ? "ok" : error);
+      });
+      elapsed[0] = (System.nanoTime() - started) / 1000000;
+
+      for (SketchCode tab : tabs) {
+        assertFalse(tab.isModified());
+      }
+      assertTrue(saver.isSaving(tabs[0]));
+    });
+    assertTrue("saving held up the EDT for " + elapsed[0] + " ms",
+               elapsed[0] < DELAY / 2);
+
+    long started = System.nanoTime();
+    assertEquals("ok", done.poll(10, TimeUnit.SECONDS));
+    long total = (System.nanoTime() - started) / 1000000;
+    System.out.println("EDT busy for " + elapsed[0] + " ms, " +
+                       saver.writes.get() + " tabs written in " + total +
+                       " ms, at " + DELAY + " ms per file");
+
+    // the tab with nothing new wasn't written, and the others in parallel
+    assertEquals(TAB_COUNT / 2, saver.writes.get());
+    assertTrue(total < DELAY * TAB_COUNT / 2);
+    for (int i = 0; i < TAB_COUNT; i++) {
+      String expected = (i % 2 == 0) ?
+        "void changed" + i + "() { }" : "void tab" + i + "() { }";
+      assertEquals(expected, read(i));
+      assertEquals(expected, tabs[i].getSavedProgram());
+      assertEquals(tabs[i].getFile().lastModified(), tabs[i].getLastModified());
+      assertFalse(saver.isSaving(tabs[i]));
+    }
+    // nothing left over from the temporary files
+    assertEquals(TAB_COUNT, folder.list().length);
+  }
+
+  @Test
+  public void typingWhileSaving() throws Exception {
+    final BlockingQueue<Object> done = new ArrayBlockingQueue<>(2);
+    onEventThread(() -> {
+      edit(0, "void first() { }");
+      saver.saveInBackground(tabs, error -> done.add("first"));
+      // keep typing, and save again before the first one is written
+      edit(0, "void second() { }");
+      saver.saveInBackground(tabs, error -> done.add("second"));
+      edit(0, "void third() { }");
+    });
+    assertEquals("first", done.poll(10, TimeUnit.SECONDS));
+    assertEquals("second", done.poll(10, TimeUnit.SECONDS));
+    onEventThread(() -> {
+      // the newer one landed last, and the third edit is still unsaved
+      assertEquals("void second() { }", read(0));
+      assertEquals("void second() { }", tabs[0].getSavedProgram());
+      assertTrue(tabs[0].isModified());
+    });
+  }
+
+  @Test
+  public void saveWaitsForBackground() throws Exception {
+    onEventThread(() -> {
+      edit(2, "void background() { }");
+      saver.saveInBackground(tabs, null);
+      edit(3, "void now() { }");
+      try {
+        saver.save(tabs);
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+      assertEquals("void background() { }", read(2));
+      assertEquals("void now() { }", read(3));
+      assertFalse(saver.isSaving(tabs[2]));
+      assertEquals(tabs[2].getFile().lastModified(), tabs[2].getLastModified());
+    });
+  }
+
+  @Test
+  public void failedWriteStaysModified() throws Exception {
+    final BlockingQueue<Object> done = new ArrayBlockingQueue<>(1);
+    saver.broken = tabs[5].getFile();
+    onEventThread(() -> {
+      edit(4, "void fine() { }");
+      edit(5, "void lost() { }");
+      saver.saveInBackground(tabs, error -> done.add((error == null) ? "ok" : error));
+    });
+    Object result = done.poll(10, TimeUnit.SECONDS);
+    assertTrue(result instanceof IOException);
+    onEventThread(() -> {
+      assertFalse(tabs[4].isModified());
+      assertTrue(tabs[5].isModified());
+      // the old version is untouched
+      assertEquals("void tab5() { }", read(5));
+    });
+
+    // and it goes through once the drive is back
+    saver.broken = null;
+    onEventThread(() -> assertNull(saver.finish()));
+    onEventThread(() -> {
+      try {
+        saver.save(tabs);
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+      assertEquals("void lost() { }", read(5));
+    });
+  }
+
+  @Test
+  public void renameWhileSaving() throws Exception {
+    final File renamed = new File(folder, "renamed.pde");
+    onEventThread(() -> {
+      edit(6, "void renamed() { }");
+      saver.saveInBackground(tabs, null);
+      // what Sketch.nameCode() does before it moves the file
+      assertNull(saver.finish());
+      assertTrue(tabs[6].getFile().renameTo(renamed));
+    });
+    Thread.sleep(DELAY * 2);
+    // the save went to the old name before the move, and didn't
+    // bring that file back afterwards
+    assertEquals("void renamed() { }", Util.loadFile(renamed));
+    assertFalse(new File(folder, "tab6.pde").exists());
+    assertEquals(TAB_COUNT, folder.list().length);
+  }
+}
@@ -0,0 +1,153 @@
+package test.processing.app.syntax;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.swing.text.Segment;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import processing.app.syntax.KeywordMap;
+import processing.app.syntax.Token;
+import processing.core.PApplet;
+
+public class KeywordMapTests {
+  static final File KEYWORDS = new File("../java/keywords.txt");
+  /** Not a sketch, but the largest real code around that's full of API names */
+  static final File SKETCH = new File("../core/src/processing/core/PApplet.java");
+  static final int ROUNDS = 300;
+
+  KeywordMap map;
+  Map<String, Byte> literals;
+  Map<String, Byte> parens;
+
+  Segment text;
+  /** offset, length, and paren (0 or 1) of each identifier in the text */
+  int[] words;
+
+  @Before
+  public void loadKeywords() throws IOException {
+    map = new KeywordMap(false);
+    literals = new HashMap<>();
+    parens = new HashMap<>();
+
+    // the same split as Mode.loadKeywords() and PdeTokenMarker.addColoring()
+    BufferedReader reader = PApplet.createReader(KEYWORDS);
+    String line;
+    while ((line = reader.readLine()) != null) {
+      String[] pieces = PApplet.splitTokens(line);
+      if (!line.trim().startsWith("#") && pieces.length >= 2) {
+        String coloring = pieces[1];
+        int num = coloring.charAt(coloring.length() - 1) - '1';
+        if (coloring.charAt(0) == 'F') {
+          add(pieces[0], (byte) (Token.FUNCTION1 + num), true);
+        } else if (coloring.charAt(0) == 'L') {
+          add(pieces[0], (byte) (Token.LITERAL1 + num), false);
+        } else {
+          add(pieces[0], (byte) (Token.KEYWORD1 + num), false);
+        }
+      }
+    }
+    reader.close();
+
+    char[] array = PApplet.join(PApplet.loadStrings(SKETCH), '\n').toCharArray();
+    text = new Segment(array, 0, array.length);
+    List<int[]> found = new ArrayList<>();
+    int i = 0;
+    while (i < array.length) {
+      if (Character.isJavaIdentifierStart(array[i])) {
+        int start = i;
+        while (i < array.length && Character.isJavaIdentifierPart(array[i])) {
+          i++;
+        }
+        int after = i;
+        while (after < array.length && array[after] == ' ') {
+          after++;
+        }
+        boolean paren = after < array.length && array[after] == '(';
+        found.add(new int[] { start, i - start, paren ? 1 : 0 });
+      } else {
+        i++;
+      }
+    }
+    words = new int[found.size() * 3];
+    for (int w = 0; w < found.size(); w++) {
+      System.arraycopy(found.get(w), 0, words, w * 3, 3);
+    }
+  }
+
+  void add(String keyword, byte id, boolean paren) {
+    map.add(keyword, id, paren);
+    (paren ? parens : literals).put(keyword, id);
+  }
+
+  @Test
+  public void sameAsHashMap() {
+    int hits = 0;
+    for (int w = 0; w < words.length; w += 3) {
+      String word = new String(text.array, words[w], words[w + 1]);
+      boolean paren = words[w + 2] == 1;
+      Byte expected = (paren ? parens : literals).get(word);
+      byte id = map.lookup(text, words[w], words[w + 1], paren);
+      assertEquals(word, (expected == null) ? Token.NULL : expected.byteValue(), id);
+      if (id != Token.NULL) hits++;
+    }
+    assertTrue(hits > 1000);
+  }
+
+  @Test
+  public void prefixesAndCase() {
+    Segment s = new Segment("fill fil fills FILL".toCharArray(), 0, 19);
+    assertTrue(map.lookup(s, 0, 4, true) != Token.NULL);
+    assertEquals(Token.NULL, map.lookup(s, 5, 3, true));
+    assertEquals(Token.NULL, map.lookup(s, 9, 5, true));
+    assertEquals(Token.NULL, map.lookup(s, 15, 4, true));
+
+    // past the end of the segment
+    Segment cut = new Segment(s.array, 0, 3);
+    assertEquals(Token.NULL, map.lookup(cut, 0, 4, true));
+
+    map.setIgnoreCase(true);
+    assertEquals(map.lookup(s, 0, 4, true), map.lookup(s, 15, 4, true));
+
+    // adding after a lookup is picked up too
+    map.add("fil", Token.KEYWORD1, true);
+    assertEquals(Token.KEYWORD1, map.lookup(s, 5, 3, true));
+  }
+
+  @Test
+  public void lookupSpeed() {
+    int count = words.length / 3;
+    long checksum = 0;
+    // warm up
+    for (int r = 0; r < ROUNDS; r++) {
+      checksum += lookupAll();
+    }
+    long started = System.nanoTime();
+    for (int r = 0; r < ROUNDS; r++) {
+      checksum += lookupAll();
+    }
+    long elapsed = System.nanoTime() - started;
+    System.out.println(count + " identifiers in " + SKETCH.getName() + ": " +
+                       (elapsed / ROUNDS / 1000) + " us per pass, " +
+                       (elapsed / ROUNDS / count) + " ns per lookup");
+    assertTrue(checksum > 0);
+  }
+
+  private long lookupAll() {
+    long sum = 0;
+    for (int w = 0; w < words.length; w += 3) {
+      sum += map.lookup(text, words[w], words[w + 1], words[w + 2] == 1);
+    }
+    return sum;
+  }
+}
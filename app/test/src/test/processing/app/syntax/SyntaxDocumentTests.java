@@ -0,0 +1,242 @@
+package test.processing.app.syntax;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Element;
+import javax.swing.text.Segment;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import processing.app.syntax.SyntaxDocument;
+import processing.app.syntax.Token;
+import processing.app.syntax.TokenMarker;
+import processing.app.syntax.TokenMarkerState;
+
+public class SyntaxDocumentTests {
+  static final int LINE_COUNT = 20000;
+  static final int KEYSTROKES = 2000;
+
+  TokenMarker marker;
+  SyntaxDocument doc;
+
+  /**
+   * Colors block comments, line comments, and strings, the parts of
+   * PdeTokenMarker that matter here, without needing the Editor class
+   * (and a display) for its paren checks.
+   */
+  static class CommentMarker extends TokenMarker {
+    public void addColoring(String keyword, String coloring) { }
+
+    protected byte markTokensImpl(byte token, Segment line, int lineIndex) {
+      char[] array = line.array;
+      int start = line.offset;
+      int stop = line.offset + line.count;
+      int last = start;
+      for (int i = start; i < stop; i++) {
+        char c = array[i];
+        char next = (i + 1 < stop) ? array[i + 1] : 0;
+        if (token == Token.COMMENT2) {
+          if (c == '*' && next == '/') {
+            i++;
+            addToken(i + 1 - last, token);
+            token = Token.NULL;
+            last = i + 1;
+          }
+        } else if (token == Token.LITERAL1) {
+          if (c == '"') {
+            addToken(i + 1 - last, token);
+            token = Token.NULL;
+            last = i + 1;
+          }
+        } else if (c == '/' && next == '*') {
+          addToken(i - last, token);
+          token = Token.COMMENT2;
+          last = i++;
+        } else if (c == '/' && next == '/') {
+          addToken(i - last, token);
+          addToken(stop - i, Token.COMMENT1);
+          return Token.NULL;
+        } else if (c == '"') {
+          addToken(i - last, token);
+          token = Token.LITERAL1;
+          last = i;
+        }
+      }
+      addToken(stop - last, token);
+      // strings don't continue onto the next line
+      return (token == Token.LITERAL1) ? Token.NULL : token;
+    }
+  }
+
+  /** Something like the generated sketches that made typing lag. */
+  static String generateSketch(int lines) {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < lines; i++) {
+      switch (i % 50) {
+      case 0:
+        sb.append("/* block ").append(i).append('\n');
+        break;
+      case 2:
+        sb.append("   end of block */\n");
+        break;
+      case 7:
+        sb.append("String s").append(i).append(" = \"text\"; // comment\n");
+        break;
+      default:
+        sb.append("float x").append(i).append(" = sin(").append(i).append(") * 0.5;\n");
+      }
+    }
+    return sb.toString();
+  }
+
+  static SyntaxDocument createDocument(TokenMarker marker, String text) throws BadLocationException {
+    SyntaxDocument doc = new SyntaxDocument();
+    // the same order as Editor, so the lines start out untokenized
+    doc.setTokenMarker(marker);
+    doc.insertString(0, text, null);
+    return doc;
+  }
+
+  static int lineStart(SyntaxDocument doc, int line) {
+    return doc.getDefaultRootElement().getElement(line).getStartOffset();
+  }
+
+  /**
+   * The tokens of each line, marked starting from the bottom, so that
+   * every line is colored from whatever state was left for the one above.
+   */
+  static String[] describeTokens(SyntaxDocument doc) throws BadLocationException {
+    TokenMarkerState state = doc.getTokenMarker();
+    Element map = doc.getDefaultRootElement();
+    String[] outgoing = new String[map.getElementCount()];
+    Segment segment = new Segment();
+    for (int i = outgoing.length - 1; i >= 0; i--) {
+      Element line = map.getElement(i);
+      doc.getText(line.getStartOffset(),
+                  line.getEndOffset() - line.getStartOffset() - 1, segment);
+      StringBuilder sb = new StringBuilder();
+      for (Token t = state.markTokens(segment, i); t.id != Token.END; t = t.next) {
+        sb.append(t.id).append(':').append(t.length).append(' ');
+      }
+      outgoing[i] = sb.toString();
+    }
+    return outgoing;
+  }
+
+  static void assertSameTokens(SyntaxDocument doc, TokenMarker marker) throws BadLocationException {
+    SyntaxDocument fresh = new SyntaxDocument();
+    fresh.insertString(0, doc.getText(0, doc.getLength()), null);
+    fresh.setTokenMarker(marker);  // tokenizes everything
+    String[] expected = describeTokens(fresh);
+    String[] actual = describeTokens(doc);
+    assertEquals(expected.length, actual.length);
+    for (int i = 0; i < expected.length; i++) {
+      assertEquals("line " + i, expected[i], actual[i]);
+    }
+  }
+
+  @Before
+  public void createSketch() throws BadLocationException {
+    marker = new CommentMarker();
+    doc = createDocument(marker, generateSketch(LINE_COUNT));
+  }
+
+  @Test
+  public void editsMatchFullTokenizing() throws BadLocationException {
+    Random random = new Random(42);
+    String[] snippets = { "/*", "*/", "\"", "//", "\n", "x", "/* a */", "\n*/\n" };
+    for (int i = 0; i < 300; i++) {
+      int offset = random.nextInt(doc.getLength());
+      if (random.nextBoolean()) {
+        doc.insertString(offset, snippets[random.nextInt(snippets.length)], null);
+      } else {
+        doc.remove(offset, Math.min(1 + random.nextInt(4), doc.getLength() - offset));
+      }
+      // paint a few lines here and there, the way scrolling would
+      describeLines(doc, random.nextInt(doc.getDefaultRootElement().getElementCount()), 40);
+    }
+    assertSameTokens(doc, marker);
+  }
+
+  static void describeLines(SyntaxDocument doc, int first, int count) throws BadLocationException {
+    Element map = doc.getDefaultRootElement();
+    Segment segment = new Segment();
+    int last = Math.min(first + count, map.getElementCount());
+    for (int i = first; i < last; i++) {
+      Element line = map.getElement(i);
+      doc.getText(line.getStartOffset(),
+                  line.getEndOffset() - line.getStartOffset() - 1, segment);
+      doc.getTokenMarker().markTokens(segment, i);
+    }
+  }
+
+  @Test
+  public void commentOnlyChangesLinesInside() throws BadLocationException {
+    TokenMarkerState state = doc.getTokenMarker();
+    // the lines on screen
+    describeLines(doc, 990, 80);
+
+    // typing inside an ordinary line only affects that line
+    int line = 1005;
+    doc.insertString(lineStart(doc, line), "y", null);
+    assertEquals(line, state.getLastChangedLine());
+
+    // closing a block early only affects the lines down to the old close
+    doc.insertString(lineStart(doc, 1000) + 2, "*/", null);
+    assertEquals(1002, state.getLastChangedLine());
+    doc.remove(lineStart(doc, 1000) + 2, 2);
+    assertEquals(1002, state.getLastChangedLine());
+
+    // opening one runs on until the next block opens
+    doc.insertString(lineStart(doc, 1010), "/*", null);
+    assertEquals(1050, state.getLastChangedLine());
+
+    assertSameTokens(doc, marker);
+  }
+
+  @Test
+  public void typingLatency() throws BadLocationException {
+    TokenMarkerState state = doc.getTokenMarker();
+    int line = LINE_COUNT / 2 + 5;
+    // scroll there
+    describeLines(doc, line - 40, 80);
+
+    // warm up
+    for (int i = 0; i < KEYSTROKES; i++) {
+      doc.insertString(lineStart(doc, line), "a", null);
+      doc.remove(lineStart(doc, line), 1);
+    }
+
+    long worst = 0;
+    long started = System.nanoTime();
+    for (int i = 0; i < KEYSTROKES; i++) {
+      long before = System.nanoTime();
+      // open a comment that runs into the next block, then take it back
+      doc.insertString(lineStart(doc, line), "/", null);
+      doc.insertString(lineStart(doc, line) + 1, "*", null);
+      doc.remove(lineStart(doc, line) + 1, 1);
+      doc.remove(lineStart(doc, line), 1);
+      worst = Math.max(worst, System.nanoTime() - before);
+    }
+    long average = (System.nanoTime() - started) / (KEYSTROKES * 4);
+    System.out.println("typing into " + LINE_COUNT + " lines: " +
+                       average / 1000 + " us per keystroke, " +
+                       worst / 4000 + " us worst");
+    assertEquals(line, state.getLastChangedLine());
+
+    // one keystroke should never be anywhere near re-tokenizing everything
+    long started2 = System.nanoTime();
+    doc.tokenizeLines();
+    long everything = System.nanoTime() - started2;
+    System.out.println("tokenizing all " + LINE_COUNT + " lines: " +
+                       everything / 1000 + " us");
+    assertTrue(average * 10 < everything);
+
+    assertSameTokens(doc, marker);
+  }
+}
@@ -0,0 +1,68 @@
+package test.processing.app.ui;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Element;
+import javax.swing.text.SimpleAttributeSet;
+
+import org.junit.Test;
+
+import processing.app.ui.BufferedStyledDocument;
+
+public class ConsoleTests {
+
+  static String lastLine(BufferedStyledDocument doc) throws BadLocationException {
+    Element root = doc.getDefaultRootElement();
+    // the last paragraph is the empty one after the final newline
+    Element line = root.getElement(root.getElementCount() - 2);
+    return doc.getText(line.getStartOffset(),
+                       line.getEndOffset() - line.getStartOffset());
+  }
+
+  @Test
+  public void keepsLinesTogether() throws BadLocationException {
+    BufferedStyledDocument doc = new BufferedStyledDocument(10000, 500, 40000);
+    SimpleAttributeSet style = new SimpleAttributeSet();
+    doc.appendString("one", style);
+    doc.appendString(" two\nthree\n", style);
+    doc.insertAll();
+    doc.appendString("four\n", style);
+    doc.insertAll();
+    assertEquals("one two\nthree\nfour\n", doc.getText(0, doc.getLength()));
+  }
+
+  @Test
+  public void millionsOfLines() throws Exception {
+    final int maxLines = 500;
+    final int count = 2000000;
+    final BufferedStyledDocument doc =
+      new BufferedStyledDocument(10000, maxLines, 40000);
+    final SimpleAttributeSet style = new SimpleAttributeSet();
+
+    // same as a sketch calling println() in a loop, while the console
+    // is updated on a timer from somewhere else
+    Thread printer = new Thread(new Runnable() {
+      public void run() {
+        for (int i = 0; i < count; i++) {
+          doc.appendString("line " + i + "\n", style);
+        }
+      }
+    });
+    long started = System.currentTimeMillis();
+    printer.start();
+    while (printer.isAlive()) {
+      doc.insertAll();
+      Thread.sleep(16);
+    }
+    doc.insertAll();
+    long elapsed = System.currentTimeMillis() - started;
+    System.out.println(count + " lines in " + elapsed + " ms");
+
+    assertTrue(doc.getDefaultRootElement().getElementCount() <= maxLines + 1);
+    assertEquals("line " + (count - 1) + "\n", lastLine(doc));
+    // generous, but a stalled console takes minutes
+    assertTrue("took " + elapsed + " ms", elapsed < 30000);
+  }
+}
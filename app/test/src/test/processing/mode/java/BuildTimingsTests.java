@@ -0,0 +1,28 @@
+package test.processing.mode.java;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import processing.mode.java.BuildTimings;
+
+public class BuildTimingsTests {
+  @Test
+  public void timingsAddUp() throws InterruptedException {
+    BuildTimings timings = new BuildTimings();
+    timings.start();
+    Thread.sleep(20);
+    timings.mark("preprocess");
+    Thread.sleep(30);
+    timings.mark("compile");
+    Thread.sleep(10);
+    timings.mark("preprocess");
+
+    assertTrue(timings.get("preprocess") >= 30);
+    assertTrue(timings.get("compile") >= 30);
+    assertEquals(-1, timings.get("reuse"));
+    assertTrue(timings.getTotal() >= 60);
+    assertTrue(timings.toString().startsWith("preprocess "));
+  }
+}
@@ -0,0 +1,193 @@
+package test.processing.mode.java;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static test.processing.mode.java.ProcessingTestUtil.compileFirstFrame;
+import static test.processing.mode.java.ProcessingTestUtil.corePath;
+import static test.processing.mode.java.ProcessingTestUtil.median;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import processing.app.Util;
+import processing.core.PApplet;
+import processing.mode.java.ClassDataSharing;
+
+/**
+ * Start an exported sketch with and without an archive of its classes,
+ * and compare how long it takes and how much memory the classes use.
+ */
+public class ClassDataSharingTests {
+  static final int ROUNDS = 5;
+
+  File export;
+  File lib;
+  String[] jars;
+  File javaHome = new File(System.getProperty("java.home"));
+
+  @Before
+  public void exportSketch() throws IOException {
+    export = Util.createTempFolder("firstframe", "", null);
+    lib = new File(export, "lib");
+    File classes = new File(export, "classes");
+
+    compileFirstFrame(export, classes);
+    String core = corePath();
+
+    File coreJar = new File(lib, "core.jar");
+    if (new File(core).isDirectory()) {
+      writeJar(new File(core), coreJar);
+    } else {
+      Util.copyFile(new File(core), coreJar);
+    }
+    File sketchJar = new File(lib, "FirstFrame.jar");
+    writeJar(classes, sketchJar);
+    jars = new String[] { sketchJar.getAbsolutePath(), coreJar.getAbsolutePath() };
+  }
+
+  @After
+  public void removeExport() throws IOException {
+    Util.removeDir(export);
+  }
+
+  static void writeJar(File folder, File jarFile) throws IOException {
+    jarFile.getParentFile().mkdirs();
+    JarOutputStream jar = new JarOutputStream(new FileOutputStream(jarFile));
+    addFolder(jar, folder, "");
+    jar.close();
+  }
+
+  static void addFolder(JarOutputStream jar, File folder, String prefix) throws IOException {
+    for (File file : folder.listFiles()) {
+      if (file.isDirectory()) {
+        addFolder(jar, file, prefix + file.getName() + "/");
+      } else {
+        jar.putNextEntry(new JarEntry(prefix + file.getName()));
+        jar.write(Util.loadBytesRaw(file));
+        jar.closeEntry();
+      }
+    }
+  }
+
+  /** @return { milliseconds to start, KB used outside the heap } */
+  long[] start(String... options) throws Exception {
+    String[] command = new String[] { ClassDataSharing.getJavaPath(javaHome) };
+    command = PApplet.concat(command, options);
+    command = PApplet.concat(command, new String[] {
+      "-cp", PApplet.join(jars, File.pathSeparator), "FirstFrame"
+    });
+    long started = System.nanoTime();
+    Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+    BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
+    String line;
+    String output = "";
+    long elapsed = -1;
+    while ((line = reader.readLine()) != null) {
+      if (line.startsWith("first frame")) {
+        elapsed = (System.nanoTime() - started) / 1000000;
+      } else if (elapsed != -1 && line.startsWith("non-heap ")) {
+        process.waitFor();
+        return new long[] { elapsed, Long.parseLong(line.substring(9)) };
+      }
+      output += line + "\n";
+    }
+    assertEquals(output, 0, process.waitFor());
+    throw new IOException("Sketch didn't start:\n" + output);
+  }
+
+  @Test
+  public void archivedSketchStartsSooner() throws Exception {
+    if (!ClassDataSharing.isSupported(javaHome)) return;
+
+    File archive = new File(lib, "FirstFrame.jsa");
+    ClassDataSharing.createArchive(javaHome, jars, archive);
+    String option = "-XX:SharedArchiveFile=" + archive.getAbsolutePath();
+    // fails if the archive can't be used with this class path
+    start("-Xshare:on", option);
+
+    long[] plainTime = new long[ROUNDS];
+    long[] plainMemory = new long[ROUNDS];
+    long[] sharedTime = new long[ROUNDS];
+    long[] sharedMemory = new long[ROUNDS];
+    for (int i = 0; i < ROUNDS; i++) {
+      long[] plain = start();
+      plainTime[i] = plain[0];
+      plainMemory[i] = plain[1];
+      long[] shared = start(option);
+      sharedTime[i] = shared[0];
+      sharedMemory[i] = shared[1];
+    }
+    System.out.println("Start without an archive: " + median(plainTime) + " ms, " +
+                       median(plainMemory) + " KB non-heap; with: " +
+                       median(sharedTime) + " ms, " + median(sharedMemory) +
+                       " KB non-heap");
+    assertTrue(median(sharedTime) < median(plainTime));
+  }
+
+  @Test
+  public void movedApplicationStillStarts() throws Exception {
+    if (!ClassDataSharing.isSupported(javaHome)) return;
+
+    File archive = new File(lib, "FirstFrame.jsa");
+    ClassDataSharing.createArchive(javaHome, jars, archive);
+    File moved = new File(export.getParentFile(), export.getName() + "-moved");
+    assertTrue(export.renameTo(moved));
+    export = moved;
+    lib = new File(moved, "lib");
+    for (int i = 0; i < jars.length; i++) {
+      jars[i] = new File(lib, new File(jars[i]).getName()).getAbsolutePath();
+    }
+    start("-XX:SharedArchiveFile=" + new File(lib, "FirstFrame.jsa").getAbsolutePath());
+  }
+
+  static File javaHomeWith(String version) throws IOException {
+    File home = Util.createTempFolder("java", "", null);
+    Util.saveFile("IMPLEMENTOR=\"Someone\"\nJAVA_VERSION=\"" + version + "\"",
+                  new File(home, "release"));
+    return home;
+  }
+
+  @Test
+  public void readsJavaVersion() throws IOException {
+    String[] versions = { "1.8.0_144", "9", "10.0.2", "17.0.9" };
+    int[] expected = { 8, 9, 10, 17 };
+    for (int i = 0; i < versions.length; i++) {
+      File home = javaHomeWith(versions[i]);
+      try {
+        assertEquals(expected[i], ClassDataSharing.getJavaVersion(home));
+        // the jre folder inside a JDK 8
+        assertEquals(expected[i], ClassDataSharing.getJavaVersion(new File(home, "jre")));
+      } finally {
+        Util.removeDir(home);
+      }
+    }
+    assertFalse(ClassDataSharing.isSupported(new File(export, "no-java")));
+  }
+
+  @Test
+  public void needsJava11() throws IOException {
+    // 10 would need -XX:+UseAppCDS everywhere the archive is used
+    File home = javaHomeWith("10.0.2");
+    try {
+      assertFalse(ClassDataSharing.isSupported(home));
+    } finally {
+      Util.removeDir(home);
+    }
+    home = javaHomeWith("11.0.2");
+    try {
+      assertTrue(ClassDataSharing.isSupported(home));
+    } finally {
+      Util.removeDir(home);
+    }
+  }
+}
@@ -0,0 +1,111 @@
+package test.processing.mode.java;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import processing.app.Util;
+import processing.mode.java.CompileService;
+
+public class CompileServiceTests {
+  File folder;
+  File jar;
+
+  @Before
+  public void setUp() throws IOException {
+    // ECJ finds the class library in rt.jar, which is gone after Java 8
+    File home = new File(System.getProperty("java.home"));
+    Assume.assumeTrue(new File(home, "lib/rt.jar").exists() ||
+                      new File(home, "jre/lib/rt.jar").exists());
+    folder = Util.createTempFolder("compile", "", null);
+    jar = new File(folder, "library.jar");
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    CompileService.release();
+    if (folder != null) {
+      Util.removeDir(folder);
+    }
+  }
+
+  /** Compile a library class with the given method, and put it in the jar. */
+  void writeLibrary(String method) throws IOException {
+    File src = new File(folder, "lib/Helper.java");
+    src.getParentFile().mkdirs();
+    Util.saveFile("package lib;\n" +
+                  "public class Helper {\n" +
+                  "  public static int " + method + "(int x) { return x * 2; }\n" +
+                  "}\n", src);
+    File classes = new File(folder, "library");
+    compile(folder.getAbsolutePath(), classes, src);
+
+    ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(jar));
+    zip.putNextEntry(new ZipEntry("lib/Helper.class"));
+    zip.write(Util.loadBytesRaw(new File(classes, "lib/Helper.class")));
+    zip.closeEntry();
+    zip.close();
+  }
+
+  /** Compile a sketch that uses the library. */
+  boolean compileSketch(String method) throws IOException {
+    File src = new File(folder, "Sketch.java");
+    Util.saveFile("public class Sketch {\n" +
+                  "  int x = lib.Helper." + method + "(2);\n" +
+                  "}\n", src);
+    return compile(jar.getAbsolutePath(), new File(folder, "bin"), src);
+  }
+
+  static boolean compile(String classPath, File bin, File src) {
+    String[] command = new String[] {
+      "-source", "1.7", "-target", "1.7", "-nowarn", "-proc:none",
+      "-classpath", classPath,
+      "-d", bin.getAbsolutePath(), src.getAbsolutePath()
+    };
+    StringWriter errors = new StringWriter();
+    PrintWriter writer = new PrintWriter(errors);
+    boolean success = CompileService.compile(command, writer, writer);
+    writer.flush();
+    assertEquals("", errors.toString());
+    return success;
+  }
+
+  @Test
+  public void secondCompileReusesJars() throws IOException {
+    writeLibrary("twice");
+    assertTrue(compileSketch("twice"));
+    int opened = CompileService.getOpenCount();
+    int scanned = CompileService.getScanCount();
+    assertTrue(opened > 0);
+    assertTrue(scanned > 0);
+
+    // neither the library nor the class library is read again
+    assertTrue(compileSketch("twice"));
+    assertEquals(opened, CompileService.getOpenCount());
+    assertEquals(scanned, CompileService.getScanCount());
+  }
+
+  @Test
+  public void changedJarIsOpenedAgain() throws IOException {
+    writeLibrary("twice");
+    assertTrue(compileSketch("twice"));
+    int opened = CompileService.getOpenCount();
+
+    writeLibrary("doubled");
+    jar.setLastModified(jar.lastModified() + 2000);
+    assertTrue(compileSketch("doubled"));
+    assertEquals(opened + 1, CompileService.getOpenCount());
+  }
+}
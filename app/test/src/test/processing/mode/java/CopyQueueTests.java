@@ -0,0 +1,141 @@
+package test.processing.mode.java;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import processing.app.Util;
+import processing.mode.java.CopyQueue;
+
+/**
+ * Exports a data folder for several platforms, the way JavaBuild does.
+ */
+public class CopyQueueTests {
+  static final String[] PLATFORMS = { "windows64", "macosx", "linux64" };
+  static final int FOLDER_COUNT = 4;
+  static final int FILE_COUNT = 8;
+  static final int FILE_SIZE = 1024 * 1024;
+
+  File sketch;
+  File data;
+
+  @Before
+  public void makeSketch() throws IOException {
+    sketch = File.createTempFile("export", "");
+    sketch.delete();
+    data = new File(sketch, "data");
+    Random random = new Random(7);
+    byte[] bytes = new byte[FILE_SIZE];
+    for (int f = 0; f < FOLDER_COUNT; f++) {
+      File folder = new File(data, "images" + f);
+      folder.mkdirs();
+      for (int i = 0; i < FILE_COUNT; i++) {
+        random.nextBytes(bytes);
+        FileOutputStream output = new FileOutputStream(new File(folder, "frame" + i + ".png"));
+        output.write(bytes);
+        output.close();
+      }
+      folder.setLastModified(folder.lastModified() - 60000);
+    }
+    Util.saveFile("ignored", new File(data, ".DS_Store"));
+  }
+
+  @After
+  public void removeSketch() throws IOException {
+    Util.removeDir(sketch);
+  }
+
+  File target(String platform) {
+    return new File(sketch, "application." + platform + "/data");
+  }
+
+  void assertCopied(File target) throws IOException {
+    assertFalse(new File(target, ".DS_Store").exists());
+    for (int f = 0; f < FOLDER_COUNT; f++) {
+      File source = new File(data, "images" + f);
+      File copy = new File(target, "images" + f);
+      assertEquals(source.lastModified(), copy.lastModified());
+      for (int i = 0; i < FILE_COUNT; i++) {
+        File sourceFile = new File(source, "frame" + i + ".png");
+        File copyFile = new File(copy, "frame" + i + ".png");
+        assertEquals(sourceFile.lastModified(), copyFile.lastModified());
+        assertTrue(Arrays.equals(Files.readAllBytes(sourceFile.toPath()),
+                                 Files.readAllBytes(copyFile.toPath())));
+      }
+    }
+  }
+
+  long exportSerially() throws IOException {
+    long started = System.nanoTime();
+    for (String platform : PLATFORMS) {
+      Util.copyDir(data, target(platform));
+    }
+    return (System.nanoTime() - started) / 1000000;
+  }
+
+  long exportQueued(boolean link) throws IOException {
+    long started = System.nanoTime();
+    CopyQueue queue = new CopyQueue(link);
+    for (String platform : PLATFORMS) {
+      queue.copyDir(data, target(platform));
+    }
+    queue.finish();
+    return (System.nanoTime() - started) / 1000000;
+  }
+
+  void removeExports() throws IOException {
+    for (String platform : PLATFORMS) {
+      Util.removeDir(target(platform).getParentFile());
+    }
+  }
+
+  @Test
+  public void sameAsCopyDir() throws IOException {
+    long serial = exportSerially();
+    removeExports();
+    long queued = exportQueued(false);
+    for (String platform : PLATFORMS) {
+      assertCopied(target(platform));
+    }
+    removeExports();
+    long linked = exportQueued(true);
+    for (String platform : PLATFORMS) {
+      assertCopied(target(platform));
+    }
+
+    int mb = FOLDER_COUNT * FILE_COUNT * FILE_SIZE / (1024 * 1024);
+    System.out.println(PLATFORMS.length + " x " + mb + " MB data folder: " +
+                       serial + " ms one at a time, " +
+                       queued + " ms queued, " + linked + " ms linked");
+  }
+
+  @Test
+  public void linksOnlyToEarlierCopies() throws IOException {
+    exportQueued(true);
+    String path = "images0/frame0.png";
+    File first = new File(target(PLATFORMS[0]), path);
+    assertFalse(Files.isSameFile(new File(data, path).toPath(), first.toPath()));
+    for (int i = 1; i < PLATFORMS.length; i++) {
+      assertTrue(Files.isSameFile(first.toPath(),
+                                  new File(target(PLATFORMS[i]), path).toPath()));
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void errorsAreReported() throws IOException {
+    CopyQueue queue = new CopyQueue(false);
+    queue.copyFile(new File(data, "missing.png"), new File(sketch, "missing.png"));
+    queue.finish();
+  }
+}
@@ -0,0 +1,249 @@
+package test.processing.mode.java;
+
+import static org.junit.Assert.assertEquals;
+import static test.processing.mode.java.ProcessingTestUtil.corePath;
+import static test.processing.mode.java.ProcessingTestUtil.median;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import processing.app.Problem;
+import processing.mode.java.pdex.ImportStatement;
+import processing.mode.java.pdex.PreprocessedSketch;
+import processing.mode.java.pdex.PreprocessingService;
+import processing.mode.java.pdex.PreprocessingService.TabScans;
+import processing.mode.java.preproc.PdePreprocessor;
+
+/**
+ * Time from a keystroke to the error markers for it: the sketch is
+ * preprocessed, parsed and compiled, and the problems turned into markers,
+ * the same as PreprocessingService and PDEX do after each change. All the
+ * .pde tabs are one compilation unit, so the parse and compile depend on
+ * the size of the whole sketch, but only the tab being typed in is scanned
+ * again. (The editor then waits until 650 ms after the last change before
+ * it shows the markers.)
+ */
+public class PreprocessingServiceTests {
+  static final int ROUNDS = 20;
+
+  static List<ImportStatement> imports;
+  static String[] classPath;
+
+  @BeforeClass
+  public static void init() {
+    ProcessingTestUtil.init();
+    PdePreprocessor p = new PdePreprocessor("Keystrokes");
+    imports = new ArrayList<>();
+    for (String imp : p.getCoreImports()) {
+      imports.add(ImportStatement.parse(imp));
+    }
+    for (String imp : p.getDefaultImports()) {
+      imports.add(ImportStatement.parse(imp));
+    }
+    // the Java 8 class library, which is what the mode compiles against
+    File rt = new File(System.getProperty("java.home"), "lib/rt.jar");
+    if (!rt.exists()) {
+      rt = new File(System.getProperty("java.home"), "jre/lib/rt.jar");
+    }
+    classPath = rt.exists() ?
+      new String[] { rt.getAbsolutePath(), corePath() } : null;
+  }
+
+  static final String MAIN =
+    "ArrayList<Mover> movers = new ArrayList<Mover>();\n" +
+    "\n" +
+    "void setup() {\n" +
+    "  size(400, 400);\n" +
+    "  for (int i = 0; i < 100; i++) {\n" +
+    "    movers.add(new Mover(random(width), random(height)));\n" +
+    "  }\n" +
+    "}\n" +
+    "\n" +
+    "void draw() {\n" +
+    "  background(0);\n" +
+    "  for (Mover m : movers) {\n" +
+    "    m.update();\n" +
+    "    m.display();\n" +
+    "  }\n" +
+    "}\n";
+
+  static final String MOVER =
+    "class Mover {\n" +
+    "  PVector location;\n" +
+    "  PVector velocity = new PVector();\n" +
+    "  HashMap<String, Float> settings = new HashMap<String, Float>();\n" +
+    "\n" +
+    "  Mover(float x, float y) {\n" +
+    "    location = new PVector(x, y);\n" +
+    "    settings.put(\"limit\", 4.0);\n" +
+    "  }\n" +
+    "\n" +
+    "  void update() {\n" +
+    "    PVector mouse = new PVector(mouseX, mouseY);\n" +
+    "    PVector acceleration = PVector.sub(mouse, location);\n" +
+    "    acceleration.setMag(0.2);\n" +
+    "    velocity.add(acceleration);\n" +
+    "    velocity.limit(settings.get(\"limit\"));\n" +
+    "    location.add(velocity);\n" +
+    "  }\n" +
+    "\n" +
+    "  void display() {\n" +
+    "    stroke(255);\n" +
+    "    fill(127, 200);\n" +
+    "    ellipse(location.x, location.y, 16, 16);\n" +
+    "  }\n" +
+    "}\n";
+
+  /** A tab with a class and a few functions, numbered so they don't clash */
+  static String helperTab(int n) {
+    StringBuilder sb = new StringBuilder();
+    sb.append("class Shape" + n + " {\n");
+    sb.append("  float[] xs = new float[16];\n");
+    sb.append("  float[] ys = new float[16];\n");
+    sb.append("  color c = #FF8000;\n");
+    sb.append("  String name = \"shape " + n + "\";\n");
+    sb.append("\n");
+    sb.append("  void build(float r) {\n");
+    sb.append("    for (int i = 0; i < xs.length; i++) {\n");
+    sb.append("      float a = TWO_PI * i / xs.length;\n");
+    sb.append("      xs[i] = cos(a) * r * noise(i * 0.1);\n");
+    sb.append("      ys[i] = sin(a) * r * noise(i * 0.1 + 5);\n");
+    sb.append("    }\n");
+    sb.append("  }\n");
+    sb.append("\n");
+    sb.append("  void draw(PGraphics g) {\n");
+    sb.append("    g.fill(c);\n");
+    sb.append("    g.beginShape();\n");
+    sb.append("    for (int i = 0; i < xs.length; i++) {\n");
+    sb.append("      g.vertex(xs[i], ys[i]);\n");
+    sb.append("    }\n");
+    sb.append("    g.endShape(CLOSE);\n");
+    sb.append("  }\n");
+    sb.append("}\n");
+    sb.append("\n");
+    for (int f = 0; f < 5; f++) {
+      sb.append("float measure" + n + "_" + f + "(Shape" + n + " s) {\n");
+      sb.append("  float total = 0;\n");
+      sb.append("  for (int i = 1; i < s.xs.length; i++) {\n");
+      sb.append("    total += dist(s.xs[i-1], s.ys[i-1], s.xs[i], s.ys[i]);\n");
+      sb.append("  }\n");
+      sb.append("  IntList counts = new IntList();\n");
+      sb.append("  counts.append(int(total));\n");
+      sb.append("  return total / counts.size();\n");
+      sb.append("}\n");
+      sb.append("\n");
+    }
+    return sb.toString();
+  }
+
+  static List<String> sketch(int tabCount) {
+    List<String> tabs = new ArrayList<>();
+    tabs.add(MAIN);
+    tabs.add(MOVER);
+    for (int i = 2; i < tabCount; i++) {
+      tabs.add(helperTab(i));
+    }
+    return tabs;
+  }
+
+  static List<Problem> check(List<String> tabs, TabScans scans) {
+    PreprocessedSketch ps =
+      PreprocessingService.preprocess("Keystrokes", tabs, imports, classPath, scans);
+    return PreprocessingService.findProblems(ps);
+  }
+
+  static List<Problem> errors(List<Problem> problems) {
+    List<Problem> errors = new ArrayList<>();
+    for (Problem p : problems) {
+      if (p.isError()) {
+        errors.add(p);
+      }
+    }
+    return errors;
+  }
+
+  /**
+   * Type into the Mover tab: take away the semicolon at the end of the
+   * line in display() that sets the stroke, then put it back.
+   * @return the median milliseconds from keystroke to markers
+   */
+  static long typeInto(List<String> tabs, TabScans scans) {
+    String good = tabs.get(1);
+    String bad = good.replace("stroke(255);", "stroke(255)");
+    int badLine = 20;  // lines in the editor count from zero
+
+    long[] times = new long[ROUNDS];
+    for (int i = 0; i < ROUNDS; i++) {
+      boolean broken = i % 2 == 0;
+      tabs.set(1, broken ? bad : good);
+      int scanned = scans.getScanCount();
+      long started = System.nanoTime();
+      List<Problem> problems = check(tabs, scans);
+      times[i] = (System.nanoTime() - started) / 1000000;
+      // the other tabs are as they were, so only this one is scanned
+      assertEquals(scanned + 1, scans.getScanCount());
+
+      List<Problem> errors = errors(problems);
+      if (broken) {
+        assertEquals(1, errors.size());
+        assertEquals(1, errors.get(0).getTabIndex());
+        assertEquals(badLine, errors.get(0).getLineNumber());
+      } else {
+        assertEquals(0, errors.size());
+      }
+    }
+    tabs.set(1, good);
+    return median(times);
+  }
+
+  @Test
+  public void keystrokeToMarkers() {
+    Assume.assumeNotNull((Object) classPath);  // without rt.jar nothing resolves
+
+    List<String> small = sketch(2);
+    List<String> large = sketch(12);
+    TabScans smallScans = new TabScans();
+    TabScans largeScans = new TabScans();
+    assertEquals(0, errors(check(small, smallScans)).size());
+    assertEquals(0, errors(check(large, largeScans)).size());
+    assertEquals(2, smallScans.getScanCount());
+    assertEquals(12, largeScans.getScanCount());
+
+    // the first checks load the compiler and the class library
+    typeInto(small, smallScans);
+    typeInto(large, largeScans);
+
+    long smallTime = typeInto(small, smallScans);
+    long largeTime = typeInto(large, largeScans);
+    int largeLines = String.join("", large).split("\n").length;
+    System.out.println("Keystroke to markers: " + smallTime + " ms with 2 tabs, " +
+                       largeTime + " ms with 12 tabs (" + largeLines + " lines)");
+  }
+
+
+  @Test
+  public void sameResultAsWholeSketch() {
+    Assume.assumeNotNull((Object) classPath);
+
+    // scanned tab by tab, the Java is the same as scanning all of it at once
+    List<String> tabs = sketch(4);
+    tabs.set(2, "import java.util.regex.*;\n" +
+                "int hex = #FF8000;\n" + tabs.get(2));
+    TabScans scans = new TabScans();
+    PreprocessingService.preprocess("Keystrokes", tabs, imports, classPath, scans);
+    tabs.set(3, tabs.get(3) + "float f = float(\"1.5\");\n");
+    PreprocessedSketch reused =
+      PreprocessingService.preprocess("Keystrokes", tabs, imports, classPath, scans);
+    PreprocessedSketch fresh =
+      PreprocessingService.preprocess("Keystrokes", tabs, imports, classPath, new TabScans());
+    assertEquals(5, scans.getScanCount());
+    assertEquals(fresh.javaCode, reused.javaCode);
+    assertEquals(1, reused.programImports.size());
+    assertEquals(0, errors(PreprocessingService.findProblems(reused)).size());
+  }
+}
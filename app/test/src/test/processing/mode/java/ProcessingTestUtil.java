@@ -1,14 +1,24 @@
 package test.processing.mode.java;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.StringWriter;
+import java.util.Arrays;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+
 import antlr.ANTLRException;
-import processing.app.Base;
+import processing.app.Platform;
 import processing.app.Preferences;
 import processing.app.SketchException;
+import processing.app.Util;
+import processing.core.PApplet;
 import processing.mode.java.preproc.PdePreprocessor;
 import processing.mode.java.AutoFormat;
 
@@ -22,7 +32,7 @@ public class ProcessingTestUtil {
 
   static {
     try {
-      Base.initPlatform();
+      Platform.init();
       COMPILER = new UTCompiler(new File("bin"), new File("../core/bin"));
       Preferences.load(new FileInputStream(res("preferences.txt")));
     } catch (IOException e) {
@@ -75,4 +85,64 @@ public class ProcessingTestUtil {
     }
   }
 
+  /**
+   * A sketch for timing how long it takes to start: it draws a frame into
+   * a PImage (since there may not be a display), prints "first frame" and
+   * its arguments, then how much memory is in use outside the heap, and
+   * quits.
+   */
+  static final String FIRST_FRAME =
+    "public class FirstFrame extends processing.core.PApplet {\n" +
+    "  public static void main(String[] args) {\n" +
+    "    FirstFrame sketch = new FirstFrame();\n" +
+    "    processing.core.PImage frame = sketch.createImage(200, 200, RGB);\n" +
+    "    frame.loadPixels();\n" +
+    "    for (int i = 0; i < frame.pixels.length; i++) {\n" +
+    "      frame.pixels[i] = sketch.color(sketch.noise(i * 0.01f) * 255);\n" +
+    "    }\n" +
+    "    frame.updatePixels();\n" +
+    "    frame.filter(BLUR, 2);\n" +
+    "    processing.data.JSONObject json = new processing.data.JSONObject();\n" +
+    "    json.setFloat(\"noise\", sketch.noise(1));\n" +
+    "    System.out.println(\"first frame \" + join(args, ','));\n" +
+    "    long used = java.lang.management.ManagementFactory.getMemoryMXBean().\n" +
+    "      getNonHeapMemoryUsage().getUsed();\n" +
+    "    System.out.println(\"non-heap \" + used / 1024);\n" +
+    "    System.exit(0);\n" +
+    "  }\n" +
+    "}\n";
+
+  /**
+   * Save FIRST_FRAME to a folder as FirstFrame.java, and compile it
+   * against core into another.
+   */
+  static void compileFirstFrame(File folder, File classes) throws IOException {
+    File source = new File(folder, "FirstFrame.java");
+    Util.saveFile(FIRST_FRAME, source);
+    classes.mkdirs();
+    JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+    assertNotNull(javac);
+    assertEquals(0, javac.run(null, null, null, "-nowarn",
+                              "-cp", corePath(), "-d", classes.getAbsolutePath(),
+                              source.getAbsolutePath()));
+  }
+
+  /** The jar or folder that a class was loaded from. */
+  static String pathOf(Class<?> c) {
+    try {
+      return new File(c.getProtectionDomain().getCodeSource().getLocation().toURI()).getAbsolutePath();
+    } catch (Exception e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  static String corePath() {
+    return pathOf(PApplet.class);
+  }
+
+  static long median(long[] values) {
+    long[] sorted = values.clone();
+    Arrays.sort(sorted);
+    return sorted[sorted.length / 2];
+  }
 }
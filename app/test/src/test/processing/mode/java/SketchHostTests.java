@@ -0,0 +1,125 @@
+package test.processing.mode.java;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static test.processing.mode.java.ProcessingTestUtil.compileFirstFrame;
+import static test.processing.mode.java.ProcessingTestUtil.corePath;
+import static test.processing.mode.java.ProcessingTestUtil.median;
+import static test.processing.mode.java.ProcessingTestUtil.pathOf;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import processing.app.Util;
+import processing.core.PApplet;
+import processing.mode.java.runner.SketchHost;
+
+/**
+ * Time from Run to the first frame, for a sketch VM launched when Run is
+ * hit, and for one that was started (and warmed up) ahead of time. The
+ * sketch draws its frame into a PImage, since there may not be a display.
+ */
+public class SketchHostTests {
+  static final int ROUNDS = 3;
+
+  File sketch;
+  File bin;
+
+  @Before
+  public void compileSketch() throws IOException {
+    sketch = Util.createTempFolder("firstframe", "", null);
+    bin = new File(sketch, "bin");
+    compileFirstFrame(sketch, bin);
+  }
+
+  @After
+  public void removeSketch() throws IOException {
+    Util.removeDir(sketch);
+  }
+
+  static String java() {
+    return new File(System.getProperty("java.home"), "bin/java").getAbsolutePath();
+  }
+
+  static Process start(String... command) throws IOException {
+    return new ProcessBuilder(command).redirectErrorStream(true).start();
+  }
+
+  static String waitFor(InputStream input, String prefix) throws IOException {
+    BufferedReader reader = new BufferedReader(new InputStreamReader(input));
+    String line;
+    while ((line = reader.readLine()) != null) {
+      if (line.startsWith(prefix)) {
+        return line;
+      }
+    }
+    throw new IOException("VM quit before printing " + prefix);
+  }
+
+  String sketchClassPath() {
+    return bin.getAbsolutePath() + File.pathSeparator + corePath();
+  }
+
+  long runCold() throws Exception {
+    long started = System.nanoTime();
+    Process process = start(java(), "-cp", sketchClassPath(), "FirstFrame", "cold");
+    assertEquals("first frame cold", waitFor(process.getInputStream(), "first frame"));
+    long elapsed = (System.nanoTime() - started) / 1000000;
+    process.waitFor();
+    return elapsed;
+  }
+
+  /** A host, started and warmed up, as it would be waiting in the PDE. */
+  Process startHost() throws IOException {
+    Process host = start(java(), "-cp",
+                         pathOf(SketchHost.class) + File.pathSeparator + corePath(),
+                         SketchHost.class.getName());
+    waitFor(host.getInputStream(), SketchHost.READY);
+    return host;
+  }
+
+  long runWarm(Process host, String... args) throws Exception {
+    long started = System.nanoTime();
+    String[] command = PApplet.concat(new String[] { "FirstFrame" }, args);
+    SketchHost.writeRequest(new PrintStream(host.getOutputStream()),
+                            sketchClassPath(), command);
+    assertEquals("first frame " + PApplet.join(args, ','),
+                 waitFor(host.getInputStream(), "first frame"));
+    long elapsed = (System.nanoTime() - started) / 1000000;
+    host.waitFor();
+    return elapsed;
+  }
+
+  @Test
+  public void warmHostReachesFirstFrameSooner() throws Exception {
+    long[] cold = new long[ROUNDS];
+    long[] warm = new long[ROUNDS];
+    for (int i = 0; i < ROUNDS; i++) {
+      cold[i] = runCold();
+      warm[i] = runWarm(startHost(), "warm");
+    }
+    System.out.println("Run to first frame: " + median(cold) + " ms in a new VM, " +
+                       median(warm) + " ms in a warm one");
+    assertTrue(median(warm) < median(cold));
+  }
+
+  @Test
+  public void argumentsArriveIntact() throws Exception {
+    runWarm(startHost(), "--sketch-path=/tmp/a b", "", "--display=1");
+  }
+
+  @Test
+  public void hostQuitsWhenThePdeGoesAway() throws Exception {
+    Process host = startHost();
+    host.getOutputStream().close();
+    assertEquals(0, host.waitFor());
+  }
+}
@@ -0,0 +1,172 @@
+package test.processing.mode.java;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.ByteBuffer;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import processing.app.Util;
+import processing.mode.java.tweak.TweakClient;
+
+/**
+ * Drags a few handles and checks what reaches the server code that
+ * Tweak Mode adds to the sketch, compiled here into a stand-in sketch.
+ */
+public class TweakClientTests {
+  static final int INTS = 4;
+  static final int FLOATS = 4;
+  /** Mouse events while dragging, each one changing a color's three values */
+  static final int EVENTS = 500;
+
+  File folder;
+  Object sketch;
+  Thread server;
+  Method pre;
+  int port;
+
+  @Before
+  public void startServer() throws Exception {
+    DatagramSocket probe = new DatagramSocket(0);
+    port = probe.getLocalPort();
+    probe.close();
+
+    folder = File.createTempFile("tweak", "");
+    folder.delete();
+    folder.mkdirs();
+    File source = new File(folder, "TweakSketch.java");
+    FileWriter writer = new FileWriter(source);
+    writer.write("import java.net.*;\n" +
+                 "import java.io.*;\n" +
+                 "import java.nio.*;\n" +
+                 "public class TweakSketch extends processing.core.PApplet {\n" +
+                 "  public int[] tweakmode_int = new int[" + INTS + "];\n" +
+                 "  public float[] tweakmode_float = new float[" + FLOATS + "];\n" +
+                 TweakClient.getServerCode(port, true, true) +
+                 "}\n");
+    writer.close();
+
+    JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+    int result = compiler.run(null, null, null, "-nowarn",
+                              "-cp", System.getProperty("java.class.path"),
+                              "-d", folder.getAbsolutePath(),
+                              source.getAbsolutePath());
+    assertEquals("server code should compile", 0, result);
+
+    URLClassLoader loader =
+      new URLClassLoader(new URL[] { folder.toURI().toURL() },
+                         getClass().getClassLoader());
+    Class<?> sketchClass = loader.loadClass("TweakSketch");
+    Class<?> serverClass = loader.loadClass("TweakSketch$TweakModeServer");
+    sketch = sketchClass.newInstance();
+    Constructor<?> constructor = serverClass.getConstructor(sketchClass);
+    server = (Thread) constructor.newInstance(sketch);
+    serverClass.getMethod("setup").invoke(server);
+    pre = serverClass.getMethod("pre");
+    server.start();
+  }
+
+  @After
+  public void stopServer() throws Exception {
+    server.join(2000);
+    Util.removeDir(folder);
+  }
+
+  int[] ints() throws Exception {
+    Field field = sketch.getClass().getField("tweakmode_int");
+    return (int[]) field.get(sketch);
+  }
+
+  float[] floats() throws Exception {
+    Field field = sketch.getClass().getField("tweakmode_float");
+    return (float[]) field.get(sketch);
+  }
+
+  @Test
+  public void dragging() throws Exception {
+    TweakClient client = new TweakClient(port);
+
+    long started = System.nanoTime();
+    for (int i = 0; i < EVENTS; i++) {
+      // a color handle, and a number next to it
+      client.sendInt(0, i);
+      client.sendInt(1, i * 2);
+      client.sendInt(2, i * 3);
+      client.sendFloat(3, i / 10f);
+      Thread.sleep(1);
+    }
+    long lastSent = System.nanoTime();
+
+    // draw frames until the last values show up
+    int[] ints = ints();
+    float[] floats = floats();
+    while (ints[2] != (EVENTS - 1) * 3 || floats[3] != (EVENTS - 1) / 10f) {
+      pre.invoke(server);
+      assertTrue("values never arrived", System.nanoTime() - lastSent < 2000000000L);
+      Thread.sleep(1);
+    }
+    long latency = (System.nanoTime() - lastSent) / 1000;
+    long dragTime = (lastSent - started) / 1000000;
+
+    assertEquals(EVENTS - 1, ints[0]);
+    assertEquals((EVENTS - 1) * 2, ints[1]);
+    assertEquals(0, ints[3]);
+
+    int packets = client.getPacketCount();
+    System.out.println(EVENTS * 4 + " changes over " + dragTime + " ms in " +
+                       packets + " packets, last one applied after " +
+                       latency + " us");
+    // about one a frame, rather than one per change
+    assertTrue(packets <= dragTime / 10 + 2);
+
+    client.shutdown();
+  }
+
+  @Test
+  public void olderValuesIgnored() throws Exception {
+    // packets that arrive out of order, sent by hand
+    DatagramSocket socket = new DatagramSocket();
+    InetAddress local = InetAddress.getByName("127.0.0.1");
+    send(socket, local, 5, 0, 50);
+    send(socket, local, 4, 0, 40);  // late
+    send(socket, local, 4, 1, 41);  // late, but nothing newer for [1]
+    Thread.sleep(200);
+    pre.invoke(server);
+    assertEquals(50, ints()[0]);
+    assertEquals(41, ints()[1]);
+
+    ByteBuffer bb = ByteBuffer.allocate(12);
+    bb.putInt(0, TweakClient.SHUTDOWN);
+    socket.send(new DatagramPacket(bb.array(), 12, local, port));
+    socket.close();
+  }
+
+  void send(DatagramSocket socket, InetAddress address,
+            int sequence, int index, int value) throws Exception {
+    ByteBuffer bb =
+      ByteBuffer.allocate(TweakClient.HEADER_SIZE + TweakClient.VALUE_SIZE);
+    bb.putInt(TweakClient.BATCH);
+    bb.putInt(sequence);
+    bb.putInt(1);
+    bb.putInt(TweakClient.VAR_INT);
+    bb.putInt(index);
+    bb.putInt(value);
+    socket.send(new DatagramPacket(bb.array(), bb.capacity(), address, port));
+  }
+}
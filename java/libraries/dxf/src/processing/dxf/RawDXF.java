@@ -23,6 +23,10 @@
 package processing.dxf;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 
 import processing.core.*;
 
@@ -102,6 +106,14 @@ import processing.core.*;
  *   }
  * }
  * </PRE>
+ * To write a binary DXF file, which is smaller and quicker to read and
+ * write, or to have triangles share their vertices, create the renderer
+ * with createGraphics() as above, and before calling beginRaw():
+ * <PRE>
+ *     dxf.setBinary(true);
+ *     dxf.setPolyface(true);
+ * </PRE>
+ * <p>
  * Note that even though this class is a subclass of PGraphics, it only
  * implements the parts of the API that are necessary for beginRaw/endRaw.
  * <p>
@@ -113,11 +125,46 @@ import processing.core.*;
  * Constructor modifications in September 2008 as we approach 1.0.
  */
 public class RawDXF extends PGraphics {
+  /** Size of the buffer in front of the file */
+  static final int BUFFER_SIZE = 1 << 20;
+  /** Largest number of vertices or faces in one polyface mesh */
+  static final int MESH_LIMIT = 32767;
+  /** Significant digits written for each coordinate */
+  static final int DIGITS = 8;
+  /** Anything smaller than 10^-MAX_DECIMALS is written as zero */
+  static final int MAX_DECIMALS = 15;
+
+  static final byte[] BINARY_SENTINEL =
+    "AutoCAD Binary DXF\r\n\u001a\0".getBytes(StandardCharsets.US_ASCII);
+  static final byte[] NEWLINE =
+    System.getProperty("line.separator").getBytes(StandardCharsets.US_ASCII);
+  static final long[] POWERS_OF_TEN = new long[MAX_DECIMALS + 1];
+  static {
+    POWERS_OF_TEN[0] = 1;
+    for (int i = 1; i <= MAX_DECIMALS; i++) {
+      POWERS_OF_TEN[i] = POWERS_OF_TEN[i-1] * 10;
+    }
+  }
 
   File file;
-  PrintWriter writer;
+  FileChannel channel;
+  // bytes are put straight into the array, not through the ByteBuffer
+  byte[] buffer = new byte[BUFFER_SIZE];
+  ByteBuffer bufferWrapper = ByteBuffer.wrap(buffer);
+  int bufferCount;
+
+  boolean binary;
   int currentLayer;
 
+  boolean polyface;
+  int meshLayer;
+  float[] meshVertices;
+  int meshVertexCount;
+  int[] meshFaces;
+  int meshFaceCount;
+  /** Vertex number (starting at 1) by hash of its position, 0 if empty */
+  int[] meshTable;
+
 
   public RawDXF() { }
 
@@ -149,11 +196,16 @@ public class RawDXF extends PGraphics {
 
 
   public void dispose() {
+    writeMesh();
     writeFooter();
 
-    writer.flush();
-    writer.close();
-    writer = null;
+    try {
+      flushBuffer();
+      channel.close();
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    channel = null;
   }
 
 
@@ -178,9 +230,9 @@ public class RawDXF extends PGraphics {
   public void beginDraw() {
     // have to create file object here, because the name isn't yet
     // available in allocate()
-    if (writer == null) {
+    if (channel == null) {
       try {
-        writer = new PrintWriter(new FileWriter(file));
+        channel = new FileOutputStream(file).getChannel();
       } catch (IOException e) {
         throw new RuntimeException(e);  // java 1.4+
       }
@@ -190,7 +242,12 @@ public class RawDXF extends PGraphics {
 
 
   public void endDraw() {
-    writer.flush();
+    writeMesh();
+    try {
+      flushBuffer();
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
   }
 
 
@@ -206,22 +263,57 @@ public class RawDXF extends PGraphics {
   }
 
 
+  /**
+   * Write a binary DXF file instead of a text one. Binary files are
+   * around a third smaller, and quicker to write and to read back in.
+   * This has to be set before beginRaw() or beginDraw().
+   */
+  public void setBinary(boolean binary) {
+    if (channel != null) {
+      throw new RuntimeException("setBinary() has to be used " +
+                                 "before beginRaw() or beginDraw()");
+    }
+    this.binary = binary;
+  }
+
+
+  /**
+   * Write triangles as polyface meshes instead of separate 3DFACE
+   * entities. Every position is written only once per mesh, and the
+   * triangles refer to it by number, so a mesh where each vertex is
+   * shared by six triangles takes up a little over half the space.
+   * Triangles are collected into meshes of up to 32767 vertices
+   * (the most a polyface mesh can number), and each mesh is written out once
+   * it's full, the layer changes, or at endDraw().
+   */
+  public void setPolyface(boolean polyface) {
+    if (this.polyface && !polyface) {
+      writeMesh();
+    }
+    if (polyface && meshTable == null) {
+      meshVertices = new float[MESH_LIMIT * 3];
+      meshFaces = new int[MESH_LIMIT * 3];
+      meshTable = new int[Integer.highestOneBit(MESH_LIMIT) << 2];
+    }
+    this.polyface = polyface;
+  }
+
+
   // ..............................................................
 
 
   private void writeHeader() {
-    writer.println("0");
-    writer.println("SECTION");
-    writer.println("2");
-    writer.println("ENTITIES");
+    if (binary) {
+      put(BINARY_SENTINEL);
+    }
+    write(0, "SECTION");
+    write(2, "ENTITIES");
   }
 
 
   private void writeFooter() {
-    writer.println("0");
-    writer.println("ENDSEC");
-    writer.println("0");
-    writer.println("EOF");
+    write(0, "ENDSEC");
+    write(0, "EOF");
   }
 
 
@@ -231,37 +323,101 @@ public class RawDXF extends PGraphics {
    * insert additional commands into the DXF stream.
    */
   public void write(String cmd, float val) {
-    writer.println(cmd);
-    // Don't number format, will cause trouble on systems that aren't en-US
-    // http://dev.processing.org/bugs/show_bug.cgi?id=495
-    writer.println(val);
+    if (binary) {
+      write(Integer.parseInt(cmd.trim()), val);
+    } else {
+      putText(cmd);
+      putFloat(val);
+    }
   }
 
 
   /**
    * Write a line to the dxf file. Available for anyone who wants to
-   * insert additional commands into the DXF stream.
+   * insert additional commands into the DXF stream. Only for text files,
+   * use write(int, String) with binary files.
    */
   public void println(String what) {
-    writer.println(what);
+    if (binary) {
+      throw new RuntimeException("println() can't be used with binary " +
+                                 "DXF files, use write(int, String)");
+    }
+    putText(what);
+  }
+
+
+  /** Write a group code followed by a String value. */
+  public void write(int code, String value) {
+    putCode(code);
+    if (binary) {
+      ensureRoom(value.length() + 1);
+      for (int i = 0; i < value.length(); i++) {
+        buffer[bufferCount++] = (byte) value.charAt(i);
+      }
+      buffer[bufferCount++] = 0;
+    } else {
+      putText(value);
+    }
+  }
+
+
+  /**
+   * Write a group code followed by an integer value. In binary files,
+   * codes 90 to 99 take 32-bit values, and everything else 16-bit ones.
+   */
+  public void write(int code, int value) {
+    putCode(code);
+    if (binary) {
+      if (code >= 90 && code <= 99) {
+        putLittleEndian(value, 4);
+      } else {
+        putLittleEndian(value, 2);
+      }
+    } else {
+      putInt(value);
+      putNewline();
+    }
+  }
+
+
+  /** Write a group code followed by a floating point value. */
+  public void write(int code, float value) {
+    putCode(code);
+    if (binary) {
+      putLittleEndian(Double.doubleToLongBits(value), 8);
+    } else {
+      putFloat(value);
+    }
+  }
+
+
+  /** Layers are named, so the number is written as a String. */
+  private void writeLayer(int layer) {
+    putCode(8);
+    putInt(layer);
+    if (binary) {
+      buffer[bufferCount++] = 0;
+    } else {
+      putNewline();
+    }
+  }
+
+
+  private void writeVertex(int code, float x, float y, float z) {
+    write(code, x);
+    write(code + 10, y);
+    write(code + 20, z);
   }
 
 
   protected void writeLine(int index1, int index2) {
-    writer.println("0");
-    writer.println("LINE");
+    write(0, "LINE");
 
     // write out the layer
-    writer.println("8");
-    writer.println(String.valueOf(currentLayer));
+    writeLayer(currentLayer);
 
-    write("10", vertices[index1][X]);
-    write("20", vertices[index1][Y]);
-    write("30", vertices[index1][Z]);
-
-    write("11", vertices[index2][X]);
-    write("21", vertices[index2][Y]);
-    write("31", vertices[index2][Z]);
+    writeVertex(10, vertices[index1][X], vertices[index1][Y], vertices[index1][Z]);
+    writeVertex(11, vertices[index2][X], vertices[index2][Y], vertices[index2][Z]);
   }
 
 
@@ -276,11 +432,15 @@ public class RawDXF extends PGraphics {
 
 
   protected void writeTriangle() {
-    writer.println("0");
-    writer.println("3DFACE");
+    if (polyface) {
+      addFace();
+      vertexCount = 0;
+      return;
+    }
+
+    write(0, "3DFACE");
 
     // write out the layer
-    writer.println("8");
     /*
     if (i < MAX_TRI_LAYERS) {
       if (layerList[i] >= 0) {
@@ -288,31 +448,273 @@ public class RawDXF extends PGraphics {
       }
     }
     */
-    writer.println(String.valueOf(currentLayer));
-
-    write("10", vertices[0][X]);
-    write("20", vertices[0][Y]);
-    write("30", vertices[0][Z]);
+    writeLayer(currentLayer);
 
-    write("11", vertices[1][X]);
-    write("21", vertices[1][Y]);
-    write("31", vertices[1][Z]);
-
-    write("12", vertices[2][X]);
-    write("22", vertices[2][Y]);
-    write("32", vertices[2][Z]);
+    writeVertex(10, vertices[0][X], vertices[0][Y], vertices[0][Z]);
+    writeVertex(11, vertices[1][X], vertices[1][Y], vertices[1][Z]);
+    writeVertex(12, vertices[2][X], vertices[2][Y], vertices[2][Z]);
 
     // Without adding EPSILON, Rhino kinda freaks out.
     // A face is actually a quad, not a triangle,
     // so instead kinda fudging the final point here.
-    write("13", vertices[2][X] + EPSILON);
-    write("23", vertices[2][Y] + EPSILON);
-    write("33", vertices[2][Z] + EPSILON);
+    writeVertex(13, vertices[2][X] + EPSILON,
+                vertices[2][Y] + EPSILON,
+                vertices[2][Z] + EPSILON);
 
     vertexCount = 0;
   }
 
 
+  // ..............................................................
+
+  // polyface meshes
+
+
+  private void addFace() {
+    if (meshVertexCount + 3 > MESH_LIMIT ||
+        meshFaceCount == MESH_LIMIT ||
+        (meshFaceCount != 0 && meshLayer != currentLayer)) {
+      writeMesh();
+    }
+    meshLayer = currentLayer;
+    int index = meshFaceCount * 3;
+    meshFaces[index++] = meshVertex(vertices[0]);
+    meshFaces[index++] = meshVertex(vertices[1]);
+    meshFaces[index++] = meshVertex(vertices[2]);
+    meshFaceCount++;
+  }
+
+
+  /** @return number of the vertex at this position, starting at 1 */
+  private int meshVertex(float[] vertex) {
+    // adding zero turns -0 into 0, so both end up as the same vertex
+    float x = vertex[X] + 0f;
+    float y = vertex[Y] + 0f;
+    float z = vertex[Z] + 0f;
+
+    int hash = Float.floatToIntBits(x);
+    hash = hash * 31 + Float.floatToIntBits(y);
+    hash = hash * 31 + Float.floatToIntBits(z);
+    hash ^= hash >>> 16;
+
+    int mask = meshTable.length - 1;
+    for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+      int number = meshTable[slot];
+      if (number == 0) {
+        int index = meshVertexCount * 3;
+        meshVertices[index] = x;
+        meshVertices[index+1] = y;
+        meshVertices[index+2] = z;
+        meshTable[slot] = ++meshVertexCount;
+        return meshVertexCount;
+      }
+      int index = (number - 1) * 3;
+      if (meshVertices[index] == x &&
+          meshVertices[index+1] == y &&
+          meshVertices[index+2] == z) {
+        return number;
+      }
+    }
+  }
+
+
+  /** Write out the triangles collected so far as a polyface mesh. */
+  private void writeMesh() {
+    if (meshFaceCount == 0) {
+      return;
+    }
+
+    write(0, "POLYLINE");
+    writeLayer(meshLayer);
+    write(66, 1);
+    writeVertex(10, 0, 0, 0);
+    write(70, 64);
+    write(71, meshVertexCount);
+    write(72, meshFaceCount);
+
+    for (int i = 0; i < meshVertexCount * 3; i += 3) {
+      write(0, "VERTEX");
+      writeLayer(meshLayer);
+      writeVertex(10, meshVertices[i], meshVertices[i+1], meshVertices[i+2]);
+      write(70, 192);
+    }
+
+    for (int i = 0; i < meshFaceCount * 3; i += 3) {
+      write(0, "VERTEX");
+      writeLayer(meshLayer);
+      writeVertex(10, 0, 0, 0);
+      write(70, 128);
+      write(71, meshFaces[i]);
+      write(72, meshFaces[i+1]);
+      write(73, meshFaces[i+2]);
+    }
+
+    write(0, "SEQEND");
+    writeLayer(meshLayer);
+
+    meshVertexCount = 0;
+    meshFaceCount = 0;
+    Arrays.fill(meshTable, 0);
+  }
+
+
+  // ..............................................................
+
+  // formatting straight into the buffer, without making a String
+  // for every value, and without PrintWriter's locking and encoding
+
+
+  private void flushBuffer() throws IOException {
+    bufferWrapper.clear();
+    bufferWrapper.limit(bufferCount);
+    while (bufferWrapper.hasRemaining()) {
+      channel.write(bufferWrapper);
+    }
+    bufferCount = 0;
+  }
+
+
+  private void ensureRoom(int length) {
+    if (bufferCount + length > buffer.length) {
+      try {
+        flushBuffer();
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+  }
+
+
+  private void put(byte[] bytes) {
+    ensureRoom(bytes.length);
+    System.arraycopy(bytes, 0, buffer, bufferCount, bytes.length);
+    bufferCount += bytes.length;
+  }
+
+
+  private void putNewline() {
+    for (byte b : NEWLINE) {
+      buffer[bufferCount++] = b;
+    }
+  }
+
+
+  private void putText(String text) {
+    for (int i = 0; i < text.length(); i++) {
+      ensureRoom(1);
+      buffer[bufferCount++] = (byte) text.charAt(i);
+    }
+    ensureRoom(NEWLINE.length);
+    putNewline();
+  }
+
+
+  private void putCode(int code) {
+    if (!binary) {
+      putInt(code);
+      putNewline();
+    } else if (code < 255) {
+      ensureRoom(1);
+      buffer[bufferCount++] = (byte) code;
+    } else {
+      ensureRoom(1);
+      buffer[bufferCount++] = (byte) 255;
+      putLittleEndian(code, 2);
+    }
+  }
+
+
+  private void putLittleEndian(long value, int length) {
+    ensureRoom(length);
+    for (int i = 0; i < length; i++) {
+      buffer[bufferCount++] = (byte) value;
+      value >>= 8;
+    }
+  }
+
+
+  /** Write the digits of a positive number, without anything after. */
+  private void putDigits(long value) {
+    int start = bufferCount;
+    do {
+      buffer[bufferCount++] = (byte) ('0' + value % 10);
+      value /= 10;
+    } while (value != 0);
+    // reverse the digits, they came out last first
+    for (int i = start, j = bufferCount - 1; i < j; i++, j--) {
+      byte temp = buffer[i];
+      buffer[i] = buffer[j];
+      buffer[j] = temp;
+    }
+  }
+
+
+  /** Write an int, leaving room for the line ending after it. */
+  private void putInt(int value) {
+    ensureRoom(12 + NEWLINE.length);
+    long digits = value;
+    if (digits < 0) {
+      buffer[bufferCount++] = '-';
+      digits = -digits;
+    }
+    putDigits(digits);
+  }
+
+
+  /**
+   * Write a float with up to 8 significant digits, and no exponent,
+   * dropping trailing zeros: 1.1f is written as "1.1" and not as
+   * "1.10000002". Always uses a period as the decimal separator, whatever
+   * the locale, since anything else will cause trouble in other programs
+   * (http://dev.processing.org/bugs/show_bug.cgi?id=495).
+   */
+  private void putFloat(float value) {
+    float magnitude = Math.abs(value);
+    if (!(magnitude < 1e12f)) {
+      // NaN, infinity, or too big to be written without an exponent
+      putText(String.valueOf(value));
+      return;
+    }
+
+    int decimals = DIGITS - 1;
+    if (magnitude >= 10) {
+      for (float limit = 10; magnitude >= limit && decimals > 0; limit *= 10) {
+        decimals--;
+      }
+    } else if (magnitude != 0) {
+      for (float limit = 1; magnitude < limit && decimals < MAX_DECIMALS; limit /= 10) {
+        decimals++;
+      }
+    }
+    long scale = POWERS_OF_TEN[decimals];
+    long scaled = Math.round(value * (double) scale);
+
+    ensureRoom(32 + NEWLINE.length);
+    if (scaled < 0) {
+      buffer[bufferCount++] = '-';
+      scaled = -scaled;
+    }
+    putDigits(scaled / scale);
+    buffer[bufferCount++] = '.';
+
+    long fraction = scaled % scale;
+    if (fraction == 0) {
+      buffer[bufferCount++] = '0';
+    } else {
+      while (fraction % 10 == 0) {
+        fraction /= 10;
+        decimals--;
+      }
+      for (int i = decimals - 1; i >= 0; i--) {
+        buffer[bufferCount + i] = (byte) ('0' + fraction % 10);
+        fraction /= 10;
+      }
+      bufferCount += decimals;
+    }
+    putNewline();
+  }
+
+
   // ..............................................................
 
 
@@ -0,0 +1,58 @@
+// Writes a large height field mesh to DXF files in each of the output
+// modes, and prints triangles per second and the size of each file.
+
+import processing.dxf.*;
+
+int triangleCount = 5000000;
+int columns = 1000;
+
+void setup() {
+  test("text.dxf", false, false);
+  test("binary.dxf", true, false);
+  test("polyface.dxf", false, true);
+  test("polyface-binary.dxf", true, true);
+  exit();
+}
+
+void test(String filename, boolean binary, boolean polyface) {
+  RawDXF dxf = (RawDXF) createGraphics(width, height, DXF, filename);
+  dxf.setBinary(binary);
+  dxf.setPolyface(polyface);
+
+  // work out the heights first, so only the writing is timed
+  int rows = triangleCount / columns / 2;
+  float[] heights = new float[(columns + 1) * (rows + 1)];
+  for (int y = 0; y <= rows; y++) {
+    for (int x = 0; x <= columns; x++) {
+      heights[y * (columns + 1) + x] = 20 * noise(x * 0.02, y * 0.02);
+    }
+  }
+
+  int start = millis();
+  dxf.beginDraw();
+  dxf.beginShape(TRIANGLES);
+  for (int y = 0; y < rows; y++) {
+    for (int x = 0; x < columns; x++) {
+      int i = y * (columns + 1) + x;
+      float z00 = heights[i];
+      float z10 = heights[i + 1];
+      float z01 = heights[i + columns + 1];
+      float z11 = heights[i + columns + 2];
+      dxf.vertex(x, y, z00);
+      dxf.vertex(x + 1, y, z10);
+      dxf.vertex(x + 1, y + 1, z11);
+      dxf.vertex(x, y, z00);
+      dxf.vertex(x + 1, y + 1, z11);
+      dxf.vertex(x, y + 1, z01);
+    }
+  }
+  dxf.endShape();
+  dxf.endDraw();
+  dxf.dispose();
+
+  float seconds = (millis() - start) / 1000.0;
+  println(filename + ": " + (rows * columns * 2) + " triangles in " +
+          nf(seconds, 0, 2) + " seconds, " +
+          nf(rows * columns * 2 / seconds, 0, 0) + " triangles per second, " +
+          (new File(sketchPath(filename)).length() >> 20) + " MB");
+}
@@ -31,6 +31,14 @@ JNIEXPORT jstring JNICALL Java_processing_io_NativeInterface_getError
 JNIEXPORT jint JNICALL Java_processing_io_NativeInterface_closeDevice
   (JNIEnv *, jclass, jint);
 
+/*
+ * Class:     processing_io_NativeInterface
+ * Method:    readDevice
+ * Signature: (I[B)I
+ */
+JNIEXPORT jint JNICALL Java_processing_io_NativeInterface_readDevice
+  (JNIEnv *, jclass, jint, jbyteArray);
+
 /*
  * Class:     processing_io_NativeInterface
  * Method:    readFile
@@ -55,6 +63,14 @@ JNIEXPORT jint JNICALL Java_processing_io_NativeInterface_writeFile
 JNIEXPORT jint JNICALL Java_processing_io_NativeInterface_pollDevice
   (JNIEnv *, jclass, jstring, jint);
 
+/*
+ * Class:     processing_io_NativeInterface
+ * Method:    pollDevices
+ * Signature: ([I[J[BI)I
+ */
+JNIEXPORT jint JNICALL Java_processing_io_NativeInterface_pollDevices
+  (JNIEnv *, jclass, jintArray, jlongArray, jbyteArray, jint);
+
 /*
  * Class:     processing_io_NativeInterface
  * Method:    transferI2c
@@ -63,6 +79,14 @@ JNIEXPORT jint JNICALL Java_processing_io_NativeInterface_pollDevice
 JNIEXPORT jint JNICALL Java_processing_io_NativeInterface_transferI2c
   (JNIEnv *, jclass, jint, jint, jbyteArray, jbyteArray);
 
+/*
+ * Class:     processing_io_NativeInterface
+ * Method:    transferI2cBuffers
+ * Signature: (I[I[Z[IIILjava/nio/ByteBuffer;I)I
+ */
+JNIEXPORT jint JNICALL Java_processing_io_NativeInterface_transferI2cBuffers
+  (JNIEnv *, jclass, jint, jintArray, jbooleanArray, jintArray, jint, jint, jobject, jint);
+
 /*
  * Class:     processing_io_NativeInterface
  * Method:    servoStartThread
@@ -103,6 +127,14 @@ JNIEXPORT jint JNICALL Java_processing_io_NativeInterface_setSpiSettings
 JNIEXPORT jint JNICALL Java_processing_io_NativeInterface_transferSpi
   (JNIEnv *, jclass, jint, jbyteArray, jbyteArray);
 
+/*
+ * Class:     processing_io_NativeInterface
+ * Method:    transferSpiBuffers
+ * Signature: (ILjava/nio/ByteBuffer;Ljava/nio/ByteBuffer;[IIII)I
+ */
+JNIEXPORT jint JNICALL Java_processing_io_NativeInterface_transferSpiBuffers
+  (JNIEnv *, jclass, jint, jobject, jobject, jintArray, jint, jint, jint);
+
 #ifdef __cplusplus
 }
 #endif
@@ -76,6 +76,20 @@ JNIEXPORT jint JNICALL Java_processing_io_NativeInterface_closeDevice
 }
 
 
+JNIEXPORT jint JNICALL Java_processing_io_NativeInterface_readDevice
+  (JNIEnv *env, jclass cls, jint handle, jbyteArray _in)
+{
+	jbyte *in = (*env)->GetByteArrayElements(env, _in, NULL);
+	// always read from the start, sysfs files report their current value there
+	int len = pread(handle, in, (*env)->GetArrayLength(env, _in), 0);
+	if (len < 0) {
+		len = -errno;
+	}
+	(*env)->ReleaseByteArrayElements(env, _in, in, 0);
+	return len;
+}
+
+
 JNIEXPORT jint JNICALL Java_processing_io_NativeInterface_readFile
   (JNIEnv *env, jclass cls, jstring _fn, jbyteArray _in)
 {
@@ -158,6 +172,54 @@ JNIEXPORT jint JNICALL Java_processing_io_NativeInterface_pollDevice
 }
 
 
+JNIEXPORT jint JNICALL Java_processing_io_NativeInterface_pollDevices
+  (JNIEnv *env, jclass cls, jintArray _handles, jlongArray _times, jbyteArray _values, jint timeout)
+{
+	int count = (*env)->GetArrayLength(env, _handles);
+	struct pollfd *fds = calloc(count ? count : 1, sizeof(struct pollfd));
+	if (!fds) {
+		return -ENOMEM;
+	}
+
+	jint *handles = (*env)->GetIntArrayElements(env, _handles, NULL);
+	for (int i = 0; i < count; i++) {
+		fds[i].fd = handles[i];
+		fds[i].events = POLLPRI|POLLERR;
+	}
+	(*env)->ReleaseIntArrayElements(env, _handles, handles, JNI_ABORT);
+
+	// wait on all of them at once
+	int ret = poll(fds, count, timeout);
+	if (ret < 0) {
+		ret = -errno;
+	} else if (0 < ret) {
+		// take the time right away, this uses the same clock as System.nanoTime()
+		struct timespec now;
+		clock_gettime(CLOCK_MONOTONIC, &now);
+		jlong nanos = (jlong)now.tv_sec * 1000000000LL + now.tv_nsec;
+
+		jlong *times = (*env)->GetLongArrayElements(env, _times, NULL);
+		jbyte *values = (*env)->GetByteArrayElements(env, _values, NULL);
+		for (int i = 0; i < count; i++) {
+			if (fds[i].revents & POLLPRI) {
+				// reading the value also re-arms the interrupt
+				char tmp = 0;
+				pread(fds[i].fd, &tmp, 1, 0);
+				values[i] = (tmp == '1');
+				times[i] = nanos;
+			} else {
+				times[i] = 0;
+			}
+		}
+		(*env)->ReleaseLongArrayElements(env, _times, times, 0);
+		(*env)->ReleaseByteArrayElements(env, _values, values, 0);
+	}
+
+	free(fds);
+	return ret;
+}
+
+
 JNIEXPORT jint JNICALL Java_processing_io_NativeInterface_transferI2c
   (JNIEnv *env, jclass cls, jint handle, jint slave, jbyteArray _out, jbyteArray _in)
 {
@@ -197,6 +259,45 @@ JNIEXPORT jint JNICALL Java_processing_io_NativeInterface_transferI2c
 }
 
 
+JNIEXPORT jint JNICALL Java_processing_io_NativeInterface_transferI2cBuffers
+  (JNIEnv *env, jclass cls, jint handle, jintArray _slaves, jbooleanArray _reads, jintArray _lengths, jint first, jint count, jobject _data, jint offset)
+{
+	struct i2c_rdwr_ioctl_data packets;
+	struct i2c_msg msgs[I2C_RDRW_IOCTL_MAX_MSGS];
+	if (I2C_RDRW_IOCTL_MAX_MSGS < count) {
+		return -EINVAL;
+	}
+
+	jbyte *data = (*env)->GetDirectBufferAddress(env, _data);
+	if (data == NULL) {
+		return -EINVAL;
+	}
+	data += offset;
+
+	jint *slaves = (*env)->GetIntArrayElements(env, _slaves, NULL);
+	jboolean *reads = (*env)->GetBooleanArrayElements(env, _reads, NULL);
+	jint *lengths = (*env)->GetIntArrayElements(env, _lengths, NULL);
+	for (int i = 0; i < count; i++) {
+		msgs[i].addr = slaves[first + i];
+		msgs[i].flags = reads[first + i] ? I2C_M_RD : 0;
+		msgs[i].len = lengths[first + i];
+		msgs[i].buf = (__u8*)data;
+		data += lengths[first + i];
+	}
+	(*env)->ReleaseIntArrayElements(env, _slaves, slaves, JNI_ABORT);
+	(*env)->ReleaseBooleanArrayElements(env, _reads, reads, JNI_ABORT);
+	(*env)->ReleaseIntArrayElements(env, _lengths, lengths, JNI_ABORT);
+
+	packets.msgs = msgs;
+	packets.nmsgs = count;
+	int ret = ioctl(handle, I2C_RDWR, &packets);
+	if (ret < 0) {
+		ret = -errno;
+	}
+	return ret;
+}
+
+
 typedef struct {
 	int fd;
 	pthread_t thread;
@@ -323,6 +424,43 @@ JNIEXPORT jint JNICALL Java_processing_io_NativeInterface_setSpiSettings
 }
 
 
+JNIEXPORT jint JNICALL Java_processing_io_NativeInterface_transferSpiBuffers
+  (JNIEnv *env, jclass cls, jint handle, jobject _out, jobject _in, jintArray _lengths, jint first, jint count, jint offset)
+{
+	jbyte *out = (*env)->GetDirectBufferAddress(env, _out);
+	jbyte *in = (*env)->GetDirectBufferAddress(env, _in);
+	if (out == NULL || in == NULL) {
+		return -EINVAL;
+	}
+	out += offset;
+	in += offset;
+
+	struct spi_ioc_transfer *xfers = calloc(count ? count : 1, sizeof(struct spi_ioc_transfer));
+	if (!xfers) {
+		return -ENOMEM;
+	}
+
+	int total = 0;
+	jint *lengths = (*env)->GetIntArrayElements(env, _lengths, NULL);
+	for (int i = 0; i < count; i++) {
+		xfers[i].tx_buf = (unsigned long)(out + total);
+		xfers[i].rx_buf = (unsigned long)(in + total);
+		xfers[i].len = lengths[first + i];
+		// deselect the device in between, same as separate transfers
+		xfers[i].cs_change = (i < count - 1);
+		total += lengths[first + i];
+	}
+	(*env)->ReleaseIntArrayElements(env, _lengths, lengths, JNI_ABORT);
+
+	int ret = ioctl(handle, SPI_IOC_MESSAGE(count), xfers);
+	if (ret < 0) {
+		ret = -errno;
+	}
+	free(xfers);
+	return ret;
+}
+
+
 JNIEXPORT jint JNICALL Java_processing_io_NativeInterface_transferSpi
   (JNIEnv *env, jclass cls, jint handle, jbyteArray _out, jbyteArray _in)
 {
@@ -25,10 +25,21 @@ package processing.io;
 import processing.core.*;
 import processing.io.NativeInterface;
 
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 import java.util.BitSet;
-import java.util.HashMap;
-import java.util.Map;
 
 
 /**
@@ -59,16 +70,40 @@ public class GPIO {
    */
   public static final int RISING = 3;
 
-  protected static Map<Integer, Thread> irqThreads = new HashMap<Integer, Thread>();
-  protected static boolean serveInterrupts = true;
+  protected static InterruptDispatcher interrupts = new InterruptDispatcher();
+  protected static volatile boolean serveInterrupts = true;
+  protected static int interruptQueue = 1;
   protected static BitSet values = new BitSet();
 
+  protected static final String SYSFS_ROOT = "/sys/class/gpio";
+  /** Where the kernel's GPIO interface lives, see sysfsRoot() */
+  protected static String root = SYSFS_ROOT;
+  /** Value files kept open between calls, indexed by pin */
+  protected static volatile FileChannel[] valueFiles = new FileChannel[0];
+
+  private static final ByteBuffer LOW_BYTE =
+    ByteBuffer.wrap(new byte[] { '0' }).asReadOnlyBuffer();
+  private static final ByteBuffer HIGH_BYTE =
+    ByteBuffer.wrap(new byte[] { '1' }).asReadOnlyBuffer();
+
 
   static {
     NativeInterface.loadLibrary();
   }
 
 
+  /**
+   *  Called when an input pin changes, see attachInterrupt()
+   */
+  public interface InterruptHandler {
+    /**
+     *  @param pin GPIO pin
+     *  @param time when the change was seen, in the same units as System.nanoTime()
+     */
+    void interrupt(int pin, long time);
+  }
+
+
   public static void analogWrite(int pin, int value) {
     // currently this can't be done in a non-platform-specific way
     // the best way forward would be implementing a generic, "soft"
@@ -100,55 +135,62 @@ public class GPIO {
    *  @webref
    */
   public static void attachInterrupt(int pin, PApplet parent, String method, int mode) {
-    if (irqThreads.containsKey(pin)) {
-      throw new RuntimeException("You must call releaseInterrupt before attaching another interrupt on the same pin");
-    }
-
-    enableInterrupt(pin, mode);
-
-    final int irqPin = pin;
-    final PApplet irqObject = parent;
-    final Method irqMethod;
+    // the method can take the time of the interrupt as well
+    MethodHandle handle;
+    boolean withTime = true;
     try {
-      irqMethod = parent.getClass().getMethod(method, int.class);
+      Method irqMethod;
+      try {
+        irqMethod = parent.getClass().getMethod(method, int.class, long.class);
+      } catch (NoSuchMethodException e) {
+        irqMethod = parent.getClass().getMethod(method, int.class);
+        withTime = false;
+      }
+      handle = MethodHandles.publicLookup().unreflect(irqMethod).bindTo(parent);
     } catch (NoSuchMethodException e) {
       throw new RuntimeException("Method " + method + " does not exist");
+    } catch (IllegalAccessException e) {
+      throw new RuntimeException("Method " + method + " is not public");
     }
 
-    // it might be worth checking how Java threads compare to pthreads in terms
-    // of latency
-    Thread t = new Thread(new Runnable() {
-      public void run() {
-        boolean gotInterrupt = false;
+    final MethodHandle irqMethod;
+    if (withTime) {
+      irqMethod = handle.asType(MethodType.methodType(void.class, int.class, long.class));
+    } else {
+      irqMethod = MethodHandles.dropArguments(handle.asType(MethodType.methodType(void.class, int.class)), 1, long.class);
+    }
+
+    attachInterrupt(pin, mode, new InterruptHandler() {
+      public void interrupt(int pin, long time) {
         try {
-          do {
-            try {
-              if (waitForInterrupt(irqPin, 100)) {
-                gotInterrupt = true;
-              }
-              if (gotInterrupt && serveInterrupts) {
-                irqMethod.invoke(irqObject, irqPin);
-                gotInterrupt = false;
-              }
-              // if we received an interrupt while interrupts were disabled
-              // we still deliver it the next time interrupts get enabled
-              // not sure if everyone agrees with this logic though
-            } catch (RuntimeException e) {
-              // make sure we're not busy spinning on error
-              Thread.sleep(100);
-            }
-          } while (!Thread.currentThread().isInterrupted());
-        } catch (Exception e) {
-          // terminate the thread on any unexpected exception that might occur
-          System.err.println("Terminating interrupt handling for pin " + irqPin + " after catching: " + e.getMessage());
+          irqMethod.invokeExact(pin, time);
+        } catch (RuntimeException e) {
+          throw e;
+        } catch (Throwable e) {
+          throw new RuntimeException(e);
         }
       }
-    }, "GPIO" + pin + " IRQ");
+    });
+  }
 
-    t.setPriority(Thread.MAX_PRIORITY);
-    t.start();
 
-    irqThreads.put(pin, t);
+  /**
+   *  Calls a handler when the value of an input pin changes
+   *
+   *  All pins are watched by a single thread, and the handlers are called
+   *  from another one, one at a time.
+   *  @param pin GPIO pin
+   *  @param mode when to call: GPIO.CHANGE, GPIO.FALLING or GPIO.RISING
+   *  @param handler what to call
+   *  @see queueInterrupts
+   */
+  public static void attachInterrupt(int pin, int mode, InterruptHandler handler) {
+    if (interrupts.contains(pin)) {
+      throw new RuntimeException("You must call releaseInterrupt before attaching another interrupt on the same pin");
+    }
+
+    enableInterrupt(pin, mode);
+    interrupts.add(pin, handler, interruptQueue);
   }
 
 
@@ -181,19 +223,29 @@ public class GPIO {
       return LOW;
     }
 
-    String fn = String.format("/sys/class/gpio/gpio%d/value", pin);
-    byte in[] = new byte[2];
-    int ret = NativeInterface.readFile(fn, in);
-    if (ret < 0) {
-      throw new RuntimeException(NativeInterface.getError(ret));
-    } else if (1 <= ret && in[0] == '0') {
+    FileChannel file = valueFile(pin);
+    if (file == null) {
+      System.err.println("Make sure your called pinMode on the input pin");
+      throw new RuntimeException(path(pin, "value") + " does not exist");
+    }
+
+    ByteBuffer in = ByteBuffer.allocate(2);
+    int ret;
+    try {
+      // reading from the start again gets the current value,
+      // without having to close and reopen the file
+      ret = file.read(in, 0);
+    } catch (IOException e) {
+      throw new RuntimeException(e.getMessage());
+    }
+    if (1 <= ret && in.get(0) == '0') {
       return LOW;
-    } else if (1 <= ret && in[0] == '1') {
+    } else if (1 <= ret && in.get(0) == '1') {
       return HIGH;
     } else {
       System.err.print("Read " + ret + " bytes");
       if (0 < ret) {
-        System.err.format(", first byte is 0x%02x" + in[0]);
+        System.err.format(", first byte is 0x%02x", in.get(0));
       }
       System.err.println();
       throw new RuntimeException("Unexpected value");
@@ -212,15 +264,15 @@ public class GPIO {
   public static void digitalWrite(int pin, int value) {
     checkValidPin(pin);
 
-    String out;
+    ByteBuffer out;
     if (value == LOW) {
       // values are also stored in a bitmap to make it possible to set a
       // default level per pin before enabling the output
       values.clear(pin);
-      out = "0";
+      out = LOW_BYTE;
     } else if (value == HIGH) {
       values.set(pin);
-      out = "1";
+      out = HIGH_BYTE;
     } else {
       System.err.println("Only GPIO.LOW and GPIO.HIGH, 0 and 1, or true and false, can be used.");
       throw new IllegalArgumentException("Illegal value");
@@ -230,12 +282,29 @@ public class GPIO {
       return;
     }
 
-    String fn = String.format("/sys/class/gpio/gpio%d/value", pin);
-    int ret = NativeInterface.writeFile(fn, out);
-    if (ret < 0) {
-      if (ret != -2) {    // ENOENT, pin might not yet be exported
-        throw new RuntimeException(NativeInterface.getError(ret));
+    FileChannel file = valueFile(pin);
+    if (file == null) {
+      // pin might not yet be exported
+      return;
+    }
+    try {
+      try {
+        file.write(out.duplicate(), 0);
+      } catch (NonWritableChannelException e) {
+        // opened while the pin was an input that couldn't be written to,
+        // and it might have been made writable since
+        closeValueFile(pin);
+        file = valueFile(pin);
+        if (file == null) {
+          return;
+        }
+        file.write(out.duplicate(), 0);
       }
+    } catch (NonWritableChannelException e) {
+      System.err.println("Make sure your called pinMode on the output pin");
+      throw new RuntimeException(path(pin, "value") + " is not writable");
+    } catch (IOException e) {
+      throw new RuntimeException(e.getMessage());
     }
   }
 
@@ -252,6 +321,50 @@ public class GPIO {
   }
 
 
+  /**
+   *  Returns the values of up to 32 input pins at once
+   *
+   *  Bit 0 of the result is the value of pins[0], bit 1 that of pins[1],
+   *  and so on.
+   *  @param pins GPIO pins
+   *  @return the values of the pins, one per bit
+   *  @see digitalRead
+   */
+  public static int digitalRead(int[] pins) {
+    checkPort(pins);
+    int ret = 0;
+    for (int i = 0; i < pins.length; i++) {
+      if (digitalRead(pins[i]) == HIGH) {
+        ret |= 1 << i;
+      }
+    }
+    return ret;
+  }
+
+
+  /**
+   *  Sets up to 32 output pins at once
+   *
+   *  Bit 0 of value goes to pins[0], bit 1 to pins[1], and so on.
+   *  @param pins GPIO pins
+   *  @param value the values for the pins, one per bit
+   *  @see digitalWrite
+   */
+  public static void digitalWrite(int[] pins, int value) {
+    checkPort(pins);
+    for (int i = 0; i < pins.length; i++) {
+      digitalWrite(pins[i], (value >> i) & 1);
+    }
+  }
+
+
+  protected static void checkPort(int[] pins) {
+    if (32 < pins.length) {
+      throw new IllegalArgumentException("Only up to 32 pins can be read or written at once");
+    }
+  }
+
+
   /**
    *  Disables an interrupt for an input pin
    *  @param pin GPIO pin
@@ -290,8 +403,8 @@ public class GPIO {
       return;
     }
 
-    String fn = String.format("/sys/class/gpio/gpio%d/edge", pin);
-    int ret = NativeInterface.writeFile(fn, out);
+    String fn = path(pin, "edge");
+    int ret = writeFile(fn, out);
     if (ret < 0) {
       if (ret == -2) {    // ENOENT
         System.err.println("Make sure your called pinMode on the input pin");
@@ -310,6 +423,72 @@ public class GPIO {
    */
   public static void interrupts() {
     serveInterrupts = true;
+    interrupts.resume();
+  }
+
+
+  /**
+   *  Returns how long it took for interrupts to be handled
+   *
+   *  Entry n is the number of handlers that were called between 2^n
+   *  and 2^(n+1) microseconds after the change on the pin was seen.
+   *  @see clearInterruptLatency
+   */
+  public static long[] interruptLatency() {
+    return interrupts.latency();
+  }
+
+
+  /**
+   *  Starts counting interrupt latency over again
+   *  @see interruptLatency
+   */
+  public static void clearInterruptLatency() {
+    interrupts.clearLatency();
+  }
+
+
+  /**
+   *  Returns how many interrupts were dropped because their queue was full
+   *  @see queueInterrupts
+   */
+  public static long droppedInterrupts() {
+    return interrupts.dropped();
+  }
+
+
+  /**
+   *  Keeps track of interrupts that haven't been handled yet
+   *
+   *  By default, changes that happen while the handler for a pin is still
+   *  busy (or during noInterrupts) result in just one more call. With a
+   *  queue, the handler is instead called once for each of them, with the
+   *  time each happened. Affects interrupts attached after this is called.
+   *  @param size how many interrupts to keep for each pin (1 to not queue them)
+   *  @see attachInterrupt
+   *  @see droppedInterrupts
+   */
+  public static void queueInterrupts(int size) {
+    if (size < 1) {
+      throw new IllegalArgumentException("The queue needs to have room for at least one interrupt");
+    }
+    interruptQueue = size;
+  }
+
+
+  /**
+   *  Acts as if the value of an input pin just changed
+   *
+   *  The handler attached to the pin gets called as if the change came
+   *  from the hardware. This makes it possible to test interrupt handling
+   *  without any hardware, in particular with NativeInterface.alwaysSimulate().
+   *  When running simulated, pins otherwise see a change every 200 ms;
+   *  this stops once simulateInterrupt() has been called.
+   *  @param pin GPIO pin
+   *  @see attachInterrupt
+   */
+  public static void simulateInterrupt(int pin) {
+    interrupts.simulate(pin, System.nanoTime());
   }
 
 
@@ -342,8 +521,8 @@ public class GPIO {
     }
 
     // export pin through sysfs
-    String fn = "/sys/class/gpio/export";
-    int ret = NativeInterface.writeFile(fn, Integer.toString(pin));
+    String fn = root + "/export";
+    int ret = writeFile(fn, Integer.toString(pin));
     if (ret < 0) {
       if (ret == -2) {    // ENOENT
         System.err.println("Make sure your kernel is compiled with GPIO_SYSFS enabled");
@@ -358,14 +537,16 @@ public class GPIO {
 
     // delay to give udev a chance to change the file permissions behind our back
     // there should really be a cleaner way for this
-    try {
-      Thread.sleep(500);
-    } catch (InterruptedException e) {
-      Thread.currentThread().interrupt();
+    if (SYSFS_ROOT.equals(root)) {
+      try {
+        Thread.sleep(500);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
     }
 
     // set direction and default level for outputs
-    fn = String.format("/sys/class/gpio/gpio%d/direction", pin);
+    fn = path(pin, "direction");
     String out;
     if (mode == INPUT) {
       out = "in";
@@ -382,10 +563,13 @@ public class GPIO {
     } else {
       throw new IllegalArgumentException("Unknown mode");
     }
-    ret = NativeInterface.writeFile(fn, out);
+    ret = writeFile(fn, out);
     if (ret < 0) {
       throw new RuntimeException(fn + ": " + NativeInterface.getError(ret));
     }
+
+    // opened again on the next access, in case it was only readable before
+    closeValueFile(pin);
   }
 
 
@@ -398,20 +582,10 @@ public class GPIO {
    *  @webref
    */
   public static void releaseInterrupt(int pin) {
-    Thread t = irqThreads.get(pin);
-    if (t == null) {
+    if (!interrupts.contains(pin)) {
       return;
     }
-
-    t.interrupt();
-    try {
-      t.join();
-    } catch (InterruptedException e) {
-      System.err.println("Error joining thread in releaseInterrupt: " + e.getMessage());
-    }
-    t = null;
-    irqThreads.remove(pin);
-
+    interrupts.remove(pin);
     disableInterrupt(pin);
   }
 
@@ -429,8 +603,10 @@ public class GPIO {
       return;
     }
 
-    String fn = "/sys/class/gpio/unexport";
-    int ret = NativeInterface.writeFile(fn, Integer.toString(pin));
+    closeValueFile(pin);
+
+    String fn = root + "/unexport";
+    int ret = writeFile(fn, Integer.toString(pin));
     if (ret < 0) {
       if (ret == -2) {    // ENOENT
         System.err.println("Make sure your kernel is compiled with GPIO_SYSFS enabled");
@@ -443,6 +619,106 @@ public class GPIO {
   }
 
 
+  /**
+   *  Changes where the GPIO pins are found
+   *
+   *  This is /sys/class/gpio unless changed. Pointing it at a regular
+   *  directory, with the same layout (export, unexport, and a gpioN folder
+   *  containing direction, edge and value for each pin), makes it possible
+   *  to test code without any hardware.
+   *  @param path directory to use instead of /sys/class/gpio
+   */
+  public static void sysfsRoot(String path) {
+    synchronized (GPIO.class) {
+      for (int pin = 0; pin < valueFiles.length; pin++) {
+        closeValueFile(pin);
+      }
+      root = path;
+    }
+  }
+
+
+  /**
+   *  Writes to one of the files of the GPIO interface
+   *
+   *  This is done in native code, to get the error number (errno) for
+   *  sysfs. A stand-in directory from sysfsRoot() holds regular files,
+   *  so those are written here, and don't need the native library.
+   *  @return zero, or a negative error number
+   */
+  protected static int writeFile(String fn, String out) {
+    if (SYSFS_ROOT.equals(root)) {
+      return NativeInterface.writeFile(fn, out);
+    }
+    try {
+      Files.write(Paths.get(fn), out.getBytes());
+      return 0;
+    } catch (NoSuchFileException e) {
+      return -2;  // ENOENT
+    } catch (IOException e) {
+      return -5;  // EIO
+    }
+  }
+
+
+  protected static String path(int pin, String file) {
+    return root + "/gpio" + pin + "/" + file;
+  }
+
+
+  /**
+   *  Returns the open value file of a pin, opening it the first time
+   *
+   *  Opening and closing the file on each read or write is a lot slower
+   *  than the access itself, so the file stays open until releasePin().
+   *  @return null if the pin hasn't been exported (yet)
+   */
+  protected static FileChannel valueFile(int pin) {
+    FileChannel[] files = valueFiles;
+    if (pin < files.length && files[pin] != null) {
+      return files[pin];
+    }
+
+    synchronized (GPIO.class) {
+      if (valueFiles.length <= pin) {
+        valueFiles = Arrays.copyOf(valueFiles, Math.max(pin + 1, valueFiles.length * 2));
+      }
+      if (valueFiles[pin] == null) {
+        try {
+          try {
+            valueFiles[pin] = FileChannel.open(Paths.get(path(pin, "value")),
+                                               StandardOpenOption.READ,
+                                               StandardOpenOption.WRITE);
+          } catch (AccessDeniedException e) {
+            // inputs can be read without being writable
+            valueFiles[pin] = FileChannel.open(Paths.get(path(pin, "value")),
+                                               StandardOpenOption.READ);
+          }
+        } catch (NoSuchFileException e) {
+          return null;
+        } catch (IOException e) {
+          throw new RuntimeException(e.getMessage());
+        }
+      }
+      return valueFiles[pin];
+    }
+  }
+
+
+  protected static void closeValueFile(int pin) {
+    synchronized (GPIO.class) {
+      if (pin < valueFiles.length && valueFiles[pin] != null) {
+        try {
+          valueFiles[pin].close();
+        } catch (IOException e) {
+          // nothing to be done about it
+        }
+        valueFiles[pin] = null;
+      }
+    }
+  }
+
+
   /**
    *  Waits for the value of an input pin to change
    *  @param pin GPIO pin
@@ -496,7 +772,7 @@ public class GPIO {
       return true;
     }
 
-    String fn = String.format("/sys/class/gpio/gpio%d/value", pin);
+    String fn = path(pin, "value");
     int ret = NativeInterface.pollDevice(fn, timeout);
     if (ret < 0) {
       if (ret == -2) {    // ENOENT
@@ -25,8 +25,11 @@ package processing.io;
 import processing.io.NativeInterface;
 
 import java.io.File;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 
 
 /**
@@ -40,6 +43,47 @@ public class I2C {
   protected byte[] out;
   protected boolean transmitting;
 
+  // the most messages the kernel takes in one go
+  static final int MAX_MESSAGES = 42;
+  // false if the native library doesn't have transferI2cBuffers() yet
+  protected static boolean nativeBuffers = true;
+
+  protected Backend backend;
+
+  // messages waiting for transferQueued(), these are reused
+  protected ByteBuffer queue = ByteBuffer.allocateDirect(256);
+  protected int[] slaves = new int[16];
+  protected boolean[] reads = new boolean[16];
+  protected int[] lengths = new int[16];
+  protected Object[] dests = new Object[16];
+  protected int queued;
+  // arrays for transferEach(), by length, since the older native
+  // function takes the length of each message from the arrays
+  protected Map<Integer, byte[][]> scratch = new HashMap<Integer, byte[][]>();
+
+
+  /**
+   *  Does the actual work of transferring data, see I2C(String, Backend)
+   *
+   *  This makes it possible to use the class with something other than
+   *  the kernel's i2c-dev driver, such as a stand-in for a device that
+   *  runs in memory, to test code without any hardware.
+   */
+  public interface Backend {
+    /**
+     *  Runs a number of messages as one combined transaction
+     *
+     *  Message i writes lengths[i] bytes to the device at address
+     *  slaves[i], or reads as many from it if reads[i] is set. Message 0
+     *  starts at position 0 of data, every other message right where the
+     *  one before it ended. Reads go into data as well.
+     */
+    void transfer(int[] slaves, boolean[] reads, int[] lengths, int count,
+                  ByteBuffer data);
+
+    void close();
+  }
+
 
   /**
    *  Opens an I2C interface as master
@@ -62,6 +106,17 @@ public class I2C {
   }
 
 
+  /**
+   *  Opens an I2C interface that uses something other than the kernel driver
+   *  @param dev interface name
+   *  @param backend what does the transfers
+   */
+  public I2C(String dev, Backend backend) {
+    this.dev = dev;
+    this.backend = backend;
+  }
+
+
   /**
    *  Begins a transmission to an attached device
    *  @see write
@@ -70,11 +125,7 @@ public class I2C {
    *  @webref
    */
   public void beginTransmission(int slave) {
-    // addresses 120 (0x78) to 127 are additionally reserved
-    if (0x78 <= slave) {
-      System.err.println("beginTransmission expects a 7 bit address, try shifting one bit to the right");
-      throw new IllegalArgumentException("Illegal address");
-    }
+    checkAddress(slave, "beginTransmission");
     this.slave = slave;
     transmitting = true;
     out = null;
@@ -86,6 +137,11 @@ public class I2C {
    *  @webref
    */
   public void close() {
+    if (backend != null) {
+      backend.close();
+      return;
+    }
+
     if (NativeInterface.isSimulated()) {
       return;
     }
@@ -116,20 +172,12 @@ public class I2C {
       return;
     }
 
-    if (NativeInterface.isSimulated()) {
-      return;
-    }
-
     // implement these flags if needed: https://github.com/raspberrypi/linux/blob/rpi-patches/Documentation/i2c/i2c-protocol
-    int ret = NativeInterface.transferI2c(handle, slave, out, null);
+    byte[] tmp = out;
     transmitting = false;
     out = null;
-    if (ret < 0) {
-      if (ret == -5) {    // EIO
-        System.err.println("The device did not respond. Check the cabling and whether you are using the correct address.");
-      }
-      throw new RuntimeException(NativeInterface.getError(ret));
-    }
+    queueWrite(slave, (tmp != null) ? tmp : new byte[0]);
+    transferQueued();
   }
 
 
@@ -171,27 +219,243 @@ public class I2C {
    *  @webref
    */
   public byte[] read(int len) {
+    return read(new byte[len]);
+  }
+
+
+  /**
+   *  Reads bytes from the attached device, without allocating anything
+   *  @param in array to read into, its length is the number of bytes read
+   *  @return in
+   *  @see beginTransmission
+   *  @see write
+   */
+  public byte[] read(byte[] in) {
     if (!transmitting) {
       throw new RuntimeException("beginTransmisson has not been called");
     }
 
-    byte[] in = new byte[len];
+    byte[] tmp = out;
+    transmitting = false;
+    out = null;
+    if (tmp != null) {
+      queueWrite(slave, tmp);
+    }
+    queueRead(slave, in);
+    transferQueued();
+    return in;
+  }
 
-    if (NativeInterface.isSimulated()) {
-      return in;
+
+  /**
+   *  Adds writing to a device to the next call to transferQueued()
+   *
+   *  Queued messages are sent as a single transaction, without the bus
+   *  being released in between, and with a single call to the kernel.
+   *  @param slave 7 bit address of the device
+   *  @param out bytes to write
+   *  @see transferQueued
+   */
+  public void queueWrite(int slave, byte[] out) {
+    addQueued(slave, false, out.length, null);
+    queue.put(out);
+  }
+
+
+  /**
+   *  Adds writing to a device to the next call to transferQueued()
+   *  @param slave 7 bit address of the device
+   *  @param out the bytes remaining in it are written, its position is moved ahead
+   */
+  public void queueWrite(int slave, ByteBuffer out) {
+    addQueued(slave, false, out.remaining(), null);
+    queue.put(out);
+  }
+
+
+  /**
+   *  Adds reading from a device to the next call to transferQueued()
+   *  @param slave 7 bit address of the device
+   *  @param in array to read into, its length is the number of bytes read
+   *  @see transferQueued
+   */
+  public void queueRead(int slave, byte[] in) {
+    addQueued(slave, true, in.length, in);
+    queue.position(queue.position() + in.length);
+  }
+
+
+  /**
+   *  Adds reading from a device to the next call to transferQueued()
+   *  @param slave 7 bit address of the device
+   *  @param in buffer to read into, it's filled up to its limit
+   */
+  public void queueRead(int slave, ByteBuffer in) {
+    addQueued(slave, true, in.remaining(), in);
+    queue.position(queue.position() + in.remaining());
+  }
+
+
+  protected void addQueued(int slave, boolean read, int length, Object dest) {
+    checkAddress(slave, "queueRead and queueWrite");
+    if (queued == lengths.length) {
+      slaves = Arrays.copyOf(slaves, queued * 2);
+      reads = Arrays.copyOf(reads, queued * 2);
+      lengths = Arrays.copyOf(lengths, queued * 2);
+      dests = Arrays.copyOf(dests, queued * 2);
     }
+    if (queue.remaining() < length) {
+      int size = queue.capacity();
+      while (size - queue.position() < length) {
+        size *= 2;
+      }
+      ByteBuffer temp = ByteBuffer.allocateDirect(size);
+      queue.flip();
+      temp.put(queue);
+      queue = temp;
+    }
+    slaves[queued] = slave;
+    reads[queued] = read;
+    lengths[queued] = length;
+    dests[queued] = dest;
+    queued++;
+  }
 
-    int ret = NativeInterface.transferI2c(handle, slave, out, in);
-    transmitting = false;
-    out = null;
-    if (ret < 0) {
-      if (ret == -5) {    // EIO
-        System.err.println("The device did not respond. Check the cabling and whether you are using the correct address.");
+
+  /**
+   *  Sends all messages added with queueRead() and queueWrite(), and copies
+   *  what was read to where it was asked for
+   *  @see queueRead
+   *  @see queueWrite
+   */
+  public void transferQueued() {
+    if (queued == 0) {
+      return;
+    }
+    int count = queued;
+    queued = 0;
+    int total = queue.position();
+    queue.clear();
+
+    try {
+      if (backend != null) {
+        backend.transfer(slaves, reads, lengths, count, queue);
+      } else if (NativeInterface.isSimulated()) {
+        for (int i = 0; i < total; i++) {
+          queue.put(i, (byte)0);
+        }
+      } else {
+        transferNative(count);
+      }
+
+      // hand out what was read
+      int offset = 0;
+      for (int i = 0; i < count; i++) {
+        Object dest = dests[i];
+        if (dest instanceof byte[]) {
+          queue.position(offset);
+          queue.get((byte[])dest, 0, lengths[i]);
+        } else if (dest instanceof ByteBuffer) {
+          queue.limit(offset + lengths[i]).position(offset);
+          ((ByteBuffer)dest).put(queue);
+        }
+        queue.clear();
+        offset += lengths[i];
       }
-      throw new RuntimeException(NativeInterface.getError(ret));
+    } finally {
+      queue.clear();
+      Arrays.fill(dests, 0, count, null);
     }
+  }
 
-    return in;
+
+  protected void transferNative(int count) {
+    int first = 0;
+    int offset = 0;
+    while (first < count) {
+      int num = Math.min(count - first, MAX_MESSAGES);
+      int ret = -1;
+      if (nativeBuffers) {
+        try {
+          ret = NativeInterface.transferI2cBuffers(handle, slaves, reads, lengths, first, num, queue, offset);
+        } catch (UnsatisfiedLinkError e) {
+          // library built before this was added, send one at a time instead
+          nativeBuffers = false;
+        }
+      }
+      if (!nativeBuffers) {
+        ret = transferEach(first, num, offset);
+      }
+      if (ret < 0) {
+        if (ret == -5) {    // EIO
+          System.err.println("The device did not respond. Check the cabling and whether you are using the correct address.");
+        }
+        throw new RuntimeException(NativeInterface.getError(ret));
+      }
+      for (int i = first; i < first + num; i++) {
+        offset += lengths[i];
+      }
+      first += num;
+    }
+  }
+
+
+  /**
+   *  Transfers queued messages with the older native function, which does
+   *  a write, optionally followed by a read from the same device
+   *  @return a negative error code, or zero or more on success
+   */
+  protected int transferEach(int first, int num, int offset) {
+    int ret = 0;
+    int i = first;
+    while (i < first + num) {
+      byte[] out = scratch(0)[0];
+      byte[] in = null;
+      int slave = slaves[i];
+      if (!reads[i]) {
+        out = scratch(lengths[i])[0];
+        queue.position(offset);
+        queue.get(out);
+        offset += lengths[i];
+        i++;
+      }
+      if (i < first + num && reads[i] && slaves[i] == slave) {
+        in = scratch(lengths[i])[1];
+        ret = NativeInterface.transferI2c(handle, slave, out, in);
+        if (ret >= 0) {
+          queue.position(offset);
+          queue.put(in);
+        }
+        offset += lengths[i];
+        i++;
+      } else {
+        ret = NativeInterface.transferI2c(handle, slave, out, null);
+      }
+      queue.clear();
+      if (ret < 0) {
+        return ret;
+      }
+    }
+    return ret;
+  }
+
+
+  protected byte[][] scratch(int length) {
+    byte[][] arrays = scratch.get(length);
+    if (arrays == null) {
+      arrays = new byte[][] { new byte[length], new byte[length] };
+      scratch.put(length, arrays);
+    }
+    return arrays;
+  }
+
+
+  protected static void checkAddress(int slave, String function) {
+    // addresses 120 (0x78) to 127 are additionally reserved
+    if (0x78 <= slave) {
+      System.err.println(function + " expects a 7 bit address, try shifting one bit to the right");
+      throw new IllegalArgumentException("Illegal address");
+    }
   }
 
 
@@ -0,0 +1,441 @@
+/* -*- mode: java; c-basic-offset: 2; indent-tabs-mode: nil -*- */
+
+/*
+  Copyright (c) The Processing Foundation 2017
+  Hardware I/O library developed by Gottfried Haider as part of GSoC 2015
+
+  This library is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General
+  Public License along with this library; if not, write to the
+  Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+  Boston, MA  02111-1307  USA
+*/
+
+package processing.io;
+
+import java.util.Arrays;
+
+
+/**
+ *  Delivers the interrupts of all pins set up with GPIO.attachInterrupt()
+ *
+ *  A single thread waits on the value files of every watched pin with one
+ *  native poll(), and notes the time of each edge. A second thread calls
+ *  the handlers, so that a slow handler doesn't keep edges on other pins
+ *  from being seen. Each pin keeps the times of up to queueSize edges that
+ *  haven't been handled yet; past that, the oldest are dropped. With the
+ *  default size of 1, edges that come in quicker than they can be handled
+ *  are merged into one, as they always have been.
+ *
+ *  If the native library is too old to have pollDevices(), or when running
+ *  simulated, there's instead a thread per pin, each waiting the old way.
+ */
+class InterruptDispatcher {
+  static final int POLL_TIMEOUT = 100;
+  /** Latency buckets, bucket n counts handlers called after 2^n to 2^(n+1) us */
+  static final int LATENCY_BUCKETS = 24;
+
+  static class Watch {
+    final int pin;
+    final GPIO.InterruptHandler handler;
+    int handle = -1;
+    Thread waiter;
+    volatile boolean released;
+
+    // edges not yet handled, oldest first, guarded by the dispatcher
+    long[] times;
+    int head, count;
+
+    Watch(int pin, GPIO.InterruptHandler handler, int queueSize) {
+      this.pin = pin;
+      this.handler = handler;
+      times = new long[Math.max(1, queueSize)];
+    }
+  }
+
+  /** Pins being watched, replaced rather than changed */
+  volatile Watch[] watches = new Watch[0];
+  /** Released pins whose value files still need to be closed */
+  Watch[] retired = new Watch[0];
+
+  Thread pollThread;
+  Thread dispatchThread;
+  /** Pin whose handler is being called right now, guarded by the dispatcher */
+  Watch dispatching;
+  boolean nativePoll = true;
+  /** Once interrupts are simulated by hand, the stand-ins every 200 ms stop */
+  volatile boolean simulatedByHand;
+
+  long[] latency = new long[LATENCY_BUCKETS];
+  long dropped;
+
+
+  synchronized void add(int pin, GPIO.InterruptHandler handler, int queueSize) {
+    Watch watch = new Watch(pin, handler, queueSize);
+    if (!NativeInterface.isSimulated() && nativePoll) {
+      watch.handle = open(pin);
+    }
+
+    Watch[] temp = Arrays.copyOf(watches, watches.length + 1);
+    temp[watches.length] = watch;
+    watches = temp;
+
+    if (watch.handle < 0) {
+      startWaiter(watch);
+    } else if (pollThread == null) {
+      pollThread = new Thread(new Runnable() {
+        public void run() {
+          poll();
+        }
+      }, "GPIO IRQ");
+      pollThread.setPriority(Thread.MAX_PRIORITY);
+      pollThread.setDaemon(true);
+      pollThread.start();
+    }
+
+    if (dispatchThread == null) {
+      dispatchThread = new Thread(new Runnable() {
+        public void run() {
+          dispatch();
+        }
+      }, "GPIO IRQ Dispatch");
+      dispatchThread.setPriority(Thread.MAX_PRIORITY);
+      dispatchThread.setDaemon(true);
+      dispatchThread.start();
+    }
+  }
+
+
+  boolean contains(int pin) {
+    return find(pin) != null;
+  }
+
+
+  private Watch find(int pin) {
+    for (Watch watch : watches) {
+      if (watch.pin == pin) {
+        return watch;
+      }
+    }
+    return null;
+  }
+
+
+  /**
+   * Stop watching a pin, once this returns its handler won't be called again.
+   * If the handler is being called right now, this waits for it to return,
+   * unless it's the handler itself that's stopping.
+   */
+  void remove(int pin) {
+    Thread waiter = null;
+    synchronized (this) {
+      Watch watch = find(pin);
+      if (watch == null) {
+        return;
+      }
+      watch.released = true;
+      watch.count = 0;
+
+      Watch[] temp = new Watch[watches.length - 1];
+      int i = 0;
+      for (Watch w : watches) {
+        if (w != watch) {
+          temp[i++] = w;
+        }
+      }
+      watches = temp;
+
+      if (watch.handle >= 0) {
+        // the poll thread might be waiting on it, so it closes it
+        retired = Arrays.copyOf(retired, retired.length + 1);
+        retired[retired.length - 1] = watch;
+      }
+      waiter = watch.waiter;
+      notifyAll();
+
+      while (dispatching == watch && Thread.currentThread() != dispatchThread) {
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          break;
+        }
+      }
+    }
+
+    if (waiter != null) {
+      waiter.interrupt();
+      try {
+        waiter.join();
+      } catch (InterruptedException e) {
+        System.err.println("Error joining thread in releaseInterrupt: " + e.getMessage());
+      }
+    }
+  }
+
+
+  /** Wake up the dispatch thread, after interrupts have been turned back on. */
+  synchronized void resume() {
+    notifyAll();
+  }
+
+
+  /** Add an edge to a pin's queue, as if it came from the hardware. */
+  void simulate(int pin, long time) {
+    simulatedByHand = true;
+    Watch watch = find(pin);
+    if (watch != null) {
+      queue(watch, time);
+    }
+  }
+
+
+  private synchronized void queue(Watch watch, long time) {
+    if (watch.released) {
+      return;
+    }
+    if (watch.count == watch.times.length) {
+      if (watch.times.length == 1) {
+        // not queuing: handle it once, but as late as possible
+        watch.times[watch.head] = time;
+        return;
+      }
+      watch.head = (watch.head + 1) % watch.times.length;
+      watch.count--;
+      dropped++;
+    }
+    watch.times[(watch.head + watch.count) % watch.times.length] = time;
+    watch.count++;
+    notifyAll();
+  }
+
+
+  // . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . .
+
+
+  private int open(int pin) {
+    int handle = NativeInterface.openDevice(GPIO.path(pin, "value"));
+    if (handle < 0) {
+      if (handle == -2) {    // ENOENT
+        System.err.println("Make sure your called pinMode on the input pin");
+      }
+      throw new RuntimeException(NativeInterface.getError(handle));
+    }
+    // dummy read, so that poll() only returns for edges from now on
+    try {
+      NativeInterface.readDevice(handle, new byte[2]);
+    } catch (UnsatisfiedLinkError e) {
+      // built before this was added, use a thread for every pin instead
+      NativeInterface.closeDevice(handle);
+      nativePoll = false;
+      return -1;
+    }
+    return handle;
+  }
+
+
+  private void poll() {
+    int[] handles = new int[0];
+    long[] times = new long[0];
+    byte[] values = new byte[0];
+    Watch[] polled = new Watch[0];
+
+    while (true) {
+      synchronized (this) {
+        for (Watch watch : retired) {
+          NativeInterface.closeDevice(watch.handle);
+        }
+        retired = new Watch[0];
+
+        if (polled != watches) {
+          polled = watches;
+          int count = 0;
+          for (Watch watch : polled) {
+            if (watch.handle >= 0) {
+              count++;
+            }
+          }
+          if (count == 0) {
+            pollThread = null;
+            return;
+          }
+          handles = new int[count];
+          times = new long[count];
+          values = new byte[count];
+          count = 0;
+          for (Watch watch : polled) {
+            if (watch.handle >= 0) {
+              handles[count++] = watch.handle;
+            }
+          }
+        }
+      }
+
+      int ret;
+      try {
+        ret = NativeInterface.pollDevices(handles, times, values, POLL_TIMEOUT);
+      } catch (UnsatisfiedLinkError e) {
+        fallBack();
+        return;
+      }
+      if (ret < 0) {
+        System.err.println("Error waiting for interrupts: " + NativeInterface.getError(ret));
+        // make sure we're not busy spinning on error
+        try {
+          Thread.sleep(POLL_TIMEOUT);
+        } catch (InterruptedException e) { }
+      } else if (ret > 0) {
+        int i = 0;
+        for (Watch watch : polled) {
+          if (watch.handle >= 0) {
+            if (times[i] != 0) {
+              queue(watch, times[i]);
+            }
+            i++;
+          }
+        }
+      }
+    }
+  }
+
+
+  /** Wait on every pin with a thread of its own. */
+  private synchronized void fallBack() {
+    nativePoll = false;
+    pollThread = null;
+    for (Watch watch : retired) {
+      NativeInterface.closeDevice(watch.handle);
+    }
+    retired = new Watch[0];
+    for (Watch watch : watches) {
+      if (watch.handle >= 0) {
+        NativeInterface.closeDevice(watch.handle);
+        watch.handle = -1;
+        startWaiter(watch);
+      }
+    }
+  }
+
+
+  private void startWaiter(final Watch watch) {
+    watch.waiter = new Thread(new Runnable() {
+      public void run() {
+        try {
+          do {
+            try {
+              if (GPIO.waitForInterrupt(watch.pin, POLL_TIMEOUT) &&
+                  !(NativeInterface.isSimulated() && simulatedByHand)) {
+                queue(watch, System.nanoTime());
+              }
+            } catch (RuntimeException e) {
+              // make sure we're not busy spinning on error
+              Thread.sleep(POLL_TIMEOUT);
+            }
+          } while (!Thread.currentThread().isInterrupted() && !watch.released);
+        } catch (InterruptedException e) {
+          // released
+        }
+      }
+    }, "GPIO" + watch.pin + " IRQ");
+    watch.waiter.setPriority(Thread.MAX_PRIORITY);
+    watch.waiter.setDaemon(true);
+    watch.waiter.start();
+  }
+
+
+  // . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . .
+
+
+  private void dispatch() {
+    int next = 0;
+    while (true) {
+      Watch watch = null;
+      long time = 0;
+      synchronized (this) {
+        while (watch == null) {
+          Watch[] current = watches;
+          if (current.length == 0) {
+            dispatchThread = null;
+            return;
+          }
+          if (GPIO.serveInterrupts) {
+            // take turns, so that one busy pin can't starve the others
+            for (int i = 0; i < current.length; i++) {
+              Watch w = current[(next + i) % current.length];
+              if (w.count > 0) {
+                watch = w;
+                next = (next + i + 1) % current.length;
+                break;
+              }
+            }
+          }
+          if (watch == null) {
+            // if we receive interrupts while they are disabled
+            // we still deliver them the next time they get enabled
+            try {
+              wait();
+            } catch (InterruptedException e) {
+              dispatchThread = null;
+              return;
+            }
+          }
+        }
+        time = watch.times[watch.head];
+        watch.head = (watch.head + 1) % watch.times.length;
+        watch.count--;
+        dispatching = watch;
+      }
+
+      long elapsed = (System.nanoTime() - time) / 1000;
+      int bucket = Math.min(LATENCY_BUCKETS - 1,
+                            63 - Long.numberOfLeadingZeros(Math.max(1, elapsed)));
+      synchronized (latency) {
+        latency[bucket]++;
+      }
+
+      try {
+        watch.handler.interrupt(watch.pin, time);
+      } catch (Throwable e) {
+        // stop calling this handler, like the thread per pin used to
+        System.err.println("Terminating interrupt handling for pin " + watch.pin + " after catching: " + e.getMessage());
+        synchronized (this) {
+          watch.released = true;
+          watch.count = 0;
+        }
+      }
+
+      synchronized (this) {
+        dispatching = null;
+        notifyAll();
+      }
+    }
+  }
+
+
+  synchronized long dropped() {
+    return dropped;
+  }
+
+
+  long[] latency() {
+    synchronized (latency) {
+      return latency.clone();
+    }
+  }
+
+
+  void clearLatency() {
+    synchronized (latency) {
+      Arrays.fill(latency, 0);
+    }
+  }
+}
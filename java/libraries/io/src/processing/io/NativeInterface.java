@@ -22,6 +22,8 @@
 
 package processing.io;
 
+import java.nio.ByteBuffer;
+
 
 public class NativeInterface {
 
@@ -52,6 +54,7 @@ public class NativeInterface {
   public static native int openDevice(String fn);
   public static native String getError(int errno);
   public static native int closeDevice(int handle);
+  public static native int readDevice(int handle, byte[] in);
 
   // the following two functions were done in native code to get access to the
   // specifc error number (errno) that might occur
@@ -63,8 +66,10 @@ public class NativeInterface {
 
   /* GPIO */
   public static native int pollDevice(String fn, int timeout);
+  public static native int pollDevices(int[] handles, long[] times, byte[] values, int timeout);
   /* I2C */
   public static native int transferI2c(int handle, int slave, byte[] out, byte[] in);
+  public static native int transferI2cBuffers(int handle, int[] slaves, boolean[] reads, int[] lengths, int first, int count, ByteBuffer data, int offset);
   /* SoftwareServo */
   public static native long servoStartThread(int gpio, int pulse, int period);
   public static native int servoUpdateThread(long handle, int pulse, int period);
@@ -72,4 +77,5 @@ public class NativeInterface {
   /* SPI */
   public static native int setSpiSettings(int handle, int maxSpeed, int dataOrder, int mode);
   public static native int transferSpi(int handle, byte[] out, byte[] in);
+  public static native int transferSpiBuffers(int handle, ByteBuffer out, ByteBuffer in, int[] lengths, int first, int count, int offset);
 }
@@ -25,6 +25,7 @@ package processing.io;
 import processing.io.NativeInterface;
 
 import java.io.File;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -66,7 +67,48 @@ public class SPI {
   protected int handle;
   protected int maxSpeed = 500000;
   protected int mode = 0;
+  protected String curSettings = maxSpeed + "-" + dataOrder + "-" + mode;
   protected static Map<String, String> settings = new HashMap<String, String>();
+  // false if the native library doesn't have transferSpiBuffers() yet
+  protected static boolean nativeBuffers = true;
+
+  // the most the kernel does in one go, see spidev's bufsiz parameter
+  static final int MAX_TRANSFERS = 256;
+  static final int MAX_BYTES = 4096;
+
+  protected Backend backend;
+
+  // transfers waiting for transferQueued(), these are reused
+  protected ByteBuffer outQueue = ByteBuffer.allocateDirect(256);
+  protected ByteBuffer inQueue = ByteBuffer.allocateDirect(256);
+  protected int[] lengths = new int[16];
+  protected Object[] dests = new Object[16];
+  protected int queued;
+  // arrays for transferEach(), by length, since the older native
+  // function takes the length of the transfer from the arrays
+  protected Map<Integer, byte[][]> scratch = new HashMap<Integer, byte[][]>();
+
+
+  /**
+   *  Does the actual work of transferring data, see SPI(String, Backend)
+   *
+   *  This makes it possible to use the class with something other than
+   *  the kernel's spidev driver, such as a stand-in for a device that
+   *  runs in memory, to test code without any hardware.
+   */
+  public interface Backend {
+    /**
+     *  Runs a number of transfers, one after the other
+     *
+     *  Transfer i sends lengths[i] bytes from out, and receives as many
+     *  into in. Transfer 0 starts at position 0 of both buffers, and every
+     *  other transfer right where the one before it ended.
+     */
+    void transfer(ByteBuffer out, ByteBuffer in, int[] lengths, int count,
+                  int maxSpeed, int dataOrder, int mode);
+
+    void close();
+  }
 
 
   /**
@@ -90,11 +132,27 @@ public class SPI {
   }
 
 
+  /**
+   *  Opens an SPI interface that uses something other than the kernel driver
+   *  @param dev device name
+   *  @param backend what does the transfers
+   */
+  public SPI(String dev, Backend backend) {
+    this.dev = dev;
+    this.backend = backend;
+  }
+
+
   /**
    *  Closes the SPI interface
    *  @webref
    */
   public void close() {
+    if (backend != null) {
+      backend.close();
+      return;
+    }
+
     if (NativeInterface.isSimulated()) {
       return;
     }
@@ -152,6 +210,7 @@ public class SPI {
     this.maxSpeed = maxSpeed;
     this.dataOrder = dataOrder;
     this.mode = mode;
+    curSettings = maxSpeed + "-" + dataOrder + "-" + mode;
   }
 
 
@@ -162,12 +221,151 @@ public class SPI {
    *  @webref
    */
   public byte[] transfer(byte[] out) {
-    if (NativeInterface.isSimulated()) {
-      return new byte[out.length];
+    byte[] in = new byte[out.length];
+    transfer(out, in);
+    return in;
+  }
+
+
+  /**
+   *  Transfers data over the SPI bus, without allocating anything
+   *
+   *  Anything waiting from queue() is transferred first.
+   *  @param out bytes to send
+   *  @param in array to receive into, at least as long as out
+   *  @return number of bytes transferred
+   */
+  public int transfer(byte[] out, byte[] in) {
+    queue(out, in);
+    transferQueued();
+    return out.length;
+  }
+
+
+  /**
+   *  Transfers data over the SPI bus, without allocating anything
+   *
+   *  Sends the bytes remaining in out, and receives as many into in.
+   *  The position of both buffers is moved ahead. Anything waiting from
+   *  queue() is transferred first.
+   *  @param out bytes to send
+   *  @param in buffer to receive into (or null)
+   */
+  public void transfer(ByteBuffer out, ByteBuffer in) {
+    queue(out, in);
+    transferQueued();
+  }
+
+
+  /**
+   *  Adds a transfer to be done by the next call to transferQueued()
+   *
+   *  Queuing transfers and then doing them all together takes just one
+   *  call to the kernel, instead of one for each transfer. The device is
+   *  deselected in between, the same as if they had been done one by one.
+   *  @param out bytes to send
+   *  @param in array to receive into (or null), at least as long as out
+   *  @see transferQueued
+   */
+  public void queue(byte[] out, byte[] in) {
+    if (in != null && in.length < out.length) {
+      throw new IllegalArgumentException("The array to receive into is shorter than what's sent");
+    }
+    addQueued(out.length, in);
+    outQueue.put(out);
+  }
+
+
+  /**
+   *  Adds a transfer to be done by the next call to transferQueued()
+   *
+   *  Sends the bytes remaining in out, and receives as many into in,
+   *  once transferQueued() is called. The position of out is moved ahead
+   *  right away, that of in after the transfer.
+   *  @param out bytes to send
+   *  @param in buffer to receive into (or null)
+   *  @see transferQueued
+   */
+  public void queue(ByteBuffer out, ByteBuffer in) {
+    if (in != null && in.remaining() < out.remaining()) {
+      throw new IllegalArgumentException("The buffer to receive into has less room than what's sent");
+    }
+    addQueued(out.remaining(), in);
+    outQueue.put(out);
+  }
+
+
+  protected void addQueued(int length, Object dest) {
+    if (queued == lengths.length) {
+      lengths = Arrays.copyOf(lengths, queued * 2);
+      dests = Arrays.copyOf(dests, queued * 2);
+    }
+    if (outQueue.remaining() < length) {
+      int size = outQueue.capacity();
+      while (size - outQueue.position() < length) {
+        size *= 2;
+      }
+      ByteBuffer temp = ByteBuffer.allocateDirect(size);
+      outQueue.flip();
+      temp.put(outQueue);
+      outQueue = temp;
+      inQueue = ByteBuffer.allocateDirect(size);
+    }
+    lengths[queued] = length;
+    dests[queued] = dest;
+    queued++;
+  }
+
+
+  /**
+   *  Does all transfers added with queue(), in as few calls to the kernel
+   *  as possible, and copies what was received to where it was asked for
+   *  @see queue
+   */
+  public void transferQueued() {
+    if (queued == 0) {
+      return;
+    }
+    int count = queued;
+    queued = 0;
+    int total = outQueue.position();
+    outQueue.clear();
+
+    try {
+      if (backend != null) {
+        backend.transfer(outQueue, inQueue, lengths, count, maxSpeed, dataOrder, mode);
+      } else if (NativeInterface.isSimulated()) {
+        for (int i = 0; i < total; i++) {
+          inQueue.put(i, (byte)0);
+        }
+      } else {
+        transferNative(count);
+      }
+
+      // hand out what was received
+      int offset = 0;
+      for (int i = 0; i < count; i++) {
+        Object dest = dests[i];
+        if (dest instanceof byte[]) {
+          inQueue.position(offset);
+          inQueue.get((byte[])dest, 0, lengths[i]);
+        } else if (dest instanceof ByteBuffer) {
+          inQueue.limit(offset + lengths[i]).position(offset);
+          ((ByteBuffer)dest).put(inQueue);
+        }
+        inQueue.clear();
+        offset += lengths[i];
+      }
+    } finally {
+      outQueue.clear();
+      inQueue.clear();
+      Arrays.fill(dests, 0, count, null);
     }
+  }
 
+
+  protected void transferNative(int count) {
     // track the current setting per device across multiple instances
-    String curSettings = maxSpeed + "-" + dataOrder + "-" + mode;
     if (!curSettings.equals(settings.get(dev))) {
       int ret = NativeInterface.setSpiSettings(handle, maxSpeed, dataOrder, mode);
       if (ret < 0) {
@@ -177,14 +375,76 @@ public class SPI {
       settings.put(dev, curSettings);
     }
 
-    byte[] in = new byte[out.length];
-    int transferred = NativeInterface.transferSpi(handle, out, in);
-    if (transferred < 0) {
-      throw new RuntimeException(NativeInterface.getError(transferred));
-    } else if (transferred < out.length) {
-      throw new RuntimeException("Fewer bytes transferred than requested: " + transferred);
+    // split into as few messages as the driver allows
+    int first = 0;
+    int offset = 0;
+    while (first < count) {
+      int num = 0;
+      int bytes = 0;
+      do {
+        bytes += lengths[first + num];
+        num++;
+      } while (first + num < count && num < MAX_TRANSFERS &&
+               bytes + lengths[first + num] <= MAX_BYTES);
+
+      int transferred = -1;
+      if (nativeBuffers) {
+        try {
+          transferred = NativeInterface.transferSpiBuffers(handle, outQueue, inQueue, lengths, first, num, offset);
+        } catch (UnsatisfiedLinkError e) {
+          // library built before this was added, send one at a time instead
+          nativeBuffers = false;
+        }
+      }
+      if (!nativeBuffers) {
+        transferred = transferEach(first, num, offset);
+      }
+      if (transferred < 0) {
+        throw new RuntimeException(NativeInterface.getError(transferred));
+      } else if (transferred < bytes) {
+        throw new RuntimeException("Fewer bytes transferred than requested: " + transferred);
+      }
+      first += num;
+      offset += bytes;
     }
-    return in;
+  }
+
+
+  /**
+   *  Transfers queued messages one by one, with the older native function
+   *  @return bytes transferred, or a negative error code
+   */
+  protected int transferEach(int first, int num, int offset) {
+    int total = 0;
+    for (int i = first; i < first + num; i++) {
+      byte[][] arrays = scratch(lengths[i]);
+      byte[] out = arrays[0];
+      byte[] in = arrays[1];
+      outQueue.position(offset);
+      outQueue.get(out);
+      int ret = NativeInterface.transferSpi(handle, out, in);
+      if (ret < 0) {
+        outQueue.clear();
+        return ret;
+      }
+      inQueue.position(offset);
+      inQueue.put(in);
+      offset += lengths[i];
+      total += ret;
+    }
+    outQueue.clear();
+    inQueue.clear();
+    return total;
+  }
+
+
+  protected byte[][] scratch(int length) {
+    byte[][] arrays = scratch.get(length);
+    if (arrays == null) {
+      arrays = new byte[][] { new byte[length], new byte[length] };
+      scratch.put(length, arrays);
+    }
+    return arrays;
   }
 
 
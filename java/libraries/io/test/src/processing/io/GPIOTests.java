@@ -0,0 +1,111 @@
+package processing.io;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Runs GPIO against a stand-in for /sys/class/gpio, made of regular files
+ * in a temporary folder (see GPIO.sysfsRoot()).
+ */
+public class GPIOTests {
+  static final int PIN = 17;
+
+  Path root;
+
+  @BeforeClass
+  public static void init() {
+    // regular files don't need the native library
+    NativeInterface.loaded = true;
+  }
+
+  @Before
+  public void setUp() throws IOException {
+    Assume.assumeTrue(!NativeInterface.isSimulated());
+    root = Files.createTempDirectory("gpio");
+    Files.createFile(root.resolve("export"));
+    Files.createFile(root.resolve("unexport"));
+    Path pin = Files.createDirectory(root.resolve("gpio" + PIN));
+    Files.createFile(pin.resolve("direction"));
+    Files.createFile(pin.resolve("value"));
+    GPIO.sysfsRoot(root.toString());
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    if (root == null) {
+      return;
+    }
+    GPIO.sysfsRoot(GPIO.SYSFS_ROOT);
+    for (File dir : Arrays.asList(root.resolve("gpio" + PIN).toFile(), root.toFile())) {
+      for (File f : dir.listFiles()) {
+        f.delete();
+      }
+      dir.delete();
+    }
+  }
+
+  String read(String fn) throws IOException {
+    return new String(Files.readAllBytes(root.resolve(fn)));
+  }
+
+  @Test
+  public void exportDirectionAndValue() throws IOException {
+    GPIO.digitalWrite(PIN, GPIO.HIGH);
+    GPIO.pinMode(PIN, GPIO.OUTPUT);
+    assertEquals("17", read("export"));
+    assertEquals("high", read("gpio17/direction"));
+
+    GPIO.digitalWrite(PIN, GPIO.LOW);
+    assertEquals("0", read("gpio17/value"));
+    GPIO.digitalWrite(PIN, GPIO.HIGH);
+    assertEquals("1", read("gpio17/value"));
+    assertEquals(GPIO.HIGH, GPIO.digitalRead(PIN));
+
+    GPIO.releasePin(PIN);
+    assertEquals("17", read("unexport"));
+    assertNull(GPIO.valueFiles[PIN]);
+  }
+
+  @Test
+  public void writeAfterReadOnlyOpen() throws IOException {
+    // what valueFile() keeps when the pin was an input that couldn't
+    // be written to (running as root, permissions can't do this here)
+    GPIO.valueFile(PIN);
+    GPIO.closeValueFile(PIN);
+    GPIO.valueFiles[PIN] =
+      FileChannel.open(root.resolve("gpio17/value"), StandardOpenOption.READ);
+
+    GPIO.pinMode(PIN, GPIO.OUTPUT);
+    assertNull(GPIO.valueFiles[PIN]);
+    GPIO.digitalWrite(PIN, GPIO.HIGH);
+    assertEquals("1", read("gpio17/value"));
+  }
+
+  @Test
+  public void writeReopensReadOnlyFile() throws IOException {
+    GPIO.valueFile(PIN);
+    GPIO.closeValueFile(PIN);
+    GPIO.valueFiles[PIN] =
+      FileChannel.open(root.resolve("gpio17/value"), StandardOpenOption.READ);
+
+    // no pinMode() in between, the file is opened again for writing
+    GPIO.digitalWrite(PIN, GPIO.HIGH);
+    assertEquals("1", read("gpio17/value"));
+    assertTrue(GPIO.valueFiles[PIN] != null);
+  }
+}
@@ -0,0 +1,153 @@
+package processing.io;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Interrupts made with GPIO.simulateInterrupt(), going through the same
+ * queue and dispatch thread as the ones from the hardware.
+ */
+public class InterruptTests {
+  static final int PIN = 4;
+
+  /** Remembers the time of each call, and lets the test wait for them. */
+  static class Recorder implements GPIO.InterruptHandler {
+    final List<Long> times = new ArrayList<Long>();
+
+    public synchronized void interrupt(int pin, long time) {
+      times.add(time);
+      notifyAll();
+    }
+
+    synchronized long[] await(int count) throws InterruptedException {
+      long deadline = System.currentTimeMillis() + 2000;
+      while (times.size() < count && System.currentTimeMillis() < deadline) {
+        wait(100);
+      }
+      long[] outgoing = new long[times.size()];
+      for (int i = 0; i < outgoing.length; i++) {
+        outgoing[i] = times.get(i);
+      }
+      return outgoing;
+    }
+  }
+
+  @Before
+  public void setUp() {
+    NativeInterface.alwaysSimulate = true;
+    GPIO.interrupts = new InterruptDispatcher();
+    // no stand-in interrupts every 200 ms, only the ones made here
+    GPIO.interrupts.simulatedByHand = true;
+  }
+
+  @After
+  public void tearDown() {
+    GPIO.releaseInterrupt(PIN);
+    GPIO.interrupts();
+    GPIO.queueInterrupts(1);
+    NativeInterface.alwaysSimulate = false;
+  }
+
+  @Test
+  public void queuedInOrder() throws InterruptedException {
+    GPIO.queueInterrupts(3);
+    Recorder recorder = new Recorder();
+    GPIO.attachInterrupt(PIN, GPIO.CHANGE, recorder);
+
+    GPIO.noInterrupts();
+    for (long time = 1; time <= 5; time++) {
+      GPIO.interrupts.simulate(PIN, time);
+    }
+    GPIO.interrupts();
+
+    // the oldest two didn't fit
+    assertArrayEquals(new long[] { 3, 4, 5 }, recorder.await(3));
+    assertEquals(2, GPIO.droppedInterrupts());
+  }
+
+  @Test
+  public void mergedWithoutQueue() throws InterruptedException {
+    Recorder recorder = new Recorder();
+    GPIO.attachInterrupt(PIN, GPIO.CHANGE, recorder);
+
+    GPIO.noInterrupts();
+    for (long time = 1; time <= 5; time++) {
+      GPIO.interrupts.simulate(PIN, time);
+    }
+    GPIO.interrupts();
+
+    // one call, with the time of the latest change
+    assertArrayEquals(new long[] { 5 }, recorder.await(1));
+    Thread.sleep(100);
+    assertEquals(1, recorder.await(1).length);
+    assertEquals(0, GPIO.droppedInterrupts());
+  }
+
+  @Test
+  public void simulateInterrupt() throws InterruptedException {
+    Recorder recorder = new Recorder();
+    GPIO.attachInterrupt(PIN, GPIO.CHANGE, recorder);
+    long before = System.nanoTime();
+    GPIO.simulateInterrupt(PIN);
+    long[] times = recorder.await(1);
+    assertEquals(1, times.length);
+    assertTrue(times[0] >= before);
+  }
+
+  @Test
+  public void releaseWaitsForHandler() throws InterruptedException {
+    final CountDownLatch entered = new CountDownLatch(1);
+    final CountDownLatch finish = new CountDownLatch(1);
+    final int[] calls = new int[1];
+    GPIO.attachInterrupt(PIN, GPIO.CHANGE, new GPIO.InterruptHandler() {
+      public void interrupt(int pin, long time) {
+        calls[0]++;
+        entered.countDown();
+        try {
+          finish.await();
+        } catch (InterruptedException e) { }
+      }
+    });
+    GPIO.simulateInterrupt(PIN);
+    assertTrue(entered.await(2, TimeUnit.SECONDS));
+
+    final CountDownLatch released = new CountDownLatch(1);
+    new Thread(new Runnable() {
+      public void run() {
+        GPIO.releaseInterrupt(PIN);
+        released.countDown();
+      }
+    }).start();
+    // still inside the handler, so releaseInterrupt() can't return yet
+    assertTrue(!released.await(200, TimeUnit.MILLISECONDS));
+    finish.countDown();
+    assertTrue(released.await(2, TimeUnit.SECONDS));
+
+    GPIO.simulateInterrupt(PIN);
+    Thread.sleep(100);
+    assertEquals(1, calls[0]);
+  }
+
+  @Test
+  public void handlerCanReleaseItself() throws InterruptedException {
+    final CountDownLatch released = new CountDownLatch(1);
+    GPIO.attachInterrupt(PIN, GPIO.CHANGE, new GPIO.InterruptHandler() {
+      public void interrupt(int pin, long time) {
+        GPIO.releaseInterrupt(pin);
+        released.countDown();
+      }
+    });
+    GPIO.simulateInterrupt(PIN);
+    assertTrue(released.await(2, TimeUnit.SECONDS));
+  }
+}
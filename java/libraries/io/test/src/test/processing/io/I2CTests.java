@@ -0,0 +1,134 @@
+package test.processing.io;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import processing.io.I2C;
+
+public class I2CTests {
+  /**
+   * Devices that run in memory: each has 256 registers, a write sets the
+   * register to read or write next (its first byte) and then fills them,
+   * and a read goes on from the current register.
+   */
+  static class Registers implements I2C.Backend {
+    byte[][] memory = new byte[128][256];
+    int[] current = new int[128];
+    List<String> log = new ArrayList<String>();
+    int calls;
+    boolean closed;
+
+    public void transfer(int[] slaves, boolean[] reads, int[] lengths, int count,
+                         ByteBuffer data) {
+      calls++;
+      int offset = 0;
+      for (int i = 0; i < count; i++) {
+        int slave = slaves[i];
+        log.add((reads[i] ? "read " : "write ") + slave + " " + lengths[i]);
+        for (int j = 0; j < lengths[i]; j++) {
+          if (reads[i]) {
+            data.put(offset + j, memory[slave][current[slave]++ & 0xff]);
+          } else if (j == 0) {
+            current[slave] = data.get(offset) & 0xff;
+          } else {
+            memory[slave][current[slave]++ & 0xff] = data.get(offset + j);
+          }
+        }
+        offset += lengths[i];
+      }
+    }
+
+    public void close() {
+      closed = true;
+    }
+  }
+
+  Registers devices;
+  I2C i2c;
+
+  @Before
+  public void open() {
+    devices = new Registers();
+    i2c = new I2C("i2c-1", devices);
+  }
+
+  @Test
+  public void writeThenRead() {
+    i2c.beginTransmission(0x20);
+    i2c.write(new byte[] { 4, 7, 8, 9 });
+    i2c.endTransmission();
+
+    i2c.beginTransmission(0x20);
+    i2c.write(4);
+    byte[] in = i2c.read(3);
+    assertArrayEquals(new byte[] { 7, 8, 9 }, in);
+    // the register write and the read went out as one transaction
+    assertEquals(2, devices.calls);
+    assertEquals("write 32 1", devices.log.get(1));
+    assertEquals("read 32 3", devices.log.get(2));
+
+    i2c.close();
+    assertTrue(devices.closed);
+  }
+
+  @Test
+  public void queuedInOrder() {
+    devices.memory[0x30][0] = 11;
+    devices.memory[0x30][1] = 12;
+    devices.memory[0x31][5] = 21;
+
+    byte[] first = new byte[2];
+    ByteBuffer second = ByteBuffer.allocate(4);
+    second.position(1);
+
+    i2c.queueWrite(0x30, new byte[] { 0 });
+    i2c.queueRead(0x30, first);
+    i2c.queueWrite(0x31, ByteBuffer.wrap(new byte[] { 5 }));
+    i2c.queueRead(0x31, ByteBuffer.wrap(new byte[1]));  // skipped over
+    i2c.queueWrite(0x31, new byte[] { 5, 42 });
+    i2c.queueWrite(0x31, new byte[] { 5 });
+    second.limit(2);
+    i2c.queueRead(0x31, second);
+    i2c.transferQueued();
+
+    assertEquals(1, devices.calls);
+    assertEquals(7, devices.log.size());
+    assertEquals("write 48 1", devices.log.get(0));
+    assertEquals("read 48 2", devices.log.get(1));
+    assertEquals("read 49 1", devices.log.get(6));
+
+    assertArrayEquals(new byte[] { 11, 12 }, first);
+    // written by the fifth message, after the fourth read the old value
+    assertEquals(2, second.position());
+    assertEquals(42, second.get(1));
+  }
+
+  @Test
+  public void queueGrows() {
+    // more messages and bytes than fit in the queue at first
+    int count = 40;
+    byte[] data = new byte[20];
+    for (int i = 0; i < count; i++) {
+      data[0] = (byte) i;
+      data[1] = (byte) (100 + i);
+      i2c.queueWrite(0x40, data);
+    }
+    byte[] in = new byte[count];
+    i2c.queueWrite(0x40, new byte[] { 0 });
+    i2c.queueRead(0x40, in);
+    i2c.transferQueued();
+
+    assertEquals(1, devices.calls);
+    for (int i = 0; i < count; i++) {
+      assertEquals((byte) (100 + i), in[i]);
+    }
+  }
+}
@@ -0,0 +1,134 @@
+package test.processing.io;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import processing.io.SPI;
+
+public class SPITests {
+  /**
+   * A device that runs in memory: it answers each byte with the byte
+   * plus one, and remembers what each transfer sent.
+   */
+  static class EchoDevice implements SPI.Backend {
+    List<byte[]> sent = new ArrayList<byte[]>();
+    int calls;
+    boolean closed;
+
+    public void transfer(ByteBuffer out, ByteBuffer in, int[] lengths, int count,
+                         int maxSpeed, int dataOrder, int mode) {
+      calls++;
+      int offset = 0;
+      for (int i = 0; i < count; i++) {
+        byte[] data = new byte[lengths[i]];
+        for (int j = 0; j < lengths[i]; j++) {
+          data[j] = out.get(offset + j);
+          in.put(offset + j, (byte) (data[j] + 1));
+        }
+        sent.add(data);
+        offset += lengths[i];
+      }
+    }
+
+    public void close() {
+      closed = true;
+    }
+  }
+
+  EchoDevice device;
+  SPI spi;
+
+  @Before
+  public void open() {
+    device = new EchoDevice();
+    spi = new SPI("spidev0.0", device);
+  }
+
+  static byte[] bytes(int first, int length) {
+    byte[] data = new byte[length];
+    for (int i = 0; i < length; i++) {
+      data[i] = (byte) (first + i);
+    }
+    return data;
+  }
+
+  static byte[] plusOne(byte[] data) {
+    byte[] result = new byte[data.length];
+    for (int i = 0; i < data.length; i++) {
+      result[i] = (byte) (data[i] + 1);
+    }
+    return result;
+  }
+
+  @Test
+  public void transfer() {
+    assertArrayEquals(new byte[] { 2, 3, 4 }, spi.transfer(new byte[] { 1, 2, 3 }));
+    spi.close();
+    assertTrue(device.closed);
+  }
+
+  @Test
+  public void queuedInOrder() {
+    byte[] a = bytes(10, 3);
+    byte[] b = bytes(20, 1);
+    ByteBuffer c = ByteBuffer.wrap(bytes(30, 5));
+    byte[] aIn = new byte[3];
+    ByteBuffer cIn = ByteBuffer.allocate(8);
+    cIn.position(2);
+
+    spi.queue(a, aIn);
+    spi.queue(b, null);  // nothing to receive
+    spi.queue(c, cIn);
+    // out is used up as soon as it's queued, in only once transferred
+    assertEquals(0, c.remaining());
+    assertEquals(2, cIn.position());
+
+    spi.transferQueued();
+    assertEquals(1, device.calls);
+    assertEquals(3, device.sent.size());
+    assertArrayEquals(a, device.sent.get(0));
+    assertArrayEquals(b, device.sent.get(1));
+    assertArrayEquals(bytes(30, 5), device.sent.get(2));
+
+    // each got its own part of what came back
+    assertArrayEquals(plusOne(a), aIn);
+    assertEquals(7, cIn.position());
+    byte[] received = Arrays.copyOfRange(cIn.array(), 2, 7);
+    assertArrayEquals(plusOne(bytes(30, 5)), received);
+
+    // and nothing is left over for the next time
+    spi.transferQueued();
+    assertEquals(1, device.calls);
+  }
+
+  @Test
+  public void queueGrows() {
+    // more transfers and bytes than fit in the queue at first
+    int count = 40;
+    byte[][] ins = new byte[count][];
+    for (int i = 0; i < count; i++) {
+      ins[i] = new byte[i + 1];
+      spi.queue(bytes(i, i + 1), ins[i]);
+    }
+    spi.transferQueued();
+    assertEquals(count, device.sent.size());
+    for (int i = 0; i < count; i++) {
+      assertArrayEquals(bytes(i, i + 1), device.sent.get(i));
+      assertArrayEquals(plusOne(bytes(i, i + 1)), ins[i]);
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void shortDestination() {
+    spi.queue(new byte[4], new byte[3]);
+  }
+}
@@ -0,0 +1,221 @@
+/* -*- mode: java; c-basic-offset: 2; indent-tabs-mode: nil -*- */
+
+/*
+  ByteRing - circular buffer for incoming network data
+  Part of the Processing project - http://processing.org
+
+  Copyright (c) 2017 The Processing Foundation
+
+  This library is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General
+  Public License along with this library; if not, write to the
+  Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+  Boston, MA  02111-1307  USA
+*/
+
+package processing.net;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+
+/**
+ * Circular buffer between the thread receiving data and the sketch reading
+ * it. Reads and writes wrap around the end of the array, so nothing gets
+ * shifted down or copied as data comes and goes. The array starts small
+ * and doubles (only while it's full) until it reaches its capacity; after
+ * that, the receiving side has to wait for the sketch to catch up.
+ * <p/>
+ * There's a single writer (the thread receiving the data) and any number
+ * of readers. Everything is synchronized on this object.
+ */
+class ByteRing {
+  static final int INITIAL_SIZE = 32768;
+
+  byte[] data;
+  int capacity;
+  /** Index of the next byte to read */
+  int head;
+  /** Number of bytes waiting to be read */
+  int count;
+  boolean closed;
+
+
+  /** @param capacity the most that will be buffered, rounded up to 2^n */
+  ByteRing(int capacity) {
+    int size = Integer.highestOneBit(Math.max(capacity, 1) - 1) << 1;
+    this.capacity = Math.max(size, 1);
+    data = new byte[Math.min(INITIAL_SIZE, this.capacity)];
+  }
+
+
+  synchronized int available() {
+    return count;
+  }
+
+
+  /** Wake up the writer if it's waiting for room, and have it stop. */
+  synchronized void close() {
+    closed = true;
+    notifyAll();
+  }
+
+
+  synchronized int free() {
+    return capacity - count;
+  }
+
+
+  synchronized void clear() {
+    // skip rather than starting over at zero, since the writer
+    // may be in the middle of filling the space after the data
+    skip(count);
+  }
+
+
+  // . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . .
+
+  // writing
+
+
+  /**
+   * Make room for 'length' more bytes if the array hasn't hit capacity.
+   * Only called by the writer, with the lock held.
+   */
+  private void ensureRoom(int length) {
+    if (data.length - count < length && data.length < capacity) {
+      int size = data.length;
+      while (size - count < length && size < capacity) {
+        size <<= 1;
+      }
+      byte[] temp = new byte[size];
+      copyOut(temp, 0, count);
+      data = temp;
+      head = 0;
+    }
+  }
+
+
+  /**
+   * Add as much of 'src' as will fit.
+   * @return number of bytes added
+   */
+  synchronized int put(ByteBuffer src) {
+    ensureRoom(src.remaining());
+    int total = 0;
+    while (src.hasRemaining() && count < data.length) {
+      int tail = (head + count) & (data.length - 1);
+      int length = Math.min(src.remaining(),
+                            Math.min(data.length - count, data.length - tail));
+      src.get(data, tail, length);
+      count += length;
+      total += length;
+    }
+    return total;
+  }
+
+
+  /**
+   * Read from a stream straight into the free part of the array. Blocks
+   * until there's room, and then until the stream has data. The lock
+   * isn't held while reading, since the readers never touch the free part.
+   * @return number of bytes read, or -1 at the end of the stream
+   */
+  int receive(InputStream input) throws IOException {
+    byte[] array;
+    int tail, length;
+    synchronized (this) {
+      ensureRoom(1);
+      while (count == data.length) {
+        if (closed) return -1;
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          throw new InterruptedIOException();
+        }
+      }
+      array = data;
+      tail = (head + count) & (data.length - 1);
+      length = Math.min(data.length - count, data.length - tail);
+    }
+    int amount = input.read(array, tail, length);
+    if (amount > 0) {
+      synchronized (this) {
+        count += amount;
+      }
+    }
+    return amount;
+  }
+
+
+  // . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . .
+
+  // reading
+
+
+  /** Copy the next 'length' bytes out without removing them. */
+  private void copyOut(byte[] dst, int offset, int length) {
+    int first = Math.min(length, data.length - head);
+    System.arraycopy(data, head, dst, offset, first);
+    System.arraycopy(data, 0, dst, offset + first, length - first);
+  }
+
+
+  private void skip(int length) {
+    head = (head + length) & (data.length - 1);
+    count -= length;
+    notifyAll();
+  }
+
+
+  /** @return the next byte, or -1 if there's nothing to read */
+  synchronized int read() {
+    if (count == 0) return -1;
+    int outgoing = data[head] & 0xff;
+    skip(1);
+    return outgoing;
+  }
+
+
+  synchronized int read(byte[] dst, int offset, int length) {
+    length = Math.min(length, count);
+    copyOut(dst, offset, length);
+    skip(length);
+    return length;
+  }
+
+
+  /** Fill as much of 'dst' as possible. */
+  synchronized int read(ByteBuffer dst) {
+    int length = Math.min(dst.remaining(), count);
+    int first = Math.min(length, data.length - head);
+    dst.put(data, head, first);
+    dst.put(data, 0, length - first);
+    skip(length);
+    return length;
+  }
+
+
+  /**
+   * Find a byte without copying anything.
+   * @return number of bytes up to and including 'what', or -1 if not found
+   */
+  synchronized int indexOf(byte what) {
+    int mask = data.length - 1;
+    for (int i = 0; i < count; i++) {
+      if (data[(head + i) & mask] == what) {
+        return i + 1;
+      }
+    }
+    return -1;
+  }
+}
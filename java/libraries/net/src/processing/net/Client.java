@@ -29,6 +29,9 @@ import processing.core.*;
 import java.io.*;
 import java.lang.reflect.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayDeque;
 
 /**
    * ( begin auto-generated from Client.xml )
@@ -57,11 +60,31 @@ public class Client implements Runnable {
   public InputStream input;
   public OutputStream output;
 
-  byte buffer[] = new byte[32768];
-  int bufferIndex;
-  int bufferLast;
+  /** Most data that will be held before waiting for the sketch to read */
+  static final int BUFFER_CAPACITY = 1 << 20;
+
+  ByteRing buffer = new ByteRing(BUFFER_CAPACITY);
 
   boolean disposeRegistered = false;
+  boolean preRegistered = false;
+  /** Data arrived since the last clientEvent() */
+  volatile boolean eventPending;
+
+  /** Size of the direct buffer each non-blocking client reads into */
+  static final int READ_SIZE = 16384;
+
+  // used instead of the thread and streams when handled by a selector
+  Server server;
+  SocketChannel channel;
+  EventLoop loop;
+  ByteBuffer readBuffer;
+  /** Not reading from the channel because the buffer is full */
+  volatile boolean readPaused;
+  /** Data waiting for the channel to accept more, oldest first */
+  ArrayDeque<ByteBuffer> outgoing;
+  /** Total bytes remaining in 'outgoing' */
+  int queued;
+  volatile long sent;
   
   
   /**
@@ -79,9 +102,6 @@ public class Client implements Runnable {
       input = socket.getInputStream();
       output = socket.getOutputStream();
 
-      thread = new Thread(this);
-      thread.start();
-
       parent.registerMethod("dispose", this);
       disposeRegistered = true;
 
@@ -92,6 +112,9 @@ public class Client implements Runnable {
         clientEventMethod =
           parent.getClass().getMethod("clientEvent",
                                       new Class[] { Client.class });
+        // while the sketch is running, send clientEvent() once per frame
+        parent.registerMethod("pre", this);
+        preRegistered = true;
       } catch (Exception e) {
         // no such method, or an error.. which is fine, just ignore
       }
@@ -104,6 +127,9 @@ public class Client implements Runnable {
         // no such method, or an error.. which is fine, just ignore
       }
 
+      thread = new Thread(this);
+      thread.start();
+
     } catch (ConnectException ce) {
       ce.printStackTrace();
       dispose();
@@ -126,11 +152,38 @@ public class Client implements Runnable {
     input = socket.getInputStream();
     output = socket.getOutputStream();
 
+    // reflection to check whether host sketch has a call for
+    // public void disconnectEvent(processing.net.Client)
+    try {
+      disconnectEventMethod =
+        parent.getClass().getMethod("disconnectEvent",
+                                    new Class[] { Client.class });
+    } catch (Exception e) {
+      // no such method, or an error.. which is fine, just ignore
+    }
+
+    // started last, so that it sees the method looked up above
     thread = new Thread(this);
     thread.start();
+  }
+
+
+  /**
+   * Non-blocking client for a Server that's using a selector. There's no
+   * thread for this client, instead 'loop' reads whatever arrives. The
+   * input and output streams are not available.
+   */
+  Client(Server server, SocketChannel channel, EventLoop loop) throws IOException {
+    this.parent = server.parent;
+    this.server = server;
+    this.channel = channel;
+    this.loop = loop;
+
+    channel.configureBlocking(false);
+    socket = channel.socket();
+    readBuffer = ByteBuffer.allocateDirect(READ_SIZE);
+    outgoing = new ArrayDeque<ByteBuffer>();
 
-    // reflection to check whether host sketch has a call for
-    // public void disconnectEvent(processing.net.Client)
     try {
       disconnectEventMethod =
         parent.getClass().getMethod("disconnectEvent",
@@ -138,6 +191,22 @@ public class Client implements Runnable {
     } catch (Exception e) {
       // no such method, or an error.. which is fine, just ignore
     }
+
+    loop.register(channel, SelectionKey.OP_READ, new EventLoop.Handler() {
+      public void ready(SelectionKey key) throws IOException {
+        if (key.isReadable()) {
+          receive();
+        }
+        if (key.isValid() && key.isWritable()) {
+          flushOutgoing();
+        }
+      }
+
+      public void closed(Exception e) {
+        System.err.println("Client " + e);
+        stop();
+      }
+    });
   }
 
 
@@ -153,7 +222,7 @@ public class Client implements Runnable {
    * @usage application
    */
   public void stop() {    
-    if (disconnectEventMethod != null && thread != null){
+    if (disconnectEventMethod != null && active()) {
       try {
         disconnectEventMethod.invoke(parent, new Object[] { this });
       } catch (Exception e) {
@@ -165,6 +234,10 @@ public class Client implements Runnable {
       parent.unregisterMethod("dispose", this);
       disposeRegistered = false;
     }
+    if (preRegistered) {
+      parent.unregisterMethod("pre", this);
+      preRegistered = false;
+    }
     dispose();
   }
 
@@ -177,6 +250,19 @@ public class Client implements Runnable {
    */
   public void dispose() {
     thread = null;
+    buffer.close();  // in case the thread is waiting for room
+    try {
+      if (channel != null) {
+        channel.close();  // also closes the socket
+        channel = null;
+        synchronized (outgoing) {
+          outgoing.notifyAll();  // in case write() is waiting for room
+        }
+      }
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
+
     try {
       if (input != null) {
         input.close();
@@ -208,53 +294,136 @@ public class Client implements Runnable {
 
   public void run() {
     while (Thread.currentThread() == thread) {
+      InputStream in = input;
+      if (in == null) return;
+
+      int count;
+      // read straight into the buffer, this blocks until something arrives.
+      // An exception will occur when the sketch exits.
       try {
-        while (input != null) {
-          int value;
+        count = buffer.receive(in);
+      } catch (SocketException e) {
+        System.err.println("Client SocketException: " + e.getMessage());
+        // the socket had a problem reading so don't try to read from it again.
+        stop();
+        return;
+      } catch (IOException e) {
+        //errorMessage("run", e);
+        e.printStackTrace();
+        stop();
+        return;
+      }
+
+      // read returns -1 if end-of-stream occurs (for example if the host disappears)
+      if (count == -1) {
+        if (Thread.currentThread() == thread) {
+          System.err.println("Client got end-of-stream.");
+          stop();
+        }
+        return;
+      }
+      received();
+    }
+  }
+
+
+  /**
+   * Called by the selector when there's data to read. Takes everything
+   * that's available (or as much as fits), then posts a clientEvent.
+   */
+  void receive() throws IOException {
+    boolean arrived = false;
+    while (channel != null) {
+      if (readBuffer.position() != 0) {
+        // move what's been read into the buffer for the sketch
+        readBuffer.flip();
+        if (buffer.put(readBuffer) != 0) {
+          arrived = true;
+        }
+        readBuffer.compact();
+        if (readBuffer.position() != 0) {
+          // full, so stop reading until the sketch catches up
+          readPaused = true;
+          loop.setInterest(channel, SelectionKey.OP_READ, false);
+          if (buffer.free() == 0) break;
+          // unless it already has (since resume() may have missed it)
+          readPaused = false;
+          loop.setInterest(channel, SelectionKey.OP_READ, true);
+          continue;
+        }
+      }
+      int count = channel.read(readBuffer);
+      if (count == -1) {
+        System.err.println("Client got end-of-stream.");
+        stop();
+        break;
+      }
+      if (count == 0) break;
+    }
+    if (arrived) {
+      received();
+    }
+  }
+
 
-          // try to read a byte using a blocking read. 
-          // An exception will occur when the sketch is exits.
+  /** Start reading from the channel again, once there's room. */
+  private void resume() {
+    if (readPaused) {
+      readPaused = false;
+      final EventLoop loop = this.loop;
+      loop.execute(new Runnable() {
+        public void run() {
+          SocketChannel channel = Client.this.channel;
+          if (channel == null) return;
+          loop.setInterest(channel, SelectionKey.OP_READ, true);
           try {
-            value = input.read();
-          } catch (SocketException e) {
-             System.err.println("Client SocketException: " + e.getMessage());
-             // the socket had a problem reading so don't try to read from it again.
-             stop();
-             return;
-          }
-        
-          // read returns -1 if end-of-stream occurs (for example if the host disappears)
-          if (value == -1) {
-            System.err.println("Client got end-of-stream.");
+            receive();
+          } catch (IOException e) {
+            System.err.println("Client " + e);
             stop();
-            return;
           }
+        }
+      });
+    }
+  }
 
-          synchronized (buffer) {
-            // todo: at some point buffer should stop increasing in size, 
-            // otherwise it could use up all the memory.
-            if (bufferLast == buffer.length) {
-              byte temp[] = new byte[bufferLast << 1];
-              System.arraycopy(buffer, 0, temp, 0, bufferLast);
-              buffer = temp;
-            }
-            buffer[bufferLast++] = (byte)value;
-          }
 
-          // now post an event
-          if (clientEventMethod != null) {
-            try {
-              clientEventMethod.invoke(parent, new Object[] { this });
-             } catch (Exception e) {
-               System.err.println("error, disabling clientEvent() for " + host);
-               e.printStackTrace();
-               clientEventMethod = null;
-            }
-          }
-        }
-      } catch (IOException e) {
-        //errorMessage("run", e);
-        e.printStackTrace();
+  /**
+   * New data has arrived. If the sketch is running, clientEvent() is sent
+   * from pre(), so there's at most one per frame no matter how many packets
+   * came in. Otherwise (noLoop, or no sketch thread), it's sent right away.
+   */
+  private void received() {
+    if (clientEventMethod != null) {
+      if (preRegistered && parent.isLooping()) {
+        eventPending = true;
+      } else {
+        clientEvent();
+      }
+    }
+  }
+
+
+  private void clientEvent() {
+    try {
+      clientEventMethod.invoke(parent, new Object[] { this });
+    } catch (Exception e) {
+      System.err.println("error, disabling clientEvent() for " + host);
+      e.printStackTrace();
+      clientEventMethod = null;
+    }
+  }
+
+
+  /**
+   * Sends clientEvent() if data has arrived since the last frame:
+   * internal use only.
+   */
+  public void pre() {
+    if (eventPending) {
+      eventPending = false;
+      if (clientEventMethod != null && available() > 0) {
+        clientEvent();
       }
     }
   }
@@ -272,7 +441,7 @@ public class Client implements Runnable {
    * @usage application
    */
   public boolean active() {
-    return (thread != null);
+    return (thread != null || channel != null);
   }
 
 
@@ -306,7 +475,7 @@ public class Client implements Runnable {
    * @brief Returns the number of bytes in the buffer waiting to be read
    */
   public int available() {
-    return (bufferLast - bufferIndex);
+    return buffer.available();
   }
 
 
@@ -321,8 +490,8 @@ public class Client implements Runnable {
    * @brief Clears the buffer
    */
   public void clear() {
-    bufferLast = 0;
-    bufferIndex = 0;
+    buffer.clear();
+    resume();
   }
 
 
@@ -339,16 +508,9 @@ public class Client implements Runnable {
    * @brief Returns a value from the buffer
    */
   public int read() {
-    if (bufferIndex == bufferLast) return -1;
-
-    synchronized (buffer) {
-      int outgoing = buffer[bufferIndex++] & 0xff;
-      if (bufferIndex == bufferLast) {  // rewind
-        bufferIndex = 0;
-        bufferLast = 0;
-      }
-      return outgoing;
-    }
+    int outgoing = buffer.read();
+    resume();
+    return outgoing;
   }
 
 
@@ -364,7 +526,6 @@ public class Client implements Runnable {
    * @brief Returns the next byte in the buffer as a char
    */
   public char readChar() {
-    if (bufferIndex == bufferLast) return (char)(-1);
     return (char) read();
   }
 
@@ -392,15 +553,13 @@ public class Client implements Runnable {
    * @brief Reads everything in the buffer
    */
   public byte[] readBytes() {
-    if (bufferIndex == bufferLast) return null;
-
     synchronized (buffer) {
-      int length = bufferLast - bufferIndex;
-      byte outgoing[] = new byte[length];
-      System.arraycopy(buffer, bufferIndex, outgoing, 0, length);
+      int length = buffer.available();
+      if (length == 0) return null;
 
-      bufferIndex = 0;  // rewind
-      bufferLast = 0;
+      byte outgoing[] = new byte[length];
+      buffer.read(outgoing, 0, length);
+      resume();
       return outgoing;
     }
   }
@@ -417,20 +576,13 @@ public class Client implements Runnable {
    * @param max the maximum number of bytes to read
    */
   public byte[] readBytes(int max) {
-    if (bufferIndex == bufferLast) return null;
-
     synchronized (buffer) {
-      int length = bufferLast - bufferIndex;
-      if (length > max) length = max;
-      byte outgoing[] = new byte[length];
-      System.arraycopy(buffer, bufferIndex, outgoing, 0, length);
-
-      bufferIndex += length;
-      if (bufferIndex == bufferLast) {
-        bufferIndex = 0;  // rewind
-        bufferLast = 0;
-      }
+      int length = Math.min(buffer.available(), max);
+      if (length == 0) return null;
 
+      byte outgoing[] = new byte[length];
+      buffer.read(outgoing, 0, length);
+      resume();
       return outgoing;
     }
   }
@@ -449,20 +601,23 @@ public class Client implements Runnable {
    * @param bytebuffer passed in byte array to be altered
    */
   public int readBytes(byte bytebuffer[]) {
-    if (bufferIndex == bufferLast) return 0;
+    int length = buffer.read(bytebuffer, 0, bytebuffer.length);
+    resume();
+    return length;
+  }
 
-    synchronized (buffer) {
-      int length = bufferLast - bufferIndex;
-      if (length > bytebuffer.length) length = bytebuffer.length;
-      System.arraycopy(buffer, bufferIndex, bytebuffer, 0, length);
-
-      bufferIndex += length;
-      if (bufferIndex == bufferLast) {
-        bufferIndex = 0;  // rewind
-        bufferLast = 0;
-      }
-      return length;
-    }
+
+  /**
+   * Reads as many bytes as are available (and will fit) into a ByteBuffer,
+   * starting at its current position, without allocating anything.
+   *
+   * @param bytebuffer passed in ByteBuffer to be changed
+   * @return the number of bytes read
+   */
+  public int readBytes(ByteBuffer bytebuffer) {
+    int length = buffer.read(bytebuffer);
+    resume();
+    return length;
   }
 
 
@@ -487,28 +642,13 @@ public class Client implements Runnable {
    * @param interesting character designated to mark the end of the data
    */
   public byte[] readBytesUntil(int interesting) {
-    if (bufferIndex == bufferLast) return null;
-    byte what = (byte)interesting;
-
     synchronized (buffer) {
-      int found = -1;
-      for (int k = bufferIndex; k < bufferLast; k++) {
-        if (buffer[k] == what) {
-          found = k;
-          break;
-        }
-      }
-      if (found == -1) return null;
+      int length = buffer.indexOf((byte) interesting);
+      if (length == -1) return null;
 
-      int length = found - bufferIndex + 1;
       byte outgoing[] = new byte[length];
-      System.arraycopy(buffer, bufferIndex, outgoing, 0, length);
-
-      bufferIndex += length;
-      if (bufferIndex == bufferLast) {
-        bufferIndex = 0; // rewind
-        bufferLast = 0;
-      }
+      buffer.read(outgoing, 0, length);
+      resume();
       return outgoing;
     }
   }
@@ -528,34 +668,49 @@ public class Client implements Runnable {
    * @param byteBuffer passed in byte array to be altered
    */
   public int readBytesUntil(int interesting, byte byteBuffer[]) {
-    if (bufferIndex == bufferLast) return 0;
-    byte what = (byte)interesting;
-
     synchronized (buffer) {
-      int found = -1;
-      for (int k = bufferIndex; k < bufferLast; k++) {
-        if (buffer[k] == what) {
-          found = k;
-          break;
-        }
-      }
-      if (found == -1) return 0;
+      int length = buffer.indexOf((byte) interesting);
+      if (length == -1) return 0;
 
-      int length = found - bufferIndex + 1;
       if (length > byteBuffer.length) {
         System.err.println("readBytesUntil() byte buffer is" +
                            " too small for the " + length +
                            " bytes up to and including char " + interesting);
         return -1;
       }
-      //byte outgoing[] = new byte[length];
-      System.arraycopy(buffer, bufferIndex, byteBuffer, 0, length);
+      buffer.read(byteBuffer, 0, length);
+      resume();
+      return length;
+    }
+  }
 
-      bufferIndex += length;
-      if (bufferIndex == bufferLast) {
-        bufferIndex = 0;  // rewind
-        bufferLast = 0;
+
+  /**
+   * Reads the bytes up to and including 'interesting' into a ByteBuffer,
+   * starting at its current position. The buffer is searched in place,
+   * so nothing is copied unless the char is found.
+   *
+   * @param interesting character designated to mark the end of the data
+   * @param byteBuffer passed in ByteBuffer to be changed
+   * @return the number of bytes read, 0 if the char wasn't found,
+   *         or -1 if there's not enough room remaining in byteBuffer
+   */
+  public int readBytesUntil(int interesting, ByteBuffer byteBuffer) {
+    synchronized (buffer) {
+      int length = buffer.indexOf((byte) interesting);
+      if (length == -1) return 0;
+
+      if (length > byteBuffer.remaining()) {
+        System.err.println("readBytesUntil() byte buffer is" +
+                           " too small for the " + length +
+                           " bytes up to and including char " + interesting);
+        return -1;
       }
+      ByteBuffer dst = byteBuffer.duplicate();
+      dst.limit(dst.position() + length);
+      buffer.read(dst);
+      byteBuffer.position(dst.position());
+      resume();
       return length;
     }
   }
@@ -576,8 +731,9 @@ public class Client implements Runnable {
    * @brief Returns the buffer as a String
    */
   public String readString() {
-    if (bufferIndex == bufferLast) return null;
-    return new String(readBytes());
+    byte b[] = readBytes();
+    if (b == null) return null;
+    return new String(b);
   }
 
 
@@ -618,9 +774,14 @@ public class Client implements Runnable {
    * @param data data to write
    */
   public void write(int data) {  // will also cover char
+    if (channel != null) {
+      write(new byte[] { (byte) data });
+      return;
+    }
     try {
       output.write(data & 0xff);  // for good measure do the &
       output.flush();   // hmm, not sure if a good idea
+      sent++;
 
     } catch (Exception e) { // null pointer or serial port dead
       //errorMessage("write", e);
@@ -634,9 +795,19 @@ public class Client implements Runnable {
 
 
   public void write(byte data[]) {
+    if (channel != null) {
+      try {
+        send(ByteBuffer.wrap(data), false);
+      } catch (Exception e) {
+        e.printStackTrace();
+        stop();
+      }
+      return;
+    }
     try {
       output.write(data);
       output.flush();   // hmm, not sure if a good idea
+      sent += data.length;
 
     } catch (Exception e) { // null pointer or serial port dead
       //errorMessage("write", e);
@@ -666,6 +837,157 @@ public class Client implements Runnable {
   }
 
 
+  /**
+   * Non-blocking write: whatever the channel won't take right away is
+   * queued, and sent by the selector once there's room. If the queue is
+   * already past the server's limit, the server's policy for slow clients
+   * decides whether to drop the data, disconnect, or wait. A write bigger
+   * than the limit is queued a piece at a time with BLOCK, and otherwise
+   * disconnects the client, since some of it may already have been sent.
+   *
+   * @param shared true if 'data' won't change, so it can be queued as is
+   * (the way a broadcast from the server shares one buffer for all the
+   * clients). Otherwise what's left is copied, since the caller is free
+   * to reuse their array after write() returns.
+   */
+  void send(ByteBuffer data, boolean shared) throws IOException {
+    boolean tooSlow = false;
+    synchronized (outgoing) {
+      if (outgoing.isEmpty()) {
+        sent(channel.write(data));
+        if (!data.hasRemaining()) {
+          return;
+        }
+        if (data.remaining() > server.outgoingLimit) {
+          // Part of it has gone out already, so dropping the rest would
+          // garble the stream. Only BLOCK can wait, a piece at a time.
+          if (server.slowPolicy == Server.BLOCK && !loop.inLoop()) {
+            while (data.remaining() > server.outgoingLimit) {
+              ByteBuffer piece = data.duplicate();
+              piece.limit(piece.position() + server.outgoingLimit);
+              data.position(piece.limit());
+              enqueue(piece, shared);
+              awaitRoom(server.outgoingLimit);
+              if (channel == null) {
+                return;
+              }
+            }
+          } else {
+            tooSlow = true;
+          }
+        }
+
+      } else if (queued + data.remaining() > server.outgoingLimit) {
+        switch (server.slowPolicy) {
+        case Server.DROP:
+          server.dropped.incrementAndGet();
+          return;
+
+        case Server.DISCONNECT:
+          tooSlow = true;
+          break;
+
+        case Server.BLOCK:
+          // can't wait on the thread that's doing the sending
+          if (!loop.inLoop()) {
+            awaitRoom(data.remaining());
+          }
+          if (channel == null) {
+            return;
+          }
+          break;
+        }
+      }
+
+      if (!tooSlow) {
+        enqueue(data, shared);
+      }
+    }
+    if (tooSlow) {
+      System.err.println("Disconnecting " + ip() + ", too far behind");
+      stop();
+    }
+  }
+
+
+  /**
+   * Wait until 'length' more bytes fit under the limit, or until the queue
+   * is empty (for data bigger than the limit). Called holding 'outgoing'.
+   */
+  private void awaitRoom(int length) throws IOException {
+    while (channel != null && !outgoing.isEmpty() &&
+           queued + length > server.outgoingLimit) {
+      try {
+        outgoing.wait();
+      } catch (InterruptedException e) {
+        throw new InterruptedIOException();
+      }
+    }
+  }
+
+
+  /** Add to the queue, copying unless 'shared'. Called holding 'outgoing'. */
+  private void enqueue(ByteBuffer data, boolean shared) {
+    if (!shared) {
+      ByteBuffer rest = ByteBuffer.allocate(data.remaining());
+      rest.put(data);
+      rest.flip();
+      data = rest;
+    }
+    outgoing.add(data);
+    queued += data.remaining();
+    if (outgoing.size() == 1) {
+      loop.setInterest(channel, SelectionKey.OP_WRITE, true);
+    }
+  }
+
+
+  /** Called by the selector when the channel can take more data. */
+  void flushOutgoing() throws IOException {
+    synchronized (outgoing) {
+      // gathering write, as much of the queue as will fit
+      long amount = channel.write(outgoing.toArray(new ByteBuffer[0]));
+      sent(amount);
+      queued -= amount;
+      while (!outgoing.isEmpty() && !outgoing.peek().hasRemaining()) {
+        outgoing.remove();
+      }
+      if (outgoing.isEmpty()) {
+        loop.setInterest(channel, SelectionKey.OP_WRITE, false);
+      }
+      outgoing.notifyAll();
+    }
+  }
+
+
+  private void sent(long amount) {
+    sent += amount;
+    server.sent.addAndGet(amount);
+  }
+
+
+  /**
+   * Number of bytes that have been written to the network so far.
+   */
+  public long bytesSent() {
+    return sent;
+  }
+
+
+  /**
+   * Number of bytes waiting to be sent. Always zero unless the server
+   * is using a selector, because otherwise write() waits until it's done.
+   */
+  public int bytesQueued() {
+    if (outgoing == null) {
+      return 0;
+    }
+    synchronized (outgoing) {
+      return queued;
+    }
+  }
+
+
   /**
    * Handle disconnect due to an Exception being thrown.
    */
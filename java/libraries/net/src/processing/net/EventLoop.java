@@ -0,0 +1,158 @@
+/* -*- mode: java; c-basic-offset: 2; indent-tabs-mode: nil -*- */
+
+/*
+  EventLoop - selector thread for non-blocking servers and clients
+  Part of the Processing project - http://processing.org
+
+  Copyright (c) 2017 The Processing Foundation
+
+  This library is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General
+  Public License along with this library; if not, write to the
+  Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+  Boston, MA  02111-1307  USA
+*/
+
+package processing.net;
+
+import java.io.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+
+/**
+ * A single thread waiting on a Selector, and handling whatever channels
+ * are ready. Used by a Server that's been started with a selector, so that
+ * a few threads can handle thousands of clients, instead of one thread
+ * for each client.
+ * <p/>
+ * Channels may only be registered (or have their interest changed) from the
+ * loop's own thread, so other threads hand that work over with execute().
+ */
+class EventLoop implements Runnable {
+  Selector selector;
+  Thread thread;
+  Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+
+  /** Called from the loop's thread when its channel is ready. */
+  interface Handler {
+    void ready(SelectionKey key) throws IOException;
+    void closed(Exception e);
+  }
+
+
+  EventLoop(String name) throws IOException {
+    selector = Selector.open();
+    thread = new Thread(this, name);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+
+  /** Run a task on the loop's thread, as soon as it next wakes up. */
+  void execute(Runnable task) {
+    tasks.add(task);
+    selector.wakeup();
+  }
+
+
+  boolean inLoop() {
+    return Thread.currentThread() == thread;
+  }
+
+
+  /**
+   * Register a channel with this loop. The handler gets called from the
+   * loop's thread whenever any of 'ops' are ready.
+   */
+  void register(final SelectableChannel channel, final int ops,
+                final Handler handler) {
+    execute(new Runnable() {
+      public void run() {
+        try {
+          channel.register(selector, ops, handler);
+        } catch (IOException e) {
+          handler.closed(e);
+        }
+      }
+    });
+  }
+
+
+  /** Add to (or remove from) the set of operations the channel waits on. */
+  void setInterest(final SelectableChannel channel, final int op,
+                   final boolean on) {
+    Runnable task = new Runnable() {
+      public void run() {
+        SelectionKey key = channel.keyFor(selector);
+        if (key != null && key.isValid()) {
+          int ops = key.interestOps();
+          key.interestOps(on ? (ops | op) : (ops & ~op));
+        }
+      }
+    };
+    if (inLoop()) {
+      task.run();
+    } else {
+      execute(task);
+    }
+  }
+
+
+  public void run() {
+    try {
+      while (Thread.currentThread() == thread) {
+        selector.select();
+
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+          task.run();
+        }
+
+        Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+        while (it.hasNext()) {
+          SelectionKey key = it.next();
+          it.remove();
+          Handler handler = (Handler) key.attachment();
+          try {
+            if (key.isValid()) {
+              handler.ready(key);
+            }
+          } catch (CancelledKeyException e) {
+            // closed from another thread while being handled, that's fine
+          } catch (Exception e) {
+            // don't let one bad connection take down the others
+            key.cancel();
+            handler.closed(e);
+          }
+        }
+      }
+    } catch (ClosedSelectorException e) {
+      // dispose() was called
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+
+  /** Stop the thread. Channels registered with the loop are not closed. */
+  void dispose() {
+    thread = null;
+    try {
+      selector.close();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+}
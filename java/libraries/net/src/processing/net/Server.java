@@ -30,6 +30,9 @@ import processing.core.*;
 import java.io.*;
 import java.lang.reflect.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 /**
@@ -55,6 +58,29 @@ public class Server implements Runnable {
   Thread thread;
   ServerSocket server;
   int port;
+
+  /** Number of I/O threads shared by the clients when using a selector */
+  static final int SELECTOR_THREADS =
+    Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+  /** Pending connections allowed when using a selector */
+  static final int SELECTOR_BACKLOG = 1024;
+
+  // used instead of 'thread' when using a selector
+  ServerSocketChannel channel;
+  EventLoop[] loops;
+  int nextLoop;
+
+  /** Drop the data for a client that's too far behind */
+  static public final int DROP = 0;
+  /** Disconnect a client that's too far behind */
+  static public final int DISCONNECT = 1;
+  /** Wait for a client that's too far behind to catch up */
+  static public final int BLOCK = 2;
+
+  volatile int outgoingLimit = 1 << 20;
+  volatile int slowPolicy = DROP;
+  final AtomicLong sent = new AtomicLong();
+  final AtomicLong dropped = new AtomicLong();
   
   /** Number of clients currently connected. */
   public int clientCount;
@@ -77,11 +103,36 @@ public class Server implements Runnable {
    * @param host when multiple NICs are in use, the ip (or name) to bind from 
    */
   public Server(PApplet parent, int port, String host) {
+    this(parent, port, host, false);
+  }
+
+
+  /**
+   * Use 'selector' to handle all the clients with a few threads and
+   * non-blocking I/O, rather than a thread for every client. Helpful
+   * when there are hundreds or thousands of clients connected. The
+   * input and output streams of the clients can't be used in this case.
+   *
+   * @param parent typically use "this"
+   * @param port port used to transfer data
+   * @param host the ip (or name) to bind from, or null for all of them
+   * @param selector true to use a selector with non-blocking I/O
+   */
+  public Server(PApplet parent, int port, String host, boolean selector) {
     this.parent = parent;
     this.port = port;
 
     try {
-      if (host == null) {
+      if (selector) {
+        channel = ServerSocketChannel.open();
+        InetSocketAddress address = (host == null) ?
+          new InetSocketAddress(this.port) :
+          new InetSocketAddress(InetAddress.getByName(host), this.port);
+        channel.socket().bind(address, SELECTOR_BACKLOG);
+        channel.configureBlocking(false);
+        server = channel.socket();
+
+      } else if (host == null) {
         server = new ServerSocket(this.port);
       } else {
         server = new ServerSocket(this.port, 10, InetAddress.getByName(host));
@@ -89,11 +140,6 @@ public class Server implements Runnable {
       //clients = new Vector();
       clients = new Client[10];
 
-      thread = new Thread(this);
-      thread.start();
-
-      parent.registerMethod("dispose", this);
-
       // reflection to check whether host applet has a call for
       // public void serverEvent(Server s, Client c);
       // which is called when a new guy connects
@@ -106,15 +152,53 @@ public class Server implements Runnable {
         // no such method, or an error.. which is fine, just ignore
       }
 
+      if (selector) {
+        startSelector();
+      } else {
+        thread = new Thread(this);
+        thread.start();
+      }
+
+      parent.registerMethod("dispose", this);
+
     } catch (IOException e) {
       //e.printStackTrace();
       thread = null;
+      channel = null;
       throw new RuntimeException(e);
       //errorMessage("<init>", e);
     }
   }
 
 
+  private void startSelector() throws IOException {
+    loops = new EventLoop[SELECTOR_THREADS];
+    for (int i = 0; i < loops.length; i++) {
+      loops[i] = new EventLoop("Server " + port + " I/O " + i);
+    }
+    // first thread also handles new connections
+    loops[0].register(channel, SelectionKey.OP_ACCEPT, new EventLoop.Handler() {
+      public void ready(SelectionKey key) throws IOException {
+        SocketChannel socketChannel;
+        while ((socketChannel = channel.accept()) != null) {
+          // spread clients over the threads
+          EventLoop loop = loops[nextLoop];
+          nextLoop = (nextLoop + 1) % loops.length;
+          connected(new Client(Server.this, socketChannel, loop));
+        }
+      }
+
+      public void closed(Exception e) {
+        // thrown when stop() is called while waiting on accept
+        if (channel != null) {
+          System.err.println("Server " + e);
+          channel = null;
+        }
+      }
+    });
+  }
+
+
   /**
    * ( begin auto-generated from Server_disconnect.xml )
    * 
@@ -189,7 +273,7 @@ public class Server implements Runnable {
    * @brief Return true if this server is still active.
    */
   public boolean active() {
-    return thread != null;
+    return thread != null || channel != null;
   }
   
   
@@ -270,6 +354,14 @@ public class Server implements Runnable {
    */
   public void dispose() {
     thread = null;
+    channel = null;  // closed along with 'server' below
+
+    if (loops != null) {
+      for (EventLoop loop : loops) {
+        loop.dispose();
+      }
+      loops = null;
+    }
 
     if (clients != null) {
       disconnectAll();
@@ -292,19 +384,7 @@ public class Server implements Runnable {
     while (Thread.currentThread() == thread) {
       try {
         Socket socket = server.accept();
-        Client client = new Client(parent, socket);
-        synchronized (clients) {
-          addClient(client);
-          if (serverEventMethod != null) {
-            try {
-              serverEventMethod.invoke(parent, new Object[] { this, client });
-            } catch (Exception e) {
-              System.err.println("Disabling serverEvent() for port " + port);
-              e.printStackTrace();
-              serverEventMethod = null;
-            }
-          }
-        }
+        connected(new Client(parent, socket));
       } catch (SocketException e) {
         //thrown when server.close() is called and server is waiting on accept
         System.err.println("Server SocketException: " + e.getMessage());
@@ -321,6 +401,22 @@ public class Server implements Runnable {
   }
 
 
+  private void connected(Client client) {
+    synchronized (clients) {
+      addClient(client);
+      if (serverEventMethod != null) {
+        try {
+          serverEventMethod.invoke(parent, new Object[] { this, client });
+        } catch (Exception e) {
+          System.err.println("Disabling serverEvent() for port " + port);
+          e.printStackTrace();
+          serverEventMethod = null;
+        }
+      }
+    }
+  }
+
+
   /**
    * ( begin auto-generated from Server_write.xml )
    * 
@@ -333,6 +429,10 @@ public class Server implements Runnable {
    * @param data data to write
    */
   public void write(int data) {  // will also cover char
+    if (channel != null) {
+      write(new byte[] { (byte) data });
+      return;
+    }
     int index = 0;
     while (index < clientCount) {
       if (clients[index].active()) {
@@ -346,6 +446,10 @@ public class Server implements Runnable {
   
 
   public void write(byte data[]) {
+    if (channel != null) {
+      broadcast(data);
+      return;
+    }
     int index = 0;
     while (index < clientCount) {
       if (clients[index].active()) {
@@ -359,6 +463,10 @@ public class Server implements Runnable {
   
 
   public void write(String data) {
+    if (channel != null) {
+      broadcast(data.getBytes());
+      return;
+    }
     int index = 0;
     while (index < clientCount) {
       if (clients[index].active()) {
@@ -369,4 +477,103 @@ public class Server implements Runnable {
       }
     }
   }
+
+
+  /**
+   * Send to all the clients without waiting on each one in turn. The data
+   * is copied once into a buffer that all the clients share. A client that
+   * can't keep up has its share queued, up to the limit set with
+   * outgoingLimit(), and after that is dealt with according to the policy.
+   */
+  private void broadcast(byte data[]) {
+    // a copy, since the caller may change the array after write() returns
+    ByteBuffer payload = ByteBuffer.wrap(data.clone()).asReadOnlyBuffer();
+
+    // not holding the lock while sending, since a BLOCK
+    // could otherwise hold up new connections as well
+    Client[] recipients;
+    Client[] current = clients;
+    if (current == null) {
+      return;  // disposed
+    }
+    synchronized (current) {
+      recipients = new Client[clientCount];
+      System.arraycopy(current, 0, recipients, 0, clientCount);
+    }
+    for (Client client : recipients) {
+      if (client.active()) {
+        try {
+          client.send(payload.duplicate(), true);
+        } catch (Exception e) {
+          e.printStackTrace();
+          client.stop();
+        }
+      }
+    }
+    current = clients;
+    if (current == null) {
+      return;  // disposed while sending
+    }
+    synchronized (current) {
+      // if the array grew in the meantime, the next broadcast cleans up
+      if (current == clients) {
+        for (int i = clientCount - 1; i >= 0; i--) {
+          if (!current[i].active()) {
+            removeIndex(i);
+          }
+        }
+      }
+    }
+  }
+
+
+  /**
+   * Set how much data can wait to be sent to a single client, and what
+   * happens once a client falls further behind than that: DROP (the default)
+   * skips writing to it, DISCONNECT drops the connection, and BLOCK waits
+   * for it to catch up, which also holds up the sketch. Only used when the server has a selector,
+   * otherwise writes always wait for each client. The default limit is 1 MB.
+   *
+   * @param bytes most data to queue for one client
+   * @param policy DROP, DISCONNECT, or BLOCK
+   */
+  public void outgoingLimit(int bytes, int policy) {
+    outgoingLimit = bytes;
+    slowPolicy = policy;
+  }
+
+
+  /**
+   * Total bytes written to all clients. Only counted when using a selector.
+   */
+  public long bytesSent() {
+    return sent.get();
+  }
+
+
+  /**
+   * Bytes waiting to be sent, across all the clients.
+   */
+  public long bytesQueued() {
+    long total = 0;
+    Client[] current = clients;
+    if (current == null) {
+      return 0;  // disposed
+    }
+    synchronized (current) {
+      for (int i = 0; i < clientCount; i++) {
+        total += current[i].bytesQueued();
+      }
+    }
+    return total;
+  }
+
+
+  /**
+   * Number of writes skipped for clients that were too far
+   * behind, when the policy is DROP.
+   */
+  public long droppedWrites() {
+    return dropped.get();
+  }
 }
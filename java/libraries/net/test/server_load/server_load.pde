@@ -0,0 +1,111 @@
+/**
+ * Server Load Test
+ *
+ * Connects a large number of clients to a server on this machine,
+ * and has each of them send a short message every frame for a number
+ * of rounds. The server echoes everything back. Shows how many bytes get
+ * through per second, and how many threads are running in the sketch,
+ * and prints how long it took to connect and to get every echo back.
+ *
+ * Set useSelector to false to compare with the default server, which
+ * starts a thread for every client that connects.
+ */
+
+
+import processing.net.*;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+int port = 12345;
+int clientCount = 2000;
+int rounds = 20;
+boolean useSelector = true;
+
+Server server;
+// Plain sockets for the other end, so they don't need threads of their own
+SocketChannel[] sockets;
+ByteBuffer message = ByteBuffer.wrap(new byte[256]);
+ByteBuffer incoming = ByteBuffer.allocateDirect(65536);
+
+int round;
+long sent;
+long echoedTotal;
+int echoStart;
+boolean reported;
+
+long echoed;
+long lastTime;
+float rate;
+
+void setup() {
+  size(400, 200);
+  textFont(createFont("SansSerif", 16));
+  server = new Server(this, port, null, useSelector);
+
+  int connectStart = millis();
+  sockets = new SocketChannel[clientCount];
+  try {
+    for (int i = 0; i < clientCount; i++) {
+      sockets[i] = SocketChannel.open(new InetSocketAddress("127.0.0.1", port));
+      sockets[i].configureBlocking(false);
+    }
+  } catch (Exception e) {
+    e.printStackTrace();
+    exit();
+  }
+  println("Connected " + clientCount + " clients in " +
+          (millis() - connectStart) + " ms");
+  lastTime = millis();
+  echoStart = millis();
+}
+
+void draw() {
+  // every socket sends a message, until all the rounds are done
+  if (round < rounds) {
+    for (SocketChannel socket : sockets) {
+      try {
+        message.rewind();
+        sent += socket.write(message);
+      } catch (Exception e) { }
+    }
+    round++;
+  }
+
+  // echo whatever has arrived at the server
+  Client client;
+  while ((client = server.available()) != null) {
+    client.write(client.readBytes());
+  }
+
+  // and read the echoes
+  for (SocketChannel socket : sockets) {
+    try {
+      incoming.clear();
+      int count = socket.read(incoming);
+      if (count > 0) {  // -1 at the end of the stream
+        echoed += count;
+        echoedTotal += count;
+      }
+    } catch (Exception e) { }
+  }
+
+  if (!reported && round == rounds && echoedTotal == sent) {
+    println(nf(sent / 1048576f, 0, 1) + " MB echoed in " +
+            (millis() - echoStart) + " ms, with " +
+            Thread.activeCount() + " threads");
+    reported = true;
+  }
+
+  if (millis() - lastTime > 1000) {
+    rate = echoed / ((millis() - lastTime) / 1000f);
+    echoed = 0;
+    lastTime = millis();
+  }
+
+  background(0);
+  text(server.clientCount + " clients connected", 20, 40);
+  text(nf(rate / 1024, 0, 1) + " KB/s echoed", 20, 70);
+  text(Thread.activeCount() + " threads", 20, 100);
+  text(nf(frameRate, 0, 1) + " fps", 20, 130);
+}
@@ -23,7 +23,11 @@ package processing.pdf;
 import java.awt.Font;
 import java.awt.Graphics2D;
 import java.awt.Image;
+import java.awt.geom.AffineTransform;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
 
 import com.lowagie.text.*;
@@ -60,6 +64,21 @@ public class PGraphicsPDF extends PGraphicsJava2D {
   static protected DefaultFontMapper mapper;
   static protected String[] fontList;
 
+  /**
+   * Images already written to the file, by their contents. Each is written
+   * once as a form XObject, and pages that use it again only refer to it.
+   * The oldest are forgotten once there are more than IMAGE_CACHE_SIZE,
+   * they'll just be written again if they come back.
+   */
+  protected Map<String, PdfTemplate> imageCache;
+  static protected final int IMAGE_CACHE_SIZE = 1024;
+
+  /** Fonts used so far, so that every page shares the same ones. */
+  protected FontCache fontCache;
+
+  /** Drawing images isn't affected by the fill alpha. */
+  static protected PdfGState opaque;
+
 
   /*
   public PGraphicsPDF() {
@@ -325,6 +344,8 @@ public class PGraphicsPDF extends PGraphicsJava2D {
     try {
 //    writer.setPageEmpty(false);  // maybe useful later
       document.newPage();  // is this bad if no addl pages are made?
+      // the finished page has been written, get it out of the buffer
+      output.flush();
     } catch (Exception e) {
       e.printStackTrace();
     }
@@ -338,7 +359,10 @@ public class PGraphicsPDF extends PGraphicsJava2D {
     if (textMode == SHAPE) {
       return content.createGraphicsShapes(width, height);
     } else if (textMode == MODEL) {
-      return content.createGraphics(width, height, getMapper());
+      if (fontCache == null) {
+        fontCache = new FontCache(getMapper());
+      }
+      return content.createGraphics(width, height, fontCache);
     }
     // Should not be reachable...
     throw new RuntimeException("Invalid textMode() selected for PDF.");
@@ -350,6 +374,8 @@ public class PGraphicsPDF extends PGraphicsJava2D {
       g2.dispose();
       document.close();  // can't be done in finalize, not always called
       document = null;
+      imageCache = null;
+      fontCache = null;
     }
     //new Exception().printStackTrace(System.out);
   }
@@ -423,15 +449,110 @@ public class PGraphicsPDF extends PGraphicsJava2D {
     scale((x2 - x1) / imageWidth,
           (y2 - y1) / imageHeight);
     if (u2-u1 == imageWidth && v2-v1 == imageHeight) {
-      g2.drawImage(image.getImage(), 0, 0, null);
+      drawImage(image);
     } else {
-      PImage tmp = image.get(u1, v1, u2-u1, v2-v1);
-      g2.drawImage((Image) tmp.getNative(), 0, 0, null);
+      drawImage(image.get(u1, v1, u2-u1, v2-v1));
     }
     popMatrix();
   }
 
 
+  /**
+   * Draw an image at the origin, at one unit per pixel. Same as drawing
+   * it with g2, but each distinct image is only written to the file once.
+   */
+  protected void drawImage(PImage image) {
+    image.loadPixels();
+    int w = image.pixelWidth;
+    int h = image.pixelHeight;
+
+    String key = imageKey(image, w, h);
+
+    if (imageCache == null) {
+      imageCache = new LinkedHashMap<String, PdfTemplate>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, PdfTemplate> eldest) {
+          return size() > IMAGE_CACHE_SIZE;
+        }
+      };
+    }
+    PdfTemplate template = imageCache.get(key);
+    boolean created = false;
+    if (template == null) {
+      try {
+        template = content.createTemplate(w, h);
+        com.lowagie.text.Image pdfImage =
+          com.lowagie.text.Image.getInstance((Image) image.getNative(), null);
+        template.addImage(pdfImage, w, 0, 0, h, 0, 0);
+      } catch (Exception e) {
+        throw new RuntimeException("Could not add image to the PDF.", e);
+      }
+      created = true;
+    }
+
+    // same placement as PdfGraphics2D uses: flip the page, apply the
+    // current transform, then flip the image back over
+    AffineTransform tx = new AffineTransform(1, 0, 0, -1, 0, height);
+    tx.concatenate(g2.getTransform());
+    tx.translate(0, h);
+    tx.scale(1, -1);
+    double[] mx = new double[6];
+    tx.getMatrix(mx);
+
+    if (opaque == null) {
+      opaque = new PdfGState();
+      opaque.setFillOpacity(1);
+    }
+    content.saveState();
+    content.setGState(opaque);
+    content.addTemplate(template, (float) mx[0], (float) mx[1],
+                        (float) mx[2], (float) mx[3],
+                        (float) mx[4], (float) mx[5]);
+    content.restoreState();
+
+    if (created) {
+      try {
+        // write it out now, only a reference to it is kept
+        writer.releaseTemplate(template);
+      } catch (IOException e) {
+        throw new RuntimeException("Could not add image to the PDF.", e);
+      }
+      imageCache.put(key, template);
+    }
+  }
+
+
+  /**
+   * A key for the image's contents: its size and format, and a SHA-256
+   * digest of its pixels. A digest rather than the pixels themselves, to not
+   * hold on to them, and a strong one so that two different images can't
+   * end up sharing the same XObject.
+   */
+  static protected String imageKey(PImage image, int w, int h) {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);  // every Java has SHA-256
+    }
+    // a row at a time, so a large image isn't copied all at once
+    ByteBuffer row = ByteBuffer.allocate(w * 4);
+    int[] pixels = image.pixels;
+    for (int y = 0; y < h; y++) {
+      row.clear();
+      row.asIntBuffer().put(pixels, y*w, w);
+      digest.update(row.array());
+    }
+    StringBuilder key = new StringBuilder();
+    key.append(w).append('x').append(h).append('-').append(image.format).append('-');
+    for (byte b : digest.digest()) {
+      key.append(Character.forDigit((b >> 4) & 0xF, 16));
+      key.append(Character.forDigit(b & 0xF, 16));
+    }
+    return key.toString();
+  }
+
+
   //////////////////////////////////////////////////////////////
 
 
@@ -677,6 +798,35 @@ public class PGraphicsPDF extends PGraphicsJava2D {
   }
 
 
+  /**
+   * Hands PdfGraphics2D the same BaseFont each time it asks for a font,
+   * so that a font used on many pages is only embedded once.
+   */
+  static protected class FontCache implements FontMapper {
+    FontMapper mapper;
+    Map<String, BaseFont> fonts = new HashMap<String, BaseFont>();
+
+    public FontCache(FontMapper mapper) {
+      this.mapper = mapper;
+    }
+
+    public BaseFont awtToPdf(Font font) {
+      // the size doesn't matter, a BaseFont is used at any size
+      String key = font.getFontName() + "-" + font.getName() + "-" + font.getStyle();
+      BaseFont base = fonts.get(key);
+      if (base == null) {
+        base = mapper.awtToPdf(font);
+        fonts.put(key, base);
+      }
+      return base;
+    }
+
+    public Font pdfToAwt(BaseFont font, int size) {
+      return mapper.pdfToAwt(font, size);
+    }
+  }
+
+
   //////////////////////////////////////////////////////////////
 
 
@@ -0,0 +1,64 @@
+// Writes a long PDF, one page per frame, the way a report would be
+// generated, and prints pages per second and the most heap used.
+// Every page has the same logo, so it should only be in the file once.
+
+import processing.pdf.*;
+
+int pageCount = 2000;
+
+PGraphicsPDF pdf;
+PImage logo;
+int pages;
+int start;
+long peakHeap;
+
+void setup() {
+  size(400, 200);
+  pdf = (PGraphicsPDF) createGraphics(600, 800, PDF, "pages.pdf");
+
+  logo = createImage(200, 200, RGB);
+  logo.loadPixels();
+  for (int i = 0; i < logo.pixels.length; i++) {
+    logo.pixels[i] = color(i % 200, i / 200, 128);
+  }
+  logo.updatePixels();
+
+  pdf.beginDraw();
+  pdf.textFont(createFont("SansSerif", 14));
+  start = millis();
+}
+
+void draw() {
+  for (int i = 0; i < 50 && pages < pageCount; i++) {
+    pdf.image(logo, 20, 20);
+    pdf.fill(0);
+    pdf.text("Page " + (pages + 1), 300, 40);
+    for (int j = 0; j < 200; j++) {
+      pdf.line(j * 3, 300, 600 - j * 3, 700);
+    }
+    pages++;
+    if (pages < pageCount) {
+      pdf.nextPage();
+    }
+  }
+
+  Runtime runtime = Runtime.getRuntime();
+  peakHeap = max(peakHeap, runtime.totalMemory() - runtime.freeMemory());
+
+  float seconds = (millis() - start) / 1000.0;
+  background(255);
+  fill(0);
+  text(pages + " pages", 20, 40);
+  text(nf(pages / seconds, 0, 1) + " pages per second", 20, 60);
+  text((peakHeap >> 20) + " MB peak heap", 20, 80);
+
+  if (pages == pageCount) {
+    pdf.endDraw();
+    pdf.dispose();
+    println(pageCount + " pages in " + nf(seconds, 0, 1) + " seconds, " +
+            nf(pageCount / seconds, 0, 1) + " pages per second, " +
+            (peakHeap >> 20) + " MB peak heap, " +
+            (new File(sketchPath("pages.pdf")).length() >> 20) + " MB file");
+    noLoop();
+  }
+}
@@ -0,0 +1,159 @@
+/* -*- mode: java; c-basic-offset: 2; indent-tabs-mode: nil -*- */
+
+/*
+  RingBuffer - receive buffer for the serial library
+  Part of the Processing project - http://processing.org
+
+  Copyright (c) 2017 The Processing Foundation
+
+  This library is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General
+  Public License along with this library; if not, write to the
+  Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+  Boston, MA  02111-1307  USA
+*/
+
+package processing.serial;
+
+
+/**
+ * Single producer, single consumer circular buffer. The producer (the
+ * serial port's event thread) never takes a lock: it copies data in past
+ * the end, then makes it visible to the consumer by moving 'tail'. The
+ * consumer only moves 'head'. Positions are running totals, and wrap
+ * around the array with a mask, so nothing ever gets shifted down.
+ * <p/>
+ * Only one thread may read at a time; Serial takes care of that with
+ * its own lock. The producer only takes that lock to drop data when the
+ * buffer is full, and is then the one reading.
+ */
+class RingBuffer {
+  final byte[] data;
+  final int mask;
+
+  /** Position of the next byte to read, only changed by the consumer */
+  volatile long head;
+  /** End of the data the consumer can see, only changed by the producer */
+  volatile long tail;
+  /** End of the data copied in so far, only used by the producer */
+  long written;
+
+
+  /** @param capacity rounded up to a power of 2 */
+  RingBuffer(int capacity) {
+    int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+    data = new byte[size];
+    mask = size - 1;
+  }
+
+
+  // . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . .
+
+  // producer
+
+
+  /** Room left for the producer to copy into. */
+  int free() {
+    return data.length - (int) (written - head);
+  }
+
+
+  /**
+   * Copy data in after anything already written, without making it
+   * visible yet. The caller has to make sure it fits (see free()).
+   */
+  void write(byte[] src, int offset, int length) {
+    int start = (int) written & mask;
+    int first = Math.min(length, data.length - start);
+    System.arraycopy(src, offset, data, start, first);
+    System.arraycopy(src, offset + first, data, 0, length - first);
+    written += length;
+  }
+
+
+  /** Let the consumer see everything up to 'position'. */
+  void publish(long position) {
+    tail = position;
+  }
+
+
+  // . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . .
+
+  // either side
+
+
+  int available() {
+    return (int) (tail - head);
+  }
+
+
+  /** Byte at an absolute position, which has to be between head and written. */
+  byte get(long position) {
+    return data[(int) position & mask];
+  }
+
+
+  /**
+   * Find the next occurrence of 'what' in [from, to), without copying.
+   * @return its position, or -1 if not there
+   */
+  long indexOf(byte what, long from, long to) {
+    for (long i = from; i < to; i++) {
+      if (data[(int) i & mask] == what) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+
+  // . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . .
+
+  // consumer
+
+
+  /** @return next byte, or -1 if nothing is available */
+  int read() {
+    long h = head;
+    if (h == tail) {
+      return -1;
+    }
+    int outgoing = data[(int) h & mask] & 0xff;
+    head = h + 1;
+    return outgoing;
+  }
+
+
+  /** Copy up to 'length' bytes out, and remove them. */
+  int read(byte[] dst, int offset, int length) {
+    long h = head;
+    length = Math.min(length, (int) (tail - h));
+    int start = (int) h & mask;
+    int first = Math.min(length, data.length - start);
+    System.arraycopy(data, start, dst, offset, first);
+    System.arraycopy(data, 0, dst, offset + first, length - first);
+    head = h + length;
+    return length;
+  }
+
+
+  /** Drop 'length' bytes without reading them. */
+  void skip(int length) {
+    head = head + length;
+  }
+
+
+  /** Drop everything that's visible. */
+  void clear() {
+    head = tail;
+  }
+}
@@ -51,13 +51,36 @@ public class Serial implements SerialPortEventListener {
   Method serialAvailableMethod;
   Method serialEventMethod;
 
-  byte[] buffer = new byte[32768];
-  int inBuffer = 0;
-  int readOffset = 0;
+  /** Most data held before the sketch reads it */
+  static final int BUFFER_CAPACITY = 1 << 20;
+
+  RingBuffer buffer = new RingBuffer(BUFFER_CAPACITY);
+  /**
+   * Taken by anything reading from the buffer. The serial thread only
+   * takes it when the buffer is full, to drop what can't be kept.
+   */
+  final Object readLock = new Object();
 
   int bufferUntilSize = 1;
   byte bufferUntilByte = 0;
 
+  static final int FRAME_NONE = 0;
+  static final int FRAME_UNTIL = 1;
+  static final int FRAME_LENGTH = 2;
+  static final int FRAME_PREFIXED = 3;
+
+  volatile int frameMode = FRAME_NONE;
+  /** Delimiter, frame length, or size of the length prefix */
+  volatile int frameValue;
+
+  // only used by the serial thread, to find where to send serialEvent()
+  /** How far the search for the next delimiter has gotten */
+  long scanned;
+  /** Start of the next frame */
+  long frameStart;
+  /** Set once the sketch has been told that it's falling behind */
+  boolean overflowed;
+
   volatile boolean invokeSerialAvailable = false;
 
   // Things we are currently not exposing:
@@ -141,6 +164,20 @@ public class Serial implements SerialPortEventListener {
     serialAvailableMethod = findCallback("serialAvailable");
   }
 
+
+  /**
+   * Use a port that's already open, without listening to it. Data gets
+   * in when serialEvent() is called, which lets tests stand in for the
+   * hardware.
+   */
+  Serial(PApplet parent, SerialPort port) {
+    this.parent = parent;
+    this.port = port;
+    serialEventMethod = findCallback("serialEvent");
+    serialAvailableMethod = findCallback("serialAvailable");
+  }
+
+
   private Method findCallback(final String name) {
     try {
       return parent.getClass().getMethod(name, this.getClass());
@@ -192,7 +229,7 @@ public class Serial implements SerialPortEventListener {
    * @usage web_application
    */
   public int available() {
-    return (inBuffer-readOffset);
+    return buffer.available();
   }
 
 
@@ -203,6 +240,7 @@ public class Serial implements SerialPortEventListener {
    * @param size number of bytes to buffer
    */
   public void buffer(int size) {
+    frameMode = FRAME_NONE;
     bufferUntilSize = size;
   }
 
@@ -214,20 +252,64 @@ public class Serial implements SerialPortEventListener {
    * @param inByte the value to buffer until
    */
   public void bufferUntil(int inByte) {
+    frameMode = FRAME_NONE;
     bufferUntilSize = 0;
     bufferUntilByte = (byte)inByte;
   }
 
 
+  /**
+   * Split incoming data into frames that end with 'inByte' (which is
+   * included in the frame). Read them with readFrame(), and if the sketch
+   * has a serialEvent(), it's called once for each frame that arrives.
+   *
+   * @param inByte the value that ends each frame
+   */
+  public void frameUntil(int inByte) {
+    frameValue = inByte & 0xFF;
+    frameMode = FRAME_UNTIL;
+  }
+
+
+  /**
+   * Split incoming data into frames of 'length' bytes each.
+   * See frameUntil() for how they're read.
+   *
+   * @param length number of bytes in each frame
+   */
+  public void frameLength(int length) {
+    if (length > BUFFER_CAPACITY) {
+      throw new IllegalArgumentException("Frames can't be longer than " + BUFFER_CAPACITY + " bytes");
+    }
+    frameValue = Math.max(1, length);
+    frameMode = FRAME_LENGTH;
+  }
+
+
+  /**
+   * Split incoming data into frames that each start with their length:
+   * an unsigned, big-endian number of 1, 2, or 4 bytes. readFrame()
+   * returns the data after the length. See frameUntil() for more.
+   *
+   * @param prefixSize number of bytes used for the length (1, 2, or 4)
+   */
+  public void framePrefixed(int prefixSize) {
+    if (prefixSize != 1 && prefixSize != 2 && prefixSize != 4) {
+      throw new IllegalArgumentException("The length before each frame has to be 1, 2, or 4 bytes");
+    }
+    frameValue = prefixSize;
+    frameMode = FRAME_PREFIXED;
+  }
+
+
   /**
    * @generate Serial_clear.xml
    * @webref serial:serial
    * @usage web_application
    */
   public void clear() {
-    synchronized (buffer) {
-      inBuffer = 0;
-      readOffset = 0;
+    synchronized (readLock) {
+      buffer.clear();
     }
   }
 
@@ -265,14 +347,13 @@ public class Serial implements SerialPortEventListener {
    * @usage web_application
    */
   public int last() {
-    if (inBuffer == readOffset) {
-      return -1;
-    }
-
-    synchronized (buffer) {
-      int ret = buffer[inBuffer-1] & 0xFF;
-      inBuffer = 0;
-      readOffset = 0;
+    synchronized (readLock) {
+      long end = buffer.tail;
+      if (end == buffer.head) {
+        return -1;
+      }
+      int ret = buffer.get(end - 1) & 0xFF;
+      buffer.skip((int) (end - buffer.head));
       return ret;
     }
   }
@@ -306,17 +387,8 @@ public class Serial implements SerialPortEventListener {
    * @usage web_application
    */
   public int read() {
-    if (inBuffer == readOffset) {
-      return -1;
-    }
-
-    synchronized (buffer) {
-      int ret = buffer[readOffset++] & 0xFF;
-      if (inBuffer == readOffset) {
-        inBuffer = 0;
-        readOffset = 0;
-      }
-      return ret;
+    synchronized (readLock) {
+      return buffer.read();
     }
   }
 
@@ -327,15 +399,13 @@ public class Serial implements SerialPortEventListener {
    * @usage web_application
    */
   public byte[] readBytes() {
-    if (inBuffer == readOffset) {
-      return null;
-    }
-
-    synchronized (buffer) {
-      byte[] ret = new byte[inBuffer-readOffset];
-      System.arraycopy(buffer, readOffset, ret, 0, ret.length);
-      inBuffer = 0;
-      readOffset = 0;
+    synchronized (readLock) {
+      int length = buffer.available();
+      if (length == 0) {
+        return null;
+      }
+      byte[] ret = new byte[length];
+      buffer.read(ret, 0, length);
       return ret;
     }
   }
@@ -352,21 +422,13 @@ public class Serial implements SerialPortEventListener {
    * @param max the maximum number of bytes to read
    */
   public byte[] readBytes(int max) {
-    if (inBuffer == readOffset) {
-      return null;
-    }
-
-    synchronized (buffer) {
-      int length = inBuffer - readOffset;
-      if (length > max) length = max;
-      byte[] ret = new byte[length];
-      System.arraycopy(buffer, readOffset, ret, 0, length);
-
-      readOffset += length;
-      if (inBuffer == readOffset) {
-        inBuffer = 0;
-        readOffset = 0;
+    synchronized (readLock) {
+      int length = Math.min(buffer.available(), max);
+      if (length == 0) {
+        return null;
       }
+      byte[] ret = new byte[length];
+      buffer.read(ret, 0, length);
       return ret;
     }
   }
@@ -383,22 +445,8 @@ public class Serial implements SerialPortEventListener {
    * that will fit are read.
    */
   public int readBytes(byte[] dest) {
-    if (inBuffer == readOffset) {
-      return 0;
-    }
-
-    synchronized (buffer) {
-      int toCopy = inBuffer-readOffset;
-      if (dest.length < toCopy) {
-        toCopy = dest.length;
-      }
-      System.arraycopy(buffer, readOffset, dest, 0, toCopy);
-      readOffset += toCopy;
-      if (inBuffer == readOffset) {
-        inBuffer = 0;
-        readOffset = 0;
-      }
-      return toCopy;
+    synchronized (readLock) {
+      return buffer.read(dest, 0, dest.length);
     }
   }
   
@@ -410,31 +458,16 @@ public class Serial implements SerialPortEventListener {
    * @param inByte character designated to mark the end of the data
    */
   public byte[] readBytesUntil(int inByte) {
-    if (inBuffer == readOffset) {
-      return null;
-    }
-
-    synchronized (buffer) {
+    synchronized (readLock) {
       // look for needle in buffer
-      int found = -1;
-      for (int i=readOffset; i < inBuffer; i++) {
-        if (buffer[i] == (byte)inByte) {
-          found = i;
-          break;
-        }
-      }
+      long start = buffer.head;
+      long found = buffer.indexOf((byte)inByte, start, buffer.tail);
       if (found == -1) {
         return null;
       }
 
-      int toCopy = found-readOffset+1;
-      byte[] dest = new byte[toCopy];
-      System.arraycopy(buffer, readOffset, dest, 0, toCopy);
-      readOffset += toCopy;
-      if (inBuffer == readOffset) {
-        inBuffer = 0;
-        readOffset = 0;
-      }
+      byte[] dest = new byte[(int) (found-start+1)];
+      buffer.read(dest, 0, dest.length);
       return dest;
     }
   }
@@ -449,38 +482,23 @@ public class Serial implements SerialPortEventListener {
    * @param dest passed in byte array to be altered
    */
   public int readBytesUntil(int inByte, byte[] dest) {
-    if (inBuffer == readOffset) {
-      return 0;
-    }
-
-    synchronized (buffer) {
+    synchronized (readLock) {
       // look for needle in buffer
-      int found = -1;
-      for (int i=readOffset; i < inBuffer; i++) {
-        if (buffer[i] == (byte)inByte) {
-          found = i;
-          break;
-        }
-      }
+      long start = buffer.head;
+      long found = buffer.indexOf((byte)inByte, start, buffer.tail);
       if (found == -1) {
         return 0;
       }
 
       // check if bytes to copy fit in dest
-      int toCopy = found-readOffset+1;
+      int toCopy = (int) (found-start+1);
       if (dest.length < toCopy) {
         System.err.println( "The buffer passed to readBytesUntil() is to small " +
                   "to contain " + toCopy + " bytes up to and including " +
                   "char " + (byte)inByte);
         return -1;
       }
-      System.arraycopy(buffer, readOffset, dest, 0, toCopy);
-      readOffset += toCopy;
-      if (inBuffer == readOffset) {
-        inBuffer = 0;
-        readOffset = 0;
-      }
-      return toCopy;
+      return buffer.read(dest, 0, toCopy);
     }
   }
 
@@ -501,10 +519,11 @@ public class Serial implements SerialPortEventListener {
    * @usage web_application
    */
   public String readString() {
-    if (inBuffer == readOffset) {
+    byte[] temp = readBytes();
+    if (temp == null) {
       return null;
     }
-    return new String(readBytes());
+    return new String(temp);
   }
 
 
@@ -529,6 +548,112 @@ public class Serial implements SerialPortEventListener {
   }
 
 
+  /**
+   * Returns the next whole frame, as set up with frameUntil(),
+   * frameLength(), or framePrefixed(). Returns null if a complete
+   * frame hasn't arrived yet.
+   */
+  public byte[] readFrame() {
+    synchronized (readLock) {
+      long[] frame = nextFrame();
+      if (frame == null) {
+        return null;
+      }
+      byte[] ret = new byte[(int) frame[1]];
+      buffer.skip((int) frame[0]);
+      buffer.read(ret, 0, ret.length);
+      return ret;
+    }
+  }
+
+
+  /**
+   * Reads the next whole frame into 'dest', without allocating anything.
+   * Returns the size of the frame, 0 if there isn't a complete frame yet,
+   * or -1 if 'dest' is too small (in which case the frame is left alone).
+   *
+   * @param dest passed in byte array to be altered
+   */
+  public int readFrame(byte[] dest) {
+    synchronized (readLock) {
+      long[] frame = nextFrame();
+      if (frame == null) {
+        return 0;
+      }
+      if (dest.length < frame[1]) {
+        System.err.println("The buffer passed to readFrame() is too small " +
+                           "for a frame of " + frame[1] + " bytes");
+        return -1;
+      }
+      buffer.skip((int) frame[0]);
+      return buffer.read(dest, 0, (int) frame[1]);
+    }
+  }
+
+
+  /**
+   * Find the complete frame at the start of the buffer, if any.
+   * @return bytes to skip (the length prefix) and size of the frame,
+   *         or null if there's no complete frame
+   */
+  private long[] nextFrame() {
+    long start = buffer.head;
+    long end = buffer.tail;
+    int value = frameValue;
+    switch (frameMode) {
+    case FRAME_UNTIL:
+      long found = buffer.indexOf((byte) value, start, end);
+      if (found != -1) {
+        return new long[] { 0, found - start + 1 };
+      }
+      break;
+    case FRAME_LENGTH:
+      if (end - start >= value) {
+        return new long[] { 0, value };
+      }
+      break;
+    case FRAME_PREFIXED:
+      if (end - start >= value) {
+        long length = prefixedLength(start, value);
+        if (frameTooLarge(length, value)) {
+          return null;
+        }
+        if (end - start >= value + length) {
+          return new long[] { value, length };
+        }
+      }
+      break;
+    }
+    return null;
+  }
+
+
+  /**
+   * A frame that's bigger than the buffer could never be read, so
+   * framePrefixed() is turned off, the data is left for read() and
+   * the rest, and the sketch is told about it.
+   */
+  private boolean frameTooLarge(long length, int prefixSize) {
+    if (prefixSize + length <= buffer.data.length) {
+      return false;
+    }
+    System.err.println("A frame of " + length + " bytes is too large, " +
+                       "turning off framePrefixed() for " + port.getPortName());
+    frameMode = FRAME_NONE;
+    return true;
+  }
+
+
+  /** Read the length before a frame, at 'position' in the buffer. */
+  private long prefixedLength(long position, int prefixSize) {
+    long length = 0;
+    for (int i = 0; i < prefixSize; i++) {
+      length = (length << 8) | (buffer.get(position + i) & 0xFF);
+    }
+    return length;
+  }
+
+
   /**
    * @generate serialEvent.xml
    * @webref serial:events
@@ -540,42 +665,17 @@ public class Serial implements SerialPortEventListener {
       int toRead;
       try {
         while (0 < (toRead = port.getInputBufferBytesCount())) {
-          // this method can be called from the context of another thread
-          synchronized (buffer) {
-            // read one byte at a time if the sketch is using serialEvent
-            if (serialEventMethod != null) {
-              toRead = 1;
-            }
-            // enlarge buffer if necessary
-            if (buffer.length < inBuffer+toRead) {
-              byte temp[] = new byte[buffer.length<<1];
-              System.arraycopy(buffer, 0, temp, 0, inBuffer);
-              buffer = temp;
-            }
-            // read an array of bytes and copy it into our buffer
-            byte[] read = port.readBytes(toRead);
-            System.arraycopy(read, 0, buffer, inBuffer, read.length);
-            inBuffer += read.length;
-          }
-          if (serialEventMethod != null) {
-            if ((0 < bufferUntilSize && bufferUntilSize <= inBuffer-readOffset) ||
-              (0 == bufferUntilSize && bufferUntilByte == buffer[inBuffer-1])) {
-              try {
-                // serialEvent() is invoked in the context of the current (serial) thread
-                // which means that serialization and atomic variables need to be used to
-                // guarantee reliable operation (and better not draw() etc..)
-                // serialAvailable() does not provide any real benefits over using
-                // available() and read() inside draw - but this function has no
-                // thread-safety issues since it's being invoked during pre in the context
-                // of the Processing applet
-                serialEventMethod.invoke(parent, this);
-              } catch (Exception e) {
-                System.err.println("Error, disabling serialEvent() for "+port.getPortName());
-                System.err.println(e.getLocalizedMessage());
-                serialEventMethod = null;
-              }
-            }
+          if (buffer.free() > 0) {
+            overflowed = false;
+          } else if (!overflow(toRead)) {
+            // leave the rest with the OS until the sketch catches up
+            break;
           }
+          toRead = Math.min(toRead, buffer.free());
+          // read an array of bytes and copy it into our buffer
+          byte[] read = port.readBytes(toRead);
+          buffer.write(read, 0, read.length);
+          publish();
           invokeSerialAvailable = true;
         }
       } catch (SerialPortException e) {
@@ -585,6 +685,157 @@ public class Serial implements SerialPortEventListener {
   }
 
 
+  /**
+   * Make room in a full buffer, when what's in it can't be kept. Without
+   * framing, the oldest data is dropped to make room for the newest. If no
+   * delimiter or frame could be found in all of it, that never will be,
+   * so everything is dropped. Only whole frames that the sketch hasn't
+   * read yet are kept, in which case this waits for the sketch.
+   * @param wanted bytes waiting to be read from the port
+   * @return true if there's room now
+   */
+  private boolean overflow(int wanted) {
+    synchronized (readLock) {
+      if (buffer.free() > 0) {
+        return true;  // the sketch has just read some
+      }
+      int mode = frameMode;
+      boolean delimited = (mode == FRAME_UNTIL) ||
+        (mode == FRAME_NONE && bufferUntilSize == 0);
+      if (mode != FRAME_NONE && nextFrame() != null) {
+        if (!overflowed) {
+          System.err.println("The sketch isn't reading frames from " + port.getPortName() +
+                             " fast enough, waiting for it to catch up");
+          overflowed = true;
+        }
+        return false;
+      }
+      if (delimited) {
+        byte what = (mode == FRAME_UNTIL) ? (byte) frameValue : bufferUntilByte;
+        if (buffer.indexOf(what, buffer.head, buffer.tail) == -1) {
+          System.err.println("No delimiter in the last " + buffer.available() +
+                             " bytes from " + port.getPortName() + ", dropping them");
+          buffer.clear();
+          return true;
+        }
+      } else if (mode != FRAME_NONE) {
+        // no complete frame, or framing was just turned off because of
+        // a frame that's too large, either way what's there is no use
+        System.err.println("No complete frame in the last " + buffer.available() +
+                           " bytes from " + port.getPortName() + ", dropping them");
+        buffer.clear();
+        return true;
+      }
+      if (!overflowed) {
+        System.err.println("The sketch isn't reading from " + port.getPortName() +
+                           " fast enough, dropping the oldest data");
+        overflowed = true;
+      }
+      buffer.skip(Math.min(wanted, buffer.available()));
+      return true;
+    }
+  }
+
+
+  /**
+   * Make what's just been received available to the sketch. When there's a
+   * serialEvent(), the data is handed over in pieces that each end where an
+   * event is due, so that the sketch sees the same thing from inside the
+   * event as it would if the bytes had been read one at a time.
+   */
+  private void publish() {
+    long written = buffer.written;
+    if (serialEventMethod == null) {
+      buffer.publish(written);
+      return;
+    }
+    while (buffer.tail < written) {
+      long end = nextEvent(written);
+      if (end == -1) {
+        buffer.publish(written);
+        break;
+      }
+      buffer.publish(end);
+      try {
+        // serialEvent() is invoked in the context of the current (serial) thread
+        // which means that serialization and atomic variables need to be used to
+        // guarantee reliable operation (and better not draw() etc..)
+        // serialAvailable() does not provide any real benefits over using
+        // available() and read() inside draw - but this function has no
+        // thread-safety issues since it's being invoked during pre in the context
+        // of the Processing applet
+        serialEventMethod.invoke(parent, this);
+      } catch (Exception e) {
+        System.err.println("Error, disabling serialEvent() for "+port.getPortName());
+        System.err.println(e.getLocalizedMessage());
+        serialEventMethod = null;
+        buffer.publish(written);
+        break;
+      }
+    }
+  }
+
+
+  /**
+   * Find where the next serialEvent() is due in the data that's been
+   * written but not published. Only called from the serial thread.
+   * @return the position just after it, or -1 if there isn't one
+   */
+  private long nextEvent(long written) {
+    long tail = buffer.tail;
+    long head = buffer.head;
+    int value = frameValue;
+
+    switch (frameMode) {
+    case FRAME_NONE:
+      if (bufferUntilSize > 0) {
+        // once there are bufferUntilSize bytes, every byte gets an event
+        long end = Math.max(head + bufferUntilSize, tail + 1);
+        return (end <= written) ? end : -1;
+      }
+      return nextDelimiter(bufferUntilByte, tail, written);
+
+    case FRAME_UNTIL:
+      return nextDelimiter((byte) value, tail, written);
+
+    case FRAME_LENGTH:
+      if (frameStart < head) {
+        frameStart = head;  // the sketch has been reading on its own
+      }
+      if (frameStart + value <= written) {
+        frameStart += value;
+        return frameStart;
+      }
+      return -1;
+
+    case FRAME_PREFIXED:
+      if (frameStart < head) {
+        frameStart = head;
+      }
+      if (frameStart + value <= written) {
+        long length = prefixedLength(frameStart, value);
+        if (frameTooLarge(length, value)) {
+          return -1;
+        }
+        if (frameStart + value + length <= written) {
+          frameStart += value + length;
+          return frameStart;
+        }
+      }
+      return -1;
+    }
+    return -1;
+  }
+
+
+  private long nextDelimiter(byte what, long tail, long written) {
+    // only look at each byte once, however many times this is called
+    long found = buffer.indexOf(what, Math.max(scanned, tail), written);
+    scanned = (found == -1) ? written : found + 1;
+    return (found == -1) ? -1 : found + 1;
+  }
+
+
   /**
    * Set the DTR line
    */
@@ -622,8 +873,7 @@ public class Serial implements SerialPortEventListener {
     } catch (SerialPortException e) {
       // ignored
     }
-    inBuffer = 0;
-    readOffset = 0;
+    clear();
   }
 
 
@@ -0,0 +1,67 @@
+// Sends frames from one end of a pseudo-terminal pair to the other,
+// and checks that every one of them arrives whole and in order.
+// No hardware needed. On Linux or macOS, make the pair with
+//   socat -d -d pty,raw,echo=0,link=/tmp/ttyPDE0 pty,raw,echo=0,link=/tmp/ttyPDE1
+// and leave socat running while the sketch does.
+
+import processing.serial.*;
+
+String portA = "/tmp/ttyPDE0";
+String portB = "/tmp/ttyPDE1";
+
+Serial sender;
+Serial receiver;
+byte[] frame = new byte[1024];
+int sent;
+int received;
+long bytes;
+int bad;
+int start;
+
+void setup() {
+  size(400, 200);
+  sender = new Serial(this, portA, 115200);
+  receiver = new Serial(this, portB, 115200);
+  // each frame starts with its length, as two bytes
+  receiver.framePrefixed(2);
+  start = millis();
+}
+
+void draw() {
+  // send a few hundred frames of different sizes each time
+  for (int i = 0; i < 200; i++) {
+    int length = (sent * 37) % 300 + 1;
+    byte[] out = new byte[length + 2];
+    out[0] = (byte) (length >> 8);
+    out[1] = (byte) length;
+    for (int j = 0; j < length; j++) {
+      out[j + 2] = (byte) (sent + j);
+    }
+    sender.write(out);
+    sent++;
+  }
+
+  background(255);
+  fill(0);
+  text(sent + " frames sent", 20, 40);
+  text(received + " frames received", 20, 60);
+  text(bad + " bad frames", 20, 80);
+  text(nf(bytes / 1024f / ((millis() - start) / 1000f), 0, 1) + " KB/s", 20, 100);
+}
+
+void serialEvent(Serial port) {
+  // called once for each whole frame
+  int length = port.readFrame(frame);
+  if (length <= 0) {
+    bad++;
+    return;
+  }
+  for (int j = 0; j < length; j++) {
+    if (frame[j] != (byte) (received + j)) {
+      bad++;
+      break;
+    }
+  }
+  received++;
+  bytes += length;
+}
@@ -0,0 +1,125 @@
+package processing.serial;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+
+import jssc.SerialPort;
+import jssc.SerialPortEvent;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import processing.core.PApplet;
+
+/**
+ * Data from a stand-in for the port, read the way a sketch would poll
+ * for it in draw(), to see what happens once the buffer fills up.
+ */
+public class SerialTests {
+  static final int CAPACITY = Serial.BUFFER_CAPACITY;
+
+  /** Hands out whatever the test has fed it, the way the OS would. */
+  static class FakePort extends SerialPort {
+    byte[] pending = new byte[0];
+
+    FakePort() {
+      super("fake");
+    }
+
+    void feed(byte[] data) {
+      int length = pending.length;
+      pending = Arrays.copyOf(pending, length + data.length);
+      System.arraycopy(data, 0, pending, length, data.length);
+    }
+
+    public int getInputBufferBytesCount() {
+      return pending.length;
+    }
+
+    public byte[] readBytes(int count) {
+      byte[] outgoing = Arrays.copyOf(pending, count);
+      pending = Arrays.copyOfRange(pending, count, pending.length);
+      return outgoing;
+    }
+  }
+
+  FakePort port;
+  Serial serial;
+
+  @Before
+  public void setUp() {
+    port = new FakePort();
+    serial = new Serial(new PApplet(), port);
+  }
+
+  /** Feed the data, and let the serial thread read it in pieces. */
+  void receive(byte[] data) {
+    port.feed(data);
+    serial.serialEvent(new SerialPortEvent("fake", SerialPortEvent.RXCHAR, data.length));
+  }
+
+  static byte[] filled(int length, char c) {
+    byte[] outgoing = new byte[length];
+    Arrays.fill(outgoing, (byte) c);
+    return outgoing;
+  }
+
+  @Test
+  public void tooLargePrefixedFrameWhenPolling() {
+    serial.framePrefixed(4);
+    receive(new byte[] { 0x7f, 0, 0, 0, 'a', 'b' });
+    // no serialEvent(), so this is where the size is first looked at
+    assertNull(serial.readFrame());
+    assertEquals(Serial.FRAME_NONE, serial.frameMode);
+    assertEquals(6, serial.readBytes().length);
+  }
+
+  @Test
+  public void missingDelimiterIsDropped() {
+    serial.frameUntil('\n');
+    receive(filled(CAPACITY, 'x'));
+    assertEquals(CAPACITY, serial.available());
+    assertNull(serial.readFrame());
+
+    // the buffer is full without a delimiter, so it can't become a frame
+    receive("abc\n".getBytes());
+    assertEquals(0, port.getInputBufferBytesCount());
+    assertArrayEquals("abc\n".getBytes(), serial.readFrame());
+  }
+
+  @Test
+  public void missingDelimiterIsDroppedWithBufferUntil() {
+    serial.bufferUntil('\n');
+    receive(filled(CAPACITY + 1, 'x'));
+    receive("abc\n".getBytes());
+    assertEquals("xabc\n", serial.readStringUntil('\n'));
+  }
+
+  @Test
+  public void unreadFramesAreKept() {
+    serial.frameLength(1024);
+    receive(filled(CAPACITY + 10, 'x'));
+    // whole frames the sketch hasn't read yet, the rest waits with the port
+    assertEquals(CAPACITY, serial.available());
+    assertEquals(10, port.getInputBufferBytesCount());
+
+    assertEquals(1024, serial.readFrame().length);
+    receive(new byte[0]);
+    assertEquals(0, port.getInputBufferBytesCount());
+    assertEquals(CAPACITY - 1024 + 10, serial.available());
+  }
+
+  @Test
+  public void oldestDataIsDropped() {
+    receive(filled(CAPACITY, 'x'));
+    receive(filled(100, 'y'));
+    assertEquals(CAPACITY, serial.available());
+    byte[] data = serial.readBytes();
+    assertEquals('x', data[0]);
+    assertEquals('y', data[CAPACITY - 1]);
+    assertEquals('x', data[CAPACITY - 101]);
+  }
+}
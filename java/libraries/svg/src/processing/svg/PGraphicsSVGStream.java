@@ -0,0 +1,99 @@
+/*
+  Part of the Processing project - http://processing.org
+
+  Copyright (c) 2017 The Processing Foundation
+
+  This library is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License version 2.1 as published by the Free Software Foundation.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General
+  Public License along with this library; if not, write to the
+  Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+  Boston, MA  02111-1307  USA
+*/
+
+package processing.svg;
+
+import java.io.*;
+
+
+/**
+ * SVG renderer that writes the file as it's drawn, instead of building
+ * the whole document in memory with Batik and writing it at endDraw().
+ * Use it for drawings with many thousands of shapes, like plotter output:
+ * <PRE>
+ * size(800, 600, "processing.svg.PGraphicsSVGStream", "plot.svg");
+ * </PRE>
+ * Memory use stays the same however much is drawn. Consecutive line()
+ * calls with the same opaque stroke are written as a single path, and
+ * coordinates are rounded to 3 decimal places, or as set with
+ * setPrecision(). Unlike PGraphicsSVG, gradients aren't supported, and
+ * because the file is opened in beginDraw(), setOutput() has to be
+ * called before that rather than inside draw().
+ */
+public class PGraphicsSVGStream extends PGraphicsSVG {
+  protected int precision = 3;
+
+
+  public PGraphicsSVGStream() { }
+
+
+  /**
+   * Set the number of digits after the decimal point written for each
+   * coordinate. The default is 3; fewer makes smaller files.
+   */
+  public void setPrecision(int digits) {
+    if (digits < 0 || digits > 9) {
+      throw new IllegalArgumentException("SVG precision must be between 0 and 9 digits");
+    }
+    precision = digits;
+  }
+
+
+  public void beginDraw() {
+    // The output has to be known up front, since nothing is buffered.
+    // Same as PGraphicsSVG, the frame number is inserted into the path.
+    if (output == null) {
+      if (path == null) {
+        throw new RuntimeException("setOutput() or setPath() must be " +
+                                   "used with the SVG renderer");
+      }
+      File file = parent.saveFile(parent.insertFrame(path));
+      try {
+        output = new FileOutputStream(file);
+      } catch (FileNotFoundException e) {
+        throw new RuntimeException(e);
+      }
+    }
+    g2 = new SVGStreamGraphics2D(output, width, height, precision);
+
+    // Can't call super.beginDraw() because it'll nuke our g2
+    checkSettings();
+    resetMatrix(); // reset model matrix
+    vertexCount = 0;
+
+    // Also need to push the matrix since the matrix doesn't reset on each run
+    // http://dev.processing.org/bugs/show_bug.cgi?id=1227
+    pushMatrix();
+  }
+
+
+  public void endDraw() {
+    popMatrix();
+
+    try {
+      ((SVGStreamGraphics2D) g2).finish();
+      output.close();
+    } catch (IOException e) {
+      e.printStackTrace();
+    } finally {
+      output = null;
+    }
+  }
+}
@@ -0,0 +1,757 @@
+/*
+  Part of the Processing project - http://processing.org
+
+  Copyright (c) 2017 The Processing Foundation
+
+  This library is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License version 2.1 as published by the Free Software Foundation.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General
+  Public License along with this library; if not, write to the
+  Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+  Boston, MA  02111-1307  USA
+*/
+
+package processing.svg;
+
+import java.awt.*;
+import java.awt.font.TextLayout;
+import java.awt.geom.*;
+import java.awt.image.*;
+import java.awt.image.renderable.RenderableImage;
+import java.io.*;
+import java.text.AttributedCharacterIterator;
+import java.util.Base64;
+
+import javax.imageio.ImageIO;
+
+import org.apache.batik.ext.awt.g2d.AbstractGraphics2D;
+import org.apache.batik.ext.awt.g2d.GraphicContext;
+
+
+/**
+ * Graphics2D that writes SVG as it's drawn to, instead of building a DOM.
+ * Nothing is kept once an element has been written, so memory use stays
+ * the same however much is drawn.
+ * <p/>
+ * Everything is written in device coordinates, with the transform already
+ * applied. Strokes are written as SVG strokes when the transform keeps
+ * their shape (no stretching or shearing), otherwise their outline is
+ * filled. Consecutive lines with the same opaque stroke are appended to
+ * a single path element.
+ */
+class SVGStreamGraphics2D extends AbstractGraphics2D {
+  /** Most lines merged into a single path element */
+  static final int MAX_SEGMENTS = 10000;
+
+  static Graphics2D fontGraphics;
+
+
+  /** The file being written, shared by every copy made with create() */
+  static class Document {
+    OutputStream output;
+    byte[] buffer = new byte[65536];
+    int count;
+
+    /** 10^decimals, what coordinates are multiplied by before rounding */
+    long scale;
+    int nextId;
+
+    /** Copy that has a path element open for more lines, or null */
+    SVGStreamGraphics2D pathOwner;
+    int pathSegments;
+    /** End of the last line, as written (scaled by 10^decimals) */
+    long lastX, lastY;
+  }
+
+  final Document doc;
+
+  // current transform, updated when it's changed
+  boolean transformChanged = true;
+  AffineTransform deviceTransform;
+  double m00, m01, m02, m10, m11, m12;
+  /** How much strokes get scaled, or NaN if they'd change shape */
+  double strokeScale;
+
+  boolean clipChanged;
+  String clipId;
+
+  // style of the path element that's open, if any
+  Paint pathPaint;
+  Stroke pathStroke;
+  Composite pathComposite;
+  String pathClipId;
+  double pathScale;
+  boolean pathJoins;
+
+  double[] coords = new double[6];
+  byte[] digits = new byte[24];
+
+
+  SVGStreamGraphics2D(OutputStream output, int width, int height,
+                      int decimals) {
+    super(true);
+    gc = new GraphicContext();
+    doc = new Document();
+    doc.output = output;
+    doc.scale = (long) Math.pow(10, decimals);
+
+    write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+    write("<svg xmlns=\"http://www.w3.org/2000/svg\" " +
+          "xmlns:xlink=\"http://www.w3.org/1999/xlink\" width=\"");
+    writeInt(width);
+    write("\" height=\"");
+    writeInt(height);
+    write("\" viewBox=\"0 0 ");
+    writeInt(width);
+    write(" ");
+    writeInt(height);
+    write("\">\n");
+  }
+
+
+  SVGStreamGraphics2D(SVGStreamGraphics2D g) {
+    super(g);
+    doc = g.doc;
+    clipId = g.clipId;
+  }
+
+
+  /** Close the document, and write out anything that's left. */
+  void finish() throws IOException {
+    closePath();
+    write("</svg>\n");
+    flushBuffer();
+    doc.output.flush();
+  }
+
+
+  // . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . .
+
+  // keeping track of changes to the transform and clip
+
+
+  private void updateTransform() {
+    if (transformChanged) {
+      deviceTransform = gc.getTransform();
+      m00 = deviceTransform.getScaleX();
+      m01 = deviceTransform.getShearX();
+      m02 = deviceTransform.getTranslateX();
+      m10 = deviceTransform.getShearY();
+      m11 = deviceTransform.getScaleY();
+      m12 = deviceTransform.getTranslateY();
+
+      double epsilon = 1e-9 * (Math.abs(m00) + Math.abs(m01));
+      if ((Math.abs(m00 - m11) <= epsilon && Math.abs(m01 + m10) <= epsilon) ||
+          (Math.abs(m00 + m11) <= epsilon && Math.abs(m01 - m10) <= epsilon)) {
+        // rotation, uniform scale, and maybe a flip: a circle stays a circle
+        strokeScale = Math.sqrt(Math.abs(m00 * m11 - m01 * m10));
+      } else {
+        strokeScale = Double.NaN;
+      }
+      transformChanged = false;
+    }
+  }
+
+
+  private void updateClip() {
+    if (clipChanged) {
+      clipChanged = false;
+      Shape clip = gc.getClip();
+      if (clip == null) {
+        clipId = null;
+      } else {
+        updateTransform();
+        closePath();
+        clipId = "clip" + (doc.nextId++);
+        write("<clipPath id=\"");
+        write(clipId);
+        write("\"><path d=\"");
+        writePath(clip.getPathIterator(deviceTransform));
+        write("\"/></clipPath>\n");
+      }
+    }
+  }
+
+
+  @Override
+  public void translate(int x, int y) {
+    super.translate(x, y);
+    transformChanged = true;
+  }
+
+
+  @Override
+  public void translate(double tx, double ty) {
+    super.translate(tx, ty);
+    transformChanged = true;
+  }
+
+
+  @Override
+  public void rotate(double theta) {
+    super.rotate(theta);
+    transformChanged = true;
+  }
+
+
+  @Override
+  public void rotate(double theta, double x, double y) {
+    super.rotate(theta, x, y);
+    transformChanged = true;
+  }
+
+
+  @Override
+  public void scale(double sx, double sy) {
+    super.scale(sx, sy);
+    transformChanged = true;
+  }
+
+
+  @Override
+  public void shear(double shx, double shy) {
+    super.shear(shx, shy);
+    transformChanged = true;
+  }
+
+
+  @Override
+  public void transform(AffineTransform tx) {
+    super.transform(tx);
+    transformChanged = true;
+  }
+
+
+  @Override
+  public void setTransform(AffineTransform tx) {
+    super.setTransform(tx);
+    transformChanged = true;
+  }
+
+
+  @Override
+  public void clip(Shape s) {
+    super.clip(s);
+    clipChanged = true;
+  }
+
+
+  @Override
+  public void clipRect(int x, int y, int width, int height) {
+    super.clipRect(x, y, width, height);
+    clipChanged = true;
+  }
+
+
+  @Override
+  public void setClip(Shape clip) {
+    super.setClip(clip);
+    clipChanged = true;
+  }
+
+
+  @Override
+  public void setClip(int x, int y, int width, int height) {
+    super.setClip(x, y, width, height);
+    clipChanged = true;
+  }
+
+
+  // . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . .
+
+  // shapes
+
+
+  @Override
+  public void draw(Shape s) {
+    updateTransform();
+    Stroke stroke = gc.getStroke();
+    if (!(stroke instanceof BasicStroke) || strokeScale != strokeScale) {
+      // the outline is the only way to get this right
+      fill(stroke.createStrokedShape(s));
+      return;
+    }
+    updateClip();
+
+    if (s instanceof Line2D && isOpaque()) {
+      drawLine((Line2D) s, (BasicStroke) stroke);
+
+    } else {
+      closePath();
+      write("<path fill=\"none\"");
+      writeStroke((BasicStroke) stroke);
+      writeClip();
+      write(" d=\"");
+      writePath(s.getPathIterator(deviceTransform));
+      write("\"/>\n");
+    }
+  }
+
+
+  /**
+   * Add a line to the open path if it has the same style, otherwise start
+   * a new one. Overlaps within a path are only painted once, so this is
+   * only done for opaque strokes, where that doesn't make a difference.
+   */
+  private void drawLine(Line2D line, BasicStroke stroke) {
+    Paint paint = gc.getPaint();
+    Composite composite = gc.getComposite();
+    if (doc.pathOwner != this ||
+        doc.pathSegments == MAX_SEGMENTS ||
+        !same(paint, pathPaint) ||
+        !same(stroke, pathStroke) ||
+        !same(composite, pathComposite) ||
+        !same(clipId, pathClipId) ||
+        strokeScale != pathScale) {
+      closePath();
+      write("<path fill=\"none\"");
+      writeStroke(stroke);
+      writeClip();
+      write(" d=\"");
+
+      doc.pathOwner = this;
+      doc.pathSegments = 0;
+      doc.lastX = Long.MIN_VALUE;
+      pathPaint = paint;
+      pathStroke = stroke;
+      pathComposite = composite;
+      pathClipId = clipId;
+      pathScale = strokeScale;
+      // With round caps and joins, a line continuing from the end of
+      // the last one looks the same whether or not it's joined to it.
+      pathJoins = (stroke.getEndCap() == BasicStroke.CAP_ROUND &&
+                   stroke.getLineJoin() == BasicStroke.JOIN_ROUND &&
+                   stroke.getDashArray() == null);
+    }
+
+    double x1 = line.getX1();
+    double y1 = line.getY1();
+    double x2 = line.getX2();
+    double y2 = line.getY2();
+    long sx1 = scaled(m00 * x1 + m01 * y1 + m02);
+    long sy1 = scaled(m10 * x1 + m11 * y1 + m12);
+    long sx2 = scaled(m00 * x2 + m01 * y2 + m02);
+    long sy2 = scaled(m10 * x2 + m11 * y2 + m12);
+
+    if (pathJoins && sx1 == doc.lastX && sy1 == doc.lastY) {
+      // the L from before carries on to this point
+      write(' ');
+    } else {
+      write('M');
+      writeScaled(sx1);
+      write(' ');
+      writeScaled(sy1);
+      write('L');
+    }
+    writeScaled(sx2);
+    write(' ');
+    writeScaled(sy2);
+
+    doc.lastX = sx2;
+    doc.lastY = sy2;
+    doc.pathSegments++;
+  }
+
+
+  @Override
+  public void fill(Shape s) {
+    updateTransform();
+    updateClip();
+    closePath();
+
+    PathIterator iter = s.getPathIterator(deviceTransform);
+    write("<path");
+    writePaint("fill", gc.getPaint());
+    if (iter.getWindingRule() == PathIterator.WIND_EVEN_ODD) {
+      write(" fill-rule=\"evenodd\"");
+    }
+    writeClip();
+    write(" d=\"");
+    writePath(iter);
+    write("\"/>\n");
+  }
+
+
+  /** End the path element that lines are being added to, if any. */
+  private void closePath() {
+    if (doc.pathOwner != null) {
+      write("\"/>\n");
+      doc.pathOwner = null;
+    }
+  }
+
+
+  static private boolean same(Object a, Object b) {
+    return a == b || (a != null && a.equals(b));
+  }
+
+
+  private boolean isOpaque() {
+    Paint paint = gc.getPaint();
+    return (paint instanceof Color && ((Color) paint).getAlpha() == 255 &&
+            compositeAlpha() == 1);
+  }
+
+
+  private float compositeAlpha() {
+    Composite composite = gc.getComposite();
+    if (composite instanceof AlphaComposite) {
+      return ((AlphaComposite) composite).getAlpha();
+    }
+    return 1;
+  }
+
+
+  private void writePaint(String attribute, Paint paint) {
+    Color color;
+    if (paint instanceof Color) {
+      color = (Color) paint;
+    } else if (paint instanceof GradientPaint) {
+      color = ((GradientPaint) paint).getColor1();
+    } else {
+      color = Color.BLACK;
+    }
+    write(' ');
+    write(attribute);
+    write("=\"#");
+    int rgb = color.getRGB();
+    for (int shift = 20; shift >= 0; shift -= 4) {
+      write("0123456789abcdef".charAt((rgb >> shift) & 0xf));
+    }
+    write('"');
+
+    float alpha = color.getAlpha() / 255f * compositeAlpha();
+    if (alpha < 1) {
+      write(' ');
+      write(attribute);
+      write("-opacity=\"");
+      writeNumber(alpha, 1000);
+      write('"');
+    }
+  }
+
+
+  private void writeStroke(BasicStroke stroke) {
+    writePaint("stroke", gc.getPaint());
+
+    write(" stroke-width=\"");
+    writeNumber(stroke.getLineWidth() * strokeScale, doc.scale);
+    write('"');
+
+    if (stroke.getEndCap() == BasicStroke.CAP_ROUND) {
+      write(" stroke-linecap=\"round\"");
+    } else if (stroke.getEndCap() == BasicStroke.CAP_SQUARE) {
+      write(" stroke-linecap=\"square\"");
+    }
+
+    if (stroke.getLineJoin() == BasicStroke.JOIN_ROUND) {
+      write(" stroke-linejoin=\"round\"");
+    } else if (stroke.getLineJoin() == BasicStroke.JOIN_BEVEL) {
+      write(" stroke-linejoin=\"bevel\"");
+    } else if (stroke.getMiterLimit() != 4) {
+      write(" stroke-miterlimit=\"");
+      writeNumber(stroke.getMiterLimit(), doc.scale);
+      write('"');
+    }
+
+    float[] dash = stroke.getDashArray();
+    if (dash != null) {
+      write(" stroke-dasharray=\"");
+      for (int i = 0; i < dash.length; i++) {
+        if (i != 0) write(',');
+        writeNumber(dash[i] * strokeScale, doc.scale);
+      }
+      write("\" stroke-dashoffset=\"");
+      writeNumber(stroke.getDashPhase() * strokeScale, doc.scale);
+      write('"');
+    }
+  }
+
+
+  private void writeClip() {
+    if (clipId != null) {
+      write(" clip-path=\"url(#");
+      write(clipId);
+      write(")\"");
+    }
+  }
+
+
+  private void writePath(PathIterator iter) {
+    double[] c = coords;
+    char last = 0;
+    while (!iter.isDone()) {
+      char command;
+      int count;
+      switch (iter.currentSegment(c)) {
+      case PathIterator.SEG_MOVETO:  command = 'M'; count = 2; break;
+      case PathIterator.SEG_LINETO:  command = 'L'; count = 2; break;
+      case PathIterator.SEG_QUADTO:  command = 'Q'; count = 4; break;
+      case PathIterator.SEG_CUBICTO: command = 'C'; count = 6; break;
+      default:                       command = 'Z'; count = 0; break;
+      }
+      if (command != last || command == 'M' || command == 'Z') {
+        write(command);
+      } else {
+        // same command as before, which SVG lets us leave out
+        write(' ');
+      }
+      for (int i = 0; i < count; i++) {
+        if (i != 0) write(' ');
+        writeScaled(scaled(c[i]));
+      }
+      last = command;
+      iter.next();
+    }
+  }
+
+
+  // . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . .
+
+  // images and text
+
+
+  @Override
+  public boolean drawImage(Image img, int x, int y, ImageObserver observer) {
+    return drawImage(img, x, y, img.getWidth(observer), img.getHeight(observer), observer);
+  }
+
+
+  @Override
+  public boolean drawImage(Image img, int x, int y, int width, int height,
+                           ImageObserver observer) {
+    int w = img.getWidth(observer);
+    int h = img.getHeight(observer);
+    if (w <= 0 || h <= 0) {
+      return false;
+    }
+    BufferedImage image;
+    if (img instanceof BufferedImage) {
+      image = (BufferedImage) img;
+    } else {
+      image = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+      Graphics2D g = image.createGraphics();
+      g.drawImage(img, 0, 0, observer);
+      g.dispose();
+    }
+    updateTransform();
+    writeImage(image, x, y, width, height, deviceTransform);
+    return true;
+  }
+
+
+  @Override
+  public void drawRenderedImage(RenderedImage img, AffineTransform xform) {
+    BufferedImage image;
+    if (img instanceof BufferedImage) {
+      image = (BufferedImage) img;
+    } else {
+      ColorModel cm = img.getColorModel();
+      image = new BufferedImage(cm, img.copyData(null),
+                                cm.isAlphaPremultiplied(), null);
+    }
+    updateTransform();
+    AffineTransform at = new AffineTransform(deviceTransform);
+    at.concatenate(xform);
+    writeImage(image, 0, 0, image.getWidth(), image.getHeight(), at);
+  }
+
+
+  @Override
+  public void drawRenderableImage(RenderableImage img, AffineTransform xform) {
+    drawRenderedImage(img.createDefaultRendering(), xform);
+  }
+
+
+  /** Write an image element, with the image as a PNG inside it. */
+  private void writeImage(BufferedImage image, double x, double y,
+                          double width, double height, AffineTransform at) {
+    updateClip();
+    closePath();
+
+    write("<image");
+    writeClip();
+    float alpha = compositeAlpha();
+    if (alpha < 1) {
+      write(" opacity=\"");
+      writeNumber(alpha, 1000);
+      write('"');
+    }
+    write(" transform=\"matrix(");
+    double[] m = new double[6];
+    at.getMatrix(m);
+    for (int i = 0; i < 6; i++) {
+      if (i != 0) write(' ');
+      writeNumber(m[i], 1000000);
+    }
+    write(")\" x=\"");
+    writeNumber(x, doc.scale);
+    write("\" y=\"");
+    writeNumber(y, doc.scale);
+    write("\" width=\"");
+    writeNumber(width, doc.scale);
+    write("\" height=\"");
+    writeNumber(height, doc.scale);
+    write("\" preserveAspectRatio=\"none\" xlink:href=\"data:image/png;base64,");
+
+    // encode straight into the buffer, the PNG is never held in memory
+    OutputStream buffered = new OutputStream() {
+      public void write(int b) {
+        SVGStreamGraphics2D.this.write((char) b);
+      }
+      public void close() { }
+    };
+    try (OutputStream encoder = Base64.getEncoder().wrap(buffered)) {
+      ImageIO.write(image, "png", encoder);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    write("\"/>\n");
+  }
+
+
+  @Override
+  public void drawString(String str, float x, float y) {
+    fill(getFont().createGlyphVector(getFontRenderContext(), str).getOutline(x, y));
+  }
+
+
+  @Override
+  public void drawString(AttributedCharacterIterator iterator, float x, float y) {
+    TextLayout layout = new TextLayout(iterator, getFontRenderContext());
+    fill(layout.getOutline(AffineTransform.getTranslateInstance(x, y)));
+  }
+
+
+  @Override
+  public FontMetrics getFontMetrics(Font f) {
+    synchronized (SVGStreamGraphics2D.class) {
+      if (fontGraphics == null) {
+        fontGraphics = new BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB).createGraphics();
+      }
+      return fontGraphics.getFontMetrics(f);
+    }
+  }
+
+
+  // . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . .
+
+  // the rest of Graphics2D
+
+
+  @Override
+  public Graphics create() {
+    return new SVGStreamGraphics2D(this);
+  }
+
+
+  @Override
+  public GraphicsConfiguration getDeviceConfiguration() {
+    return null;  // same as Batik's SVGGraphics2D
+  }
+
+
+  @Override
+  public void setXORMode(Color c1) {
+    // not available in SVG
+  }
+
+
+  @Override
+  public void copyArea(int x, int y, int width, int height, int dx, int dy) {
+    // not available in SVG
+  }
+
+
+  @Override
+  public void dispose() { }
+
+
+  // . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . .
+
+  // writing ASCII and numbers straight into the buffer
+
+
+  private void flushBuffer() throws IOException {
+    doc.output.write(doc.buffer, 0, doc.count);
+    doc.count = 0;
+  }
+
+
+  private void write(char c) {
+    if (doc.count == doc.buffer.length) {
+      try {
+        flushBuffer();
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+    doc.buffer[doc.count++] = (byte) c;
+  }
+
+
+  private void write(String s) {
+    for (int i = 0; i < s.length(); i++) {
+      write(s.charAt(i));
+    }
+  }
+
+
+  private void writeInt(int value) {
+    writeScaled(value * doc.scale);
+  }
+
+
+  private long scaled(double value) {
+    return Math.round(value * doc.scale);
+  }
+
+
+  private void writeNumber(double value, long scale) {
+    writeFixed(Math.round(value * scale), scale);
+  }
+
+
+  /** Write a number that's been multiplied by 10^decimals. */
+  private void writeScaled(long value) {
+    writeFixed(value, doc.scale);
+  }
+
+
+  /**
+   * Write value / scale without trailing zeros, and without a decimal
+   * point if it's a whole number.
+   */
+  private void writeFixed(long value, long scale) {
+    if (value < 0) {
+      write('-');
+      value = -value;
+    }
+    long whole = value / scale;
+    long fraction = value % scale;
+
+    int count = 0;
+    do {
+      digits[count++] = (byte) ('0' + whole % 10);
+      whole /= 10;
+    } while (whole != 0);
+    while (count > 0) {
+      write((char) digits[--count]);
+    }
+
+    if (fraction != 0) {
+      write('.');
+      for (long place = scale / 10; fraction != 0; place /= 10) {
+        write((char) ('0' + fraction / place));
+        fraction %= place;
+      }
+    }
+  }
+}
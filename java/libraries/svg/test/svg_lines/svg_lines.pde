@@ -0,0 +1,43 @@
+// Draws a long random walk made of line() calls, the way plotter output
+// often is, and prints how long it took, the most heap used, and the
+// size of the file. Set useStream to false to compare with PGraphicsSVG,
+// but use far fewer lines: it keeps every one of them in memory.
+
+import processing.svg.*;
+
+int lineCount = 2000000;
+boolean useStream = true;
+
+void setup() {
+  String renderer = useStream ? "processing.svg.PGraphicsSVGStream" : SVG;
+  PGraphics svg = createGraphics(800, 600, renderer, "lines.svg");
+
+  int start = millis();
+  long peakHeap = 0;
+  Runtime runtime = Runtime.getRuntime();
+
+  svg.beginDraw();
+  svg.background(255);
+  svg.stroke(0);
+  svg.strokeWeight(0.5);
+  float x = svg.width / 2;
+  float y = svg.height / 2;
+  for (int i = 0; i < lineCount; i++) {
+    float nx = constrain(x + random(-2, 2), 0, svg.width);
+    float ny = constrain(y + random(-2, 2), 0, svg.height);
+    svg.line(x, y, nx, ny);
+    x = nx;
+    y = ny;
+    if (i % 10000 == 0) {
+      peakHeap = max(peakHeap, runtime.totalMemory() - runtime.freeMemory());
+    }
+  }
+  svg.endDraw();
+  svg.dispose();
+
+  float seconds = (millis() - start) / 1000.0;
+  println(lineCount + " lines in " + nf(seconds, 0, 2) + " seconds, " +
+          (peakHeap >> 20) + " MB peak heap, " +
+          (new File(sketchPath("lines.svg")).length() >> 20) + " MB file");
+  exit();
+}
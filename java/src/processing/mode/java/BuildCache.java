@@ -0,0 +1,492 @@
+/* -*- mode: java; c-basic-offset: 2; indent-tabs-mode: nil -*- */
+
+/*
+Part of the Processing project - http://processing.org
+
+Copyright (c) 2017 The Processing Foundation
+
+This program is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License version 2
+as published by the Free Software Foundation.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software Foundation,
+Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package processing.mode.java;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.WeakHashMap;
+
+import processing.app.Messages;
+import processing.app.Preferences;
+import processing.app.Sketch;
+import processing.app.SketchException;
+import processing.app.Util;
+
+
+/**
+ * Remembers the result of the last successful build of each sketch, so that
+ * hitting Run again doesn't have to recompile everything.
+ * <p/>
+ * After preprocessing, the .java files in the build's source folder are
+ * hashed, along with the entries of the class path (minus the bin folder,
+ * which is new for every build). Then:
+ * <ul>
+ * <li>If nothing changed, the classes from the last build are copied to the
+ * new bin folder and the compiler is skipped entirely.</li>
+ * <li>If the class path is the same and the same files are present, only the
+ * changed compilation units are handed to ECJ, with the old classes for the
+ * others on the class path. If the public shape (members, supertypes,
+ * constants) of the recompiled classes differs from the last build, other
+ * units might depend on what changed, so everything is rebuilt.</li>
+ * <li>Otherwise, it's a full build like before.</li>
+ * </ul>
+ * Set compiler.cache=false in preferences.txt to always do a full build.
+ */
+public class BuildCache {
+  /**
+   * One cache per sketch, for as long as the sketch is open. Once its
+   * editor is closed and nothing refers to the Sketch, the entry goes away.
+   */
+  static private final Map<Sketch, BuildCache> caches = new WeakHashMap<>();
+
+  /** Class path signature from the last successful build. */
+  private String classPathHash;
+  /** Source file (relative to the src folder) to content hash */
+  private Map<String, String> sourceHashes;
+  /** Source file to the signature of the classes it produced */
+  private Map<String, String> unitSignatures;
+  /** Output folder of the last successful build */
+  private File binFolder;
+
+
+  static public synchronized BuildCache get(Sketch sketch) {
+    BuildCache cache = caches.get(sketch);
+    if (cache == null) {
+      cache = new BuildCache();
+      caches.put(sketch, cache);
+    }
+    return cache;
+  }
+
+
+  /**
+   * Compile the sources sitting in the build's src folder into its
+   * bin folder, reusing the previous build's output wherever possible.
+   * @return true if successful (same as Compiler.compile)
+   */
+  public synchronized boolean compile(JavaBuild build) throws SketchException {
+    if (!Preferences.getBoolean("compiler.cache")) {
+      return Compiler.compile(build);
+    }
+
+    if (binFolder != null && !binFolder.isDirectory()) {
+      // the last build was cleaned up, nothing left to reuse
+      invalidate();
+    }
+
+    File srcFolder = build.getSrcFolder();
+    File newBinFolder = build.getBinFolder();
+    String[] sourceFiles = Util.listFiles(srcFolder, true, ".java");
+
+    Map<String, String> newSourceHashes = new HashMap<>();
+    String newClassPathHash;
+    try {
+      for (String path : sourceFiles) {
+        newSourceHashes.put(path, hash(Util.loadBytesRaw(new File(srcFolder, path))));
+      }
+      newClassPathHash = hashClassPath(build.getClassPath(), newBinFolder);
+      build.getTimings().mark("hash");
+    } catch (IOException e) {
+      // Nothing to be gained from the cache if the files can't be read
+      invalidate();
+      return Compiler.compile(build);
+    }
+
+    try {
+      boolean success;
+      if (binFolder != null && binFolder.isDirectory() &&
+          newClassPathHash.equals(classPathHash) &&
+          newSourceHashes.keySet().equals(sourceHashes.keySet())) {
+        List<String> changed = new ArrayList<>();
+        for (String path : sourceFiles) {
+          if (!newSourceHashes.get(path).equals(sourceHashes.get(path))) {
+            changed.add(path);
+          }
+        }
+        if (changed.isEmpty()) {
+          Messages.log("Reusing classes from " + binFolder);
+          Util.copyDir(binFolder, newBinFolder);
+          build.getTimings().mark("reuse");
+          success = true;
+
+        } else {
+          success = compileChanged(build, changed);
+        }
+      } else {
+        success = Compiler.compile(build);
+      }
+
+      if (success) {
+        sourceHashes = newSourceHashes;
+        classPathHash = newClassPathHash;
+        unitSignatures = readSignatures(newBinFolder);
+        build.getTimings().mark("signatures");
+        binFolder = newBinFolder;
+        return true;
+      }
+      invalidate();
+      return false;
+
+    } catch (SketchException se) {
+      // compile error, nothing worth remembering
+      invalidate();
+      throw se;
+
+    } catch (IOException e) {
+      // Cache state is suspect, do the whole thing from scratch
+      e.printStackTrace();
+      invalidate();
+      removeClasses(newBinFolder);
+      return Compiler.compile(build);
+    }
+  }
+
+
+  /**
+   * Copy the last build's classes and recompile only the changed units.
+   * Falls back to a full compile if the shape of their classes has changed.
+   */
+  private boolean compileChanged(JavaBuild build,
+                                 List<String> changed) throws IOException, SketchException {
+    File newBinFolder = build.getBinFolder();
+    Util.copyDir(binFolder, newBinFolder);
+    build.getTimings().mark("reuse");
+
+    // Get rid of the stale classes that came from the changed units,
+    // otherwise removed inner or anonymous classes would hang around.
+    Map<String, List<File>> produced = listClassesByUnit(newBinFolder);
+    for (String path : changed) {
+      List<File> classes = produced.get(path);
+      if (classes != null) {
+        for (File file : classes) {
+          file.delete();
+        }
+      }
+    }
+
+    String[] sourceFiles = new String[changed.size()];
+    for (int i = 0; i < sourceFiles.length; i++) {
+      sourceFiles[i] = new File(build.getSrcFolder(), changed.get(i)).getAbsolutePath();
+    }
+    Messages.log("Recompiling " + changed);
+    if (!Compiler.compile(build, sourceFiles)) {
+      return false;
+    }
+
+    Map<String, String> signatures = readSignatures(newBinFolder);
+    for (String path : changed) {
+      String before = unitSignatures.get(path);
+      if (before == null || !before.equals(signatures.get(path))) {
+        Messages.log("Signature of " + path + " changed, doing a full build");
+        removeClasses(newBinFolder);
+        return Compiler.compile(build);
+      }
+    }
+    return true;
+  }
+
+
+  private void invalidate() {
+    classPathHash = null;
+    sourceHashes = null;
+    unitSignatures = null;
+    binFolder = null;
+  }
+
+
+  static private void removeClasses(File folder) {
+    for (String path : Util.listFiles(folder, false, ".class")) {
+      new File(path).delete();
+    }
+  }
+
+
+  // . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . .
+
+
+  /**
+   * Hash the class path entries by name, size, and modification time.
+   * The bin folder is left out because it's a fresh folder on every build.
+   */
+  static private String hashClassPath(String classPath,
+                                      File binFolder) throws IOException {
+    StringBuilder sb = new StringBuilder();
+    for (String entry : classPath.split(File.pathSeparator)) {
+      if (entry.length() == 0) continue;
+      File file = new File(entry);
+      if (file.equals(binFolder)) continue;
+
+      sb.append(entry);
+      if (file.isDirectory()) {
+        // Class folders (such as the code folder) need their contents checked
+        for (String path : Util.listFiles(file, false, ".class")) {
+          File item = new File(path);
+          sb.append('|').append(path);
+          sb.append(':').append(item.length());
+          sb.append(':').append(item.lastModified());
+        }
+      } else if (file.exists()) {
+        sb.append(':').append(file.length());
+        sb.append(':').append(file.lastModified());
+      }
+      sb.append('\n');
+    }
+    return hash(sb.toString().getBytes(StandardCharsets.UTF_8));
+  }
+
+
+  static private String hash(byte[] data) {
+    try {
+      MessageDigest md = MessageDigest.getInstance("SHA-1");
+      byte[] digest = md.digest(data);
+      StringBuilder sb = new StringBuilder();
+      for (byte b : digest) {
+        sb.append(String.format("%02x", b & 0xff));
+      }
+      return sb.toString();
+
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);  // SHA-1 is required on every JVM
+    }
+  }
+
+
+  /**
+   * Group the .class files in a bin folder by the source file (relative to
+   * the src folder) they were compiled from, using the SourceFile attribute.
+   */
+  static private Map<String, List<File>> listClassesByUnit(File folder) throws IOException {
+    Map<String, List<File>> outgoing = new HashMap<>();
+    for (String path : Util.listFiles(folder, true, ".class")) {
+      File file = new File(folder, path);
+      ClassShape shape = ClassShape.read(file);
+      String unit = unitPath(path, shape.sourceFile);
+      List<File> list = outgoing.get(unit);
+      if (list == null) {
+        list = new ArrayList<>();
+        outgoing.put(unit, list);
+      }
+      list.add(file);
+    }
+    return outgoing;
+  }
+
+
+  /**
+   * Build a signature for each compilation unit from the non-private
+   * parts of the classes it produced.
+   */
+  static private Map<String, String> readSignatures(File folder) throws IOException {
+    Map<String, Set<String>> shapes = new HashMap<>();
+    for (String path : Util.listFiles(folder, true, ".class")) {
+      ClassShape shape = ClassShape.read(new File(folder, path));
+      String unit = unitPath(path, shape.sourceFile);
+      Set<String> set = shapes.get(unit);
+      if (set == null) {
+        set = new TreeSet<>();  // sorted so that the order is stable
+        shapes.put(unit, set);
+      }
+      set.add(shape.signature);
+    }
+    Map<String, String> outgoing = new HashMap<>();
+    for (Map.Entry<String, Set<String>> entry : shapes.entrySet()) {
+      StringBuilder sb = new StringBuilder();
+      for (String signature : entry.getValue()) {
+        sb.append(signature).append('\n');
+      }
+      outgoing.put(entry.getKey(), hash(sb.toString().getBytes(StandardCharsets.UTF_8)));
+    }
+    return outgoing;
+  }
+
+
+  static private String unitPath(String classPath, String sourceFile) {
+    int slash = classPath.lastIndexOf(File.separatorChar);
+    String folder = (slash == -1) ? "" : classPath.substring(0, slash + 1);
+    // Without a SourceFile attribute, at least keep the classes separate
+    return folder + (sourceFile != null ? sourceFile : classPath);
+  }
+
+
+  /**
+   * Just enough of a class file reader to get the SourceFile attribute and
+   * the parts of the class that other classes can compile against.
+   */
+  static class ClassShape {
+    String sourceFile;
+    String signature;
+
+    static final int ACC_PRIVATE = 0x0002;
+
+
+    static ClassShape read(File file) throws IOException {
+      InputStream input = new FileInputStream(file);
+      try {
+        return read(new DataInputStream(new BufferedInputStream(input)));
+      } finally {
+        input.close();
+      }
+    }
+
+
+    static ClassShape read(DataInputStream in) throws IOException {
+      if (in.readInt() != 0xCAFEBABE) {
+        throw new IOException("Not a class file");
+      }
+      in.readUnsignedShort();  // minor
+      in.readUnsignedShort();  // major
+
+      int count = in.readUnsignedShort();
+      Object[] pool = new Object[count];
+      for (int i = 1; i < count; i++) {
+        int tag = in.readUnsignedByte();
+        switch (tag) {
+        case 1:  // Utf8
+          pool[i] = in.readUTF();
+          break;
+        case 3:  // Integer
+          pool[i] = in.readInt();
+          break;
+        case 4:  // Float
+          pool[i] = in.readFloat();
+          break;
+        case 5:  // Long
+          pool[i++] = in.readLong();
+          break;
+        case 6:  // Double
+          pool[i++] = in.readDouble();
+          break;
+        case 7:  // Class
+        case 8:  // String
+        case 16:  // MethodType
+        case 19:  // Module
+        case 20:  // Package
+          // wrapped so that it can't be mistaken for an Integer constant
+          pool[i] = new int[] { in.readUnsignedShort() };
+          break;
+        case 15:  // MethodHandle
+          in.readUnsignedByte();
+          in.readUnsignedShort();
+          break;
+        case 9:  // Fieldref
+        case 10:  // Methodref
+        case 11:  // InterfaceMethodref
+        case 12:  // NameAndType
+        case 17:  // Dynamic
+        case 18:  // InvokeDynamic
+          in.readInt();
+          break;
+        default:
+          throw new IOException("Unknown constant pool tag " + tag);
+        }
+      }
+
+      StringBuilder sb = new StringBuilder();
+      sb.append(in.readUnsignedShort());  // access flags
+      sb.append(' ').append(className(pool, in.readUnsignedShort()));
+      sb.append(" extends ").append(className(pool, in.readUnsignedShort()));
+      int interfaceCount = in.readUnsignedShort();
+      for (int i = 0; i < interfaceCount; i++) {
+        sb.append(i == 0 ? " implements " : ",");
+        sb.append(className(pool, in.readUnsignedShort()));
+      }
+      sb.append('\n');
+
+      // Fields first, then methods
+      Set<String> members = new TreeSet<>();
+      for (int kind = 0; kind < 2; kind++) {
+        int memberCount = in.readUnsignedShort();
+        for (int i = 0; i < memberCount; i++) {
+          int access = in.readUnsignedShort();
+          String name = (String) pool[in.readUnsignedShort()];
+          String descriptor = (String) pool[in.readUnsignedShort()];
+          String constant = null;
+          String generic = null;
+          int attributeCount = in.readUnsignedShort();
+          for (int j = 0; j < attributeCount; j++) {
+            String attribute = (String) pool[in.readUnsignedShort()];
+            int length = in.readInt();
+            if (kind == 0 && "ConstantValue".equals(attribute)) {
+              // Constants are inlined by the compiler into other classes
+              constant = String.valueOf(constantValue(pool, in.readUnsignedShort()));
+            } else if ("Signature".equals(attribute)) {
+              // Generic types aren't part of the plain descriptor
+              generic = (String) pool[in.readUnsignedShort()];
+            } else {
+              in.skipBytes(length);
+            }
+          }
+          if ((access & ACC_PRIVATE) == 0) {
+            members.add(access + " " + name + " " + descriptor +
+                        (generic != null ? " " + generic : "") +
+                        (constant != null ? " = " + constant : ""));
+          }
+        }
+      }
+      for (String member : members) {
+        sb.append(member).append('\n');
+      }
+
+      ClassShape shape = new ClassShape();
+      int attributeCount = in.readUnsignedShort();
+      for (int i = 0; i < attributeCount; i++) {
+        String attribute = (String) pool[in.readUnsignedShort()];
+        int length = in.readInt();
+        if ("SourceFile".equals(attribute)) {
+          shape.sourceFile = (String) pool[in.readUnsignedShort()];
+        } else if ("Signature".equals(attribute)) {
+          sb.append(pool[in.readUnsignedShort()]).append('\n');
+        } else {
+          in.skipBytes(length);
+        }
+      }
+      shape.signature = sb.toString();
+      return shape;
+    }
+
+
+    static private String className(Object[] pool, int index) {
+      if (index == 0) return "";  // java.lang.Object has no superclass
+      return (String) pool[((int[]) pool[index])[0]];
+    }
+
+
+    static private Object constantValue(Object[] pool, int index) {
+      Object value = pool[index];
+      // String constants point at a Utf8 entry
+      return (value instanceof int[]) ? pool[((int[]) value)[0]] : value;
+    }
+  }
+}
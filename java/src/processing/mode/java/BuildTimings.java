@@ -0,0 +1,81 @@
+/* -*- mode: java; c-basic-offset: 2; indent-tabs-mode: nil -*- */
+
+/*
+  Part of the Processing project - http://processing.org
+
+  Copyright (c) 2017 The Processing Foundation
+
+  This program is free software; you can redistribute it and/or
+  modify it under the terms of the GNU General Public License
+  version 2, as published by the Free Software Foundation.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package processing.mode.java;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * How long each part of a build took, so that it's possible to tell
+ * whether a slow Run is spent in the preprocessor, in ECJ, or elsewhere.
+ * Each call to mark() ends a phase, and the time since the previous mark
+ * is added to it. Set compiler.timing=true in preferences.txt to have the
+ * numbers printed to the console after each build.
+ */
+public class BuildTimings {
+  private final Map<String, Long> phases = new LinkedHashMap<>();
+  private long started;
+  private long last;
+
+
+  /** Forget the last build and start timing a new one. */
+  public void start() {
+    phases.clear();
+    started = System.nanoTime();
+    last = started;
+  }
+
+
+  /** Add the time since the last mark to this phase. */
+  public void mark(String phase) {
+    long now = System.nanoTime();
+    Long before = phases.get(phase);
+    phases.put(phase, (before == null ? 0 : before) + (now - last));
+    last = now;
+  }
+
+
+  /** @return milliseconds spent in this phase, or -1 if it didn't happen */
+  public long get(String phase) {
+    Long nanos = phases.get(phase);
+    return (nanos == null) ? -1 : nanos / 1000000;
+  }
+
+
+  /** @return milliseconds from start() to the last mark */
+  public long getTotal() {
+    return (last - started) / 1000000;
+  }
+
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder();
+    for (Map.Entry<String, Long> entry : phases.entrySet()) {
+      sb.append(entry.getKey()).append(' ');
+      sb.append(entry.getValue() / 1000000).append(" ms, ");
+    }
+    sb.append("total ").append(getTotal()).append(" ms");
+    return sb.toString();
+  }
+}
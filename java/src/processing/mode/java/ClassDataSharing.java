@@ -0,0 +1,241 @@
+/* -*- mode: java; c-basic-offset: 2; indent-tabs-mode: nil -*- */
+
+/*
+  Part of the Processing project - http://processing.org
+
+  Copyright (c) 2017 The Processing Foundation
+
+  This program is free software; you can redistribute it and/or
+  modify it under the terms of the GNU General Public License
+  version 2, as published by the Free Software Foundation.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package processing.mode.java;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import processing.app.Messages;
+import processing.app.Platform;
+import processing.core.PApplet;
+
+
+/**
+ * Creates Class Data Sharing archives, which hold the classes from a set of
+ * jars already parsed and verified, so that a VM started with
+ * -XX:SharedArchiveFile maps them into memory instead of loading them one at
+ * a time. The classes in the archive are also shared between VMs using it.
+ * <p/>
+ * Sharing application classes (not just the JDK's own) needs Java 11 or
+ * later, so nothing happens with older versions. (Java 10 can do it too,
+ * but only with -XX:+UseAppCDS for both making and using the archive.)
+ * The VM only uses an archive if the class path starts with the same jars,
+ * at the same locations, and unchanged since the archive was made.
+ * Otherwise, it quietly goes back to loading classes the usual way, so a
+ * stale archive is only a missed chance.
+ * <p/>
+ * Archives are used by the VMs that SketchHostPool keeps ready, and by
+ * exported applications. The VM that Runner starts for a regular Run
+ * doesn't use one, since its class path starts with the build folder.
+ */
+public class ClassDataSharing {
+  /** First Java version that shares classes from the class path by default. */
+  static public final int MINIMUM_VERSION = 11;
+
+  /** Archives that couldn't be created, so they're not tried again */
+  static private final Set<String> failed = new HashSet<>();
+
+
+  /**
+   * Read the major version from the 'release' file in a Java folder.
+   * @return 8 for 1.8.0_144, 17 for 17.0.9, or -1 if it can't be found
+   */
+  static public int getJavaVersion(File javaHome) {
+    File release = new File(javaHome, "release");
+    if (!release.exists()) {
+      // a JRE inside a JDK
+      release = new File(javaHome.getParentFile(), "release");
+    }
+    if (!release.exists()) {
+      return -1;
+    }
+    String[] lines = PApplet.loadStrings(release);
+    if (lines != null) {
+      for (String line : lines) {
+        if (line.startsWith("JAVA_VERSION=")) {
+          String version = line.substring(line.indexOf('=') + 1).replace("\"", "");
+          if (version.startsWith("1.")) {
+            version = version.substring(2);
+          }
+          String[] m = PApplet.match(version, "^(\\d+)");
+          if (m != null) {
+            return Integer.parseInt(m[1]);
+          }
+        }
+      }
+    }
+    return -1;
+  }
+
+
+  static public boolean isSupported(File javaHome) {
+    return getJavaVersion(javaHome) >= MINIMUM_VERSION;
+  }
+
+
+  static public String getJavaPath(File javaHome) {
+    String path = "bin/java" + (Platform.isWindows() ? ".exe" : "");
+    return new File(javaHome, path).getAbsolutePath();
+  }
+
+
+  /**
+   * Write the list of classes to put in the archive: the ones the JDK
+   * itself archives by default (so they're still shared once this archive
+   * is used instead of the JDK's), and every class in the jars.
+   */
+  static void writeClassList(File javaHome, String[] jars, File listFile) throws IOException {
+    PrintWriter writer = PApplet.createWriter(listFile);
+    File jdkList = new File(javaHome, "lib/classlist");
+    if (jdkList.exists()) {
+      for (String line : PApplet.loadStrings(jdkList)) {
+        writer.print(line + "\n");
+      }
+    }
+    for (String jar : jars) {
+      ZipFile zip = new ZipFile(jar);
+      try {
+        Enumeration<? extends ZipEntry> entries = zip.entries();
+        while (entries.hasMoreElements()) {
+          String name = entries.nextElement().getName();
+          // skip module-info, package-info, and multi-release versions
+          if (name.endsWith(".class") && !name.startsWith("META-INF/") &&
+              !name.endsWith("-info.class")) {
+            writer.print(name.substring(0, name.length() - 6) + "\n");
+          }
+        }
+      } finally {
+        zip.close();
+      }
+    }
+    writer.flush();
+    writer.close();
+  }
+
+
+  /**
+   * Create an archive of the classes in these jars (and the JDK's usual
+   * ones), using the Java that will be running them. Takes a second or two.
+   * The VM using the archive has to have these same jars, in this order,
+   * at the front of its class path.
+   * @param javaHome the Java that will use the archive
+   * @param jars absolute paths to the jars on the class path, in order
+   * @param archive the .jsa file to write
+   * @throws IOException if the VM couldn't create the archive
+   */
+  static public void createArchive(File javaHome, String[] jars,
+                                   File archive) throws IOException {
+    File listFile = File.createTempFile("classes", ".lst");
+    try {
+      writeClassList(javaHome, jars, listFile);
+      if (archive.exists()) {
+        // the VM makes the archive read-only
+        archive.delete();
+      }
+      String[] command = new String[] {
+        getJavaPath(javaHome),
+        "-Xshare:dump",
+        "-XX:SharedClassListFile=" + listFile.getAbsolutePath(),
+        "-XX:SharedArchiveFile=" + archive.getAbsolutePath(),
+        "-cp", PApplet.join(jars, File.pathSeparator)
+      };
+      long started = System.currentTimeMillis();
+      Process process =
+        new ProcessBuilder(command).redirectErrorStream(true).start();
+      // warnings about classes that can't be archived are normal,
+      // so only keep the output in case something went really wrong
+      StringBuilder output = new StringBuilder();
+      BufferedReader reader =
+        new BufferedReader(new InputStreamReader(process.getInputStream()));
+      String line;
+      while ((line = reader.readLine()) != null) {
+        output.append(line).append('\n');
+      }
+      int result = process.waitFor();
+      if (result != 0 || !archive.exists()) {
+        throw new IOException("Could not create " + archive.getName() +
+                              ":\n" + output);
+      }
+      Messages.log("Created " + archive + " in " +
+                   (System.currentTimeMillis() - started) + " ms");
+
+    } catch (InterruptedException e) {
+      throw new IOException("Interrupted while creating " + archive.getName());
+
+    } finally {
+      listFile.delete();
+    }
+  }
+
+
+  /**
+   * Get the archive for these jars from a folder, creating it if needed.
+   * It's named after the jars (and when they were last changed) and the
+   * Java using it, so an update to either gets a new one. Any older
+   * archives with the same prefix are removed.
+   * @return the archive, or null if this Java can't use one
+   */
+  static public synchronized File getArchive(File folder, String prefix,
+                                             File javaHome, String[] jars) {
+    if (!isSupported(javaHome)) {
+      return null;
+    }
+    StringBuilder key = new StringBuilder(getJavaPath(javaHome));
+    for (String jar : jars) {
+      File file = new File(jar);
+      key.append(jar).append(file.length()).append(file.lastModified());
+    }
+    String name = prefix + Integer.toHexString(key.toString().hashCode()) + ".jsa";
+    File archive = new File(folder, name);
+    if (failed.contains(name)) {
+      return null;
+    }
+    if (!archive.exists()) {
+      try {
+        folder.mkdirs();
+        File[] others = folder.listFiles();
+        if (others != null) {
+          for (File other : others) {
+            if (other.getName().startsWith(prefix)) {
+              other.delete();
+            }
+          }
+        }
+        createArchive(javaHome, jars, archive);
+      } catch (IOException e) {
+        Messages.loge("Could not create a class data sharing archive", e);
+        failed.add(name);
+        archive.delete();
+        return null;
+      }
+    }
+    return archive;
+  }
+}
@@ -0,0 +1,348 @@
+/* -*- mode: java; c-basic-offset: 2; indent-tabs-mode: nil -*- */
+
+/*
+  Part of the Processing project - http://processing.org
+
+  Copyright (c) 2017 The Processing Foundation
+
+  This program is free software; you can redistribute it and/or
+  modify it under the terms of the GNU General Public License
+  version 2, as published by the Free Software Foundation.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package processing.mode.java;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.StringTokenizer;
+
+import org.eclipse.jdt.internal.compiler.batch.ClasspathJar;
+import org.eclipse.jdt.internal.compiler.batch.FileSystem;
+import org.eclipse.jdt.internal.compiler.batch.FileSystem.Classpath;
+import org.eclipse.jdt.internal.compiler.batch.Main;
+
+import processing.app.Library;
+import processing.app.Messages;
+import processing.app.Mode;
+import processing.app.Platform;
+import processing.app.Util;
+
+
+/**
+ * Keeps the compiler ready between builds, so that each Run doesn't pay
+ * the full price of starting ECJ from nothing.
+ * <p/>
+ * ECJ's batch compiler builds a new name environment for every run: it
+ * opens each jar on the class path (and the JRE's), and reads the whole
+ * table of contents of each one the first time it looks for a package.
+ * For a sketch with a few libraries that's most of the time spent before
+ * any of the sketch is compiled. Here the jar part of that environment is
+ * kept between runs, so only the sketch's bin folder and source files are
+ * read each time. A jar is opened again if its size or modification time
+ * changes (e.g. a library was updated). On Windows an open jar can't be
+ * replaced, so only the JRE's jars are kept there.
+ * <p/>
+ * The compiler is also warmed up in the background when the Mode starts,
+ * by compiling a tiny sketch, so that its classes are loaded (and the JIT
+ * has had a look at them) before the first time someone hits Run.
+ */
+public class CompileService {
+  /** More than this and the least recently used jars are closed. */
+  static final int MAX_HELD = 100;
+
+  static private Map<String, HeldJar> held =
+    new LinkedHashMap<String, HeldJar>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, HeldJar> eldest) {
+        if (size() > MAX_HELD) {
+          eldest.getValue().close();
+          return true;
+        }
+        return false;
+      }
+    };
+
+  // how many times a held jar has been opened, and its contents listed
+  static private int openCount;
+  static private int scanCount;
+
+  static private boolean warmedUp;
+
+
+  /**
+   * Same as ECJ's BatchCompiler.compile(), but reusing the jars
+   * from earlier runs. Only one compile runs at a time.
+   */
+  static public synchronized boolean compile(String[] command,
+                                             PrintWriter out, PrintWriter err) {
+    return new ResidentMain(out, err).compile(command);
+  }
+
+
+  /** Close all the jars that are being kept open. */
+  static public synchronized void release() {
+    for (HeldJar jar : held.values()) {
+      jar.close();
+    }
+    held.clear();
+  }
+
+
+  /** Number of times one of the kept jars had to be opened. */
+  static public synchronized int getOpenCount() {
+    return openCount;
+  }
+
+
+  /** Number of times the list of packages in a kept jar was read. */
+  static public synchronized int getScanCount() {
+    return scanCount;
+  }
+
+
+  static private boolean canHold(File file) {
+    if (Platform.isWindows()) {
+      String jre = new File(System.getProperty("java.home")).getAbsolutePath();
+      return file.getAbsolutePath().startsWith(jre);
+    }
+    return true;
+  }
+
+
+  /**
+   * The kept jar for this path, opened again if the file has changed,
+   * or null if it isn't a jar that can be kept.
+   */
+  static private HeldJar hold(String path) {
+    File file = new File(path).getAbsoluteFile();
+    String lower = file.getName().toLowerCase();
+    if (!file.isFile() || !canHold(file) ||
+        !(lower.endsWith(".jar") || lower.endsWith(".zip"))) {
+      return null;
+    }
+    String key = file.getPath();
+    HeldJar jar = held.get(key);
+    if (jar != null && !jar.isCurrent()) {
+      held.remove(key);
+      jar.close();
+      jar = null;
+    }
+    if (jar == null) {
+      jar = new HeldJar(file);
+      held.put(key, jar);  // before the linked jars, in case of a loop
+      jar.fetchLinked();
+    }
+    return jar;
+  }
+
+
+  /**
+   * A jar that stays open, along with its list of packages, until it's
+   * closed here. ECJ calls reset() at the end of every run, which is
+   * what would otherwise close it.
+   */
+  static private class HeldJar extends ClasspathJar {
+    final long length;
+    final long modified;
+    List<HeldJar> linked = new ArrayList<>();
+
+    HeldJar(File file) {
+      super(file, true, null, null);
+      length = file.length();
+      modified = file.lastModified();
+    }
+
+    boolean isCurrent() {
+      return file.length() == length && file.lastModified() == modified;
+    }
+
+    /** Jars named by the Class-Path entry in the manifest, if any. */
+    void fetchLinked() {
+      FileSystem.ClasspathSectionProblemReporter quiet =
+        new FileSystem.ClasspathSectionProblemReporter() {
+          public void invalidClasspathSection(String jarFilePath) { }
+          public void multipleClasspathSections(String jarFilePath) { }
+        };
+      List<?> found = fetchLinkedJars(quiet);
+      if (found != null) {
+        for (Object entry : found) {
+          HeldJar jar = hold(((Classpath) entry).getPath());
+          if (jar != null) {
+            linked.add(jar);
+          }
+        }
+      }
+    }
+
+    @Override
+    public void initialize() throws IOException {
+      if (zipFile == null) {
+        openCount++;
+      }
+      super.initialize();
+    }
+
+    @Override
+    public boolean isPackage(String qualifiedPackageName) {
+      if (packageCache == null) {
+        scanCount++;
+      }
+      return super.isPackage(qualifiedPackageName);
+    }
+
+    @Override
+    public void reset() {
+      // stays open for the next run
+    }
+
+    void close() {
+      super.reset();
+    }
+  }
+
+
+  /**
+   * The batch compiler, but with the jars on the class path and boot
+   * class path swapped for the kept ones before the name environment
+   * is built. Everything else (options, source files, the bin folder)
+   * is handled by ECJ the same as before.
+   */
+  static private class ResidentMain extends Main {
+    ResidentMain(PrintWriter out, PrintWriter err) {
+      super(out, err, false, null, null);
+    }
+
+    @Override
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    protected ArrayList handleClasspath(ArrayList classpaths, String customEncoding) {
+      if (classpaths == null || classpaths.isEmpty()) {
+        return super.handleClasspath(classpaths, customEncoding);
+      }
+      // ECJ would open every jar here to look for Class-Path entries
+      ArrayList result = new ArrayList();
+      Set<String> seen = new HashSet<>();
+      for (Object entries : classpaths) {
+        StringTokenizer st =
+          new StringTokenizer((String) entries, File.pathSeparator);
+        while (st.hasMoreTokens()) {
+          String path = st.nextToken();
+          HeldJar jar = hold(path);
+          if (jar != null) {
+            add(result, seen, jar);
+            for (HeldJar linked : jar.linked) {
+              add(result, seen, linked);
+            }
+          } else {
+            Classpath cp =
+              FileSystem.getClasspath(path, customEncoding, null, options);
+            if (cp != null && seen.add(cp.getPath())) {
+              result.add(cp);
+            }
+          }
+        }
+      }
+      return result;
+    }
+
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    private void add(ArrayList result, Set<String> seen, HeldJar jar) {
+      if (seen.add(jar.getPath())) {
+        result.add(jar);
+      }
+    }
+
+    @Override
+    public FileSystem getLibraryAccess() {
+      // the JRE's jars come from the boot class path and extension dirs
+      for (int i = 0; i < checkedClasspaths.length; i++) {
+        Classpath cp = checkedClasspaths[i];
+        if (cp instanceof ClasspathJar && !(cp instanceof HeldJar)) {
+          HeldJar jar = hold(cp.getPath());
+          if (jar != null) {
+            checkedClasspaths[i] = jar;
+          }
+        }
+      }
+      return super.getLibraryAccess();
+    }
+  }
+
+
+  /**
+   * Compile a throwaway sketch on a background thread, so that the first
+   * real build doesn't have to load and warm up the compiler. Only happens
+   * once per session.
+   */
+  static public synchronized void warmUp(final Mode mode) {
+    if (warmedUp) return;
+    warmedUp = true;
+
+    Thread thread = new Thread(new Runnable() {
+      public void run() {
+        try {
+          long started = System.currentTimeMillis();
+          warmUpImpl(mode);
+          Messages.log("Compiler warmed up in " +
+                       (System.currentTimeMillis() - started) + " ms");
+        } catch (Exception e) {
+          // it's only for speed, a real build will report any trouble
+          Messages.loge("Could not warm up the compiler", e);
+        }
+      }
+    }, "Compiler Warm Up");
+    thread.setDaemon(true);
+    thread.setPriority(Thread.MIN_PRIORITY);
+    thread.start();
+  }
+
+
+  static private void warmUpImpl(Mode mode) throws Exception {
+    File folder = Util.createTempFolder("warmup", "", null);
+    try {
+      File source = new File(folder, "WarmUp.java");
+      Util.saveFile("public class WarmUp extends processing.core.PApplet {\n" +
+                    "  float angle;\n" +
+                    "  public void draw() {\n" +
+                    "    angle += 0.01f;\n" +
+                    "    ellipse(width/2, height/2, 50 * sin(angle), 50);\n" +
+                    "  }\n" +
+                    "}\n", source);
+
+      // core is all this needs, the PDE's own jars would only slow it down
+      String classPath = folder.getAbsolutePath();
+      Library core = mode.getCoreLibrary();
+      if (core != null) {
+        classPath += core.getClassPath();
+      }
+
+      String[] command = new String[] {
+        "-g", "-Xemacs", "-source", "1.7", "-target", "1.7",
+        "-classpath", classPath, "-nowarn",
+        "-d", folder.getAbsolutePath(), source.getAbsolutePath()
+      };
+      StringWriter ignored = new StringWriter();
+      PrintWriter writer = new PrintWriter(ignored);
+      compile(command, writer, writer);
+
+    } finally {
+      Util.removeDir(folder);
+    }
+  }
+}
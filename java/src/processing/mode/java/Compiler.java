@@ -28,7 +28,6 @@ import processing.app.ui.Editor;
 import processing.core.*;
 
 import java.io.*;
-import java.lang.reflect.Method;
 import java.util.HashMap;
 
 //import org.eclipse.jdt.core.compiler.batch.BatchCompiler;
@@ -57,6 +56,21 @@ public class Compiler {
    * @throws RunnerException Only if there's a problem. Only then.
    */
   static public boolean compile(JavaBuild build) throws SketchException {
+    String[] sourceFiles = Util.listFiles(build.getSrcFolder(), false, ".java");
+    return compile(build, sourceFiles);
+  }
+
+
+  /**
+   * Compile only the specified .java files from the build's source folder.
+   * Classes from the other files are expected to be found on the class path
+   * (i.e. already in the bin folder), which is how {@link BuildCache} handles
+   * recompiling just the tabs that changed.
+   *
+   * @param sourceFiles absolute paths of the .java files to be compiled
+   */
+  static public boolean compile(JavaBuild build,
+                                String[] sourceFiles) throws SketchException {
 
     // This will be filled in if anyone gets angry
     SketchException exception = null;
@@ -74,7 +88,6 @@ public class Compiler {
     };
     //PApplet.println(baseCommand);
 
-    String[] sourceFiles = Util.listFiles(build.getSrcFolder(), false, ".java");
     String[] command = PApplet.concat(baseCommand, sourceFiles);
     //PApplet.println(command);
 
@@ -103,19 +116,12 @@ public class Compiler {
       //CompilationProgress progress = null;
       //success = BatchCompiler.compile(command, outWriter, writer, progress);
 
-      // Version that *is* dynamically loaded. First gets the mode class loader
-      // so that it can grab the compiler JAR files from it.
-      ClassLoader loader = build.mode.getClassLoader();
+      // Same as BatchCompiler.compile(), but keeps the class path's jars
+      // open between builds. (The compiler JAR files are on the mode's
+      // class loader, which is also the one that loaded CompileService.)
       try {
-        Class<?> batchClass =
-          Class.forName("org.eclipse.jdt.core.compiler.batch.BatchCompiler", false, loader);
-        Class<?> progressClass =
-          Class.forName("org.eclipse.jdt.core.compiler.CompilationProgress", false, loader);
-        Class<?>[] compileArgs =
-          new Class<?>[] { String[].class, PrintWriter.class, PrintWriter.class, progressClass };
-        Method compileMethod = batchClass.getMethod("compile", compileArgs);
-        success = (Boolean)
-          compileMethod.invoke(null, new Object[] { command, outWriter, writer, null });
+        success = CompileService.compile(command, outWriter, writer);
+        build.getTimings().mark("compile");
       } catch (Exception e) {
         e.printStackTrace();
         throw new SketchException("Unknown error inside the compiler.");
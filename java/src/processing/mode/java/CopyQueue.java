@@ -0,0 +1,204 @@
+/* -*- mode: java; c-basic-offset: 2; indent-tabs-mode: nil -*- */
+
+/*
+  Part of the Processing project - http://processing.org
+
+  Copyright (c) 2017 The Processing Foundation
+
+  This program is free software; you can redistribute it and/or
+  modify it under the terms of the GNU General Public License
+  version 2, as published by the Free Software Foundation.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package processing.mode.java;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+
+/**
+ * Copies the files for an export on several threads at once, so that
+ * exporting a sketch with a large data folder (or several large libraries)
+ * isn't limited to one file at a time, and so that one platform's files
+ * can be copied while the next platform is being set up.
+ * <p/>
+ * Optionally, a file that's already been copied for one platform is hard
+ * linked for the others, rather than copied again. The copies then share
+ * the same data on disk, so editing one of them changes all of them, which
+ * is why that's off by default.
+ */
+public class CopyQueue {
+  private final ExecutorService threads;
+  private final boolean link;
+
+  private final List<Future<?>> pending = new ArrayList<>();
+  /** The first copy made of each source file, for the rest to link to */
+  private final Map<File, Copy> firstCopies = new HashMap<>();
+  /** Folders whose times are set once their contents are in place */
+  private final Map<File, Long> folderTimes = new HashMap<>();
+
+
+  public CopyQueue(boolean link) {
+    this.link = link;
+    int count = Math.max(2, Math.min(8, Runtime.getRuntime().availableProcessors()));
+    threads = Executors.newFixedThreadPool(count, r -> {
+      Thread t = new Thread(r);
+      t.setDaemon(true);
+      t.setName("Export Copy " + t.getId());
+      return t;
+    });
+  }
+
+
+  /**
+   * Copy a file, keeping its modification time and executable bit, the
+   * same as Util.copyFile(). Returns right away; use await() or finish()
+   * to wait for the copy to be written.
+   */
+  public void copyFile(File sourceFile, File targetFile) {
+    Copy earlier = link ? firstCopies.get(sourceFile) : null;
+    Copy copy = new Copy(sourceFile, targetFile, earlier);
+    if (link && earlier == null) {
+      firstCopies.put(sourceFile, copy);
+    }
+    copy.future = threads.submit(copy);
+    pending.add(copy.future);
+  }
+
+
+  /**
+   * Copy a folder, skipping dot files (.DS_Store) and dot folders (.svn),
+   * the same as Util.copyDir(). The folders are created right away, and
+   * the files are copied in the background.
+   */
+  public void copyDir(File sourceDir, File targetDir) {
+    if (sourceDir.equals(targetDir)) {
+      final String urDum = "source and target directories are identical";
+      throw new IllegalArgumentException(urDum);
+    }
+    targetDir.mkdirs();
+    String[] files = sourceDir.list();
+    for (String name : files) {
+      if (name.charAt(0) == '.') continue;
+      File source = new File(sourceDir, name);
+      File target = new File(targetDir, name);
+      if (source.isDirectory()) {
+        copyDir(source, target);
+        folderTimes.put(target, source.lastModified());
+      } else {
+        copyFile(source, target);
+      }
+    }
+  }
+
+
+  /**
+   * Wait for everything queued so far to be copied.
+   * @throws IOException the first error that came up while copying
+   */
+  public void await() throws IOException {
+    IOException error = null;
+    for (Future<?> future : pending) {
+      try {
+        future.get();
+      } catch (ExecutionException e) {
+        if (error == null) {
+          Throwable cause = e.getCause();
+          error = (cause instanceof IOException) ?
+            (IOException) cause : new IOException(cause);
+        }
+      } catch (InterruptedException e) {
+        if (error == null) {
+          error = new IOException("Interrupted while copying files");
+        }
+      }
+    }
+    pending.clear();
+
+    for (Map.Entry<File, Long> entry : folderTimes.entrySet()) {
+      entry.getKey().setLastModified(entry.getValue());
+    }
+    folderTimes.clear();
+
+    if (error != null) {
+      throw error;
+    }
+  }
+
+
+  /** Wait for the copies, and then shut down the threads. */
+  public void finish() throws IOException {
+    try {
+      await();
+    } finally {
+      threads.shutdown();
+    }
+  }
+
+
+  private class Copy implements Callable<Void> {
+    final File source;
+    final File target;
+    final Copy earlier;
+    Future<?> future;
+
+
+    Copy(File source, File target, Copy earlier) {
+      this.source = source;
+      this.target = target;
+      this.earlier = earlier;
+    }
+
+
+    public Void call() throws IOException {
+      if (earlier == null || !linkToEarlier()) {
+        try {
+          Files.copy(source.toPath(), target.toPath(),
+                     StandardCopyOption.REPLACE_EXISTING,
+                     StandardCopyOption.COPY_ATTRIBUTES);
+        } catch (IOException e) {
+          throw new IOException("Could not copy " + source + " to " + target, e);
+        }
+      }
+      return null;
+    }
+
+
+    /**
+     * Link to the copy made for an earlier platform. That copy was queued
+     * first, so it's already running (or done) by the time this one starts.
+     * @return false if that copy failed, or links aren't possible here
+     *         (FAT drives, or a different volume), so it should be copied
+     */
+    boolean linkToEarlier() {
+      try {
+        earlier.future.get();
+        Files.deleteIfExists(target.toPath());
+        Files.createLink(target.toPath(), earlier.target.toPath());
+        return true;
+      } catch (Exception e) {
+        return false;
+      }
+    }
+  }
+}
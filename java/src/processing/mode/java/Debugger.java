@@ -71,6 +71,9 @@ public class Debugger {
   /// holds all loaded classes in the debuggee VM
   protected Set<ReferenceType> classes = new LinkedHashSet<>();
 
+  /// most array elements shown together, larger arrays are split up
+  static public final int ARRAY_PAGE = 100;
+
   /// listeners for class load events
   protected List<ClassLoadListener> classLoadListeners = new ArrayList<>();
 
@@ -887,8 +890,10 @@ public class Debugger {
         final List<DefaultMutableTreeNode> stackTrace = getStackTrace(t);
         final List<VariableNode> locals = getLocals(t, 0);
         final String currentLocation = currentLocation(t);
+        // only the values of the fields of this are read, anything
+        // below them is fetched when its node is expanded
         final List<VariableNode> thisFields = getThisFields(t, 0, true);
-        final List<VariableNode> declaredThisFields = getThisFields(t, 0, false);
+        final List<VariableNode> declaredThisFields = getDeclaredFields(thisFields);
         final String thisName = thisName(t);
         // now update asynchronously
         javax.swing.SwingUtilities.invokeLater(new Runnable() {
@@ -977,9 +982,12 @@ public class Debugger {
     try {
       if (t.frameCount() > 0) {
         StackFrame sf = t.frame(0);
-        for (LocalVariable lv : sf.visibleVariables()) {
+        List<LocalVariable> visible = sf.visibleVariables();
+        // one round trip for all of them, rather than one each
+        Map<LocalVariable, Value> values = sf.getValues(visible);
+        for (LocalVariable lv : visible) {
           //System.out.println("local var: " + lv.name());
-          Value val = sf.getValue(lv);
+          Value val = values.get(lv);
           VariableNode var = new LocalVariableNode(lv.name(), lv.typeName(), val, lv, sf);
           if (depth > 0) {
             var.addChildren(getFields(val, depth - 1, true));
@@ -1019,6 +1027,29 @@ public class Debugger {
   }
 
 
+  /**
+   * Pick out the fields declared by the class of the object they belong to,
+   * leaving out inherited ones. Saves reading the values of the fields of
+   * this a second time for {@link VariableInspector#updateDeclaredThisFields}.
+   * @param fields nodes for the visible fields of an object
+   * @return the ones that aren't inherited
+   */
+  protected List<VariableNode> getDeclaredFields(List<VariableNode> fields) {
+    List<VariableNode> declared = new ArrayList<>();
+    for (VariableNode var : fields) {
+      if (var instanceof FieldNode) {
+        FieldNode node = (FieldNode) var;
+        if (node.getField().declaringType().equals(node.getObject().referenceType())) {
+          declared.add(new FieldNode(node.getName(), node.getTypeName(),
+                                     node.getValue(), node.getField(),
+                                     node.getObject()));
+        }
+      }
+    }
+    return declared;
+  }
+
+
   /**
    * Recursively get the fields of a {@link Value} for insertion into a
    * {@link JTree}.
@@ -1038,8 +1069,10 @@ public class Debugger {
         ObjectReference obj = (ObjectReference) value;
         // get the fields of this object
         List<Field> fields = includeInherited ? obj.referenceType().visibleFields() : obj.referenceType().fields();
+        // one round trip for all of them, rather than one each
+        Map<Field, Value> values = obj.getValues(fields);
         for (Field field : fields) {
-          Value val = obj.getValue(field); // get the value, may be null
+          Value val = values.get(field); // get the value, may be null
           VariableNode var = new FieldNode(field.name(), field.typeName(), val, field, obj);
           // recursively add children
           if (val != null) {
@@ -1072,18 +1105,48 @@ public class Debugger {
    * @return list of array fields
    */
   protected List<VariableNode> getArrayFields(ArrayReference array) {
+    if (array == null) {
+      return new ArrayList<>();
+    }
+    return getArrayFields(array, 0, array.length());
+  }
+
+
+  /**
+   * Get the elements in part of an array for insertion into a {@link JTree}.
+   * Up to {@link #ARRAY_PAGE} elements are read, with a single round trip.
+   * Larger ranges are split into at most that many {@link ArrayRangeNode}s,
+   * whose elements are only read once they're expanded, so that showing an
+   * array costs the same no matter how large it is.
+   * @param array the array reference
+   * @param start index of the first element
+   * @param length number of elements
+   * @return list of array fields, or of smaller ranges
+   */
+  public List<VariableNode> getArrayFields(ArrayReference array, int start, int length) {
     List<VariableNode> fields = new ArrayList<>();
-    if (array != null) {
+    if (length <= ARRAY_PAGE) {
       String arrayType = array.type().name();
       if (arrayType.endsWith("[]")) {
         arrayType = arrayType.substring(0, arrayType.length() - 2);
       }
-      int i = 0;
-      for (Value val : array.getValues()) {
+      int i = start;
+      for (Value val : array.getValues(start, length)) {
         VariableNode var = new ArrayFieldNode("[" + i + "]", arrayType, val, array, i);
         fields.add(var);
         i++;
       }
+    } else {
+      // the smallest of 100, 10000, ... that keeps this to ARRAY_PAGE nodes
+      long chunk = ARRAY_PAGE;
+      while (chunk * ARRAY_PAGE < length) {
+        chunk *= ARRAY_PAGE;
+      }
+      String arrayType = array.type().name();
+      for (long i = start; i < start + length; i += chunk) {
+        int count = (int) Math.min(chunk, start + length - i);
+        fields.add(new ArrayRangeNode(arrayType, array, (int) i, count));
+      }
     }
     return fields;
   }
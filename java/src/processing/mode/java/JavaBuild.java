@@ -89,6 +89,15 @@ public class JavaBuild {
   /** List of library folders, as figured out during preprocessing. */
   private List<Library> importedLibraries;
 
+  /** Copies for the export in progress, shared by all of its platforms. */
+  private CopyQueue exportQueue;
+
+  /** The sketch's .jar, the same for every platform, so it's built once. */
+  private File exportJar;
+
+  /** Where the time went during the last call to build() */
+  private BuildTimings timings = new BuildTimings();
+
 
   public JavaBuild(Sketch sketch) {
     this.sketch = sketch;
@@ -118,13 +127,26 @@ public class JavaBuild {
   public String build(File srcFolder, File binFolder, boolean sizeWarning) throws SketchException {
     this.srcFolder = srcFolder;
     this.binFolder = binFolder;
+    timings.start();
 
     // run the preprocessor
     String classNameFound = preprocess(srcFolder, sizeWarning);
+    timings.mark("preprocess");
 
     // compile the program. errors will happen as a RunnerException
     // that will bubble up to whomever called build().
-    if (Compiler.compile(this)) {
+    // The cache skips recompiling anything unchanged since the last build.
+    boolean success = false;
+    try {
+      success = BuildCache.get(sketch).compile(this);
+    } finally {
+      timings.mark("other");
+      Messages.log("Build: " + timings);
+      if (Preferences.getBoolean("compiler.timing")) {
+        System.out.println((success ? "Build: " : "Build failed: ") + timings);
+      }
+    }
+    if (success) {
       sketchClassName = classNameFound;
       return classNameFound;
     }
@@ -132,6 +154,16 @@ public class JavaBuild {
   }
 
 
+  public BuildTimings getTimings() {
+    return timings;
+  }
+
+
+  public Mode getMode() {
+    return mode;
+  }
+
+
   public String getSketchClassName() {
     return sketchClassName;
   }
@@ -689,6 +721,18 @@ public class JavaBuild {
       return false;
     }
 
+    // copy the files for every platform through one queue, so that they're
+    // written while the next platform is being put together
+    exportQueue = new CopyQueue(Preferences.getBoolean("export.application.hard_links"));
+    try {
+      return exportApplications();
+    } finally {
+      finishExport();
+    }
+  }
+
+
+  private boolean exportApplications() throws IOException, SketchException {
     File folder = null;
     for (String platformName : PConstants.platformNames) {
       int platform = Platform.getIndex(platformName);
@@ -746,6 +790,16 @@ public class JavaBuild {
                                       int exportPlatform,
                                       String exportVariant,
                                       boolean embedJava) throws IOException, SketchException {
+    if (exportQueue == null) {
+      // just this one platform (from the Commander), so wait for it here
+      exportQueue = new CopyQueue(false);
+      try {
+        return exportApplication(destFolder, exportPlatform, exportVariant, embedJava);
+      } finally {
+        finishExport();
+      }
+    }
+
     // TODO this should probably be a dialog box instead of a warning
     // on the terminal. And the message should be written better than this.
     // http://code.google.com/p/processing/issues/detail?id=884
@@ -830,7 +884,7 @@ public class JavaBuild {
 
     } else if (exportPlatform == PConstants.WINDOWS) {
       if (embedJava) {
-        Util.copyDir(Platform.getJavaHome(), new File(destFolder, "java"));
+        exportQueue.copyDir(Platform.getJavaHome(), new File(destFolder, "java"));
       }
     }
 
@@ -845,34 +899,12 @@ public class JavaBuild {
     StringList jarList = new StringList();
 
 
-    /// create the main .jar file
-
-//    HashMap<String,Object> zipFileContents = new HashMap<String,Object>();
-
-    FileOutputStream zipOutputFile =
-      new FileOutputStream(new File(jarFolder, sketch.getName() + ".jar"));
-    ZipOutputStream zos = new ZipOutputStream(zipOutputFile);
-//    ZipEntry entry;
+    /// copy in the main .jar file
 
-    // add the manifest file so that the .jar can be double clickable
-    addManifest(zos);
-
-    // add the project's .class files to the jar
-    // (just grabs everything from the build directory,
-    // since there may be some inner classes)
-    // TODO this needs to be recursive (for packages)
-//    File classFiles[] = tempClassesFolder.listFiles(new FilenameFilter() {
-//      public boolean accept(File dir, String name) {
-//        return name.endsWith(".class");
-//      }
-//    });
-//    for (File file : classFiles) {
-//      entry = new ZipEntry(file.getName());
-//      zos.putNextEntry(entry);
-//      zos.write(Base.loadBytesRaw(file));
-//      zos.closeEntry();
-//    }
-    addClasses(zos, binFolder);
+    if (exportJar == null) {
+      exportJar = createExportJar();
+    }
+    exportQueue.copyFile(exportJar, new File(jarFolder, sketch.getName() + ".jar"));
 
     // add the data folder to the main jar file
 //    addDataFolder(zos);
@@ -882,9 +914,9 @@ public class JavaBuild {
     // 'data' folder next to 'lib'.
     if (sketch.hasDataFolder()) {
       if (exportPlatform == PConstants.MACOSX) {
-        Util.copyDir(sketch.getDataFolder(),  new File(jarFolder, "data"));
+        exportQueue.copyDir(sketch.getDataFolder(),  new File(jarFolder, "data"));
       } else {
-        Util.copyDir(sketch.getDataFolder(),  new File(destFolder, "data"));
+        exportQueue.copyDir(sketch.getDataFolder(),  new File(destFolder, "data"));
       }
     }
 
@@ -898,7 +930,7 @@ public class JavaBuild {
             codeList[i].toLowerCase().endsWith(".zip")) {
           File exportFile = new File(codeList[i]);
           String exportFilename = exportFile.getName();
-          Util.copyFile(exportFile, new File(jarFolder, exportFilename));
+          exportQueue.copyFile(exportFile, new File(jarFolder, exportFilename));
           jarList.append(exportFilename);
         } else {
 //          cp += codeList[i] + File.pathSeparator;
@@ -906,9 +938,6 @@ public class JavaBuild {
       }
     }
 
-    zos.flush();
-    zos.close();
-
     jarList.append(sketch.getName() + ".jar");
 
 
@@ -924,22 +953,44 @@ public class JavaBuild {
                              "a big fat lie and does not exist.");
 
         } else if (exportFile.isDirectory()) {
-          Util.copyDir(exportFile, new File(jarFolder, exportName));
+          exportQueue.copyDir(exportFile, new File(jarFolder, exportName));
 
         } else if (exportName.toLowerCase().endsWith(".zip") ||
                    exportName.toLowerCase().endsWith(".jar")) {
-          Util.copyFile(exportFile, new File(jarFolder, exportName));
+          exportQueue.copyFile(exportFile, new File(jarFolder, exportName));
           jarList.append(exportName);
 
         } else {
           // Starting with 2.0a2 put extra export files (DLLs, plugins folder,
           // anything else for libraries) inside lib or Contents/Resources/Java
-          Util.copyFile(exportFile, new File(jarFolder, exportName));
+          exportQueue.copyFile(exportFile, new File(jarFolder, exportName));
         }
       }
     }
 
 
+    /// archive the classes, if the embedded Java can share them (11 and up)
+
+    String archiveName = null;
+    if (embedJava && Preferences.getBoolean("export.application.cds") &&
+        ClassDataSharing.isSupported(Platform.getJavaHome())) {
+      // the archive is made from the copies, so they have to be in place
+      exportQueue.await();
+      String[] jars = new String[jarList.size()];
+      for (int i = 0; i < jars.length; i++) {
+        jars[i] = new File(jarFolder, jarList.get(i)).getAbsolutePath();
+      }
+      File archive = new File(jarFolder, sketch.getName() + ".jsa");
+      try {
+        ClassDataSharing.createArchive(Platform.getJavaHome(), jars, archive);
+        archiveName = archive.getName();
+      } catch (IOException e) {
+        // the application still runs, only without the archive
+        System.err.println(e.getMessage());
+      }
+    }
+
+
     /// create platform-specific CLASSPATH based on included jars
 
     String exportClassPath = null;
@@ -948,9 +999,15 @@ public class JavaBuild {
     } else if (exportPlatform == PConstants.WINDOWS) {
       exportClassPath = jarList.join(",");
     } else if (exportPlatform == PConstants.LINUX) {
-      // why is $APPDIR at the front of this list?
-      exportClassPath = "$APPDIR" +
-        ":$APPDIR/lib/" + jarList.join(":$APPDIR/lib/");
+      if (archiveName != null) {
+        // the archived jars have to be first on the class path
+        exportClassPath = "$APPDIR/lib/" + jarList.join(":$APPDIR/lib/") +
+          ":$APPDIR";
+      } else {
+        // why is $APPDIR at the front of this list?
+        exportClassPath = "$APPDIR" +
+          ":$APPDIR/lib/" + jarList.join(":$APPDIR/lib/");
+      }
     }
 
 
@@ -987,6 +1044,17 @@ public class JavaBuild {
       runOptions.append("-Djava.library.path=\"%EXEDIR%\\lib\"");
     }
 
+    // if the application has been moved, Java ignores the archive
+    if (archiveName != null) {
+      if (exportPlatform == PConstants.MACOSX) {
+        runOptions.append("-XX:SharedArchiveFile=$APP_ROOT/Contents/Java/" + archiveName);
+      } else if (exportPlatform == PConstants.WINDOWS) {
+        runOptions.append("-XX:SharedArchiveFile=\"%EXEDIR%\\lib\\" + archiveName + "\"");
+      } else if (exportPlatform == PConstants.LINUX) {
+        runOptions.append("-XX:SharedArchiveFile=\"$APPDIR/lib/" + archiveName + "\"");
+      }
+    }
+
 
     /// macosx: write out Info.plist (template for classpath, etc)
 
@@ -1039,6 +1107,8 @@ public class JavaBuild {
 
       // attempt to code sign if the Xcode tools appear to be installed
       if (Platform.isMacOS() && isXcodeInstalled()) {
+        // the signature covers everything inside the .app
+        exportQueue.await();
         if (embedJava) {
           ProcessHelper.ffs("codesign", "--force", "--sign", "-", jdkPath);
         }
@@ -1240,6 +1310,44 @@ public class JavaBuild {
   }
 
 
+  /**
+   * Wait for the files to finish copying, and clean up after the export.
+   */
+  private void finishExport() throws IOException {
+    try {
+      exportQueue.finish();
+    } finally {
+      exportQueue = null;
+      if (exportJar != null) {
+        exportJar.delete();
+        exportJar = null;
+      }
+    }
+  }
+
+
+  /**
+   * Create the sketch's .jar file, in a temporary location, for copying
+   * into the export folder for each platform.
+   */
+  protected File createExportJar() throws IOException {
+    File jarFile = File.createTempFile(sketch.getName(), ".jar");
+    ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(jarFile));
+
+    // add the manifest file so that the .jar can be double clickable
+    addManifest(zos);
+
+    // add the project's .class files to the jar
+    // (just grabs everything from the build directory,
+    // since there may be some inner classes)
+    addClasses(zos, binFolder);
+
+    zos.flush();
+    zos.close();
+    return jarFile;
+  }
+
+
   protected void addManifest(ZipOutputStream zos) throws IOException {
     ZipEntry entry = new ZipEntry("META-INF/MANIFEST.MF");
     zos.putNextEntry(entry);
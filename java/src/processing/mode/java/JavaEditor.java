@@ -1635,26 +1635,17 @@ public class JavaEditor extends Editor {
       }
     }
 
-    boolean saved = super.handleSave(immediately);
-    if (saved) {
-      if (immediately) {
+    // the markers are added to the files on disk, so wait until they're written
+    return super.handleSave(immediately, new Runnable() {
+      @Override
+      public void run() {
         for (String tabFilename : modified) {
           addBreakpointComments(tabFilename);
         }
-      } else {
-        EventQueue.invokeLater(new Runnable() {
-            @Override
-            public void run() {
-              for (String tabFilename : modified) {
-                addBreakpointComments(tabFilename);
-              }
-            }
-          });
       }
-    }
+    });
     //  if file location has changed, update autosaver
     // autosaver.reloadAutosaveDir();
-    return saved;
   }
 
 
@@ -57,6 +57,18 @@ public class JavaMode extends Mode {
   }
 
 
+  @Override
+  public void setupGUI() {
+    super.setupGUI();
+
+    // get the compiler ready before the first Run (the class loader for the
+    // compiler has been set by now, and the Commander never gets here)
+    if (Preferences.getBoolean("compiler.warm_up")) {
+      CompileService.warmUp(this);
+    }
+  }
+
+
   public String getTitle() {
     return "Java";
   }
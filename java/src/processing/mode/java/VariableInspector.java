@@ -40,6 +40,7 @@ import com.sun.jdi.Value;
 import processing.app.Language;
 import processing.app.Messages;
 import processing.app.Mode;
+import processing.mode.java.debug.ArrayRangeNode;
 import processing.mode.java.debug.VariableNode;
 
 
@@ -673,7 +674,13 @@ public class VariableInspector extends JDialog {
       }
       VariableNode var = (VariableNode) last;
       var.removeAllChildren(); // TODO: should we only load it once?
-      var.addChildren(filterNodes(editor.getDebugger().getFields(var.getValue(), 0, true), new ThisFilter()));
+      Debugger debugger = editor.getDebugger();
+      if (var instanceof ArrayRangeNode) {
+        ArrayRangeNode range = (ArrayRangeNode) var;
+        var.addChildren(debugger.getArrayFields(range.getArray(), range.getStart(), range.getLength()));
+      } else {
+        var.addChildren(filterNodes(debugger.getFields(var.getValue(), 0, true), new ThisFilter()));
+      }
     }
 
     @Override
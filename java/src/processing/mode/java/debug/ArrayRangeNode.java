@@ -0,0 +1,85 @@
+/* -*- mode: java; c-basic-offset: 2; indent-tabs-mode: nil -*- */
+
+/*
+  Part of the Processing project - http://processing.org
+
+  Copyright (c) 2017 The Processing Foundation
+
+  This program is free software; you can redistribute it and/or
+  modify it under the terms of the GNU General Public License
+  version 2, as published by the Free Software Foundation.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package processing.mode.java.debug;
+
+import com.sun.jdi.ArrayReference;
+import com.sun.jdi.Value;
+
+
+/**
+ * Stands in for a run of elements in a large array, like [100..199], so
+ * that something like pixels[] doesn't have to be read all at once. The
+ * elements (or smaller runs) are only fetched when the node is expanded.
+ */
+public class ArrayRangeNode extends VariableNode {
+  protected ArrayReference array;
+  protected int start;
+  protected int length;
+
+
+  /**
+   * Construct an {@link ArrayRangeNode}.
+   * @param type the type of the array
+   * @param array the array reference
+   * @param start index of the first element in the range
+   * @param length number of elements in the range
+   */
+  public ArrayRangeNode(String type, ArrayReference array, int start, int length) {
+    super("[" + start + ".." + (start + length - 1) + "]", type, array);
+    this.array = array;
+    this.start = start;
+    this.length = length;
+  }
+
+
+  public ArrayReference getArray() {
+    return array;
+  }
+
+
+  public int getStart() {
+    return start;
+  }
+
+
+  public int getLength() {
+    return length;
+  }
+
+
+  @Override
+  public void setValue(Value value) {
+    // the range itself can't be changed, only its elements
+  }
+
+
+  @Override
+  public String getStringValue() {
+    return "";
+  }
+
+
+  @Override
+  public boolean getAllowsChildren() {
+    return length > 0;
+  }
+}
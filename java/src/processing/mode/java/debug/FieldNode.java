@@ -51,6 +51,16 @@ public class FieldNode extends VariableNode {
   }
 
 
+  public Field getField() {
+    return field;
+  }
+
+
+  public ObjectReference getObject() {
+    return obj;
+  }
+
+
   @Override
   public void setValue(Value value) {
     try {
@@ -57,6 +57,7 @@ public class VariableNode implements MutableTreeNode {
   protected Value value;
   protected List<MutableTreeNode> children = new ArrayList<MutableTreeNode>();
   protected MutableTreeNode parent;
+  private Boolean allowsChildren;
 
 
   /**
@@ -74,6 +75,7 @@ public class VariableNode implements MutableTreeNode {
 
   public void setValue(Value value) {
     this.value = value;
+    allowsChildren = null;
   }
 
 
@@ -210,8 +212,20 @@ public class VariableNode implements MutableTreeNode {
   }
 
 
+  /**
+   * Whether this has children, remembered since it's asked for each time
+   * the row is painted, and finding out may mean asking the debuggee.
+   */
   @Override
   public boolean getAllowsChildren() {
+    if (allowsChildren == null) {
+      allowsChildren = checkAllowsChildren();
+    }
+    return allowsChildren;
+  }
+
+
+  private boolean checkAllowsChildren() {
     if (value == null) {
       return false;
     }
@@ -320,6 +334,7 @@ public class VariableNode implements MutableTreeNode {
   public void setUserObject(Object o) {
     if (o instanceof Value) {
       value = (Value) o;
+      allowsChildren = null;
     }
   }
 
@@ -28,7 +28,6 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Optional;
-import java.util.regex.Pattern;
 import java.util.stream.Stream;
 
 import javax.swing.DefaultListModel;
@@ -60,11 +59,10 @@ import org.eclipse.jdt.core.dom.VariableDeclarationExpression;
 import org.eclipse.jdt.core.dom.VariableDeclarationFragment;
 import org.eclipse.jdt.core.dom.VariableDeclarationStatement;
 
+import processing.app.ClassPathIndex;
 import processing.app.Messages;
 import processing.mode.java.JavaMode;
 
-import com.google.classpath.ClassPath;
-import com.google.classpath.RegExpResourceFilter;
 
 @SuppressWarnings({ "unchecked" })
 public class CompletionGenerator {
@@ -694,7 +692,7 @@ public class CompletionGenerator {
       String newClassName = parts[0];
       int i = 1;
       while (i < parts.length &&
-          ps.classPath.isPackage(newClassName)) {
+          ClassPathIndex.get().isPackage(ps.classPathArray, newClassName)) {
         newClassName = newClassName + "/" + parts[i++];
       }
       while (i < parts.length) {
@@ -1872,13 +1870,9 @@ public class CompletionGenerator {
       // We're seeing a simple name that's not defined locally or in
       // the parent class. So most probably a pre-defined type.
       log("Empty can. " + phrase);
-      ClassPath classPath = ps.classPath;
-      if (classPath != null) {
-        RegExpResourceFilter regExpResourceFilter =
-            new RegExpResourceFilter(Pattern.compile(".*"),
-                                     Pattern.compile(phrase + "[a-zA-Z_0-9]*.class",
-                                                     Pattern.CASE_INSENSITIVE));
-        String[] resources = classPath.findResources("", regExpResourceFilter);
+      if (ps.classPathArray != null) {
+        String[] resources =
+            ClassPathIndex.get().findClassesStartingWith(ps.classPathArray, phrase);
 
         for (String matchedClass2 : resources) {
           matchedClass2 = matchedClass2.replace('/', '.'); //package name
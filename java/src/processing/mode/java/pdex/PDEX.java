@@ -1,9 +1,5 @@
 package processing.mode.java.pdex;
 
-import com.google.classpath.ClassPath;
-import com.google.classpath.ClassPathFactory;
-import com.google.classpath.RegExpResourceFilter;
-
 import org.eclipse.jdt.core.compiler.IProblem;
 import org.eclipse.jdt.core.dom.ASTNode;
 import org.eclipse.jdt.core.dom.ASTVisitor;
@@ -45,10 +41,8 @@ import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
 import java.util.function.Predicate;
-import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
 import javax.swing.BorderFactory;
@@ -72,6 +66,7 @@ import javax.swing.tree.DefaultMutableTreeNode;
 import javax.swing.tree.DefaultTreeModel;
 import javax.swing.tree.TreeModel;
 
+import processing.app.ClassPathIndex;
 import processing.app.Language;
 import processing.app.Messages;
 import processing.app.Platform;
@@ -1023,7 +1018,7 @@ public class PDEX {
   }
 
 
-  static private class ErrorChecker {
+  static class ErrorChecker {
     // Delay delivering error check result after last sketch change #2677
     private final static long DELAY_BEFORE_UPDATE = 650;
 
@@ -1076,10 +1071,37 @@ public class PDEX {
 
 
     private void handleSketchProblems(PreprocessedSketch ps) {
+      final List<Problem> problems = findProblems(ps);
+
+      if (scheduledUiUpdate != null) {
+        scheduledUiUpdate.cancel(true);
+      }
+      // Update UI after a delay. See #2677
+      long delay = nextUiUpdate - System.currentTimeMillis();
+      Runnable uiUpdater = () -> {
+        if (nextUiUpdate > 0 && System.currentTimeMillis() >= nextUiUpdate) {
+          long changed = nextUiUpdate - DELAY_BEFORE_UPDATE;
+          EventQueue.invokeLater(() -> {
+            editor.setProblemList(problems);
+            Messages.logf("Error markers updated %d ms after last change",
+                          System.currentTimeMillis() - changed);
+          });
+        }
+      };
+      scheduledUiUpdate = scheduler.schedule(uiUpdater, delay,
+                                             TimeUnit.MILLISECONDS);
+    }
+
+
+    /**
+     * The problems to mark in the editor for a preprocessed sketch, with
+     * import suggestions if those are turned on.
+     */
+    static public List<Problem> findProblems(PreprocessedSketch ps) {
       Map<String, String[]> suggCache =
           JavaMode.importSuggestEnabled ? new HashMap<>() : Collections.emptyMap();
 
-      final List<Problem> problems = new ArrayList<>();
+      List<Problem> problems = new ArrayList<>();
 
       IProblem[] iproblems = ps.compilationUnit.getProblems();
 
@@ -1106,8 +1128,6 @@ public class PDEX {
         }
       }
 
-      AtomicReference<ClassPath> searchClassPath = new AtomicReference<>(null);
-
       if (problems.isEmpty()) {
         List<Problem> cuProblems = Arrays.stream(iproblems)
             // Filter Warnings if they are not enabled
@@ -1131,10 +1151,8 @@ public class PDEX {
 
               // Handle import suggestions
               if (JavaMode.importSuggestEnabled && isUndefinedTypeProblem(iproblem)) {
-                ClassPath cp = searchClassPath.updateAndGet(prev -> prev != null ?
-                    prev : new ClassPathFactory().createFromPaths(ps.searchClassPathArray));
                 String[] s = suggCache.computeIfAbsent(iproblem.getArguments()[0],
-                                                       name -> getImportSuggestions(cp, name));
+                                                       name -> getImportSuggestions(ps.searchClassPathArray, name));
                 p.setImportSuggestions(s);
               }
 
@@ -1146,18 +1164,7 @@ public class PDEX {
         problems.addAll(cuProblems);
       }
 
-      if (scheduledUiUpdate != null) {
-        scheduledUiUpdate.cancel(true);
-      }
-      // Update UI after a delay. See #2677
-      long delay = nextUiUpdate - System.currentTimeMillis();
-      Runnable uiUpdater = () -> {
-        if (nextUiUpdate > 0 && System.currentTimeMillis() >= nextUiUpdate) {
-          EventQueue.invokeLater(() -> editor.setProblemList(problems));
-        }
-      };
-      scheduledUiUpdate = scheduler.schedule(uiUpdater, delay,
-                                             TimeUnit.MILLISECONDS);
+      return problems;
     }
 
 
@@ -1185,13 +1192,8 @@ public class PDEX {
     }
 
 
-    static public String[] getImportSuggestions(ClassPath cp, String className) {
-      RegExpResourceFilter regf = new RegExpResourceFilter(
-          Pattern.compile(".*"),
-          Pattern.compile("(.*\\$)?" + className + "\\.class",
-                          Pattern.CASE_INSENSITIVE));
-
-      String[] resources = cp.findResources("", regf);
+    static public String[] getImportSuggestions(String[] classPath, String className) {
+      String[] resources = ClassPathIndex.get().findClasses(classPath, className);
       return Arrays.stream(resources)
           // remove ".class" suffix
           .map(res -> res.substring(0, res.length() - 6))
@@ -1,7 +1,5 @@
 package processing.mode.java.pdex;
 
-import com.google.classpath.ClassPath;
-
 import org.eclipse.jdt.core.dom.ASTNode;
 import org.eclipse.jdt.core.dom.CompilationUnit;
 
@@ -23,7 +21,6 @@ public class PreprocessedSketch {
   public final CompilationUnit compilationUnit;
 
   public final String[] classPathArray;
-  public final ClassPath classPath;
   public final URLClassLoader classLoader;
 
   public final String[] searchClassPathArray;
@@ -203,7 +200,6 @@ public class PreprocessedSketch {
     public CompilationUnit compilationUnit;
 
     public String[] classPathArray;
-    public ClassPath classPath;
     public URLClassLoader classLoader;
 
     public String[] searchClassPathArray;
@@ -239,7 +235,6 @@ public class PreprocessedSketch {
     compilationUnit = b.compilationUnit;
 
     classPathArray = b.classPathArray;
-    classPath = b.classPath;
     classLoader = b.classLoader;
 
     searchClassPathArray = b.searchClassPathArray;
@@ -20,8 +20,6 @@ along with this program; if not, write to the Free Software Foundation, Inc.
 
 package processing.mode.java.pdex;
 
-import com.google.classpath.ClassPathFactory;
-
 import java.io.File;
 import java.net.MalformedURLException;
 import java.net.URL;
@@ -33,6 +31,7 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
@@ -43,6 +42,7 @@ import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Consumer;
+import java.util.regex.Matcher;
 import java.util.stream.Collectors;
 import java.util.stream.StreamSupport;
 
@@ -54,8 +54,10 @@ import org.eclipse.jdt.core.dom.AST;
 import org.eclipse.jdt.core.dom.ASTParser;
 import org.eclipse.jdt.core.dom.CompilationUnit;
 
+import processing.app.ClassPathIndex;
 import processing.app.Library;
 import processing.app.Messages;
+import processing.app.Problem;
 import processing.app.Sketch;
 import processing.app.SketchCode;
 import processing.app.SketchException;
@@ -64,6 +66,7 @@ import processing.data.IntList;
 import processing.data.StringList;
 import processing.mode.java.JavaEditor;
 import processing.mode.java.JavaMode;
+import processing.mode.java.pdex.TextTransform.Edit;
 import processing.mode.java.pdex.TextTransform.OffsetMapper;
 import processing.mode.java.preproc.PdePreprocessor;
 import processing.mode.java.preproc.PdePreprocessor.Mode;
@@ -78,8 +81,6 @@ public class PreprocessingService {
 
   protected final ASTParser parser = ASTParser.newParser(AST.JLS8);
 
-  private final ClassPathFactory classPathFactory = new ClassPathFactory();
-
   private final Thread preprocessingThread;
   private final BlockingQueue<Boolean> requestQueue = new ArrayBlockingQueue<>(1);
 
@@ -98,6 +99,13 @@ public class PreprocessingService {
 
   private volatile boolean isEnabled = true;
 
+  // Time from the first change not yet processed until the result is ready,
+  // kept to see how long it takes for error checking to catch up with typing
+  private long changeTime;
+  private int latencyCount;
+  private long latencyTotal;
+  private long latencyMax;
+
 
   public PreprocessingService(JavaEditor editor) {
     this.editor = editor;
@@ -141,7 +149,7 @@ public class PreprocessingService {
         synchronized (requestLock) {
           if (requestQueue.isEmpty()) {
             runningCallbacks = lastCallback;
-            Messages.log("PPS: Done");
+            logLatency();
             preprocessingTask.complete(prevResult);
           }
         }
@@ -173,11 +181,31 @@ public class PreprocessingService {
         // Register callback which executes all listeners
         whenDone(this::fireListeners);
       }
+      if (changeTime == 0) {
+        changeTime = System.nanoTime();
+      }
       requestQueue.offer(Boolean.TRUE);
     }
   }
 
 
+  /** Call while holding requestLock. */
+  private void logLatency() {
+    if (changeTime != 0) {
+      long elapsed = (System.nanoTime() - changeTime) / 1000000;
+      changeTime = 0;
+      latencyCount++;
+      latencyTotal += elapsed;
+      latencyMax = Math.max(latencyMax, elapsed);
+      Messages.logf("PPS: Done, %d ms after change " +
+                    "(avg %d ms, max %d ms over %d checks)", elapsed,
+                    latencyTotal / latencyCount, latencyMax, latencyCount);
+    } else {
+      Messages.log("PPS: Done");
+    }
+  }
+
+
   public void notifyLibrariesChanged() {
     Messages.log("PPS: notified libraries changed");
     librariesChanged.set(true);
@@ -254,6 +282,16 @@ public class PreprocessingService {
   /// --------------------------------------------------------------------------
 
 
+  // Name and contents of each tab used for the last result, so that
+  // a request where nothing actually changed doesn't redo all the work
+  private List<String> prevTabNames = Collections.emptyList();
+  private List<String> prevTabContents = Collections.emptyList();
+  private String prevClassName;
+
+  // What was found in each tab, so only the tabs that changed are scanned
+  private final TabScans tabScans = new TabScans();
+
+
   private PreprocessedSketch preprocessSketch(PreprocessedSketch prevResult) {
 
     boolean firstCheck = prevResult == null;
@@ -267,33 +305,47 @@ public class PreprocessingService {
     Sketch sketch = result.sketch = editor.getSketch();
     String className = sketch.getName();
 
-    StringBuilder workBuffer = new StringBuilder();
-
-    // Combine code into one buffer
-    IntList tabStartsList = new IntList();
+    List<String> tabNames = new ArrayList<>();
+    List<String> tabContents = new ArrayList<>();
     for (SketchCode sc : sketch.getCode()) {
       if (sc.isExtension("pde")) {
-        tabStartsList.append(workBuffer.length());
+        String text = null;
         if (sc.getDocument() != null) {
           try {
-            workBuffer.append(sc.getDocumentText());
+            text = sc.getDocumentText();
           } catch (BadLocationException e) {
             e.printStackTrace();
           }
         } else {
-          workBuffer.append(sc.getProgram());
+          text = sc.getProgram();
         }
-        workBuffer.append('\n');
+        tabNames.add(sc.getFileName());
+        tabContents.add(text);
       }
     }
-    result.tabStartOffsets = tabStartsList.array();
-
-    String pdeStage = result.pdeCode = workBuffer.toString();
-
 
     boolean reloadCodeFolder = firstCheck || codeFolderChanged.getAndSet(false);
     boolean reloadLibraries = firstCheck || librariesChanged.getAndSet(false);
 
+    // All .pde tabs go into a single compilation unit, so if any tab has
+    // changed, all of it has to be parsed again. But the editor also asks
+    // for a new check after events that don't change any code (preferences
+    // changed, attribute-only document events, undo followed by redo), so
+    // hold on to the last result as long as the tabs and class path match.
+    if (!reloadCodeFolder && !reloadLibraries &&
+        sketch == prevResult.sketch && className.equals(prevClassName) &&
+        tabNames.equals(prevTabNames) && tabContents.equals(prevTabContents)) {
+      Messages.log("PPS: No tabs changed, reusing previous result");
+      return prevResult;
+    }
+    if (!firstCheck && tabNames.equals(prevTabNames)) {
+      for (int i = 0; i < tabNames.size(); i++) {
+        if (!Objects.equals(tabContents.get(i), prevTabContents.get(i))) {
+          Messages.log("PPS: Tab changed: " + tabNames.get(i));
+        }
+      }
+    }
+
     // Core and default imports
     if (coreAndDefaultImports == null) {
       PdePreprocessor p = editor.createPreprocessor(null);
@@ -308,20 +360,8 @@ public class PreprocessingService {
       codeFolderImports.addAll(prevResult.codeFolderImports);
     }
 
-    // TODO: convert unicode escapes to chars
-
-    SourceUtils.scrubCommentsAndStrings(workBuffer);
-
-    Mode sketchMode = PdePreprocessor.parseMode(workBuffer);
-
-    // Prepare transforms to convert pde code into parsable code
-    TextTransform toParsable = new TextTransform(pdeStage);
-    toParsable.addAll(SourceUtils.insertImports(coreAndDefaultImports));
-    toParsable.addAll(SourceUtils.insertImports(codeFolderImports));
-    toParsable.addAll(SourceUtils.parseProgramImports(workBuffer, programImports));
-    toParsable.addAll(SourceUtils.replaceTypeConstructors(workBuffer));
-    toParsable.addAll(SourceUtils.replaceHexLiterals(workBuffer));
-    toParsable.addAll(SourceUtils.wrapSketch(sketchMode, className, workBuffer.length()));
+    TextTransform toParsable =
+        prepareTransforms(result, tabContents, tabScans, className);
 
     { // Refresh sketch classloader and classpath if imports changed
       if (javaRuntimeClassPath == null) {
@@ -343,8 +383,8 @@ public class PreprocessingService {
       }
 
       boolean rebuildClassPath = reloadCodeFolder || rebuildLibraryClassPath ||
-          prevResult.classLoader == null || prevResult.classPath == null ||
-          prevResult.classPathArray == null || prevResult.searchClassPathArray == null;
+          prevResult.classLoader == null || prevResult.classPathArray == null ||
+          prevResult.searchClassPathArray == null;
 
       if (reloadCodeFolder) {
         codeFolderClassPath = buildCodeFolderClassPath(sketch);
@@ -372,7 +412,6 @@ public class PreprocessingService {
               .filter(url -> url != null)
               .toArray(URL[]::new);
           result.classLoader = new URLClassLoader(urlArray, null);
-          result.classPath = classPathFactory.createFromPaths(classPathArray);
           result.classPathArray = classPathArray;
         }
 
@@ -386,23 +425,199 @@ public class PreprocessingService {
 
           result.searchClassPathArray = searchClassPath.stream().toArray(String[]::new);
         }
+
+        // Get any new or changed jars into the index now, while on this
+        // thread, instead of when completion or import suggestions need them
+        ClassPathIndex index = ClassPathIndex.get();
+        index.update(result.classPathArray);
+        index.update(result.searchClassPathArray);
       } else {
         result.classLoader = prevResult.classLoader;
-        result.classPath = prevResult.classPath;
         result.searchClassPathArray = prevResult.searchClassPathArray;
         result.classPathArray = prevResult.classPathArray;
       }
     }
 
-    { // Check for missing braces
-      List<JavaProblem> missingBraceProblems =
-          SourceUtils.checkForMissingBraces(workBuffer, result.tabStartOffsets);
-      if (!missingBraceProblems.isEmpty()) {
-        result.missingBraceProblems.addAll(missingBraceProblems);
+    parse(parser, result, toParsable, className);
+
+    // Remember what this result was made from
+    prevTabNames = tabNames;
+    prevTabContents = tabContents;
+    prevClassName = className;
+
+    // Build it
+    return result.build();
+  }
+
+
+  /**
+   * Check a sketch's code the same way it's checked after each change in
+   * the editor, but without one: combine the tabs, turn them into Java, and
+   * parse and compile that against the class path.
+   * @param className name of the sketch, and of the class it's wrapped in
+   * @param tabs code of each .pde tab, in order
+   * @param coreAndDefaultImports what PdePreprocessor adds to every sketch
+   * @param classPath everything the sketch is compiled against
+   * @param scans the tabs from the previous check of this sketch
+   */
+  static public PreprocessedSketch preprocess(String className, List<String> tabs,
+                                              List<ImportStatement> coreAndDefaultImports,
+                                              String[] classPath, TabScans scans) {
+    PreprocessedSketch.Builder result = new PreprocessedSketch.Builder();
+    result.coreAndDefaultImports.addAll(coreAndDefaultImports);
+    TextTransform toParsable = prepareTransforms(result, tabs, scans, className);
+    result.classPathArray = classPath;
+    result.searchClassPathArray = classPath;
+    parse(ASTParser.newParser(AST.JLS8), result, toParsable, className);
+    return result.build();
+  }
+
+
+  /**
+   * The problems that the editor would mark for a preprocessed sketch,
+   * with import suggestions if those are turned on.
+   */
+  static public List<Problem> findProblems(PreprocessedSketch ps) {
+    return PDEX.ErrorChecker.findProblems(ps);
+  }
+
+
+  /**
+   * The tabs of a sketch as they were scanned for the last check, by their
+   * code. All the tabs are parsed and compiled together, but the scanning
+   * that comes before (blanking out the comments and strings, and finding
+   * the imports, the type conversions like int(), the #hex colors and
+   * any missing braces) is done one tab at a time, and only for the tabs
+   * that have changed.
+   */
+  static public class TabScans {
+    private Map<String, TabScan> byCode = new HashMap<>();
+    private int scanCount;
+
+    /** Number of tabs that have been scanned, rather than reused. */
+    public int getScanCount() {
+      return scanCount;
+    }
+  }
+
+
+  /**
+   * What's found in a single tab. Offsets are from the start of the tab.
+   * A tab is scanned on its own, so a block comment left open at the end
+   * of one ends there instead of running into the next; the compiler will
+   * complain about it anyway.
+   */
+  static private class TabScan {
+    final String scrubbed;
+    final List<ImportStatement> imports = new ArrayList<>();
+    final IntList importStarts = new IntList();
+    final IntList importLengths = new IntList();
+    final List<Edit> typeConstructors;
+    final List<Edit> hexLiterals;
+    final int[] braces;
+
+    TabScan(String code) {
+      StringBuilder sb = new StringBuilder(code);
+      SourceUtils.scrubCommentsAndStrings(sb);
+      scrubbed = sb.toString();
+
+      Matcher matcher = SourceUtils.IMPORT_REGEX.matcher(sb);
+      while (matcher.find()) {
+        imports.add(ImportStatement.parse(matcher.toMatchResult()));
+        importStarts.append(matcher.start(1));
+        importLengths.append(matcher.end(1) - matcher.start(1));
+      }
+      typeConstructors = SourceUtils.replaceTypeConstructors(sb);
+      hexLiterals = SourceUtils.replaceHexLiterals(sb);
+      braces = SourceUtils.checkForMissingBraces(sb, 0, sb.length());
+    }
+  }
+
+
+  /**
+   * Put the tabs one after another, each ending with a newline, and set up
+   * the transforms that turn that into something that parses as Java.
+   * Adds the sketch's own imports, and any missing braces, to the result.
+   */
+  static private TextTransform prepareTransforms(PreprocessedSketch.Builder result,
+                                                 List<String> tabs, TabScans scans,
+                                                 String className) {
+    // TODO: convert unicode escapes to chars
+
+    StringBuilder pdeCode = new StringBuilder();
+    StringBuilder scrubbed = new StringBuilder();
+    IntList tabStartsList = new IntList();
+    List<TabScan> tabScans = new ArrayList<>();
+    Map<String, TabScan> byCode = new HashMap<>();
+    for (String text : tabs) {
+      String code = (text == null) ? "\n" : text + "\n";
+      TabScan scan = byCode.get(code);
+      if (scan == null) {
+        scan = scans.byCode.get(code);
+      }
+      if (scan == null) {
+        scan = new TabScan(code);
+        scans.scanCount++;
+      }
+      byCode.put(code, scan);
+      tabScans.add(scan);
+      tabStartsList.append(pdeCode.length());
+      pdeCode.append(code);
+      scrubbed.append(scan.scrubbed);
+    }
+    // forget the versions of the tabs that have since been edited
+    scans.byCode = byCode;
+
+    int[] tabStarts = tabStartsList.array();
+    result.tabStartOffsets = tabStarts;
+    result.pdeCode = pdeCode.toString();
+
+    for (int i = 0; i < tabStarts.length; i++) {
+      int[] braces = tabScans.get(i).braces;
+      if (braces[0] != 0) {
+        result.missingBraceProblems.add(SourceUtils.missingBraceProblem(braces, i));
         result.hasSyntaxErrors = true;
       }
     }
 
+    Mode sketchMode = PdePreprocessor.parseMode(scrubbed);
+
+    // Prepare transforms to convert pde code into parsable code
+    TextTransform toParsable = new TextTransform(result.pdeCode);
+    toParsable.addAll(SourceUtils.insertImports(result.coreAndDefaultImports));
+    toParsable.addAll(SourceUtils.insertImports(result.codeFolderImports));
+    for (int i = 0; i < tabStarts.length; i++) {
+      TabScan scan = tabScans.get(i);
+      result.programImports.addAll(scan.imports);
+      for (int j = 0; j < scan.importStarts.size(); j++) {
+        // Remove the import from the main program
+        toParsable.add(Edit.move(tabStarts[i] + scan.importStarts.get(j),
+                                 scan.importLengths.get(j), 0));
+        toParsable.add(Edit.insert(0, "\n"));
+      }
+    }
+    for (int i = 0; i < tabStarts.length; i++) {
+      for (Edit edit : tabScans.get(i).typeConstructors) {
+        toParsable.add(edit.shift(tabStarts[i]));
+      }
+    }
+    for (int i = 0; i < tabStarts.length; i++) {
+      for (Edit edit : tabScans.get(i).hexLiterals) {
+        toParsable.add(edit.shift(tabStarts[i]));
+      }
+    }
+    toParsable.addAll(SourceUtils.wrapSketch(sketchMode, className, scrubbed.length()));
+    return toParsable;
+  }
+
+
+  /**
+   * Parse the transformed code, and compile it against the class path in
+   * the result, for the syntax and compilation problems. Takes most of the
+   * time of a check, and is done for the whole sketch whichever tab changed.
+   */
+  static private void parse(ASTParser parser, PreprocessedSketch.Builder result,
+                            TextTransform toParsable, String className) {
     // Transform code to parsable state
     String parsableStage = toParsable.apply();
     OffsetMapper parsableMapper = toParsable.getMapper();
@@ -443,9 +658,6 @@ public class PreprocessingService {
     result.offsetMapper = parsableMapper.thenMapping(compilableMapper);
     result.javaCode = compilableStage;
     result.compilationUnit = bindingsCU;
-
-    // Build it
-    return result.build();
   }
 
 
@@ -339,19 +339,28 @@ public class SourceUtils {
           tabStartOffsets[tabIndex + 1] : p.length();
       int[] braceResult = checkForMissingBraces(p, tabStartOffset, tabEndOffset);
       if (braceResult[0] != 0) {
-        JavaProblem problem =
-            new JavaProblem(braceResult[0] < 0
-                ? "Found one too many } characters without { to match it."
-                : "Found one too many { characters without } to match it.",
-                JavaProblem.ERROR, tabIndex, braceResult[1]);
-          problem.setPDEOffsets(braceResult[3], braceResult[3] + 1);
-          problems.add(problem);
+        problems.add(missingBraceProblem(braceResult, tabIndex));
       }
     }
     return problems;
   }
 
 
+  /**
+   * The problem to report for a tab whose braces don't match.
+   * @param braceResult what checkForMissingBraces() found for the tab
+   */
+  static public JavaProblem missingBraceProblem(int[] braceResult, int tabIndex) {
+    JavaProblem problem =
+        new JavaProblem(braceResult[0] < 0
+            ? "Found one too many } characters without { to match it."
+            : "Found one too many { characters without } to match it.",
+            JavaProblem.ERROR, tabIndex, braceResult[1]);
+    problem.setPDEOffsets(braceResult[3], braceResult[3] + 1);
+    return problem;
+  }
+
+
   /**
    * Checks a single code fragment (such as a tab) for non-matching braces.
    * Broken out to allow easy use in JavaBuild.
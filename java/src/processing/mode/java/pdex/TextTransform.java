@@ -180,6 +180,15 @@ public class TextTransform {
       return new Edit(position, length, position, 0, null);
     }
 
+    /**
+     * The same edit, for when the code it applies to has moved by offset
+     * chars. Only for edits that stay in place (inserts and replacements).
+     */
+    Edit shift(int offset) {
+      return new Edit(fromOffset + offset, fromLength,
+                      toOffset + offset, toLength, outputText);
+    }
+
     Edit(Edit edit) {
       this.fromOffset = edit.fromOffset;
       this.fromLength = edit.fromLength;
@@ -82,6 +82,10 @@ public class Runner implements MessageConsumer {
   protected volatile boolean cancelled;
   protected final Object cancelLock = new Object[0];
 
+  // Sketch VM started ahead of time (run.warm_vm), and what it will run
+  protected SketchHostPool.Host host;
+  protected String[] hostCommand;
+
 
   public Runner(JavaBuild build, RunnerListener listener) throws SketchException {
     this.listener = listener;
@@ -148,7 +152,7 @@ public class Runner implements MessageConsumer {
 
 
   public VirtualMachine launch(String[] args) {
-    if (launchVirtualMachine(false, args)) {
+    if (launchWarmHost(false, args) || launchVirtualMachine(false, args)) {
       generateTrace();
     }
     return vm;
@@ -156,7 +160,7 @@ public class Runner implements MessageConsumer {
 
 
   public VirtualMachine present(String[] args) {
-    if (launchVirtualMachine(true, args)) {
+    if (launchWarmHost(true, args) || launchVirtualMachine(true, args)) {
       generateTrace();
     }
     return vm;
@@ -300,6 +304,75 @@ public class Runner implements MessageConsumer {
   }
 
 
+  /**
+   * Run in the sketch VM that was started for the next Run, if run.warm_vm
+   * is set and one is ready with the same options. The sketch itself isn't
+   * started until generateTrace() has asked to hear about its exceptions.
+   * Not used for debugging, which launches its own VM.
+   * @return false to launch a VM the usual way
+   */
+  protected boolean launchWarmHost(boolean present, String[] args) {
+    if (!Preferences.getBoolean("run.warm_vm")) {
+      SketchHostPool.dispose();
+      return false;
+    }
+    SketchHostPool.Host claimed = SketchHostPool.claim(getHostOptions());
+    if (claimed == null) {
+      return false;
+    }
+    synchronized (cancelLock) {
+      host = claimed;
+      hostCommand = getSketchParams(present, args).array();
+      process = host.getProcess();
+      vm = host.getVirtualMachine();
+      if (cancelled) {
+        close();
+        return false;
+      }
+    }
+    Messages.log(getClass().getName() + " using a sketch VM started in advance");
+    return true;
+  }
+
+
+  /**
+   * Start a sketch VM for the next Run in the background, if run.warm_vm
+   * is set. Called once this one's sketch has quit, so the two don't
+   * compete while it's running.
+   */
+  protected void prepareWarmHost() {
+    if (Preferences.getBoolean("run.warm_vm")) {
+      Library core = build.getMode().getCoreLibrary();
+      if (core != null) {
+        String classPath = SketchHostPool.getHostClassPath(core.getClassPath());
+        if (classPath != null) {
+          SketchHostPool.prepare(getHostOptions(), classPath);
+        }
+      }
+    }
+  }
+
+
+  /**
+   * The options for a sketch VM, except for the ones that are different for
+   * each sketch even though the VM doesn't have to be: the class path
+   * (the host loads the sketch's own), and the name in the Dock.
+   */
+  protected StringList getHostOptions() {
+    StringList params = getMachineParams();
+    StringList options = new StringList();
+    for (int i = 0; i < params.size(); i++) {
+      String param = params.get(i);
+      if (param.equals("-cp")) {
+        i++;  // and the class path after it
+      } else if (!param.startsWith("-Xdock:name=")) {
+        options.append(param);
+      }
+    }
+    return options;
+  }
+
+
   protected StringList getMachineParams() {
     StringList params = new StringList();
 
@@ -573,6 +646,10 @@ public class Runner implements MessageConsumer {
       // suspend so we can step
       excReq.setSuspendPolicy(EventRequest.SUSPEND_ALL);
       excReq.enable();
+
+      if (host != null) {
+        host.run(build.getClassPath(), hostCommand);
+      }
     } catch (VMDisconnectedException ignore) {
       return;
     }
@@ -635,6 +712,8 @@ public class Runner implements MessageConsumer {
       outThread.join(); // before we exit
 //      System.out.println("finished join for errThread and outThread");
 
+      prepareWarmHost();
+
       // At this point, disable the run button.
       // This happens when the sketch is exited by hitting ESC,
       // or the user manually closes the sketch window.
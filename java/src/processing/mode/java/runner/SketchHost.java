@@ -0,0 +1,236 @@
+/* -*- mode: java; c-basic-offset: 2; indent-tabs-mode: nil -*- */
+
+/*
+  Part of the Processing project - http://processing.org
+
+  Copyright (c) 2017 The Processing Foundation
+
+  This program is free software; you can redistribute it and/or
+  modify it under the terms of the GNU General Public License
+  version 2, as published by the Free Software Foundation.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package processing.mode.java.runner;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import processing.core.PApplet;
+import processing.core.PGraphics;
+
+
+/**
+ * The main class of a sketch VM that's started before anyone hits Run.
+ * It loads (and exercises) the core classes, prints READY, and then waits
+ * for the sketch to run, which arrives on stdin as the sketch's class path
+ * on the first line, then the number of lines that follow, and then the main
+ * class and its arguments (the same as they'd follow the class path on a
+ * java command line), one per line.
+ * <p/>
+ * The sketch's classes (and its libraries) are loaded by a class loader of
+ * their own, on top of the core classes that are already in place. Each
+ * host only runs one sketch: when it quits, the VM exits, as it would have
+ * if it had been launched just for that sketch.
+ * <p/>
+ * This class is run in the sketch's VM, so it only uses what's in core.
+ */
+public class SketchHost {
+  static public final String READY = "SketchHost ready";
+
+  /** Core classes every sketch needs, loaded before the sketch is known */
+  static private final String[] PRELOAD = {
+    "processing.core.PApplet",
+    "processing.core.PGraphics",
+    "processing.core.PImage",
+    "processing.core.PFont",
+    "processing.core.PShape",
+    "processing.core.PVector",
+    "processing.core.PMatrix2D",
+    "processing.core.PMatrix3D",
+    "processing.core.PSurface",
+    "processing.core.PSurfaceNone",
+    "processing.event.MouseEvent",
+    "processing.event.KeyEvent",
+    "processing.awt.PGraphicsJava2D",
+    "processing.awt.PSurfaceAWT",
+    "processing.awt.PShapeJava2D",
+    "processing.data.StringList",
+    "processing.data.IntList",
+    "processing.data.FloatList",
+    "java.awt.Frame",
+    "java.awt.Canvas",
+    "java.awt.image.BufferStrategy",
+  };
+
+
+  static public void main(String[] args) throws Throwable {
+    warmUp();
+    // a bare println() would be \r\n on Windows, which the PDE doesn't expect
+    System.out.print(READY + "\n");
+    System.out.flush();
+
+    List<String> request = readRequest(System.in);
+    if (request == null) {
+      // the PDE went away (or changed its mind), and nothing will be run
+      System.exit(0);
+    }
+    run(request.get(0), request.subList(1, request.size()));
+  }
+
+
+  /**
+   * Load the core classes and draw something with them, so that loading
+   * them (and the first pass through the JIT) is out of the way.
+   */
+  static void warmUp() {
+    ClassLoader loader = SketchHost.class.getClassLoader();
+    for (String name : PRELOAD) {
+      try {
+        Class.forName(name, true, loader);
+      } catch (Throwable t) {
+        // only for speed; if it's really missing, the sketch will say so
+      }
+    }
+    try {
+      PGraphics g = (PGraphics)
+        Class.forName("processing.awt.PGraphicsJava2D").newInstance();
+      g.setPrimary(false);
+      g.setSize(100, 100);
+      for (int i = 0; i < 10; i++) {
+        g.beginDraw();
+        g.background(0);
+        g.fill(255);
+        g.ellipse(50, 50, 40, 40);
+        g.rect(10, 10, 20, 20);
+        g.text("warm", 10, 90);
+        g.endDraw();
+      }
+    } catch (Throwable t) {
+      // no display or no fonts, which won't be any different for the sketch
+    }
+  }
+
+
+  /**
+   * Read the class path, the line count, and that many lines.
+   * @return the class path and the lines, or null if the stream ended
+   *         before the request did
+   */
+  static List<String> readRequest(InputStream input) throws IOException {
+    List<String> lines = new ArrayList<>();
+    int count = -1;
+    ByteArrayOutputStream line = new ByteArrayOutputStream();
+    int c;
+    while ((c = input.read()) != -1) {
+      if (c == '\n') {
+        String s = new String(line.toByteArray(), "UTF-8");
+        line.reset();
+        if (s.endsWith("\r")) {
+          s = s.substring(0, s.length() - 1);
+        }
+        if (lines.size() == 1 && count == -1) {
+          count = Integer.parseInt(s);
+        } else {
+          lines.add(s);
+        }
+        if (lines.size() == count + 1) {
+          return lines;
+        }
+      } else {
+        line.write(c);
+      }
+    }
+    return null;
+  }
+
+
+  /**
+   * Write a request for a host, in the format read by readRequest().
+   */
+  static public void writeRequest(PrintStream output, String classPath,
+                                  String[] command) {
+    StringBuilder sb = new StringBuilder();
+    sb.append(classPath).append('\n');
+    sb.append(command.length).append('\n');
+    for (String arg : command) {
+      sb.append(arg).append('\n');
+    }
+    try {
+      output.write(sb.toString().getBytes("UTF-8"));
+    } catch (IOException e) {
+      // not possible with UTF-8 on a PrintStream
+    }
+    output.flush();
+  }
+
+
+  /**
+   * Load the main class with a class loader for the sketch's class path,
+   * and run its main(). Exceptions are thrown on through main() so that
+   * they're reported the same way as when the sketch has a VM of its own.
+   */
+  static void run(String classPath, List<String> command) throws Throwable {
+    URLClassLoader loader = createLoader(classPath);
+    Thread.currentThread().setContextClassLoader(loader);
+
+    String mainClass = command.get(0);
+    String[] args = command.subList(1, command.size()).toArray(new String[0]);
+    if (mainClass.equals(PApplet.class.getName())) {
+      // the sketch class is named in args, and is loaded through the
+      // context class loader; call directly to skip the reflection
+      PApplet.main(args);
+
+    } else {
+      Class<?> c = Class.forName(mainClass, true, loader);
+      Method main = c.getMethod("main", String[].class);
+      try {
+        main.invoke(null, new Object[] { args });
+      } catch (InvocationTargetException e) {
+        throw e.getCause();
+      }
+    }
+  }
+
+
+  /**
+   * A loader for everything on the class path that isn't on this
+   * VM's class path already (the core library), so that the sketch and its
+   * libraries share the classes that have already been loaded.
+   */
+  static URLClassLoader createLoader(String classPath) throws IOException {
+    Set<String> loaded = new HashSet<>();
+    for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+      loaded.add(new File(entry).getCanonicalPath());
+    }
+    List<URL> urls = new ArrayList<>();
+    for (String entry : classPath.split(File.pathSeparator)) {
+      if (entry.length() == 0) continue;
+      File file = new File(entry);
+      if (!loaded.contains(file.getCanonicalPath())) {
+        urls.add(file.toURI().toURL());
+      }
+    }
+    return new URLClassLoader(urls.toArray(new URL[0]),
+                              SketchHost.class.getClassLoader());
+  }
+}
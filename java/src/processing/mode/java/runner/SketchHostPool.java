@@ -0,0 +1,340 @@
+/* -*- mode: java; c-basic-offset: 2; indent-tabs-mode: nil -*- */
+
+/*
+  Part of the Processing project - http://processing.org
+
+  Copyright (c) 2017 The Processing Foundation
+
+  This program is free software; you can redistribute it and/or
+  modify it under the terms of the GNU General Public License
+  version 2, as published by the Free Software Foundation.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package processing.mode.java.runner;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.net.ConnectException;
+import java.util.List;
+import java.util.Map;
+
+import com.sun.jdi.VirtualMachine;
+import com.sun.jdi.connect.AttachingConnector;
+import com.sun.jdi.connect.Connector;
+import com.sun.jdi.event.Event;
+import com.sun.jdi.event.EventSet;
+import com.sun.jdi.event.VMStartEvent;
+
+import processing.app.Base;
+import processing.app.Messages;
+import processing.app.Platform;
+import processing.core.PApplet;
+import processing.data.StringList;
+import processing.mode.java.ClassDataSharing;
+
+
+/**
+ * Keeps a sketch VM started and waiting for the next Run, so that Run
+ * doesn't have to wait for a VM to start and load the core classes.
+ * The VM runs SketchHost, with the same options a Runner would have used,
+ * except for the class path: only the core library is on it, and the rest
+ * is loaded once the sketch is known. If the options change (a different
+ * memory setting, or a library with native code that changes the
+ * java.library.path), the waiting VM is replaced.
+ * <p/>
+ * Each VM is only used once, and the next one is started in the background
+ * after it's taken. With Java 11 and later, the core classes are shared
+ * from an archive, which is made the first time a VM is started.
+ * <p/>
+ * Turned on with run.warm_vm=true in preferences.txt; it's off by default,
+ * because it keeps a second VM in memory the whole time the PDE is open.
+ */
+public class SketchHostPool {
+  static private Host waiting;
+
+
+  /**
+   * Take the waiting VM, if it was started with these options and
+   * has finished warming up.
+   * @param options VM options, without the class path
+   * @return the host, or null if it should be launched the usual way
+   */
+  static public synchronized Host claim(StringList options) {
+    Host host = waiting;
+    if (host == null) {
+      return null;
+    }
+    if (!host.isAlive() || !host.matches(options)) {
+      waiting = null;
+      host.dispose();
+      return null;
+    }
+    if (!host.ready) {
+      // still starting, so it's no faster; leave it for next time
+      return null;
+    }
+    waiting = null;
+    return host;
+  }
+
+
+  /**
+   * Start a VM for the next Run in the background, unless one with the
+   * same options is already waiting.
+   * @param options VM options, without the class path
+   * @param classPath the core library, which is all that the host needs
+   */
+  static public synchronized void prepare(StringList options, String classPath) {
+    if (waiting != null) {
+      if (waiting.isAlive() && waiting.matches(options)) {
+        return;
+      }
+      waiting.dispose();
+    }
+    final Host host = new Host(options.copy(), classPath);
+    waiting = host;
+    Thread thread = new Thread(new Runnable() {
+      public void run() {
+        try {
+          host.start();
+        } catch (Exception e) {
+          Messages.loge("Could not start a sketch VM in advance", e);
+          synchronized (SketchHostPool.class) {
+            if (waiting == host) {
+              waiting = null;
+            }
+          }
+          host.dispose();
+        }
+      }
+    }, "Sketch VM Warm Up");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+
+  /** Shut down the waiting VM, if there is one. */
+  static public synchronized void dispose() {
+    if (waiting != null) {
+      waiting.dispose();
+      waiting = null;
+    }
+  }
+
+
+  /**
+   * The class path for a host: the core library, then the folder or jar
+   * that SketchHost itself is in. The core jars come first so that they
+   * can be shared from an archive (see ClassDataSharing).
+   * @param coreClassPath the core library's jars
+   * @return the class path, or null if SketchHost can't be found
+   */
+  static public String getHostClassPath(String coreClassPath) {
+    String hostPath;
+    try {
+      hostPath = new File(SketchHost.class.getProtectionDomain().
+                          getCodeSource().getLocation().toURI()).getAbsolutePath();
+    } catch (Exception e) {
+      return null;
+    }
+    StringList entries = new StringList(PApplet.splitTokens(coreClassPath, File.pathSeparator));
+    entries.append(hostPath);
+    return entries.join(File.pathSeparator);
+  }
+
+
+  /**
+   * A VM running SketchHost, attached through JDI the same way Runner
+   * attaches to a sketch.
+   */
+  static public class Host {
+    final StringList options;
+    final String classPath;
+    volatile Process process;
+    volatile VirtualMachine vm;
+    volatile boolean ready;
+    volatile boolean disposed;
+
+
+    Host(StringList options, String classPath) {
+      this.options = options;
+      this.classPath = classPath;
+    }
+
+
+    boolean matches(StringList options) {
+      return this.options.join("\n").equals(options.join("\n"));
+    }
+
+
+    /** Still starting up counts as alive. */
+    boolean isAlive() {
+      return !disposed && (process == null || process.isAlive());
+    }
+
+
+    public Process getProcess() {
+      return process;
+    }
+
+
+    public VirtualMachine getVirtualMachine() {
+      return vm;
+    }
+
+
+    void start() throws Exception {
+      int port = 8000 + (int) (Math.random() * 1000);
+      String portStr = String.valueOf(port);
+
+      StringList command = new StringList();
+      command.append(Platform.getJavaPath());
+      command.append("-agentlib:jdwp=transport=dt_socket,address=" + portStr +
+                     ",server=y,suspend=y,quiet=y");
+      command.append(options);
+      File archive = getArchive();
+      if (archive != null) {
+        command.append("-XX:SharedArchiveFile=" + archive.getAbsolutePath());
+      }
+      command.append("-cp");
+      command.append(classPath);
+      command.append(SketchHost.class.getName());
+
+      process = new ProcessBuilder(command.array()).start();
+      if (disposed) {  // replaced while this was starting
+        process.destroy();
+        return;
+      }
+      vm = attach(portStr);
+
+      // The VM starts suspended, so that no exceptions are missed.
+      // Nothing has been asked for yet, so let it get on with warming up.
+      waitForStart();
+      vm.resume();
+
+      readReady(process.getInputStream());
+      ready = true;
+      Messages.log("Sketch VM is ready for the next Run");
+    }
+
+
+    /**
+     * An archive of the core classes, with Java 11 and later, made the
+     * first time it's needed (or after core or Java have been updated).
+     */
+    File getArchive() {
+      String[] entries = PApplet.split(classPath, File.pathSeparatorChar);
+      // leave off SketchHost's own jar, which is last
+      String[] jars = PApplet.subset(entries, 0, entries.length - 1);
+      return ClassDataSharing.getArchive(Base.getSettingsFile("cds"), "core-",
+                                         Platform.getJavaHome(), jars);
+    }
+
+
+    VirtualMachine attach(String port) throws Exception {
+      AttachingConnector connector = findConnector();
+      Map<String, Connector.Argument> arguments = connector.defaultArguments();
+      arguments.get("port").setValue(port);
+
+      // same as Runner: wait for the socket, for a while
+      for (int attempt = 0; attempt < 200; attempt++) {
+        if (disposed || !process.isAlive()) break;
+        try {
+          VirtualMachine machine = connector.attach(arguments);
+          if (machine != null) {
+            return machine;
+          }
+        } catch (ConnectException ce) {
+          Thread.sleep(100);
+        }
+      }
+      throw new IOException("Could not attach to the sketch VM");
+    }
+
+
+    AttachingConnector findConnector() {
+      List<Connector> connectors =
+        org.eclipse.jdi.Bootstrap.virtualMachineManager().allConnectors();
+      for (Connector connector : connectors) {
+        if (connector.name().equals("com.sun.jdi.SocketAttach")) {
+          return (AttachingConnector) connector;
+        }
+      }
+      throw new IllegalStateException("No SocketAttach connector");
+    }
+
+
+    void waitForStart() throws InterruptedException {
+      while (true) {
+        EventSet eventSet = vm.eventQueue().remove(10000);
+        if (eventSet == null) {
+          return;  // resume anyway
+        }
+        for (Event event : eventSet) {
+          if (event instanceof VMStartEvent) {
+            return;
+          }
+        }
+      }
+    }
+
+
+    /**
+     * Read the line that says the host is ready, one byte at a time so
+     * that nothing after it (which is the sketch's output) is taken.
+     */
+    static void readReady(InputStream input) throws IOException {
+      StringBuilder line = new StringBuilder();
+      int c;
+      while ((c = input.read()) != -1) {
+        if (c == '\n') {
+          if (line.toString().trim().equals(SketchHost.READY)) {
+            return;
+          }
+          line.setLength(0);
+        } else {
+          line.append((char) c);
+        }
+      }
+      throw new IOException("Sketch VM quit while warming up");
+    }
+
+
+    /**
+     * Run a sketch in this host. Call once the exception requests are in
+     * place, since the sketch starts right away.
+     * @param classPath the sketch's full class path
+     * @param command the main class and its arguments
+     */
+    public void run(String classPath, String[] command) {
+      SketchHost.writeRequest(new PrintStream(process.getOutputStream()),
+                              classPath, command);
+    }
+
+
+    void dispose() {
+      disposed = true;
+      if (vm != null) {
+        try {
+          vm.exit(0);
+        } catch (Exception e) {
+          // already gone
+        }
+      }
+      if (process != null) {
+        process.destroy();
+      }
+    }
+  }
+}
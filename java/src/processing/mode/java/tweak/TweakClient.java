@@ -22,17 +22,59 @@ package processing.mode.java.tweak;
 
 import java.net.*;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 
+/**
+ * Sends new values to the sketch while handles are being dragged.
+ * <p/>
+ * Values aren't sent as soon as they change. Only the latest value of each
+ * variable is kept, and every changed variable goes out together in one
+ * packet, at most about once a frame. Each packet is numbered, so the
+ * sketch can ignore a value that arrives after a newer one for the same
+ * variable. The sketch holds on to what it receives and applies it all
+ * at once before its next frame, see getServerCode().
+ * <p/>
+ * A packet is a header of three ints (BATCH, the sequence number, and the
+ * number of values), followed by three ints for each value: VAR_INT or
+ * VAR_FLOAT, the index of the variable, and the value (or its bits).
+ */
 public class TweakClient {
   private DatagramSocket socket;
   private InetAddress address;
   private boolean initialized;
   private int sketchPort;
 
-  static final int VAR_INT = 0;
-  static final int VAR_FLOAT = 1;
-  static final int SHUTDOWN = 0xffffffff;
+  static public final int VAR_INT = 0;
+  static public final int VAR_FLOAT = 1;
+  static public final int BATCH = 2;
+  static public final int SHUTDOWN = 0xffffffff;
+
+  /** Shortest time between two packets, about a frame at 60 fps */
+  static final int FRAME_MILLIS = 16;
+
+  static public final int HEADER_SIZE = 12;
+  static public final int VALUE_SIZE = 12;
+  /** Largest packet sent, anything more waits for the next one */
+  static final int MAX_PACKET = 8192;
+
+  // latest values not yet sent, guarded by this
+  private int[] intValues = new int[0];
+  private boolean[] intChanged = new boolean[0];
+  private float[] floatValues = new float[0];
+  private boolean[] floatChanged = new boolean[0];
+  private int changedCount;
+  private boolean closing;
+
+  // only used by the sender thread
+  private int sequence;
+  private byte[] buffer = new byte[MAX_PACKET];
+  private ByteBuffer bb = ByteBuffer.wrap(buffer);
+  private DatagramPacket packet;
+  private Thread sender;
+
+  // counted for the tests
+  private volatile int packetCount;
 
 
   public TweakClient(int sketchPort) {
@@ -42,6 +84,7 @@ public class TweakClient {
       socket = new DatagramSocket();
       // only local sketch is allowed
       address = InetAddress.getByName("127.0.0.1");
+      packet = new DatagramPacket(buffer, 0, address, sketchPort);
       initialized = true;
 
     } catch (SocketException e) {
@@ -55,12 +98,29 @@ public class TweakClient {
       socket.close();
       initialized = false;
     }
+
+    if (initialized) {
+      sender = new Thread(new Runnable() {
+        public void run() {
+          send();
+        }
+      }, "Tweak Mode Sender");
+      sender.setDaemon(true);
+      sender.start();
+    }
   }
 
 
   public void shutdown() {
     if (initialized) {
-      // send shutdown to the sketch
+      // send anything still waiting, then shut down the sketch
+      synchronized (this) {
+        closing = true;
+        notifyAll();
+      }
+      try {
+        sender.join(1000);
+      } catch (InterruptedException e) { }
       sendShutdown();
       initialized = false;
     }
@@ -69,17 +129,19 @@ public class TweakClient {
 
   public boolean sendInt(int index, int val) {
     if (initialized) {
-      try {
-        byte[] buf = new byte[12];
-        ByteBuffer bb = ByteBuffer.wrap(buf);
-        bb.putInt(0, VAR_INT);
-        bb.putInt(4, index);
-        bb.putInt(8, val);
-        DatagramPacket packet = new DatagramPacket(buf, buf.length, address, sketchPort);
-        socket.send(packet);
-        return true;
-
-      } catch (Exception e) { }
+      synchronized (this) {
+        if (index >= intValues.length) {
+          intValues = Arrays.copyOf(intValues, index + 16);
+          intChanged = Arrays.copyOf(intChanged, index + 16);
+        }
+        intValues[index] = val;
+        if (!intChanged[index]) {
+          intChanged[index] = true;
+          changedCount++;
+          notifyAll();
+        }
+      }
+      return true;
     }
     return false;
   }
@@ -87,16 +149,19 @@ public class TweakClient {
 
   public boolean sendFloat(int index, float val) {
     if (initialized) {
-      try {
-        byte[] buf = new byte[12];
-        ByteBuffer bb = ByteBuffer.wrap(buf);
-        bb.putInt(0, VAR_FLOAT);
-        bb.putInt(4, index);
-        bb.putFloat(8, val);
-        socket.send(new DatagramPacket(buf, buf.length, address, sketchPort));
-        return true;
-
-      } catch (Exception e) { }
+      synchronized (this) {
+        if (index >= floatValues.length) {
+          floatValues = Arrays.copyOf(floatValues, index + 16);
+          floatChanged = Arrays.copyOf(floatChanged, index + 16);
+        }
+        floatValues[index] = val;
+        if (!floatChanged[index]) {
+          floatChanged[index] = true;
+          changedCount++;
+          notifyAll();
+        }
+      }
+      return true;
     }
     return false;
   }
@@ -109,6 +174,7 @@ public class TweakClient {
         ByteBuffer bb = ByteBuffer.wrap(buf);
         bb.putInt(0, SHUTDOWN);
         socket.send(new DatagramPacket(buf, buf.length, address, sketchPort));
+        socket.close();
         return true;
 
       } catch (Exception e) { }
@@ -117,21 +183,118 @@ public class TweakClient {
   }
 
 
+  /** Number of packets with values that have been sent. */
+  public int getPacketCount() {
+    return packetCount;
+  }
+
+
+  /**
+   * Runs on the sender thread: waits for values to change, sends them,
+   * then waits out the rest of the frame so that whatever else changes
+   * in the meantime goes in the same packet.
+   */
+  private void send() {
+    while (true) {
+      synchronized (this) {
+        while (changedCount == 0 && !closing) {
+          try {
+            wait();
+          } catch (InterruptedException e) {
+            return;
+          }
+        }
+        if (changedCount == 0) {
+          return;  // closing, and nothing left to send
+        }
+        fillPacket();
+      }
+      try {
+        socket.send(packet);
+        packetCount++;
+      } catch (Exception e) { }
+
+      try {
+        Thread.sleep(FRAME_MILLIS);
+      } catch (InterruptedException e) {
+        return;
+      }
+    }
+  }
+
+
+  /** Move changed values into the packet, call while holding the lock. */
+  private void fillPacket() {
+    int count = 0;
+    int offset = HEADER_SIZE;
+    for (int i = 0; i < intChanged.length && offset + VALUE_SIZE <= MAX_PACKET; i++) {
+      if (intChanged[i]) {
+        bb.putInt(offset, VAR_INT);
+        bb.putInt(offset + 4, i);
+        bb.putInt(offset + 8, intValues[i]);
+        intChanged[i] = false;
+        offset += VALUE_SIZE;
+        count++;
+      }
+    }
+    for (int i = 0; i < floatChanged.length && offset + VALUE_SIZE <= MAX_PACKET; i++) {
+      if (floatChanged[i]) {
+        bb.putInt(offset, VAR_FLOAT);
+        bb.putInt(offset + 4, i);
+        bb.putFloat(offset + 8, floatValues[i]);
+        floatChanged[i] = false;
+        offset += VALUE_SIZE;
+        count++;
+      }
+    }
+    changedCount -= count;
+    bb.putInt(0, BATCH);
+    bb.putInt(4, sequence++);
+    bb.putInt(8, count);
+    packet.setData(buffer, 0, offset);
+  }
+
+
   static public String getServerCode(int listenPort,
                                      boolean hasInts, boolean hasFloats) {
     String serverCode = ""+
-    "class TweakModeServer extends Thread\n"+
+    "public class TweakModeServer extends Thread\n"+
     "{\n"+
     "  protected DatagramSocket socket = null;\n"+
     "  protected boolean running = true;\n"+
-    "  final int INT_VAR = 0;\n"+
-    "  final int FLOAT_VAR = 1;\n"+
+    "  final int INT_VAR = " + VAR_INT + ";\n"+
+    "  final int FLOAT_VAR = " + VAR_FLOAT + ";\n"+
+    "  final int BATCH = " + BATCH + ";\n"+
     "  final int SHUTDOWN = 0xffffffff;\n"+
+    "  // values waiting for the next frame, and the packet each came in\n"+
+    "  boolean received;\n";
+    if (hasInts) {
+      serverCode +=
+    "  int[] receivedInt = new int[tweakmode_int.length];\n"+
+    "  int[] intSequence = new int[tweakmode_int.length];\n"+
+    "  boolean[] intChanged = new boolean[tweakmode_int.length];\n";
+    }
+    if (hasFloats) {
+      serverCode +=
+    "  float[] receivedFloat = new float[tweakmode_float.length];\n"+
+    "  int[] floatSequence = new int[tweakmode_float.length];\n"+
+    "  boolean[] floatChanged = new boolean[tweakmode_float.length];\n";
+    }
+    serverCode +=
     "  public TweakModeServer() {\n"+
     "    this(\"TweakModeServer\");\n"+
     "  }\n"+
     "  public TweakModeServer(String name) {\n"+
-    "    super(name);\n"+
+    "    super(name);\n";
+    if (hasInts) {
+      serverCode +=
+    "    java.util.Arrays.fill(intSequence, -1);\n";
+    }
+    if (hasFloats) {
+      serverCode +=
+    "    java.util.Arrays.fill(floatSequence, -1);\n";
+    }
+    serverCode +=
     "  }\n"+
     "  public void setup()\n"+
     "  {\n"+
@@ -141,38 +304,48 @@ public class TweakClient {
     "    } catch (IOException e) {\n"+
     "      println(\"error: could not create TweakMode server socket\");\n"+
     "    }\n"+
+    "    registerMethod(\"pre\", this);\n"+
     "  }\n"+
     "  public void run()\n"+
     "  {\n"+
-    "    byte[] buf = new byte[256];\n"+
+    "    byte[] buf = new byte[65536];\n"+
+    "    ByteBuffer bb = ByteBuffer.wrap(buf);\n"+
+    "    DatagramPacket packet = new DatagramPacket(buf, buf.length);\n"+
     "    while(running)\n"+
     "    {\n"+
     "      try {\n"+
-    "        DatagramPacket packet = new DatagramPacket(buf, buf.length);\n"+
+    "        packet.setLength(buf.length);\n"+
     "        socket.receive(packet);\n"+
-    "        ByteBuffer bb = ByteBuffer.wrap(buf);\n"+
     "        int type = bb.getInt(0);\n"+
-    "        int index = bb.getInt(4);\n";
-
+    "        if (type == SHUTDOWN) {\n"+
+    "          running = false;\n"+
+    "        } else if (type == BATCH) {\n"+
+    "          int sequence = bb.getInt(4);\n"+
+    "          int count = bb.getInt(8);\n"+
+    "          synchronized (this) {\n"+
+    "            for (int i = 0; i < count; i++) {\n"+
+    "              int at = " + HEADER_SIZE + " + i * " + VALUE_SIZE + ";\n"+
+    "              int index = bb.getInt(at + 4);\n";
     if (hasInts) {
       serverCode +=
-    "        if (type == INT_VAR) {\n"+
-    "          int val = bb.getInt(8);\n"+
-    "          tweakmode_int[index] = val;\n"+
-    "        }\n"+
-    "        else ";
+    "              if (bb.getInt(at) == INT_VAR && sequence > intSequence[index]) {\n"+
+    "                receivedInt[index] = bb.getInt(at + 8);\n"+
+    "                intSequence[index] = sequence;\n"+
+    "                intChanged[index] = true;\n"+
+    "              }\n";
     }
     if (hasFloats) {
       serverCode +=
-    "         if (type == FLOAT_VAR) {\n"+
-    "          float val = bb.getFloat(8);\n"+
-    "          tweakmode_float[index] = val;\n"+
-    "        }\n"+
-    "        else";
+    "              if (bb.getInt(at) == FLOAT_VAR && sequence > floatSequence[index]) {\n"+
+    "                receivedFloat[index] = bb.getFloat(at + 8);\n"+
+    "                floatSequence[index] = sequence;\n"+
+    "                floatChanged[index] = true;\n"+
+    "              }\n";
     }
     serverCode +=
-    "        if (type == SHUTDOWN) {\n"+
-    "          running = false;\n"+
+    "            }\n"+
+    "            received = true;\n"+
+    "          }\n"+
     "        }\n"+
     "      } catch (SocketTimeoutException e) {\n"+
     "        // nothing to do here just try receiving again\n"+
@@ -181,6 +354,32 @@ public class TweakClient {
     "    }\n"+
     "    socket.close();\n"+
     "  }\n"+
+    "  // called before each frame, so values only change between frames\n"+
+    "  public synchronized void pre()\n"+
+    "  {\n"+
+    "    if (received) {\n";
+    if (hasInts) {
+      serverCode +=
+    "      for (int i = 0; i < intChanged.length; i++) {\n"+
+    "        if (intChanged[i]) {\n"+
+    "          tweakmode_int[i] = receivedInt[i];\n"+
+    "          intChanged[i] = false;\n"+
+    "        }\n"+
+    "      }\n";
+    }
+    if (hasFloats) {
+      serverCode +=
+    "      for (int i = 0; i < floatChanged.length; i++) {\n"+
+    "        if (floatChanged[i]) {\n"+
+    "          tweakmode_float[i] = receivedFloat[i];\n"+
+    "          floatChanged[i] = false;\n"+
+    "        }\n"+
+    "      }\n";
+    }
+    serverCode +=
+    "      received = false;\n"+
+    "    }\n"+
+    "  }\n"+
     "}\n\n\n";
 
     return serverCode;